@@ -35,9 +35,12 @@ public final class BabuDBFactory {
     public static final String BABUDB_VERSION           = "0.5.6";
     
     /**
-     * Version of the DB on-disk format (to detect incompatibilities).
+     * Version of the DB on-disk format (to detect incompatibilities). Version
+     * 5 adds incremental checkpoints with stacks of runs, per-run expiry
+     * times, block codecs and 64-bit block offsets; databases of version 4 are
+     * upgraded in place.
      */
-    public static final int    BABUDB_DB_FORMAT_VERSION = 4;
+    public static final int    BABUDB_DB_FORMAT_VERSION = 5;
     
     /**
      * Initializes a new BabuDB instance.
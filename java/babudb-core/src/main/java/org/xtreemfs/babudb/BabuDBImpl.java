@@ -19,14 +19,24 @@ import static org.xtreemfs.babudb.log.LogEntry.PAYLOAD_TYPE_TRANSACTION;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.xtreemfs.babudb.api.BabuDB;
 import org.xtreemfs.babudb.api.StaticInitialization;
+import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
 import org.xtreemfs.babudb.api.dev.BabuDBInternal;
 import org.xtreemfs.babudb.api.dev.CheckpointerInternal;
 import org.xtreemfs.babudb.api.dev.DatabaseInternal;
@@ -35,11 +45,14 @@ import org.xtreemfs.babudb.api.dev.ResponseManagerInternal;
 import org.xtreemfs.babudb.api.dev.SnapshotManagerInternal;
 import org.xtreemfs.babudb.api.dev.transaction.InMemoryProcessing;
 import org.xtreemfs.babudb.api.dev.transaction.OperationInternal;
+import org.xtreemfs.babudb.api.dev.transaction.TransactionInternal;
 import org.xtreemfs.babudb.api.dev.transaction.TransactionManagerInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
+import org.xtreemfs.babudb.api.transaction.Operation;
 import org.xtreemfs.babudb.config.BabuDBConfig;
 import org.xtreemfs.babudb.conversion.AutoConverter;
+import org.xtreemfs.babudb.index.reader.BlockCache;
 import org.xtreemfs.babudb.log.DiskLogIterator;
 import org.xtreemfs.babudb.log.DiskLogger;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
@@ -47,6 +60,8 @@ import org.xtreemfs.babudb.log.LogEntry;
 import org.xtreemfs.babudb.lsmdb.CheckpointerImpl;
 import org.xtreemfs.babudb.lsmdb.DBConfig;
 import org.xtreemfs.babudb.lsmdb.DatabaseManagerImpl;
+import org.xtreemfs.babudb.lsmdb.InsertRecordGroup;
+import org.xtreemfs.babudb.lsmdb.LSMDBRequest;
 import org.xtreemfs.babudb.lsmdb.LSMDBWorker;
 import org.xtreemfs.babudb.lsmdb.LSMDatabase;
 import org.xtreemfs.babudb.lsmdb.LSN;
@@ -73,6 +88,16 @@ public class BabuDBImpl implements BabuDBInternal {
     
     private LSMDBWorker[]                 worker;
     
+    /**
+     * serializes the enqueueing of worker lock requests
+     */
+    private final Object                  workerLockOrder = new Object();
+    
+    /**
+     * the threads performing lookups that bypass the workers, if any
+     */
+    private final ExecutorService         readers;
+    
     /**
      * the disk logger is used to write InsertRecordGroups persistently to disk
      */
@@ -148,12 +173,28 @@ public class BabuDBImpl implements BabuDBInternal {
     BabuDBImpl(BabuDBConfig configuration) throws BabuDBException {
         
         this.configuration = configuration;
+        
+        // the block cache is shared by all BabuDB instances in the process
+        BlockCache.getInstance().configure(configuration.getBlockCacheSize(),
+            configuration.getBlockCacheOffHeap());
+        
         this.responseManager = new ResponseManagerImpl(configuration.getMaxQueueLength());
         this.txnMan = new TransactionManagerImpl(configuration.getSyncMode().equals(SyncMode.ASYNC));
         this.databaseManager = new DatabaseManagerImpl(this);
         this.dbConfigFile = new DBConfig(this);
         this.snapshotManager = new SnapshotManagerImpl(this);
         this.dbCheckptr = new CheckpointerImpl(this);
+        
+        if (configuration.getReadThreads() > 0)
+            this.readers = Executors.newFixedThreadPool(configuration.getReadThreads(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BabuDB reader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        else
+            this.readers = null;
     }
     
     /*
@@ -173,13 +214,17 @@ public class BabuDBImpl implements BabuDBInternal {
             // determine the LSN from which to start the log replay
             
             // to be able to recover from crashes during checkpoints, it is
-            // necessary to start with the smallest LSN found on disk
+            // necessary to start with the smallest LSN found on disk; as
+            // databases may be flushed individually, all logs need to be
+            // replayed if a database has never been written to disk
             LSN dbLsn = null;
             for (DatabaseInternal db : databaseManager.getDatabaseList()) {
                 
                 LSN onDiskLSN = db.getLSMDB().getOndiskLSN();
-                if (LSMDatabase.NO_DB_LSN.equals(onDiskLSN))
-                    continue;
+                if (LSMDatabase.NO_DB_LSN.equals(onDiskLSN)) {
+                    dbLsn = null;
+                    break;
+                }
                 
                 if (dbLsn == null || dbLsn.compareTo(onDiskLSN) > 0)
                     dbLsn = onDiskLSN;
@@ -318,17 +363,18 @@ public class BabuDBImpl implements BabuDBInternal {
             // determine the LSN from which to start the log replay
             
             // to be able to recover from crashes during checkpoints, it is
-            // necessary to start with the smallest LSN found on disk
+            // necessary to start with the smallest LSN found on disk; as
+            // databases may be flushed individually, all logs need to be
+            // replayed if a database has never been written to disk
             LSN dbLsn = null;
             for (DatabaseInternal db : databaseManager.getDatabaseList()) {
-                if (dbLsn == null)
-                    dbLsn = db.getLSMDB().getOndiskLSN();
-                else {
-                    LSN onDiskLSN = db.getLSMDB().getOndiskLSN();
-                    if (!(LSMDatabase.NO_DB_LSN.equals(dbLsn) || LSMDatabase.NO_DB_LSN.equals(onDiskLSN))) {
-                        dbLsn = dbLsn.compareTo(onDiskLSN) < 0 ? dbLsn : onDiskLSN;
-                    }
+                LSN onDiskLSN = db.getLSMDB().getOndiskLSN();
+                if (LSMDatabase.NO_DB_LSN.equals(onDiskLSN)) {
+                    dbLsn = onDiskLSN;
+                    break;
                 }
+                if (dbLsn == null || dbLsn.compareTo(onDiskLSN) > 0)
+                    dbLsn = onDiskLSN;
             }
             if (dbLsn == null) {
                 // empty database
@@ -405,6 +451,13 @@ public class BabuDBImpl implements BabuDBInternal {
             }
         }
         
+        if (readers != null) {
+            if (graceful)
+                readers.shutdown();
+            else
+                readers.shutdownNow();
+        }
+        
         // stop the plugin threads
         BabuDBException exc = null;
         for (LifeCycleThread p : plugins) {
@@ -475,6 +528,8 @@ public class BabuDBImpl implements BabuDBInternal {
             if (worker != null)
                 for (LSMDBWorker w : worker)
                     w.stop();
+            if (readers != null)
+                readers.shutdownNow();
             this.dbCheckptr.shutdown();
             this.databaseManager.shutdown();
             this.snapshotManager.shutdown();
@@ -629,6 +684,81 @@ public class BabuDBImpl implements BabuDBInternal {
         return worker[dbId % worker.length];
     }
     
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#getWorker(int, int, byte[])
+     */
+    @Override
+    public LSMDBWorker getWorker(int dbId, int indexId, byte[] key) {
+        if (worker == null) {
+            return null;
+        }
+        if (!configuration.getShardWorkersByKey()) {
+            return getWorker(dbId);
+        }
+        
+        // spread the hash code, so as to make sure that similar keys are
+        // evenly distributed across the workers
+        int hash = (dbId * 31 + indexId) * 31 + Arrays.hashCode(key);
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return worker[(hash & Integer.MAX_VALUE) % worker.length];
+    }
+    
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#getWorkers(int)
+     */
+    @Override
+    public Collection<LSMDBWorker> getWorkers(int dbId) {
+        if (worker == null) {
+            return Collections.emptyList();
+        }
+        if (!configuration.getShardWorkersByKey()) {
+            return Collections.singletonList(getWorker(dbId));
+        }
+        return Arrays.asList(worker);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#lockWorkers(java.util.Collection,
+     *          java.lang.Object)
+     */
+    @Override
+    public List<DatabaseRequestResult<AtomicBoolean>> lockWorkers(Collection<LSMDBWorker> workers,
+        Object context) throws InterruptedException {
+        
+        List<DatabaseRequestResult<AtomicBoolean>> lockFutures = 
+            new ArrayList<DatabaseRequestResult<AtomicBoolean>>(workers.size());
+        
+        // lock requests must not interleave, as workers might otherwise wait
+        // for each other's locks
+        synchronized (workerLockOrder) {
+            for (LSMDBWorker w : workers) {
+                BabuDBRequestResultImpl<AtomicBoolean> lockFuture = 
+                    new BabuDBRequestResultImpl<AtomicBoolean>(context, responseManager);
+                w.addRequest(new LSMDBRequest<AtomicBoolean>(lockFuture));
+                lockFutures.add(lockFuture);
+            }
+        }
+        
+        return lockFutures;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#getReadExecutor()
+     */
+    @Override
+    public Executor getReadExecutor() {
+        return readers;
+    }
+    
     /**
      * Replays the database operations log.
      * 
@@ -659,13 +789,28 @@ public class BabuDBImpl implements BabuDBInternal {
                     le = it.next();
                     byte type = le.getPayloadType();
                     
+                    // set LSN
+                    nextLSN = new LSN(le.getViewId(), le.getLogSequenceNo() + 1L);
+                    
                     Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
                         "Reading entry LSN(%s) of type (%d) with %d bytes payload from log.", le.getLSN()
                                 .toString(), (int) type, le.getPayload().remaining());
                     
                     // in normal there are only transactions to be replayed
                     if (type == PAYLOAD_TYPE_TRANSACTION) {
-                        txnMan.replayTransaction(le);
+                        
+                        // skip all insertions that are already contained in
+                        // the on-disk state of their database; as the logs
+                        // are replayed from the smallest on-disk LSN of all
+                        // databases, re-applying them would apply merge
+                        // operands repeatedly
+                        TransactionInternal txn = TransactionInternal.deserialize(le.getPayload());
+                        Iterator<OperationInternal> ops = txn.iterator();
+                        while (ops.hasNext())
+                            if (isPersistent(ops.next(), le.getLSN()))
+                                ops.remove();
+                        
+                        txnMan.replayTransaction(txn);
                         
                         // create, copy and delete are not replayed (this block
                         // is for backward
@@ -681,6 +826,9 @@ public class BabuDBImpl implements BabuDBInternal {
                         OperationInternal operation = processingLogic.convertToOperation(processingLogic
                                 .deserializeRequest(le.getPayload()));
                         
+                        if (isPersistent(operation, le.getLSN()))
+                            continue;
+                        
                         // execute the in-memory logic
                         try {
                             processingLogic.process(operation);
@@ -719,9 +867,6 @@ public class BabuDBImpl implements BabuDBInternal {
                             }
                         }
                     }
-                    
-                    // set LSN
-                    nextLSN = new LSN(le.getViewId(), le.getLogSequenceNo() + 1L);
                 } finally {
                     if (le != null) {
                         le.free();
@@ -750,6 +895,37 @@ public class BabuDBImpl implements BabuDBInternal {
         }
     }
     
+    /**
+     * Checks whether the given operation is an insertion that is already
+     * contained in the on-disk state of the database it refers to.
+     * 
+     * @param operation
+     *            the operation
+     * @param lsn
+     *            the LSN of the log entry containing the operation
+     * @return <code>true</code>, if the operation must not be replayed,
+     *         <code>false</code>, otherwise
+     */
+    private boolean isPersistent(OperationInternal operation, LSN lsn) {
+        
+        if (operation.getType() != Operation.TYPE_GROUP_INSERT)
+            return false;
+        
+        try {
+            InsertRecordGroup irg = (InsertRecordGroup) operation.getParams()[0];
+            DatabaseInternal db = irg.getDatabaseId() == InsertRecordGroup.DB_ID_UNKNOWN ? databaseManager
+                    .getDatabase(operation.getDatabaseName()) : databaseManager.getDatabase(irg
+                    .getDatabaseId());
+            
+            return lsn.compareTo(db.getLSMDB().getOndiskLSN()) <= 0;
+            
+        } catch (BabuDBException exc) {
+            // the database does not exist anymore; this is handled when the
+            // operation is processed
+            return false;
+        }
+    }
+    
     /*
      * Life cycle listener used to handle crashes of plugins.
      */
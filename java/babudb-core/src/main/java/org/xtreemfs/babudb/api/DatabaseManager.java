@@ -9,11 +9,14 @@
 package org.xtreemfs.babudb.api;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import org.xtreemfs.babudb.api.database.Database;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
 import org.xtreemfs.babudb.api.transaction.Transaction;
 import org.xtreemfs.babudb.api.transaction.TransactionListener;
 import org.xtreemfs.babudb.lsmdb.BabuDBInsertGroup;
@@ -68,7 +71,10 @@ public interface DatabaseManager {
      *            the number of indices (cannot be changed afterwards)
      * @param comparators
      *            an array of ByteRangeComparators for each index (use only one
-     *            instance)
+     *            instance); besides custom comparators, the
+     *            <code>DefaultByteRangeComparator</code> (signed byte order)
+     *            and the <code>UnsignedByteRangeComparator</code> (unsigned
+     *            byte order, faster for long keys) may be used
      * @return the newly created database
      * @throws BabuDBException
      *             if the database directory cannot be created or the config
@@ -77,6 +83,29 @@ public interface DatabaseManager {
     public Database createDatabase(String databaseName, int numIndices, ByteRangeComparator[] comparators)
         throws BabuDBException;
     
+    /**
+     * Creates a new database with merge operators, which allow to modify the
+     * values of keys by means of merge operations, without looking them up
+     * beforehand.
+     * 
+     * @param databaseName
+     *            name, must be unique
+     * @param numIndices
+     *            the number of indices (cannot be changed afterwards)
+     * @param comparators
+     *            an array of ByteRangeComparators for each index (use only one
+     *            instance), or <code>null</code> for the default comparator
+     * @param mergeOperators
+     *            an array of MergeOperators for each index; entries may be
+     *            <code>null</code> for indices without merge operations
+     * @return the newly created database
+     * @throws BabuDBException
+     *             if the database directory cannot be created or the config
+     *             cannot be saved
+     */
+    public Database createDatabase(String databaseName, int numIndices, ByteRangeComparator[] comparators,
+        MergeOperator[] mergeOperators) throws BabuDBException;
+    
     /**
      * Deletes a database.
      * 
@@ -122,6 +151,34 @@ public interface DatabaseManager {
      */
     public void dumpAllDatabases(String destPath) throws BabuDBException, IOException, InterruptedException;
     
+    /**
+     * Ingests a sequence of sorted entries into an index of a database. Unlike
+     * insertions, ingested entries are neither written to the database log nor
+     * buffered in memory; instead, they are streamed to a new on-disk run of
+     * the index. Once the run has been written, the database is flushed to a
+     * new checkpoint, in which the run is the newest run of the index. The
+     * run becomes visible when the database has been switched to the new
+     * checkpoint; existing checkpoints are not modified.
+     * <p>
+     * Ingested entries replace all entries with the same keys that were
+     * written before the ingestion began. Whether or not they replace entries
+     * that are written concurrently with the ingestion is undefined.
+     * </p>
+     * 
+     * @param dbName
+     *            the name of the database
+     * @param indexId
+     *            the index into which the entries are ingested
+     * @param entries
+     *            the entries; keys have to be in strictly ascending order
+     *            according to the comparator of the index
+     * @throws BabuDBException
+     *             if the database or index does not exist, if the entries are
+     *             not sorted, or if the entries cannot be written to disk
+     */
+    public void ingestSorted(String dbName, int indexId, Iterator<Entry<byte[], byte[]>> entries)
+        throws BabuDBException;
+    
     /**
      * Creates a new, empty transaction.
      * <p>
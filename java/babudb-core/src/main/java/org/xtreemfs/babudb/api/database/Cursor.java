@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.api.database;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A cursor over the entries of an index, which can be positioned at any key
+ * and moved in both directions.
+ * 
+ * <p>
+ * Unlike a <code>ResultSet</code>, a cursor does not create an object per
+ * entry. Instead, <code>key()</code> and <code>value()</code> return views on
+ * the buffers holding the current entry, which remain valid until the cursor
+ * is moved or freed. Callers must neither modify the content of these views
+ * nor keep references to them; if needed, the content has to be copied.
+ * </p>
+ * 
+ * <p>
+ * A cursor is not positioned when it is created. It has to be positioned by
+ * means of <code>seek()</code> or <code>seekForPrev()</code> before entries
+ * can be accessed. Cursors must not be shared between threads, and
+ * <code>free()</code> should be invoked as soon as a cursor is no longer
+ * needed, so as to release the on-disk index files it refers to.
+ * </p>
+ */
+public interface Cursor {
+    
+    /**
+     * Positions the cursor at the first entry with a key greater than or equal
+     * to the given key.
+     * 
+     * @param key
+     *            the key; if <code>null</code>, the cursor is positioned at
+     *            the first entry
+     * @return <code>true</code>, if the cursor is positioned at an entry,
+     *         <code>false</code>, if no such entry exists
+     */
+    public boolean seek(byte[] key);
+    
+    /**
+     * Positions the cursor at the last entry with a key less than or equal to
+     * the given key.
+     * 
+     * @param key
+     *            the key; if <code>null</code>, the cursor is positioned at
+     *            the last entry
+     * @return <code>true</code>, if the cursor is positioned at an entry,
+     *         <code>false</code>, if no such entry exists
+     */
+    public boolean seekForPrev(byte[] key);
+    
+    /**
+     * Moves the cursor to the next entry in ascending key order.
+     * 
+     * @return <code>true</code>, if the cursor is positioned at an entry,
+     *         <code>false</code>, if the cursor has passed the last entry
+     * @throws java.util.NoSuchElementException
+     *             if the cursor is not positioned at an entry
+     */
+    public boolean next();
+    
+    /**
+     * Moves the cursor to the previous entry in ascending key order.
+     * 
+     * @return <code>true</code>, if the cursor is positioned at an entry,
+     *         <code>false</code>, if the cursor has passed the first entry
+     * @throws java.util.NoSuchElementException
+     *             if the cursor is not positioned at an entry
+     */
+    public boolean prev();
+    
+    /**
+     * Checks whether the cursor is positioned at an entry.
+     * 
+     * @return <code>true</code>, if the cursor is positioned at an entry,
+     *         <code>false</code>, otherwise
+     */
+    public boolean isValid();
+    
+    /**
+     * Returns a view on the key of the current entry. The key ranges from the
+     * position to the limit of the returned buffer.
+     * 
+     * @return the key
+     * @throws java.util.NoSuchElementException
+     *             if the cursor is not positioned at an entry
+     */
+    public ByteBuffer key();
+    
+    /**
+     * Returns a view on the value of the current entry. The value ranges from
+     * the position to the limit of the returned buffer.
+     * 
+     * @return the value
+     * @throws java.util.NoSuchElementException
+     *             if the cursor is not positioned at an entry
+     */
+    public ByteBuffer value();
+    
+    /**
+     * Frees any resources attached to the cursor. The cursor cannot be used
+     * afterwards.
+     */
+    public void free();
+    
+}
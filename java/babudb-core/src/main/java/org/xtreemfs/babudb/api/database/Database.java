@@ -8,10 +8,19 @@
 
 package org.xtreemfs.babudb.api.database;
 
+import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
 
 /**
- * This interface contains all methods on a database.
+ * This interface contains all methods on a database. <br/>
+ * 
+ * By default, all requests on a database are handled by a single worker
+ * thread, in the order in which they were submitted, so that a lookup sees
+ * all inserts submitted before. If <code>babudb.worker.shardByKey</code> is
+ * enabled, this order is only retained for single-key inserts and lookups
+ * that refer to the same key. Prefix, range, multi-key and user-defined
+ * lookups are handled by a different worker than most inserts; to make sure
+ * that they see an insert, its future has to be awaited first.
  * 
  * @author stenjan
  *
@@ -58,7 +67,27 @@ public interface Database extends DatabaseRO {
             byte[] value, Object context);
     
     /**
-     * Inserts a group of key value pairs.
+     * Merges an operand into the value of a single key, by means of the merge
+     * operator of the index.
+     * 
+     * @param indexId
+     *            index id (0..NumIndices-1); the index needs to have a merge
+     *            operator
+     * @param key
+     *            the key
+     * @param operand
+     *            the operand
+     * @param context
+     *            arbitrary context which is passed to the listener
+     * @return a future as proxy for the request result.
+     */
+    public DatabaseRequestResult<Object> singleMerge(int indexId, byte[] key, 
+            byte[] operand, Object context);
+    
+    /**
+     * Inserts a group of key value pairs. If workers are sharded by key, the
+     * insert is only ordered with respect to requests that refer to one of
+     * its keys.
      * 
      * @param irg
      *            the insert record group to execute
@@ -68,4 +97,117 @@ public interface Database extends DatabaseRO {
      */
     public DatabaseRequestResult<Object> insert(DatabaseInsertGroup irg, 
             Object context);
+    
+    /**
+     * Executes a prefix lookup that returns at most the given number of
+     * entries in ascending order. Both the limit and the keys-only mode are
+     * applied while the entries are being merged from the index: index blocks
+     * beyond the last returned entry are not read, and values are not copied
+     * if only keys are requested.
+     * 
+     * @param indexId
+     *            index id (0..NumIndices-1)
+     * @param key
+     *            the prefix
+     * @param maxEntries
+     *            the maximum number of entries to return, or 0 if the number
+     *            of entries is unlimited
+     * @param keysOnly
+     *            if <code>true</code>, all entries are returned with
+     *            <code>null</code> values
+     * @param context
+     *            arbitrary context which is passed to the listener
+     * @return a future as proxy for the request result.
+     */
+    public DatabaseRequestResult<ResultSet<byte[], byte[]>> prefixLookup(int indexId, 
+            byte[] key, int maxEntries, boolean keysOnly, Object context);
+    
+    /**
+     * Executes a range lookup that returns at most the given number of
+     * entries in ascending order, in the same way as
+     * <code>prefixLookup(int, byte[], int, boolean, Object)</code>.
+     * 
+     * @param indexId
+     *            index id (0..NumIndices-1)
+     * @param from
+     *            the first key (inclusively)
+     * @param to
+     *            the last key (exclusively)
+     * @param maxEntries
+     *            the maximum number of entries to return, or 0 if the number
+     *            of entries is unlimited
+     * @param keysOnly
+     *            if <code>true</code>, all entries are returned with
+     *            <code>null</code> values
+     * @param context
+     *            arbitrary context which is passed to the listener
+     * @return a future as proxy for the request result.
+     */
+    public DatabaseRequestResult<ResultSet<byte[], byte[]>> rangeLookup(int indexId, 
+            byte[] from, byte[] to, int maxEntries, boolean keysOnly, Object context);
+    
+    /**
+     * Estimates the number of entries between two keys of an index. The
+     * estimate is computed from the block indices of the on-disk data and the
+     * size of the in-memory overlay, without reading any entries. Deleted and
+     * overwritten entries may be counted until they are removed by a
+     * checkpoint. <br/>
+     * 
+     * The overlay is not searched for the range; instead, its total number of
+     * entries is scaled by the fraction of on-disk entries in the range. The
+     * estimate may hence be inaccurate if recent inserts are distributed
+     * differently from the on-disk data. Before the first checkpoint, all
+     * entries of the overlay are counted, regardless of the range.
+     * 
+     * @param indexId
+     *            index id (0..NumIndices-1)
+     * @param from
+     *            the first key (inclusively); if <code>null</code>, the range
+     *            starts with the first key of the index
+     * @param to
+     *            the last key (exclusively); if <code>null</code>, the range
+     *            ends with the last key of the index
+     * @return the estimated number of entries
+     * @throws BabuDBException
+     *             if the index does not exist
+     */
+    public long estimateCount(int indexId, byte[] from, byte[] to) throws BabuDBException;
+    
+    /**
+     * Estimates the number of bytes occupied by the entries between two keys
+     * of an index, in the same way as <code>estimateCount()</code>. On-disk
+     * data is accounted for with its file sizes, i.e. after compression, and
+     * the overlay with the total size of its keys and values, which is scaled
+     * like its number of entries.
+     * 
+     * @param indexId
+     *            index id (0..NumIndices-1)
+     * @param from
+     *            the first key (inclusively); if <code>null</code>, the range
+     *            starts with the first key of the index
+     * @param to
+     *            the last key (exclusively); if <code>null</code>, the range
+     *            ends with the last key of the index
+     * @return the estimated number of bytes
+     * @throws BabuDBException
+     *             if the index does not exist
+     */
+    public long estimateSize(int indexId, byte[] from, byte[] to) throws BabuDBException;
+    
+    /**
+     * Opens a cursor over an index. Unlike the result sets of prefix and range
+     * lookups, a cursor can be repositioned at any key and moved in both
+     * directions, and it does not create any objects for the entries it
+     * passes. The cursor reflects the state of the index at the time it was
+     * opened, except for entries inserted in memory afterwards, which may or
+     * may not be seen. Like <code>estimateCount()</code>, the method is
+     * executed synchronously.
+     * 
+     * @param indexId
+     *            index id (0..NumIndices-1)
+     * @return the cursor, which has to be freed when it is no longer needed
+     * @throws BabuDBException
+     *             if the index does not exist
+     */
+    public Cursor openCursor(int indexId) throws BabuDBException;
 }
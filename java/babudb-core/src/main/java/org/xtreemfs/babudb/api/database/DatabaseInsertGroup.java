@@ -24,7 +24,20 @@ public interface DatabaseInsertGroup {
      * @param value - the value data.
      */
     public void addInsert(int indexId, byte[] key, byte[] value);
-
+    
+    /**
+     * Add a new insert operation to this group that inserts a key-value pair with a limited
+     * lifetime. Once the expiry time has passed, the key-value pair is no longer returned by
+     * lookups, and it is dropped from the on-disk index with the next checkpoint.
+     * 
+     * @param indexId - the index in which the key-value pair is inserted.
+     * @param key - the key.
+     * @param value - the value data.
+     * @param expiryTime - the time in milliseconds since 1970 at which the key-value pair
+     *                     expires; 0 means that it never expires.
+     */
+    public void addInsert(int indexId, byte[] key, byte[] value, long expiryTime);
+    
     /**
      * Add a new delete operation to this group. Be aware of unpredictable behavior if a 
      * key-value pair is manipulated twice within the same insert group.
@@ -33,4 +46,31 @@ public interface DatabaseInsertGroup {
      * @param key - of the key-value pair to delete. 
      */
     public void addDelete(int indexId, byte[] key);
+    
+    /**
+     * Add a new operation to this group that deletes all key-value pairs in a
+     * range of keys. The range is recorded as a whole, no matter how many keys
+     * it contains. To delete all keys with a given prefix, the range can be
+     * obtained from the index's comparator via
+     * {@link org.xtreemfs.babudb.api.index.ByteRangeComparator#prefixToRange(byte[], boolean)}.
+     * 
+     * @param indexId - in which the key-value pairs are located.
+     * @param from - the first key to delete (inclusively); <code>null</code> stands for the
+     *               smallest key.
+     * @param to - the first key not to delete anymore (exclusively); <code>null</code>
+     *             means that all keys from <code>from</code> on are deleted.
+     */
+    public void addRangeDelete(int indexId, byte[] from, byte[] to);
+    
+    /**
+     * Add a new merge operation to this group. The operand is merged into the current value
+     * of the key by the merge operator that was assigned to the index when the database was
+     * created, without the need to look up the current value beforehand.
+     * 
+     * @param indexId - the index in which the key-value pair is located; the index needs to
+     *                  have a merge operator.
+     * @param key - the key.
+     * @param operand - the operand to merge into the current value.
+     */
+    public void addMerge(int indexId, byte[] key, byte[] operand);
 }
\ No newline at end of file
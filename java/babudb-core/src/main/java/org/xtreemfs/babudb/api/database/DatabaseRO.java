@@ -34,6 +34,24 @@ public interface DatabaseRO {
     public DatabaseRequestResult<byte[]> lookup(int indexId, byte[] key, 
             Object context);
     
+    /**
+     * Returns the values associated with multiple keys at once. Looking up a
+     * batch of keys is more efficient than looking up each key separately, as
+     * keys that are stored close to each other share disk reads.
+     * 
+     * @param indexId
+     *            index id (0..NumIndices-1)
+     * @param keys
+     *            the keys to look up
+     * @param context
+     *            arbitrary context which is passed to the listener.
+     * @return a future as proxy for the request result, which contains the
+     *         value associated with each key at the same position, or 
+     *         <code>null</code> if there is no value for the key.
+     */
+    public DatabaseRequestResult<byte[][]> multiLookup(int indexId, byte[][] keys, 
+            Object context);
+    
     /**
      * Executes a prefix lookup. The result object contains an iterator to the
      * database starting at the first matching key and returning key/value pairs
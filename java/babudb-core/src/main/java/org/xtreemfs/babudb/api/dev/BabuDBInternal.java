@@ -7,8 +7,14 @@
  */
 package org.xtreemfs.babudb.api.dev;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.xtreemfs.babudb.api.BabuDB;
 import org.xtreemfs.babudb.api.StaticInitialization;
+import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
 import org.xtreemfs.babudb.api.dev.transaction.TransactionManagerInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.config.BabuDBConfig;
@@ -95,6 +101,48 @@ public interface BabuDBInternal extends BabuDB, LifeCycleListener {
      */
     public LSMDBWorker getWorker(int dbId);
     
+    /**
+     * Returns the worker responsible for requests that refer to a single key
+     * of an index. Unless workers are sharded by key, this is the worker
+     * responsible for the DB.
+     * 
+     * @param dbId
+     * @param indexId
+     * @param key
+     * @return a worker Thread, or <code>null</code> if there are no workers.
+     */
+    public LSMDBWorker getWorker(int dbId, int indexId, byte[] key);
+    
+    /**
+     * @param dbId
+     * @return all worker Threads that may process requests for the DB given by
+     *         its ID.
+     */
+    public Collection<LSMDBWorker> getWorkers(int dbId);
+    
+    /**
+     * Enqueues lock requests at the given workers, as done for transactions.
+     * A lock future is finished when the worker has processed all requests
+     * that were enqueued before the lock request. Lock requests of concurrent
+     * callers are enqueued in the same order at all workers, so that callers
+     * holding locks on multiple workers cannot deadlock.
+     * 
+     * @param workers
+     * @param context
+     * @return futures that are finished with the worker locks once acquired.
+     * @throws InterruptedException
+     */
+    public List<DatabaseRequestResult<AtomicBoolean>> lockWorkers(Collection<LSMDBWorker> workers,
+        Object context) throws InterruptedException;
+    
+    /**
+     * Returns the executor that performs lookups bypassing the worker threads.
+     * 
+     * @return the executor, or <code>null</code> if lookups are not performed
+     *         by dedicated read threads.
+     */
+    public Executor getReadExecutor();
+    
     /**
      * Returns the number of worker threads.
      * 
@@ -65,6 +65,28 @@ public abstract class CheckpointerInternal extends LifeCycleThread implements Ch
      */
     public abstract LSN checkpoint(boolean incViewId) throws BabuDBException;
     
+    /**
+     * Flushes the in-memory overlays of a single database to a new on-disk
+     * checkpoint and links the database to it. Unlike a checkpoint, a flush
+     * neither switches nor deletes log files. The flush includes all log
+     * entries that have been appended before the method was invoked. It is
+     * performed under the same locks as a checkpoint, so that it cannot be
+     * interleaved with concurrent checkpoints or flushes.
+     * 
+     * The method blocks until the database has been linked to the new
+     * checkpoint.
+     * 
+     * @param dbName
+     *            - the name of the database.
+     * 
+     * @return {@link LSN} of the last {@link LogEntry} written to the
+     *         {@link DiskLogger} before the flush.
+     * 
+     * @throws BabuDBException
+     *             if the database does not exist or the flush failed.
+     */
+    public abstract LSN flush(String dbName) throws BabuDBException;
+    
     /**
      * This method suspends the Checkpointer from taking checkpoints. Not
      * thread-safe!
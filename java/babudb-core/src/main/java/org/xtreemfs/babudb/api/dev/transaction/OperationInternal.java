@@ -23,23 +23,25 @@ import org.xtreemfs.foundation.buffer.ReusableBuffer;
  */
 public abstract class OperationInternal implements Operation {
     
-    public static final byte FIELD_TYPE_INTEGER    = 0;
+    public static final byte FIELD_TYPE_INTEGER        = 0;
     
-    public static final byte FIELD_TYPE_SHORT      = 1;
+    public static final byte FIELD_TYPE_SHORT          = 1;
     
-    public static final byte FIELD_TYPE_LONG       = 2;
+    public static final byte FIELD_TYPE_LONG           = 2;
     
-    public static final byte FIELD_TYPE_BOOLEAN    = 3;
+    public static final byte FIELD_TYPE_BOOLEAN        = 3;
     
-    public static final byte FIELD_TYPE_BYTE       = 4;
+    public static final byte FIELD_TYPE_BYTE           = 4;
     
-    public static final byte FIELD_TYPE_BYTE_ARRAY = 5;
+    public static final byte FIELD_TYPE_BYTE_ARRAY     = 5;
     
-    public static final byte FIELD_TYPE_STRING     = 6;
+    public static final byte FIELD_TYPE_STRING         = 6;
     
-    public static final byte FIELD_TYPE_OBJECT     = 7;
+    public static final byte FIELD_TYPE_OBJECT         = 7;
     
-    public static final byte FIELD_TYPE_GROUP      = 8;
+    public static final byte FIELD_TYPE_GROUP          = 8;
+    
+    public static final byte FIELD_TYPE_EXTENDED_GROUP = 9;
     
     /**
      * @return the size of this operation in bytes if serialized.
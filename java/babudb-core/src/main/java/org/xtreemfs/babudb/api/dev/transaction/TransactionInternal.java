@@ -8,6 +8,7 @@
 package org.xtreemfs.babudb.api.dev.transaction;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Map;
@@ -17,6 +18,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
 import org.xtreemfs.babudb.api.transaction.Operation;
 import org.xtreemfs.babudb.api.transaction.Transaction;
 import org.xtreemfs.babudb.lsmdb.BabuDBTransaction;
@@ -37,7 +39,7 @@ public abstract class TransactionInternal extends LinkedList<OperationInternal>
         implements Transaction, Iterable<OperationInternal> {
     private static final long serialVersionUID = 1383031301195486005L;
     
-    private Map<String, DatabaseRequestResult<AtomicBoolean>> databaseLockFutureMap = null;
+    private Map<String, Collection<DatabaseRequestResult<AtomicBoolean>>> databaseLockFutureMap = null;
     
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.transaction.Transaction#createSnapshot(java.lang.String, 
@@ -67,6 +69,15 @@ public abstract class TransactionInternal extends LinkedList<OperationInternal>
     public abstract TransactionInternal createDatabase(String databaseName, int numIndices, 
             ByteRangeComparator[] comparators);
     
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.transaction.Transaction#createDatabase(java.lang.String, int, 
+     *          org.xtreemfs.babudb.api.index.ByteRangeComparator[], 
+     *          org.xtreemfs.babudb.api.index.MergeOperator[])
+     */
+    @Override
+    public abstract TransactionInternal createDatabase(String databaseName, int numIndices, 
+            ByteRangeComparator[] comparators, MergeOperator[] mergeOperators);
+    
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.transaction.Transaction#copyDatabase(java.lang.String, 
      *          java.lang.String)
@@ -95,6 +106,14 @@ public abstract class TransactionInternal extends LinkedList<OperationInternal>
     @Override
     public abstract TransactionInternal deleteRecord(String databaseName, int indexId, byte[] key);
     
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.transaction.Transaction#deleteRange(java.lang.String, int, 
+     *          byte[], byte[])
+     */
+    @Override
+    public abstract TransactionInternal deleteRange(String databaseName, int indexId, byte[] from, 
+            byte[] to);
+    
     /* (non-Javadoc)
      * @see java.util.AbstractCollection#toString()
      */
@@ -144,13 +163,13 @@ public abstract class TransactionInternal extends LinkedList<OperationInternal>
      *                           transaction.
      */
     public final synchronized void updateWorkerLocks(
-            Map<String, DatabaseRequestResult<AtomicBoolean>> databaseLockFutureMap) {
+            Map<String, Collection<DatabaseRequestResult<AtomicBoolean>>> databaseLockFutureMap) {
         
         this.databaseLockFutureMap = databaseLockFutureMap;
     }
     
     /**
-     * Method to lock the worker responsible for database with databaseName.
+     * Method to lock the workers responsible for database with databaseName.
      * 
      * @param databaseName
      * @throws BabuDBException if the lock could not have been acquired.
@@ -159,11 +178,13 @@ public abstract class TransactionInternal extends LinkedList<OperationInternal>
             throws BabuDBException {
         
         if (databaseLockFutureMap != null) {
-            DatabaseRequestResult<AtomicBoolean> lockFuture = 
+            Collection<DatabaseRequestResult<AtomicBoolean>> lockFutures = 
                 databaseLockFutureMap.get(databaseName);
             
-            if (lockFuture != null) {
-                lockFuture.get();
+            if (lockFutures != null) {
+                for (DatabaseRequestResult<AtomicBoolean> lockFuture : lockFutures) {
+                    lockFuture.get();
+                }
             }
         }
     }
@@ -174,7 +195,11 @@ public abstract class TransactionInternal extends LinkedList<OperationInternal>
     public final synchronized void unlockWorkers() {
         if (databaseLockFutureMap != null) {
             Set<DatabaseRequestResult<AtomicBoolean>> lockFutures = 
-                new HashSet<DatabaseRequestResult<AtomicBoolean>>(databaseLockFutureMap.values());
+                new HashSet<DatabaseRequestResult<AtomicBoolean>>();
+            for (Collection<DatabaseRequestResult<AtomicBoolean>> futures : 
+                databaseLockFutureMap.values()) {
+                lockFutures.addAll(futures);
+            }
             for (DatabaseRequestResult<AtomicBoolean> lockFuture : lockFutures) {
                 
                 try {
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.api.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A byte range comparator that is capable of comparing a region of a buffer
+ * without first wrapping it in a <code>ByteRange</code>.
+ * <p>
+ * Implementing this interface is optional. On-disk index searches check
+ * whether a comparator implements it; if so, keys are compared in place while
+ * searching a block, which avoids the allocation of a <code>ByteRange</code>
+ * object for each probe.
+ * </p>
+ */
+public interface InPlaceByteRangeComparator extends ByteRangeComparator {
+    
+    /**
+     * Compares a region of a buffer to the entire content of a given buffer.
+     * The result has to be the same as the one of
+     * <code>compare(new ByteRange(buf, offset, offset + length), entry)</code>.
+     * 
+     * @param buf
+     *            the buffer containing the region
+     * @param offset
+     *            the start offset of the region in the buffer
+     * @param length
+     *            the length of the region
+     * @param entry
+     *            the buffer to compare the region with
+     * @return a negative value if the region is considered as smaller than
+     *         <code>entry</code>, 0 if both are considered as equal, and a
+     *         positive value if the region is considered as greater.
+     */
+    public int compare(ByteBuffer buf, int offset, int length, byte[] entry);
+    
+}
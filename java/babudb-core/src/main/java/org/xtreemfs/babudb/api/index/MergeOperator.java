@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.api.index;
+
+import java.io.Serializable;
+
+/**
+ * An operator that combines the current value of a key with an operand, so as
+ * to perform read-modify-write operations like incrementing a counter or
+ * appending to a list inside the database.
+ * <p>
+ * Merge operators are assigned to indices when a database is created. Like
+ * <code>ByteRangeComparator</code>s, implementations should be serializable
+ * and have a public no-argument constructor, as their class names are recorded
+ * with the database. As operands are recorded in the database log and merged
+ * again when the log is replayed, the result of a merge must only depend on
+ * the given arguments. Replaying the log does not merge operands that are
+ * already contained in the on-disk state of a database, so that each operand
+ * takes effect exactly once; merge operators thus need not be idempotent.
+ * </p>
+ */
+public interface MergeOperator extends Serializable {
+    
+    /**
+     * Merges an operand into the current value of a key.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the current value of the key, or <code>null</code> if the
+     *            key does not exist
+     * @param operand
+     *            the operand
+     * @return the new value of the key; <code>null</code> deletes the key
+     */
+    public byte[] merge(byte[] key, byte[] value, byte[] operand);
+    
+}
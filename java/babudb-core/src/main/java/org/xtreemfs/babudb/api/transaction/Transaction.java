@@ -11,6 +11,7 @@ import java.util.List;
 
 import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
 import org.xtreemfs.babudb.snapshots.SnapshotConfig;
 
 /**
@@ -91,6 +92,23 @@ public interface Transaction {
      */
     public Transaction createDatabase(String databaseName, int numIndices, ByteRangeComparator[] comparators);
     
+    /**
+     * Creates a new database with merge operators.
+     * 
+     * @param databaseName
+     *            the database name
+     * @param numIndices
+     *            the number of indices on the database
+     * @param comparators
+     *            an array of comparators for the indices
+     * @param mergeOperators
+     *            an array of merge operators for the indices
+     * 
+     * @return a reference to the transaction
+     */
+    public Transaction createDatabase(String databaseName, int numIndices, ByteRangeComparator[] comparators,
+            MergeOperator[] mergeOperators);
+    
     /**
      * Copies a database.
      * 
@@ -143,6 +161,25 @@ public interface Transaction {
      */
     public Transaction deleteRecord(String databaseName, int indexId, byte[] key);
     
+    /**
+     * Deletes all key-value pairs with keys between <code>from</code>
+     * (inclusively) and <code>to</code> (exclusively).
+     * 
+     * @param databaseName
+     *            the name of the database
+     * @param indexId
+     *            in which the key-value pairs are located
+     * @param from
+     *            the first key to delete; <code>null</code> stands for the
+     *            smallest key
+     * @param to
+     *            the first key not to delete anymore; if <code>null</code>,
+     *            all keys from <code>from</code> on are deleted
+     * 
+     * @return a reference to the transaction
+     */
+    public Transaction deleteRange(String databaseName, int indexId, byte[] from, byte[] to);
+    
     /**
      * Returns the list of operations contained in the transaction.
      * 
@@ -9,9 +9,12 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
+import org.xtreemfs.babudb.index.BlockCodec;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
 import org.xtreemfs.foundation.logging.Logging;
 
@@ -62,6 +65,23 @@ public class BabuDBConfig extends Config {
      */
     protected int      numThreads;
     
+    /**
+     * Distributes the requests of a database across all worker threads
+     * according to the indices and keys they refer to. If disabled, all
+     * requests of a database are handled by the same worker thread. If
+     * enabled, requests are only processed in the order of their submission
+     * if they refer to the same key; lookups that span multiple keys may not
+     * see inserts that have not been completed yet.
+     */
+    protected boolean  shardWorkersByKey;
+    
+    /**
+     * The number of threads that perform lookups without passing through the
+     * worker queues. If negative, lookups are handled by the worker threads;
+     * if 0, lookups are performed by the calling threads.
+     */
+    protected int      readThreads;
+    
     /**
      * MaxLogfileSize a checkpoint is generated ,if maxLogfileSize is exceeded.
      */
@@ -91,11 +111,19 @@ public class BabuDBConfig extends Config {
      */
     protected int      maxNumRecordsPerBlock;
     
+    /**
+     * Defines the size in bytes after which a block of an index is completed.
+     * If set to 0, the size of blocks is only limited by the maximum number of
+     * records per block. Entries that exceed this size are stored in blocks of
+     * their own, which may be too large to be cached.
+     */
+    protected int      maxBlockSize;
+    
     /**
      * Defines the maximum size of the block file. If the size is exceeded by an
      * index, another block file will be created.
      */
-    protected int      maxBlockFileSize;
+    protected long     maxBlockFileSize;
     
     /**
      * Specifies whether <code>mmap</code> is used in order to read database
@@ -109,6 +137,79 @@ public class BabuDBConfig extends Config {
      */
     protected int      mmapLimit;
     
+    /**
+     * Defines the maximum number of on-disk runs per index. Checkpoints only
+     * write changes as new runs; runs are merged when this limit is reached. If
+     * set to 1, each checkpoint rewrites the entire index.
+     */
+    protected int      maxRunsPerIndex = 4;
+    
+    /**
+     * Defines the number of Bloom filter bits per key in on-disk indices. Bloom
+     * filters allow lookups of absent keys without reading any blocks. If set
+     * to 0, no Bloom filters will be written.
+     */
+    protected int      bloomFilterBitsPerKey = 10;
+    
+    /**
+     * Defines the name of the codec with which the blocks of on-disk indices
+     * are encoded ("none", "deflate" or "lz4"). The codec only affects newly
+     * written runs; existing runs can be read with any codec.
+     */
+    protected String   blockCodec = "none";
+    
+    /**
+     * Defines the number of entries after which a key is stored completely in
+     * prefix-coded blocks of on-disk indices, in which all other keys are
+     * front-coded relative to their predecessors. If set to 0, blocks are not
+     * prefix-coded.
+     */
+    protected int      keyRestartInterval;
+    
+    /**
+     * Maps database names to the key restart intervals of their on-disk
+     * indices, overriding the default key restart interval.
+     */
+    protected Map<String, Integer> dbKeyRestartInterval = new HashMap<String, Integer>();
+    
+    /**
+     * Defines the size in bytes of the process-wide cache for blocks of
+     * indices that are not memory-mapped. If set to 0, blocks are read from
+     * disk on each access.
+     */
+    protected long     blockCacheSize = 32 * 1024 * 1024;
+    
+    /**
+     * Specifies whether cached blocks are stored outside of the Java heap.
+     */
+    protected boolean  blockCacheOffHeap;
+    
+    /**
+     * Specifies whether the keys and values of in-memory overlays are stored
+     * in arenas outside of the Java heap, instead of individual objects.
+     */
+    protected boolean  offHeapOverlay;
+    
+    /**
+     * Defines the maximum number of bytes occupied by the in-memory overlays
+     * of all databases. If exceeded, a checkpoint is generated. If set to 0,
+     * checkpoints are not triggered by the overlay size.
+     */
+    protected long     maxOverlayMemory;
+    
+    /**
+     * Maps database names to the maximum number of bytes occupied by the
+     * in-memory overlays of the database. If exceeded, the database is flushed
+     * to disk.
+     */
+    protected Map<String, Long> dbMaxOverlayMemory = new HashMap<String, Long>();
+    
+    /**
+     * Defines the number of threads that concurrently write the snapshots of
+     * different indices when a checkpoint is created.
+     */
+    protected int      checkpointThreads = 1;
+    
     /**
      * Paths to plugins initialized on startup of BabuDB.
      */
@@ -163,10 +264,13 @@ public class BabuDBConfig extends Config {
      */
     public BabuDBConfig(String dbDir, String dbLogDir, int numThreads, long maxLogFileSize,
         int checkInterval, SyncMode syncMode, int pseudoSyncWait, int maxQ, boolean compression,
-        int maxNumRecordsPerBlock, int maxBlockFileSize, boolean disableMMap, int mmapLimit, int debugLevel) {
+        int maxNumRecordsPerBlock, long maxBlockFileSize, boolean disableMMap, int mmapLimit,
+        int debugLevel) {
         
         checkArgs(dbDir, dbLogDir, numThreads, maxLogFileSize, checkInterval, syncMode, pseudoSyncWait, maxQ,
-            compression, maxNumRecordsPerBlock, maxBlockFileSize, mmapLimit);
+            compression, maxNumRecordsPerBlock, maxBlockSize, maxBlockFileSize, mmapLimit,
+            maxRunsPerIndex, bloomFilterBitsPerKey, blockCodec, keyRestartInterval, dbKeyRestartInterval,
+            blockCacheSize, maxOverlayMemory, dbMaxOverlayMemory, checkpointThreads);
         
         this.debugLevel = debugLevel;
         this.debugCategory = "all";
@@ -241,7 +345,7 @@ public class BabuDBConfig extends Config {
      */
     public BabuDBConfig(String dbDir, String dbLogDir, int numThreads, long maxLogFileSize,
         int checkInterval, SyncMode syncMode, int pseudoSyncWait, int maxQ, boolean compression,
-        int maxNumRecordsPerBlock, int maxBlockFileSize) {
+        int maxNumRecordsPerBlock, long maxBlockFileSize) {
         
         this(dbDir, dbLogDir, numThreads, maxLogFileSize, checkInterval, syncMode, pseudoSyncWait, maxQ,
             compression, maxNumRecordsPerBlock, maxBlockFileSize, !"x86_64".equals(System
@@ -310,6 +414,10 @@ public class BabuDBConfig extends Config {
         
         this.maxQueueLength = this.readOptionalInt("babudb.worker.maxQueueLength", 0);
         
+        this.shardWorkersByKey = this.readOptionalBoolean("babudb.worker.shardByKey", false);
+        
+        this.readThreads = this.readOptionalInt("babudb.worker.readThreads", -1);
+        
         this.maxLogfileSize = this.readOptionalInt("babudb.maxLogfileSize", 1);
         
         this.checkInterval = this.readOptionalInt("babudb.checkInterval", 0);
@@ -320,13 +428,43 @@ public class BabuDBConfig extends Config {
         
         this.maxNumRecordsPerBlock = this.readOptionalInt("babudb.maxNumRecordsPerBlock", 64);
         
-        this.maxBlockFileSize = this.readOptionalInt("babudb.maxBlockFileSize", 1024 * 1024 * 512);
+        this.maxBlockSize = this.readOptionalInt("babudb.maxBlockSize", 0);
+        
+        this.maxBlockFileSize = this.readOptionalLong("babudb.maxBlockFileSize", 1024 * 1024 * 512);
         
         this.disableMMap = this.readOptionalBoolean("babudb.disableMmap",
             System.getProperty("os.arch") != null && !System.getProperty("os.arch").endsWith("64"));
         
         this.mmapLimit = this.readOptionalInt("babudb.mmapLimit", -1);
         
+        this.maxRunsPerIndex = this.readOptionalInt("babudb.maxRunsPerIndex", 4);
+        
+        this.bloomFilterBitsPerKey = this.readOptionalInt("babudb.bloomFilterBitsPerKey", 10);
+        
+        this.blockCodec = this.readOptionalString("babudb.blockCodec", "none");
+        
+        this.keyRestartInterval = this.readOptionalInt("babudb.keyRestartInterval", 0);
+        
+        this.blockCacheSize = this.readOptionalLong("babudb.blockCacheSize", 32 * 1024 * 1024);
+        
+        this.blockCacheOffHeap = this.readOptionalBoolean("babudb.blockCacheOffHeap", false);
+        
+        this.offHeapOverlay = this.readOptionalBoolean("babudb.offHeapOverlay", false);
+        
+        this.maxOverlayMemory = this.readOptionalLong("babudb.maxOverlayMemory", 0);
+        
+        this.checkpointThreads = this.readOptionalInt("babudb.checkpointThreads", 1);
+        
+        String prefix = "babudb.maxOverlayMemory.";
+        for (String key : props.stringPropertyNames())
+            if (key.startsWith(prefix))
+                dbMaxOverlayMemory.put(key.substring(prefix.length()), this.readOptionalLong(key, 0));
+        
+        prefix = "babudb.keyRestartInterval.";
+        for (String key : props.stringPropertyNames())
+            if (key.startsWith(prefix))
+                dbKeyRestartInterval.put(key.substring(prefix.length()), this.readOptionalInt(key, 0));
+        
         int count = 0;
         String pluginConfigPath = null;
         while ((pluginConfigPath = readOptionalString("babudb.plugin." + count, null)) != null) {
@@ -336,7 +474,9 @@ public class BabuDBConfig extends Config {
         
         checkArgs(this.baseDir, this.dbLogDir, numThreads, maxLogfileSize, 
                 checkInterval, syncMode, pseudoSyncWait, maxQueueLength, 
-                compression, maxNumRecordsPerBlock, maxBlockFileSize, mmapLimit);
+                compression, maxNumRecordsPerBlock, maxBlockSize, maxBlockFileSize, mmapLimit,
+            maxRunsPerIndex, bloomFilterBitsPerKey, blockCodec, keyRestartInterval, dbKeyRestartInterval,
+            blockCacheSize, maxOverlayMemory, dbMaxOverlayMemory, checkpointThreads);
     }
     
     public int getDebugLevel() {
@@ -371,6 +511,14 @@ public class BabuDBConfig extends Config {
         return numThreads;
     }
     
+    public boolean getShardWorkersByKey() {
+        return shardWorkersByKey;
+    }
+    
+    public int getReadThreads() {
+        return readThreads;
+    }
+    
     public long getMaxLogfileSize() {
         return maxLogfileSize;
     }
@@ -391,7 +539,11 @@ public class BabuDBConfig extends Config {
         return maxNumRecordsPerBlock;
     }
     
-    public int getMaxBlockFileSize() {
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+    
+    public long getMaxBlockFileSize() {
         return maxBlockFileSize;
     }
     
@@ -403,6 +555,64 @@ public class BabuDBConfig extends Config {
         return this.mmapLimit;
     }
     
+    public int getMaxRunsPerIndex() {
+        return this.maxRunsPerIndex;
+    }
+    
+    public int getBloomFilterBitsPerKey() {
+        return this.bloomFilterBitsPerKey;
+    }
+    
+    public BlockCodec getBlockCodec() {
+        return BlockCodec.getCodec(this.blockCodec);
+    }
+    
+    public long getBlockCacheSize() {
+        return this.blockCacheSize;
+    }
+    
+    public boolean getBlockCacheOffHeap() {
+        return this.blockCacheOffHeap;
+    }
+    
+    public boolean getOffHeapOverlay() {
+        return this.offHeapOverlay;
+    }
+    
+    public long getMaxOverlayMemory() {
+        return this.maxOverlayMemory;
+    }
+    
+    public int getCheckpointThreads() {
+        return this.checkpointThreads;
+    }
+    
+    /**
+     * Returns the maximum number of bytes occupied by the in-memory overlays
+     * of a database.
+     * 
+     * @param dbName
+     *            the database name
+     * @return the number of bytes, or 0 if no limit has been defined
+     */
+    public long getMaxOverlayMemory(String dbName) {
+        Long limit = this.dbMaxOverlayMemory.get(dbName);
+        return limit == null ? 0 : limit;
+    }
+    
+    /**
+     * Returns the number of entries after which a key is stored completely in
+     * prefix-coded blocks of the on-disk indices of a database.
+     * 
+     * @param dbName
+     *            the database name
+     * @return the number of entries, or 0 if blocks are not prefix-coded
+     */
+    public int getKeyRestartInterval(String dbName) {
+        Integer interval = this.dbKeyRestartInterval.get(dbName);
+        return interval == null ? this.keyRestartInterval : interval;
+    }
+    
     public List<String> getPlugins() {
         return plugins;
     }
@@ -417,14 +627,32 @@ public class BabuDBConfig extends Config {
             buf.append("#     pseudo sync interval: " + pseudoSyncWait + "\n");
         buf.append("#        max. queue length: " + maxQueueLength + "\n");
         buf.append("#             num. threads: " + numThreads + "\n");
+        buf.append("#     shard workers by key: " + shardWorkersByKey + "\n");
+        buf.append("#        num. read threads: " + readThreads + "\n");
         buf.append("#   checkpointing interval: " + checkInterval + "\n");
         buf.append("#       max. log file size: " + maxLogfileSize + "\n");
         buf.append("#   num. records per block: " + maxNumRecordsPerBlock + "\n");
+        buf.append("#          max. block size: " + maxBlockSize + "\n");
         buf.append("#     max. block file size: " + maxBlockFileSize + "\n");
         buf.append("#      compression enabled: " + compression + "\n");
         buf.append("#            mmap disabled: " + disableMMap + "\n");
         if (!disableMMap)
             buf.append("#               mmap limit: " + mmapLimit + "\n");
+        buf.append("#      max. runs per index: " + maxRunsPerIndex + "\n");
+        buf.append("#  Bloom filter bits / key: " + bloomFilterBitsPerKey + "\n");
+        buf.append("#              block codec: " + blockCodec + "\n");
+        buf.append("#     key restart interval: " + keyRestartInterval + "\n");
+        for (Map.Entry<String, Integer> interval : dbKeyRestartInterval.entrySet())
+            buf.append("#     key restart interval: " + interval.getValue() + " (" + interval.getKey()
+                + ")\n");
+        buf.append("#         block cache size: " + blockCacheSize + "\n");
+        if (blockCacheSize > 0)
+            buf.append("#     off-heap block cache: " + blockCacheOffHeap + "\n");
+        buf.append("#         off-heap overlay: " + offHeapOverlay + "\n");
+        buf.append("#    max. overlay mem size: " + maxOverlayMemory + "\n");
+        for (Map.Entry<String, Long> limit : dbMaxOverlayMemory.entrySet())
+            buf.append("#    max. overlay mem size: " + limit.getValue() + " (" + limit.getKey() + ")\n");
+        buf.append("#  num. checkpoint threads: " + checkpointThreads + "\n");
         for (int i = 0; i < plugins.size(); i++) {
             buf.append("#               plugin-" + i + ": " + plugins.get(i) + "\n");
         }
@@ -433,7 +661,10 @@ public class BabuDBConfig extends Config {
     
     private static void checkArgs(String dbDir, String dbLogDir, int numThreads, long maxLogFileSize,
         int checkInterval, SyncMode syncMode, int pseudoSyncWait, int maxQ, boolean compression,
-        int maxNumRecordsPerBlock, int maxBlockFileSize, int mmapLimit) {
+        int maxNumRecordsPerBlock, int maxBlockSize, long maxBlockFileSize, int mmapLimit,
+        int maxRunsPerIndex, int bloomFilterBitsPerKey, String blockCodec, int keyRestartInterval,
+        Map<String, Integer> dbKeyRestartInterval, long blockCacheSize, long maxOverlayMemory,
+        Map<String, Long> dbMaxOverlayMemory, int checkpointThreads) {
         
         if (dbDir == null)
             throw new IllegalArgumentException("database directory needs to be specified!");
@@ -456,8 +687,15 @@ public class BabuDBConfig extends Config {
         if (maxQ < 0)
             throw new IllegalArgumentException("max. request queue length must be >= 0!");
         
-        if (maxNumRecordsPerBlock <= 0)
-            throw new IllegalArgumentException("number of records per block must be > 0!");
+        if (maxNumRecordsPerBlock < 0)
+            throw new IllegalArgumentException("number of records per block must be >= 0!");
+        
+        if (maxBlockSize < 0)
+            throw new IllegalArgumentException("max. block size must be >= 0!");
+        
+        if (maxNumRecordsPerBlock == 0 && maxBlockSize == 0)
+            throw new IllegalArgumentException(
+                "number of records per block and max. block size must not both be 0!");
         
         if (maxBlockFileSize <= 0)
             throw new IllegalArgumentException("maximum block file size must be > 0!");
@@ -465,6 +703,38 @@ public class BabuDBConfig extends Config {
         if (mmapLimit < -1)
             throw new IllegalArgumentException("mmap limit must be >= -1!");
         
+        if (maxRunsPerIndex <= 0)
+            throw new IllegalArgumentException("max. number of runs per index must be > 0!");
+        
+        if (bloomFilterBitsPerKey < 0)
+            throw new IllegalArgumentException("number of Bloom filter bits per key must be >= 0!");
+        
+        try {
+            BlockCodec.getCodec(blockCodec);
+        } catch (IllegalArgumentException exc) {
+            throw new IllegalArgumentException("block codec must be 'none', 'deflate' or 'lz4'!");
+        }
+        
+        if (keyRestartInterval < 0)
+            throw new IllegalArgumentException("key restart interval must be >= 0!");
+        
+        for (int interval : dbKeyRestartInterval.values())
+            if (interval < 0)
+                throw new IllegalArgumentException("key restart interval must be >= 0!");
+        
+        if (blockCacheSize < 0)
+            throw new IllegalArgumentException("block cache size must be >= 0!");
+        
+        if (maxOverlayMemory < 0)
+            throw new IllegalArgumentException("max. overlay memory size must be >= 0!");
+        
+        for (long limit : dbMaxOverlayMemory.values())
+            if (limit < 0)
+                throw new IllegalArgumentException("max. overlay memory size must be >= 0!");
+        
+        if (checkpointThreads <= 0)
+            throw new IllegalArgumentException("number of checkpoint threads must be > 0!");
+    
     }
     
 }
\ No newline at end of file
@@ -95,6 +95,40 @@ public class ConfigBuilder {
         return this;
     }
     
+    /**
+     * Specifies whether the requests of a database are distributed across all
+     * worker threads according to the indices and keys they refer to, rather
+     * than being handled by a single worker thread per database. With sharding,
+     * only requests that refer to the same key are processed in the order in
+     * which they were submitted; prefix, range, multi-key and user-defined
+     * lookups may not see inserts that have not been completed yet.
+     * 
+     * @param shardByKey
+     *            <code>true</code>, if requests are to be distributed by key
+     * @return a reference to this object
+     */
+    public ConfigBuilder setShardWorkersByKey(boolean shardByKey) {
+        
+        changes.put("babudb.worker.shardByKey", shardByKey + "");
+        return this;
+    }
+    
+    /**
+     * Sets the number of threads that perform lookups without passing through
+     * the worker queues, so that lookups do not have to wait for pending
+     * inserts. If set to 0, lookups are performed by the calling threads; if
+     * negative, lookups are handled by the worker threads.
+     * 
+     * @param numThreads
+     *            the number of read threads
+     * @return a reference to this object
+     */
+    public ConfigBuilder setReadThreads(int numThreads) {
+        
+        changes.put("babudb.worker.readThreads", numThreads + "");
+        return this;
+    }
+    
     /**
      * Enables or disables compression of database contents.
      * 
@@ -109,6 +143,185 @@ public class ConfigBuilder {
         return this;
     }
     
+    /**
+     * Limits the size of blocks of newly written on-disk indices. A block is
+     * completed when its size reaches the given size or the next entry would
+     * make it exceed the given size, or when it contains the given maximum
+     * number of entries. Entries that exceed the given size on their own are
+     * written to separate blocks.
+     * 
+     * @param size
+     *            the maximum block size in bytes; if set to 0, the size of
+     *            blocks will only be limited by the number of entries
+     * @param maxEntries
+     *            the maximum number of entries per block; if set to 0, the
+     *            number of entries will only be limited by the block size
+     * @return a reference to this object
+     */
+    public ConfigBuilder setMaxBlockSize(int size, int maxEntries) {
+        
+        changes.put("babudb.maxBlockSize", size + "");
+        changes.put("babudb.maxNumRecordsPerBlock", maxEntries + "");
+        return this;
+    }
+    
+    /**
+     * Sets the maximum number of on-disk runs per index. Checkpoints write
+     * changes as new runs, which are merged when the limit is reached.
+     * 
+     * @param maxRuns
+     *            the maximum number of runs; if set to 1, each checkpoint
+     *            rewrites the entire index
+     * @return a reference to this object
+     */
+    public ConfigBuilder setMaxRunsPerIndex(int maxRuns) {
+        
+        changes.put("babudb.maxRunsPerIndex", maxRuns + "");
+        return this;
+    }
+    
+    /**
+     * Sets the number of Bloom filter bits per key in on-disk indices.
+     * 
+     * @param bitsPerKey
+     *            the number of bits per key; if set to 0, no Bloom filters will
+     *            be written
+     * @return a reference to this object
+     */
+    public ConfigBuilder setBloomFilterBitsPerKey(int bitsPerKey) {
+        
+        changes.put("babudb.bloomFilterBitsPerKey", bitsPerKey + "");
+        return this;
+    }
+    
+    /**
+     * Sets the codec with which the blocks of newly written on-disk indices
+     * are encoded.
+     * 
+     * @param codec
+     *            the name of the codec, i.e. "none", "deflate" or "lz4"
+     * @return a reference to this object
+     */
+    public ConfigBuilder setBlockCodec(String codec) {
+        
+        changes.put("babudb.blockCodec", codec);
+        return this;
+    }
+    
+    /**
+     * Sets the number of entries after which a key is stored completely in
+     * prefix-coded blocks of newly written on-disk indices. In such blocks,
+     * all other keys are front-coded relative to their predecessors, which
+     * saves space if neighboring keys share long prefixes.
+     * 
+     * @param interval
+     *            the number of entries; if set to 0, blocks will not be
+     *            prefix-coded
+     * @return a reference to this object
+     */
+    public ConfigBuilder setKeyRestartInterval(int interval) {
+        
+        changes.put("babudb.keyRestartInterval", interval + "");
+        return this;
+    }
+    
+    /**
+     * Sets the number of entries after which a key is stored completely in
+     * prefix-coded blocks of newly written on-disk indices of a single
+     * database.
+     * 
+     * @param dbName
+     *            the name of the database
+     * @param interval
+     *            the number of entries; if set to 0, blocks of the database
+     *            will not be prefix-coded
+     * @return a reference to this object
+     */
+    public ConfigBuilder setKeyRestartInterval(String dbName, int interval) {
+        
+        changes.put("babudb.keyRestartInterval." + dbName, interval + "");
+        return this;
+    }
+    
+    /**
+     * Sets the size of the process-wide block cache, which caches blocks of
+     * indices that are not memory-mapped, as well as decoded blocks.
+     * 
+     * @param size
+     *            the size in bytes; if set to 0, no blocks will be cached
+     * @param offHeap
+     *            if <code>true</code>, cached blocks will be stored outside of
+     *            the Java heap
+     * @return a reference to this object
+     */
+    public ConfigBuilder setBlockCache(long size, boolean offHeap) {
+        
+        changes.put("babudb.blockCacheSize", size + "");
+        changes.put("babudb.blockCacheOffHeap", offHeap + "");
+        return this;
+    }
+    
+    /**
+     * Specifies whether the keys and values of in-memory overlays are stored
+     * in arenas outside of the Java heap.
+     * 
+     * @param offHeap
+     *            if <code>true</code>, overlays will be stored outside of the
+     *            Java heap
+     * @return a reference to this object
+     */
+    public ConfigBuilder setOffHeapOverlay(boolean offHeap) {
+        
+        changes.put("babudb.offHeapOverlay", offHeap + "");
+        return this;
+    }
+    
+    /**
+     * Sets the maximum number of bytes occupied by the in-memory overlays of
+     * all databases, after which a checkpoint is generated.
+     * 
+     * @param size
+     *            the size in bytes; if set to 0, checkpoints will not be
+     *            triggered by the overlay size
+     * @return a reference to this object
+     */
+    public ConfigBuilder setMaxOverlayMemory(long size) {
+        
+        changes.put("babudb.maxOverlayMemory", size + "");
+        return this;
+    }
+    
+    /**
+     * Sets the maximum number of bytes occupied by the in-memory overlays of a
+     * single database, after which the database is flushed to disk.
+     * 
+     * @param dbName
+     *            the name of the database
+     * @param size
+     *            the size in bytes; if set to 0, the database will not be
+     *            flushed because of its overlay size
+     * @return a reference to this object
+     */
+    public ConfigBuilder setMaxOverlayMemory(String dbName, long size) {
+        
+        changes.put("babudb.maxOverlayMemory." + dbName, size + "");
+        return this;
+    }
+    
+    /**
+     * Sets the number of threads that concurrently write the snapshots of
+     * different indices when a checkpoint is created.
+     * 
+     * @param numThreads
+     *            the number of threads
+     * @return a reference to this object
+     */
+    public ConfigBuilder setCheckpointThreads(int numThreads) {
+        
+        changes.put("babudb.checkpointThreads", numThreads + "");
+        return this;
+    }
+    
     /**
      * Specifies the synchronization mode for log appends.
      * 
@@ -22,6 +22,7 @@ import org.xtreemfs.babudb.api.database.Database;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.config.BabuDBConfig;
+import org.xtreemfs.babudb.lsmdb.DBConfig;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
 import org.xtreemfs.foundation.util.FSUtils;
@@ -173,7 +174,68 @@ public class AutoConverter {
         public void destroy() throws IOException {
             in.close();
         }
+    
+    }
+    
+    /**
+     * The oldest on-disk format version that this release is able to read.
+     * Databases of this or any later version are upgraded in place, rather
+     * than being dumped and re-inserted.
+     */
+    public static final int OLDEST_READABLE_FORMAT_VERSION = 4;
+    
+    /**
+     * Checks whether a database of a certain on-disk format version can be
+     * read by this release without being converted.
+     * 
+     * @param dbVer
+     *            the on-disk format version of the database
+     * @return <code>true</code>, if the database can be upgraded in place,
+     *         <code>false</code>, otherwise
+     */
+    public static boolean isUpgradableInPlace(int dbVer) {
+        return dbVer >= OLDEST_READABLE_FORMAT_VERSION && dbVer < BABUDB_DB_FORMAT_VERSION;
+    }
+    
+    /**
+     * Upgrades a database to the current on-disk format version without
+     * converting its content. Existing checkpoints remain valid; files written
+     * afterwards may use features of the current format version, so that the
+     * database can no longer be opened by older releases once it has been
+     * upgraded. A copy of the previous config file is retained in a backup
+     * directory.
+     * 
+     * @param dbVer
+     *            the on-disk format version of the database
+     * @param dbConfig
+     *            the database config, which is rewritten with the current
+     *            format version
+     * @param cfg
+     *            the BabuDB configuration
+     * @throws BabuDBException
+     *             if the config file could not be backed up or rewritten
+     */
+    public static void upgradeInPlace(int dbVer, DBConfig dbConfig, BabuDBConfig cfg) throws BabuDBException {
+        
+        assert (isUpgradableInPlace(dbVer));
+        
+        Logging.logMessage(Logging.LEVEL_INFO, Category.storage, (Object) null,
+            "upgrading database from on-disk format version %d to %d", dbVer, BABUDB_DB_FORMAT_VERSION);
+        
+        final File cfgFile = new File(cfg.getBaseDir(), cfg.getDbCfgFile());
+        final File backupDir = new File(cfg.getBaseDir(), ".backup-" + dbVer);
+        
+        try {
+            backupDir.mkdirs();
+            FSUtils.copyTree(cfgFile, new File(backupDir, cfgFile.getName()));
+        } catch (IOException exc) {
+            throw new BabuDBException(ErrorCode.IO_ERROR,
+                "an error occurred while trying to upgrade the database", exc);
+        }
+        
+        dbConfig.save(cfgFile.getAbsolutePath());
         
+        Logging.logMessage(Logging.LEVEL_INFO, Category.storage, (Object) null, "upgrade completed");
     }
     
     public static void initiateConversion(int dbVer, final BabuDBConfig cfg) throws BabuDBException {
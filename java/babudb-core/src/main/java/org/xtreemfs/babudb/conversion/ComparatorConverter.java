@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.conversion;
+
+import java.util.Map.Entry;
+
+import org.xtreemfs.babudb.api.DatabaseManager;
+import org.xtreemfs.babudb.api.database.Database;
+import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
+import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.api.dev.DatabaseInternal;
+import org.xtreemfs.babudb.api.exception.BabuDBException;
+import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
+import org.xtreemfs.foundation.logging.Logging;
+import org.xtreemfs.foundation.logging.Logging.Category;
+
+/**
+ * Converts databases to a different order of keys. As the comparators of a
+ * database determine the layout of its on-disk indices, they cannot be
+ * changed once the database has been created. Instead, the content of the
+ * database is copied to a new database with the desired comparators, which
+ * sorts all entries anew, e.g. in order to migrate a database from the
+ * <code>DefaultByteRangeComparator</code> to the
+ * <code>UnsignedByteRangeComparator</code>. <br/>
+ * 
+ * Entries are copied by means of regular lookups and inserts, so that the
+ * source database remains accessible during the conversion. Entries that are
+ * inserted in the source database while it is being converted may or may not
+ * be copied. Expiry times are not retained: entries that have expired are
+ * not copied, whereas all remaining entries are copied without an expiry
+ * time.
+ */
+public class ComparatorConverter {
+    
+    /**
+     * the number of entries that are inserted in the target database at once
+     */
+    private static final int BATCH_SIZE = 1000;
+    
+    /**
+     * Copies all indices of a database to a new database with different
+     * comparators. The new database has the same number of indices and, if
+     * the source database is a local database, the same merge operators.
+     * Values that result from merge operations are copied as plain values.
+     * If the conversion fails, the new database is deleted.
+     * 
+     * @param dbMan
+     *            the database manager
+     * @param sourceDB
+     *            the name of the database to convert
+     * @param targetDB
+     *            the name of the new database, which must not exist yet
+     * @param comparators
+     *            the comparators of the new database, one for each index;
+     *            entries may be <code>null</code> for indices that are
+     *            supposed to keep the comparators of the source database
+     * @return the new database
+     * @throws BabuDBException
+     *             if the source database does not exist, the number of
+     *             comparators does not match the number of indices, the new
+     *             database cannot be created, or the entries cannot be copied
+     */
+    public static Database convert(DatabaseManager dbMan, String sourceDB, String targetDB,
+        ByteRangeComparator[] comparators) throws BabuDBException {
+        
+        Database source = dbMan.getDatabase(sourceDB);
+        ByteRangeComparator[] sourceComps = source.getComparators();
+        if (comparators.length != sourceComps.length)
+            throw new BabuDBException(ErrorCode.NO_SUCH_INDEX, "database '" + sourceDB + "' has "
+                + sourceComps.length + " indices, but " + comparators.length + " comparators were given");
+        
+        ByteRangeComparator[] targetComps = new ByteRangeComparator[sourceComps.length];
+        for (int i = 0; i < targetComps.length; i++)
+            targetComps[i] = comparators[i] != null ? comparators[i] : sourceComps[i];
+        
+        MergeOperator[] mergeOperators = source instanceof DatabaseInternal ? ((DatabaseInternal) source)
+                .getLSMDB().getMergeOperators() : null;
+        
+        Logging.logMessage(Logging.LEVEL_INFO, Category.storage, (Object) null,
+            "converting database '%s' to '%s'", sourceDB, targetDB);
+        
+        Database target = dbMan.createDatabase(targetDB, targetComps.length, targetComps, mergeOperators);
+        try {
+            
+            for (int i = 0; i < targetComps.length; i++)
+                copyIndex(source, target, i);
+        
+        } catch (BabuDBException exc) {
+            dbMan.deleteDatabase(targetDB);
+            throw new BabuDBException(ErrorCode.IO_ERROR,
+                "an error occurred while trying to convert database '" + sourceDB + "'", exc);
+        }
+        
+        Logging.logMessage(Logging.LEVEL_INFO, Category.storage, (Object) null, "conversion completed");
+        
+        return target;
+    }
+    
+    private static void copyIndex(Database source, Database target, int indexId) throws BabuDBException {
+        
+        ResultSet<byte[], byte[]> it = source.prefixLookup(indexId, null, null).get();
+        try {
+            
+            DatabaseInsertGroup ig = target.createInsertGroup();
+            int count = 0;
+            while (it.hasNext()) {
+                
+                Entry<byte[], byte[]> next = it.next();
+                ig.addInsert(indexId, next.getKey(), next.getValue());
+                
+                if (++count == BATCH_SIZE) {
+                    target.insert(ig, null).get();
+                    ig = target.createInsertGroup();
+                    count = 0;
+                }
+            }
+            
+            if (count > 0)
+                target.insert(ig, null).get();
+        
+        } finally {
+            it.free();
+        }
+    }
+    
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import org.xtreemfs.babudb.api.index.MergeOperator;
+
+/**
+ * A merge operator that appends each operand to the current value of the key.
+ */
+public class AppendMergeOperator implements MergeOperator {
+    
+    public byte[] merge(byte[] key, byte[] value, byte[] operand) {
+        
+        if (value == null)
+            return operand;
+        
+        byte[] result = new byte[value.length + operand.length];
+        System.arraycopy(value, 0, result, 0, value.length);
+        System.arraycopy(operand, 0, result, value.length, operand.length);
+        
+        return result;
+    }
+    
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.io.IOException;
+
+/**
+ * A general-purpose compression codec for blocks of on-disk indices. Each
+ * codec is identified by a unique ID, which is recorded with each encoded
+ * block, so that runs written with different codecs can be read regardless of
+ * the codec currently configured.
+ * <p>
+ * Codecs are stateless and may be used by multiple threads concurrently.
+ * </p>
+ */
+public abstract class BlockCodec {
+    
+    /**
+     * the ID of blocks that are stored without being encoded
+     */
+    public static final byte         NONE    = 0;
+    
+    /**
+     * the ID of the Deflate codec
+     */
+    public static final byte         DEFLATE = 1;
+    
+    /**
+     * the ID of the LZ4 codec
+     */
+    public static final byte         LZ4     = 2;
+    
+    private static final BlockCodec[] CODECS = { null, new DeflateBlockCodec(), new LZ4BlockCodec() };
+    
+    /**
+     * Returns the codec with the given name.
+     * 
+     * @param name
+     *            the name of the codec, or "none"
+     * @return the codec, or <code>null</code> if the name is "none"
+     * @throws IllegalArgumentException
+     *             if no codec with the given name exists
+     */
+    public static BlockCodec getCodec(String name) {
+        
+        if ("none".equalsIgnoreCase(name))
+            return null;
+        
+        for (BlockCodec codec : CODECS)
+            if (codec != null && codec.getName().equalsIgnoreCase(name))
+                return codec;
+        
+        throw new IllegalArgumentException("unknown block codec: " + name);
+    }
+    
+    /**
+     * Returns the codec with the given ID.
+     * 
+     * @param id
+     *            the ID of the codec
+     * @return the codec
+     * @throws IOException
+     *             if no codec with the given ID exists
+     */
+    public static BlockCodec getCodec(byte id) throws IOException {
+        
+        if (id <= NONE || id >= CODECS.length)
+            throw new IOException("unknown block codec ID: " + id);
+        
+        return CODECS[id];
+    }
+    
+    /**
+     * Returns the ID of the codec, which is recorded with each encoded block.
+     * 
+     * @return the ID
+     */
+    public abstract byte getId();
+    
+    /**
+     * Returns the name of the codec.
+     * 
+     * @return the name
+     */
+    public abstract String getName();
+    
+    /**
+     * Encodes a block.
+     * 
+     * @param src
+     *            the array containing the block
+     * @param srcLength
+     *            the length of the block
+     * @param dst
+     *            the array to which the encoded block is written, starting at
+     *            offset 0
+     * @return the length of the encoded block, or -1 if the encoded block does
+     *         not fit into <code>dst</code>
+     */
+    public abstract int encode(byte[] src, int srcLength, byte[] dst);
+    
+    /**
+     * Decodes a block.
+     * 
+     * @param src
+     *            the array containing the encoded block
+     * @param srcOffset
+     *            the offset of the encoded block
+     * @param srcLength
+     *            the length of the encoded block
+     * @param dst
+     *            the array to which the decoded block is written
+     * @param dstOffset
+     *            the offset at which the decoded block is written
+     * @param dstLength
+     *            the length of the decoded block
+     * @throws IOException
+     *             if the encoded block is corrupt
+     */
+    public abstract void decode(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset,
+        int dstLength) throws IOException;
+    
+}
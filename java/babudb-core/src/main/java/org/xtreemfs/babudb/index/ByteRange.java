@@ -40,7 +40,7 @@ public class ByteRange {
         this.size = endOffset - startOffset;
         this.prefix = null;
         
-        assert (endOffset < buf.limit()) : "buf.limit() == " + buf.limit() + ", endOffset == " + endOffset
+        assert (endOffset <= buf.limit()) : "buf.limit() == " + buf.limit() + ", endOffset == " + endOffset
             + ", startOffset == " + startOffset + ", buf.capacity == " + buf.capacity();
     }
     
@@ -64,6 +64,10 @@ public class ByteRange {
         this.prefix = prefix;
     }
     
+    public byte[] getPrefix() {
+        return prefix;
+    }
+    
     public byte[] toBuffer() {
         byte[] tmp;
         
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+/**
+ * A source of the current time, against which the expiry times of entries are
+ * checked. The system clock may be replaced, so as to let entries expire
+ * without having to wait for their expiry times.
+ */
+public interface Clock {
+    
+    /**
+     * the system clock
+     */
+    public static final Clock SYSTEM = new Clock() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+    
+    /**
+     * Returns the current time.
+     * 
+     * @return the time in milliseconds since 1970
+     */
+    public long currentTimeMillis();
+    
+}
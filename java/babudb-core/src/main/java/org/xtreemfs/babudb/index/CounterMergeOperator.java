@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.nio.ByteBuffer;
+
+import org.xtreemfs.babudb.api.index.MergeOperator;
+
+/**
+ * A merge operator for counters. Values and operands are 64-bit signed
+ * integers in big-endian byte order; each operand is added to the current
+ * value of the key, which is regarded as 0 if the key does not exist.
+ */
+public class CounterMergeOperator implements MergeOperator {
+    
+    public byte[] merge(byte[] key, byte[] value, byte[] operand) {
+        
+        long result = ByteBuffer.wrap(operand).getLong();
+        if (value != null)
+            result += ByteBuffer.wrap(value).getLong();
+        
+        return toBytes(result);
+    }
+    
+    /**
+     * Converts a counter value or operand to its byte representation.
+     * 
+     * @param value
+     *            the value
+     * @return the byte representation of the value
+     */
+    public static byte[] toBytes(long value) {
+        return ByteBuffer.allocate(Long.SIZE / 8).putLong(value).array();
+    }
+    
+    /**
+     * Converts the byte representation of a counter value to a number.
+     * 
+     * @param value
+     *            the byte representation of the value
+     * @return the value
+     */
+    public static long toLong(byte[] value) {
+        return ByteBuffer.wrap(value).getLong();
+    }
+    
+}
@@ -8,10 +8,11 @@
 
 package org.xtreemfs.babudb.index;
 
-import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import java.nio.ByteBuffer;
 
+import org.xtreemfs.babudb.api.index.InPlaceByteRangeComparator;
 
-public class DefaultByteRangeComparator implements ByteRangeComparator {
+public class DefaultByteRangeComparator implements InPlaceByteRangeComparator {
     
     private static DefaultByteRangeComparator instance;
     
@@ -37,12 +38,16 @@ public class DefaultByteRangeComparator implements ByteRangeComparator {
     
     @Override
     public int compare(ByteRange rng, byte[] buf) {
+        return compare(rng.getBuf(), rng.getStartOffset(), rng.getSize(), buf);
+    }
+    
+    @Override
+    public int compare(ByteBuffer rngBuf, int offset, int length, byte[] buf) {
         
-        int n = rng.getStartOffset() + Math.min(rng.getSize(), buf.length);
+        int n = offset + Math.min(length, buf.length);
         int j = 0;
-        for (int i = rng.getStartOffset(); i < n; i++, j++) {
-            assert (i < rng.getEndOffset()) : "i == " + i + ", endOffset == " + rng.getEndOffset();
-            byte v1 = rng.getBuf().get(i);
+        for (int i = offset; i < n; i++, j++) {
+            byte v1 = rngBuf.get(i);
             byte v2 = buf[j];
             if (v1 == v2)
                 continue;
@@ -51,7 +56,7 @@ public class DefaultByteRangeComparator implements ByteRangeComparator {
             return 1;
         }
         
-        return rng.getSize() - buf.length;
+        return length - buf.length;
     }
     
     @Override
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A block codec based on the Deflate algorithm, which achieves high
+ * compression ratios at the cost of a comparably slow encoding and decoding.
+ * Encoded blocks are stored in the zlib format, so that corrupt blocks are
+ * detected by means of the checksum.
+ */
+public class DeflateBlockCodec extends BlockCodec {
+    
+    public byte getId() {
+        return DEFLATE;
+    }
+    
+    public String getName() {
+        return "deflate";
+    }
+    
+    public int encode(byte[] src, int srcLength, byte[] dst) {
+        
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(src, 0, srcLength);
+            deflater.finish();
+            
+            int length = deflater.deflate(dst, 0, dst.length);
+            return deflater.finished() ? length : -1;
+        
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    public void decode(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength)
+        throws IOException {
+        
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(src, srcOffset, srcLength);
+            
+            int length = 0;
+            while (length < dstLength && !inflater.finished()) {
+                int n = inflater.inflate(dst, dstOffset + length, dstLength - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += n;
+            }
+            
+            if (length != dstLength)
+                throw new IOException("corrupt block: expected " + dstLength + " bytes, decoded " + length);
+        
+        } catch (DataFormatException exc) {
+            throw new IOException("corrupt block: " + exc.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+    
+}
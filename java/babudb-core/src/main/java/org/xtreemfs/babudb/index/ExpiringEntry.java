@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.util.Map.Entry;
+
+/**
+ * An entry that carries the time at which it expires, if any. Expiring entries
+ * are passed from the overlay and the on-disk runs to the index writer, which
+ * records their expiry times along with their values, or drops them if they
+ * have expired already.
+ */
+public class ExpiringEntry<K, V> implements Entry<K, V> {
+    
+    private final K    key;
+    
+    private final V    value;
+    
+    private final long expiryTime;
+    
+    public ExpiringEntry(K key, V value, long expiryTime) {
+        this.key = key;
+        this.value = value;
+        this.expiryTime = expiryTime;
+    }
+    
+    @Override
+    public K getKey() {
+        return key;
+    }
+    
+    @Override
+    public V getValue() {
+        return value;
+    }
+    
+    /**
+     * Returns the time at which the entry expires.
+     * 
+     * @return the time in milliseconds since 1970, or 0 if the entry does not
+     *         expire
+     */
+    public long getExpiryTime() {
+        return expiryTime;
+    }
+    
+    @Override
+    public V setValue(V value) {
+        throw new UnsupportedOperationException();
+    }
+    
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.nio.ByteBuffer;
+
+import org.xtreemfs.babudb.api.database.Cursor;
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.InPlaceByteRangeComparator;
+
+/**
+ * A cursor over a single component of an LSM tree, i.e. an overlay tree or an
+ * on-disk run. In addition to regular entries, such cursors return entries
+ * that mark keys as deleted.
+ */
+public abstract class IndexCursor implements Cursor {
+    
+    /**
+     * Checks whether the current entry marks its key as deleted. The value of
+     * such entries is undefined.
+     * 
+     * @return <code>true</code>, if the key is deleted, <code>false</code>,
+     *         otherwise
+     */
+    public abstract boolean isDeleted();
+    
+    /**
+     * Compares a key returned by a cursor to a given key. If supported by the
+     * comparator, the key is compared in place.
+     * 
+     * @param comp
+     *            the comparator
+     * @param key
+     *            the key returned by the cursor
+     * @param other
+     *            the key to compare with
+     * @return a negative value, 0, or a positive value, if the key returned by
+     *         the cursor is smaller, equal or larger, respectively
+     */
+    protected static int compare(ByteRangeComparator comp, ByteBuffer key, byte[] other) {
+        
+        if (comp instanceof InPlaceByteRangeComparator)
+            return ((InPlaceByteRangeComparator) comp).compare(key, key.position(), key.remaining(), other);
+        
+        return comp.compare(new ByteRange(key, key.position(), key.limit()), other);
+    }
+    
+    /**
+     * Copies the remaining content of a buffer to an array. The given array is
+     * reused if it has the required length, so that copying keys of equal
+     * length does not allocate any memory.
+     * 
+     * @param buf
+     *            the buffer
+     * @param target
+     *            the array to reuse; may be <code>null</code>
+     * @return the array containing the content of the buffer
+     */
+    protected static byte[] copy(ByteBuffer buf, byte[] target) {
+        
+        if (target == null || target.length != buf.remaining())
+            target = new byte[buf.remaining()];
+        
+        int position = buf.position();
+        buf.get(target);
+        buf.position(position);
+        
+        return target;
+    }
+    
+}
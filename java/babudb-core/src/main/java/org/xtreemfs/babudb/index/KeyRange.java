@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Map.Entry;
+
+import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+
+/**
+ * A range of keys from a first key (inclusively) to a last key (exclusively).
+ * Key ranges are used as range tombstones, i.e. to record the deletion of all
+ * keys in a range without enumerating them.
+ */
+public class KeyRange<K> {
+    
+    private final K from;
+    
+    private final K to;
+    
+    /**
+     * Creates a new key range.
+     * 
+     * @param from
+     *            the first key (inclusively); if <code>null</code>, the range
+     *            starts with the smallest possible key
+     * @param to
+     *            the last key (exclusively); if <code>null</code>, the range
+     *            ends with the largest possible key
+     */
+    public KeyRange(K from, K to) {
+        this.from = from;
+        this.to = to;
+    }
+    
+    public K getFrom() {
+        return from;
+    }
+    
+    public K getTo() {
+        return to;
+    }
+    
+    /**
+     * Checks whether the range contains a key.
+     * 
+     * @param key
+     *            the key
+     * @param comp
+     *            the comparator for keys
+     * @return <code>true</code>, if the key is contained, <code>false</code>,
+     *         otherwise
+     */
+    public boolean contains(K key, Comparator<K> comp) {
+        return (from == null || comp.compare(key, from) >= 0) && (to == null || comp.compare(key, to) < 0);
+    }
+    
+    /**
+     * Returns an iterator that skips all entries whose keys are contained in
+     * any range of the given set. Freeing the returned iterator frees the given
+     * iterator, if it is a result set.
+     * 
+     * @param it
+     *            the iterator
+     * @param ranges
+     *            the ranges
+     * @return the filtered iterator, or the given iterator if no ranges are
+     *         given
+     */
+    public static <K, V> Iterator<Entry<K, V>> filter(final Iterator<Entry<K, V>> it,
+        final KeyRangeSet<K> ranges) {
+        
+        if (ranges.isEmpty())
+            return it;
+        
+        return new ResultSet<K, V>() {
+            
+            private Entry<K, V> next;
+            
+            private boolean     fetched;
+            
+            @Override
+            public boolean hasNext() {
+                
+                // entries are retrieved lazily, so as not to read ahead of
+                // the consumer
+                if (!fetched) {
+                    next = getNextEntry();
+                    fetched = true;
+                }
+                
+                return next != null;
+            }
+            
+            @Override
+            public Entry<K, V> next() {
+                
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                
+                fetched = false;
+                return next;
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public void free() {
+                if (it instanceof ResultSet)
+                    ((ResultSet<K, V>) it).free();
+            }
+            
+            private Entry<K, V> getNextEntry() {
+                
+                while (it.hasNext()) {
+                    Entry<K, V> entry = it.next();
+                    if (!ranges.contains(entry.getKey()))
+                        return entry;
+                }
+                
+                return null;
+            }
+        };
+    }
+    
+    /**
+     * Returns a cursor that skips all entries whose keys are contained in any
+     * range of the given set. Ranges are skipped by positioning the given cursor
+     * at their boundaries, rather than by stepping through their entries.
+     * Freeing the returned cursor frees the given cursor.
+     * 
+     * @param cursor
+     *            the cursor
+     * @param ranges
+     *            the ranges
+     * @param comp
+     *            the comparator for keys
+     * @return the filtered cursor, or the given cursor if no ranges are given
+     */
+    public static IndexCursor filter(IndexCursor cursor, KeyRangeSet<byte[]> ranges,
+        ByteRangeComparator comp) {
+        
+        if (ranges.isEmpty())
+            return cursor;
+        
+        return new FilteredCursor(cursor, ranges, comp);
+    }
+    
+    private static class FilteredCursor extends IndexCursor {
+        
+        private final IndexCursor                                    cursor;
+        
+        private final KeyRangeSet<byte[]>                            ranges;
+        
+        private final ByteRangeComparator                            comp;
+        
+        private final KeyRangeSet.KeyComparator<ByteBuffer, byte[]> keyComp;
+        
+        private boolean                                              valid;
+        
+        public FilteredCursor(IndexCursor cursor, KeyRangeSet<byte[]> ranges,
+            final ByteRangeComparator comp) {
+            this.cursor = cursor;
+            this.ranges = ranges;
+            this.comp = comp;
+            this.keyComp = new KeyRangeSet.KeyComparator<ByteBuffer, byte[]>() {
+                public int compare(ByteBuffer key, byte[] bound) {
+                    return IndexCursor.compare(comp, key, bound);
+                }
+            };
+        }
+        
+        public boolean seek(byte[] key) {
+            cursor.seek(key);
+            return skipForward();
+        }
+        
+        public boolean seekForPrev(byte[] key) {
+            cursor.seekForPrev(key);
+            return skipBackward();
+        }
+        
+        public boolean next() {
+            checkValid();
+            cursor.next();
+            return skipForward();
+        }
+        
+        public boolean prev() {
+            checkValid();
+            cursor.prev();
+            return skipBackward();
+        }
+        
+        public boolean isValid() {
+            return valid;
+        }
+        
+        public ByteBuffer key() {
+            checkValid();
+            return cursor.key();
+        }
+        
+        public ByteBuffer value() {
+            checkValid();
+            return cursor.value();
+        }
+        
+        public boolean isDeleted() {
+            checkValid();
+            return cursor.isDeleted();
+        }
+        
+        public void free() {
+            cursor.free();
+            valid = false;
+        }
+        
+        private boolean skipForward() {
+            
+            while (cursor.isValid()) {
+                
+                KeyRange<byte[]> range = getRange(cursor.key());
+                if (range == null)
+                    return valid = true;
+                
+                if (range.to == null)
+                    break;
+                
+                cursor.seek(range.to);
+            }
+            
+            return valid = false;
+        }
+        
+        private boolean skipBackward() {
+            
+            while (cursor.isValid()) {
+                
+                KeyRange<byte[]> range = getRange(cursor.key());
+                if (range == null)
+                    return valid = true;
+                
+                if (range.from == null)
+                    break;
+                
+                // the first key of the range is deleted as well
+                if (cursor.seekForPrev(range.from) && compare(comp, cursor.key(), range.from) == 0)
+                    cursor.prev();
+            }
+            
+            return valid = false;
+        }
+        
+        private KeyRange<byte[]> getRange(ByteBuffer key) {
+            return ranges.getRange(key, keyComp);
+        }
+        
+        private void checkValid() {
+            if (!valid)
+                throw new NoSuchElementException();
+        }
+    
+    }
+    
+}
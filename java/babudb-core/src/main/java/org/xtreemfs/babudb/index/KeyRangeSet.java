@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable set of key ranges. Overlapping and adjacent ranges are
+ * coalesced, and the remaining ranges are kept in ascending order, so that
+ * the range containing a key can be found by means of a binary search.
+ * Adding ranges creates a new set, which allows sets to be read concurrently
+ * without any synchronization.
+ */
+public class KeyRangeSet<K> {
+    
+    /**
+     * Compares keys of an arbitrary representation with range boundaries.
+     */
+    public static interface KeyComparator<T, K> {
+        
+        /**
+         * Compares a key with a range boundary.
+         * 
+         * @param key
+         *            the key
+         * @param bound
+         *            the boundary
+         * @return a negative value, 0, or a positive value, if the key is
+         *         smaller, equal or larger than the boundary, respectively
+         */
+        public int compare(T key, K bound);
+    }
+    
+    private final List<KeyRange<K>>   ranges;
+    
+    private final Comparator<K>       comp;
+    
+    private final KeyComparator<K, K> keyComp;
+    
+    /**
+     * Creates an empty set.
+     * 
+     * @param comp
+     *            the comparator for keys
+     */
+    public KeyRangeSet(Comparator<K> comp) {
+        this(Collections.<KeyRange<K>> emptyList(), comp);
+    }
+    
+    /**
+     * Creates a set containing the given ranges.
+     * 
+     * @param ranges
+     *            the ranges
+     * @param comp
+     *            the comparator for keys
+     */
+    public KeyRangeSet(Collection<KeyRange<K>> ranges, final Comparator<K> comp) {
+        this.ranges = coalesce(ranges, comp);
+        this.comp = comp;
+        this.keyComp = new KeyComparator<K, K>() {
+            public int compare(K key, K bound) {
+                return comp.compare(key, bound);
+            }
+        };
+    }
+    
+    /**
+     * Returns a new set that contains all ranges of this set and the given
+     * range.
+     * 
+     * @param range
+     *            the range to add
+     * @return the new set
+     */
+    public KeyRangeSet<K> add(KeyRange<K> range) {
+        List<KeyRange<K>> list = new ArrayList<KeyRange<K>>(ranges);
+        list.add(range);
+        return new KeyRangeSet<K>(list, comp);
+    }
+    
+    /**
+     * Returns a set that contains all ranges of this set and the given set.
+     * 
+     * @param other
+     *            the other set
+     * @return the union of both sets; if one of them is empty, the other one
+     *         is returned
+     */
+    public KeyRangeSet<K> union(KeyRangeSet<K> other) {
+        
+        if (other.isEmpty())
+            return this;
+        if (isEmpty())
+            return other;
+        
+        List<KeyRange<K>> list = new ArrayList<KeyRange<K>>(ranges);
+        list.addAll(other.ranges);
+        return new KeyRangeSet<K>(list, comp);
+    }
+    
+    /**
+     * Checks whether the set is empty.
+     * 
+     * @return <code>true</code>, if the set does not contain any range,
+     *         <code>false</code>, otherwise
+     */
+    public boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+    
+    /**
+     * Returns the disjoint ranges of the set in ascending order.
+     * 
+     * @return the ranges
+     */
+    public List<KeyRange<K>> getRanges() {
+        return ranges;
+    }
+    
+    /**
+     * Checks whether any range of the set contains a key.
+     * 
+     * @param key
+     *            the key
+     * @return <code>true</code>, if the key is contained, <code>false</code>,
+     *         otherwise
+     */
+    public boolean contains(K key) {
+        return getRange(key, keyComp) != null;
+    }
+    
+    /**
+     * Returns the range that contains a key of an arbitrary representation.
+     * As ranges are disjoint, at most one range may contain the key.
+     * 
+     * @param key
+     *            the key
+     * @param keyComp
+     *            the comparator for the key and range boundaries
+     * @return the range, or <code>null</code>, if no range contains the key
+     */
+    public <T> KeyRange<K> getRange(T key, KeyComparator<T, K> keyComp) {
+        
+        // find the last range that starts at or before the key
+        int low = 0;
+        int high = ranges.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            K from = ranges.get(mid).getFrom();
+            if (from == null || keyComp.compare(key, from) >= 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        
+        if (high < 0)
+            return null;
+        
+        KeyRange<K> range = ranges.get(high);
+        return range.getTo() == null || keyComp.compare(key, range.getTo()) < 0 ? range : null;
+    }
+    
+    private static <K> List<KeyRange<K>> coalesce(Collection<KeyRange<K>> ranges, final Comparator<K> comp) {
+        
+        if (ranges.isEmpty())
+            return Collections.emptyList();
+        
+        // sort all non-empty ranges by their first keys
+        List<KeyRange<K>> sorted = new ArrayList<KeyRange<K>>(ranges.size());
+        for (KeyRange<K> range : ranges)
+            if (range.getFrom() == null || range.getTo() == null
+                || comp.compare(range.getFrom(), range.getTo()) < 0)
+                sorted.add(range);
+        
+        Collections.sort(sorted, new Comparator<KeyRange<K>>() {
+            public int compare(KeyRange<K> r1, KeyRange<K> r2) {
+                if (r1.getFrom() == null)
+                    return r2.getFrom() == null ? 0 : -1;
+                if (r2.getFrom() == null)
+                    return 1;
+                return comp.compare(r1.getFrom(), r2.getFrom());
+            }
+        });
+        
+        // merge overlapping and adjacent ranges
+        List<KeyRange<K>> result = new ArrayList<KeyRange<K>>(sorted.size());
+        KeyRange<K> current = null;
+        for (KeyRange<K> range : sorted) {
+            
+            if (current == null) {
+                current = range;
+                continue;
+            }
+            
+            if (current.getTo() == null)
+                break;
+            
+            if (range.getFrom() == null || comp.compare(range.getFrom(), current.getTo()) <= 0) {
+                if (range.getTo() == null || comp.compare(range.getTo(), current.getTo()) > 0)
+                    current = new KeyRange<K>(current.getFrom(), range.getTo());
+            } else {
+                result.add(current);
+                current = range;
+            }
+        }
+        
+        if (current != null)
+            result.add(current);
+        
+        return Collections.unmodifiableList(result);
+    }
+    
+}
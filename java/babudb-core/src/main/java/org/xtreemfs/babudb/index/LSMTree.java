@@ -8,16 +8,36 @@
 
 package org.xtreemfs.babudb.index;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.xtreemfs.babudb.api.database.Cursor;
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
 import org.xtreemfs.babudb.index.overlay.MultiOverlayBufferTree;
 import org.xtreemfs.babudb.index.reader.DiskIndex;
 import org.xtreemfs.babudb.index.reader.InternalBufferUtil;
@@ -29,15 +49,103 @@ import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
 import org.xtreemfs.foundation.util.OutputUtils;
 
+/**
+ * An LSM tree consisting of an in-memory overlay and a stack of immutable
+ * on-disk runs. <br/>
+ * 
+ * The oldest run is the base run, which contains plain values and no deleted
+ * entries. All newer runs are delta runs, which contain tagged values and
+ * record deletions, so as to shadow entries in older runs. Checkpoints only
+ * write the in-memory overlay as a new delta run. When doing so, the newest
+ * runs are merged into the new run according to a size-tiered policy, so as to
+ * keep the number of runs bounded. If all runs are merged, a new base run is
+ * written.
+ * 
+ * Checkpoints write their runs to a run directory shared by all checkpoints
+ * of the tree, in which the files of each run are prefixed with
+ * "run&lt;n&gt;_". A checkpoint directory merely contains a manifest that
+ * names the run directory and lists the runs of the checkpoint, so that runs
+ * remaining unchanged are referenced rather than copied. If the overlay has
+ * not received any writes since the last checkpoint, only a new manifest is
+ * written. Run files are deleted once no manifest refers to them anymore.
+ * Directories without a manifest, i.e. full snapshots and checkpoints written
+ * by older releases, contain the files of their runs themselves; base run
+ * files have no prefix, whereas delta run files are prefixed.
+ * 
+ * Entries may be inserted with an expiry time, which is stored along with the
+ * value of the entry. In the overlay, expiring values are stored as records
+ * that are preceded by a marker byte, a record type and the expiry time; values
+ * that do not expire are stored as they are, unless they start with the marker
+ * byte themselves. In on-disk runs, each value in a block containing expiring
+ * entries is preceded by its expiry time, and the block is flagged as such in
+ * the block index; blocks without expiring entries remain unchanged. Expired
+ * entries are hidden from lookups and dropped when the next run containing
+ * them is written.
+ */
 public class LSMTree {
     
     private static long               totalOnDiskSize = 0;
     
     private static final byte[]       NULL_ELEMENT    = new byte[0];
     
+    /**
+     * a run is merged with its newer runs if it is at most this many times as
+     * large as the newer runs altogether
+     */
+    private static final int          RUN_SIZE_RATIO  = 2;
+    
+    private static final Pattern      RUN_PATTERN     = Pattern.compile("(run(\\d+)_)?blockindex\\.idx");
+    
+    private static final Pattern      RUN_FILE_PATTERN = Pattern.compile("run(\\d+)_.*");
+    
+    /**
+     * the name of the file in a checkpoint directory that lists the runs of
+     * the checkpoint
+     */
+    public static final String        MANIFEST_FILE   = "runs.idx";
+    
+    /**
+     * the first byte of all values in the overlay that are stored as records,
+     * i.e. of all expiring values and of all other values that start with
+     * this byte
+     */
+    private static final byte         RECORD_MARKER   = (byte) 0xFE;
+    
+    /**
+     * the type of records containing values that do not expire
+     */
+    private static final byte         PLAIN_RECORD    = 0;
+    
+    /**
+     * the type of records containing expiring values, whose expiry times
+     * precede the values
+     */
+    private static final byte         EXPIRING_RECORD = 1;
+    
+    /**
+     * the clock against which expiry times are checked
+     */
+    private static volatile Clock     clock           = Clock.SYSTEM;
+    
     private MultiOverlayBufferTree    overlay;
     
-    private DiskIndex                 index;
+    /**
+     * the on-disk runs, newest run first; the list is never modified but
+     * replaced as a whole
+     */
+    private volatile List<DiskIndex>  runs;
+    
+    /**
+     * the directory containing the files of all on-disk runs, i.e. the run
+     * directory if the runs have been opened from a manifest, or the
+     * checkpoint directory otherwise
+     */
+    private String                    runDir;
+    
+    /**
+     * the checkpoint directory from which the runs have been opened
+     */
+    private String                    snapshotDir;
     
     private final ByteRangeComparator comp;
     
@@ -47,12 +155,165 @@ public class LSMTree {
     
     private final int                 maxEntriesPerBlock;
     
-    private final int                 maxBlockFileSize;
+    private final long                maxBlockFileSize;
     
     private final boolean             useMMap;
     
     private final int                 mmapLimitBytes;
     
+    private final int                 maxRuns;
+    
+    private final int                 bloomFilterBitsPerKey;
+    
+    private final BlockCodec          blockCodec;
+    
+    private final int                 keyRestartInterval;
+    
+    private final int                 maxBlockSize;
+    
+    /**
+     * the lowest number that the next run to be written may have
+     */
+    private int                       nextRunNumber;
+    
+    /**
+     * the runs that have been carried over to the latest incrementally
+     * materialized snapshot, or <code>null</code> if no such snapshot exists
+     */
+    private List<DiskIndex>           pendingRuns;
+    
+    /**
+     * the file prefix of the new run in the latest incrementally materialized
+     * snapshot, or <code>null</code> if no new run has been written
+     */
+    private String                    pendingRunPrefix;
+    
+    /**
+     * the run directory of the latest incrementally materialized snapshot
+     */
+    private String                    pendingRunDir;
+    
+    /**
+     * the ingested runs that have not been included in a linked snapshot
+     * yet, newest run first
+     */
+    private final List<DiskIndex>     ingestedRuns;
+    
+    /**
+     * the run directory of the ingested runs
+     */
+    private String                    ingestedRunDir;
+    
+    /**
+     * the ingested runs included in the latest incrementally materialized
+     * snapshot
+     */
+    private List<DiskIndex>           pendingIngestedRuns;
+    
+    /**
+     * the number of writes to the overlay since the tree has been created
+     */
+    private long                      writeCount;
+    
+    /**
+     * the write count at the time the latest linked snapshot was created, or
+     * -1 if unknown
+     */
+    private long                      linkedWriteCount;
+    
+    /**
+     * the write count at the time the latest incrementally materialized
+     * snapshot was created, or -1 if unknown
+     */
+    private long                      pendingWriteCount;
+    
+    /**
+     * snapshot ID -> write count at the time the snapshot was created
+     */
+    private final Map<Integer, Long>  snapshotWriteCounts;
+    
+    /**
+     * indicates whether expiring entries have been inserted, in which case
+     * lookups that only return keys have to examine the values in the overlay
+     */
+    private volatile boolean          expiringEntries;
+    
+    /**
+     * the number of expired entries dropped from the latest materialized
+     * snapshot
+     */
+    private volatile int              numExpiredEntries;
+    
+    /**
+     * Creates a new LSM tree.
+     * 
+     * @param indexFile
+     *            the on-disk index file - may be <code>null</code>
+     * @param comp
+     *            a comparator for byte ranges
+     * @param compressed
+     *            Compression of disk-index
+     * @throws IOException
+     *             if an I/O error occurs when accessing the on-disk index file
+     */
+    public LSMTree(String indexFile, ByteRangeComparator comp, boolean compressed, int maxEntriesPerBlock,
+        long maxBlockFileSize, boolean useMMap, int mmapLimit) throws IOException {
+        this(indexFile, comp, compressed, maxEntriesPerBlock, maxBlockFileSize, useMMap, mmapLimit, 1, 0);
+    }
+    
+    /**
+     * Creates a new LSM tree.
+     * 
+     * @param indexFile
+     *            the on-disk index file - may be <code>null</code>
+     * @param comp
+     *            a comparator for byte ranges
+     * @param compressed
+     *            Compression of disk-index
+     * @param maxRuns
+     *            the maximum number of on-disk runs; if set to 1, each
+     *            checkpoint rewrites the entire on-disk index
+     * @param bloomFilterBitsPerKey
+     *            the number of Bloom filter bits per key in newly written
+     *            runs; if set to 0, no Bloom filters will be written
+     * @throws IOException
+     *             if an I/O error occurs when accessing the on-disk index file
+     */
+    public LSMTree(String indexFile, ByteRangeComparator comp, boolean compressed, int maxEntriesPerBlock,
+        long maxBlockFileSize, boolean useMMap, int mmapLimit, int maxRuns, int bloomFilterBitsPerKey)
+        throws IOException {
+        this(indexFile, comp, compressed, maxEntriesPerBlock, maxBlockFileSize, useMMap, mmapLimit, maxRuns,
+            bloomFilterBitsPerKey, false);
+    }
+    
+    /**
+     * Creates a new LSM tree.
+     * 
+     * @param indexFile
+     *            the on-disk index file - may be <code>null</code>
+     * @param comp
+     *            a comparator for byte ranges
+     * @param compressed
+     *            Compression of disk-index
+     * @param maxRuns
+     *            the maximum number of on-disk runs; if set to 1, each
+     *            checkpoint rewrites the entire on-disk index
+     * @param bloomFilterBitsPerKey
+     *            the number of Bloom filter bits per key in newly written
+     *            runs; if set to 0, no Bloom filters will be written
+     * @param offHeapOverlay
+     *            if <code>true</code>, the in-memory overlay will store keys
+     *            and values outside of the Java heap
+     * @throws IOException
+     *             if an I/O error occurs when accessing the on-disk index file
+     */
+    public LSMTree(String indexFile, ByteRangeComparator comp, boolean compressed, int maxEntriesPerBlock,
+        long maxBlockFileSize, boolean useMMap, int mmapLimit, int maxRuns, int bloomFilterBitsPerKey,
+        boolean offHeapOverlay) throws IOException {
+        this(indexFile, comp, compressed, maxEntriesPerBlock, maxBlockFileSize, useMMap, mmapLimit, maxRuns,
+            bloomFilterBitsPerKey, offHeapOverlay, null, 0, 0);
+    }
+    
     /**
      * Creates a new LSM tree.
      * 
@@ -62,11 +323,33 @@ public class LSMTree {
      *            a comparator for byte ranges
      * @param compressed
      *            Compression of disk-index
+     * @param maxRuns
+     *            the maximum number of on-disk runs; if set to 1, each
+     *            checkpoint rewrites the entire on-disk index
+     * @param bloomFilterBitsPerKey
+     *            the number of Bloom filter bits per key in newly written
+     *            runs; if set to 0, no Bloom filters will be written
+     * @param offHeapOverlay
+     *            if <code>true</code>, the in-memory overlay will store keys
+     *            and values outside of the Java heap
+     * @param blockCodec
+     *            the codec with which the blocks of newly written runs are
+     *            encoded, or <code>null</code> if blocks are not encoded
+     * @param keyRestartInterval
+     *            the number of entries after which a key is stored completely
+     *            in prefix-coded blocks of newly written runs; if set to 0,
+     *            blocks will not be prefix-coded
+     * @param maxBlockSize
+     *            the size in bytes after which a block of a newly written run
+     *            is completed; if set to 0, the size of blocks will only be
+     *            limited by the maximum number of entries per block
      * @throws IOException
      *             if an I/O error occurs when accessing the on-disk index file
      */
     public LSMTree(String indexFile, ByteRangeComparator comp, boolean compressed, int maxEntriesPerBlock,
-        int maxBlockFileSize, boolean useMMap, int mmapLimit) throws IOException {
+        long maxBlockFileSize, boolean useMMap, int mmapLimit, int maxRuns, int bloomFilterBitsPerKey,
+        boolean offHeapOverlay, BlockCodec blockCodec, int keyRestartInterval, int maxBlockSize)
+        throws IOException {
         
         this.comp = comp;
         this.compressed = compressed;
@@ -74,11 +357,20 @@ public class LSMTree {
         this.maxBlockFileSize = maxBlockFileSize;
         this.useMMap = useMMap;
         this.mmapLimitBytes = mmapLimit * 1024 * 1024;
+        this.maxRuns = maxRuns;
+        this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+        this.blockCodec = blockCodec;
+        this.keyRestartInterval = keyRestartInterval;
+        this.maxBlockSize = maxBlockSize;
         
-        overlay = new MultiOverlayBufferTree(NULL_ELEMENT, comp);
-        totalOnDiskSize += indexFile == null ? 0 : getTotalDirSize(new File(indexFile));
-        index = indexFile == null ? null : new DiskIndex(indexFile, comp, compressed, useMmap());
+        overlay = new MultiOverlayBufferTree(NULL_ELEMENT, comp, offHeapOverlay);
+        totalOnDiskSize += indexFile == null ? 0 : getTotalSize(indexFile);
+        runs = indexFile == null ? Collections.<DiskIndex> emptyList() : openRuns(indexFile);
+        snapshotDir = indexFile;
         lock = new Object();
+        snapshotWriteCounts = new HashMap<Integer, Long>();
+        ingestedRuns = new ArrayList<DiskIndex>();
+        pendingWriteCount = -1;
     }
     
     /**
@@ -89,16 +381,7 @@ public class LSMTree {
      * @return the value associated with the key
      */
     public byte[] lookup(byte[] key) {
-        
-        byte[] result = overlay.lookup(key);
-        
-        if (result == NULL_ELEMENT)
-            return null;
-        
-        if (result != null)
-            return result;
-        
-        return index == null ? null : index.lookup(key);
+        return completeLookup(key, overlay.lookup(key));
     }
     
     /**
@@ -111,16 +394,91 @@ public class LSMTree {
      * @return the value associated with the key in the snapshot
      */
     public byte[] lookup(byte[] key, int snapId) {
+        return completeLookup(key, overlay.lookup(key, snapId));
+    }
+    
+    /**
+     * Performs a lookup of multiple keys. The overlay is probed once per key;
+     * keys that are not contained in the overlay are looked up in ascending
+     * order in each on-disk run, so that keys falling in the same block share
+     * a single block read.
+     * 
+     * @param keys
+     *            the keys to look up
+     * @return an array containing the value associated with each key at the
+     *         same position, or <code>null</code> if the key is not contained
+     */
+    public byte[][] lookup(byte[][] keys) {
         
-        byte[] result = overlay.lookup(key, snapId);
+        long now = clock.currentTimeMillis();
+        byte[][] results = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++)
+            results[i] = decodeRecord(overlay.lookup(keys[i]), now);
         
-        if (result == NULL_ELEMENT)
-            return null;
+        return lookupRuns(keys, results);
+    }
+    
+    /**
+     * Performs a lookup of multiple keys in a given snapshot.
+     * 
+     * @param keys
+     *            the keys to look up
+     * @param snapId
+     *            the snapshot ID
+     * @return an array containing the value associated with each key in the
+     *         snapshot at the same position, or <code>null</code> if the key is
+     *         not contained
+     */
+    public byte[][] lookup(byte[][] keys, int snapId) {
         
-        if (result != null)
-            return result;
+        long now = clock.currentTimeMillis();
+        byte[][] results = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++)
+            results[i] = decodeRecord(overlay.lookup(keys[i], snapId), now);
         
-        return index == null ? null : index.lookup(key);
+        return lookupRuns(keys, results);
+    }
+    
+    /**
+     * Estimates the number of entries between two keys. Each on-disk run
+     * contributes an estimate derived from its block index, and the overlay
+     * contributes its number of entries, scaled by the fraction of on-disk
+     * entries in the range. The overlay is thus assumed to be distributed
+     * across the key range like the on-disk entries; if there are no on-disk
+     * entries, all overlay entries are counted, regardless of the range.
+     * Overwritten and deleted keys may be counted more than once. No data
+     * blocks are read, and the time needed is logarithmic in the number of
+     * entries.
+     * 
+     * @param from
+     *            the first key (inclusively); if <code>null</code>, the
+     *            range starts with the first key
+     * @param to
+     *            the last key (exclusively); if <code>null</code>, the range
+     *            ends with the last key
+     * @return the estimated number of entries
+     */
+    public long estimateCount(byte[] from, byte[] to) {
+        return estimate(from, to, false);
+    }
+    
+    /**
+     * Estimates the number of bytes occupied by the entries between two keys
+     * in the same way as <code>estimateCount()</code>. On-disk runs
+     * contribute their file sizes, the overlay the sizes of the keys and
+     * values it contains, which approximate their sizes on disk before
+     * compression.
+     * 
+     * @param from
+     *            the first key (inclusively); if <code>null</code>, the
+     *            range starts with the first key
+     * @param to
+     *            the last key (exclusively); if <code>null</code>, the range
+     *            ends with the last key
+     * @return the estimated number of bytes
+     */
+    public long estimateSize(byte[] from, byte[] to) {
+        return estimate(from, to, true);
     }
     
     /**
@@ -201,18 +559,42 @@ public class LSMTree {
      * @return an iterator with key-value pairs
      */
     public ResultSet<byte[], byte[]> prefixLookup(byte[] prefix, boolean ascending) {
+        return prefixLookup(prefix, ascending, 0, false);
+    }
+    
+    /**
+     * Performs a prefix lookup that returns at most the given number of
+     * entries. Key-value pairs are returned in an iterator in the given key
+     * order, where only such keys are returned with a matching prefix
+     * according to the comparator. Once the maximum number of entries has
+     * been returned, no further index blocks are read.
+     * 
+     * @param prefix
+     *            the prefix
+     * @param ascending
+     *            if <code>true</code>, entries will be returned in ascending
+     *            order; otherwise, they will be returned in descending order
+     * @param maxEntries
+     *            the maximum number of entries to return, or 0 if the number
+     *            of entries is unlimited
+     * @param keysOnly
+     *            if <code>true</code>, values are not copied and all entries
+     *            are returned with <code>null</code> values
+     * @return an iterator with key-value pairs
+     */
+    public ResultSet<byte[], byte[]> prefixLookup(byte[] prefix, boolean ascending, int maxEntries,
+        boolean keysOnly) {
         
         if (prefix != null && prefix.length == 0)
             prefix = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
-        list.add(overlay.prefixLookup(prefix, true, ascending));
-        if (index != null) {
-            byte[][] rng = comp.prefixToRange(prefix, ascending);
-            list.add(index.rangeLookup(rng[0], rng[1], ascending));
-        }
+        byte[][] rng = comp.prefixToRange(prefix, ascending);
+        Iterator<Entry<byte[], byte[]>> overlayIt = keysOnly && !expiringEntries ? overlay.keyLookup(rng[0],
+            rng[1], true, ascending) : decodeRecords(overlay.rangeLookup(rng[0], rng[1], true, ascending),
+            keysOnly);
         
-        return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
+        return rangeLookup(overlayIt, overlay.getDeletedRanges(), rng[0], rng[1], ascending, maxEntries,
+            keysOnly);
     }
     
     /**
@@ -245,18 +627,43 @@ public class LSMTree {
      * @return an iterator with key-value pairs
      */
     public ResultSet<byte[], byte[]> prefixLookup(byte[] prefix, int snapId, boolean ascending) {
+        return prefixLookup(prefix, snapId, ascending, 0, false);
+    }
+    
+    /**
+     * Performs a prefix lookup in a given snapshot that returns at most the
+     * given number of entries. Key-value pairs are returned in an iterator in
+     * the given key order, where only such keys are returned with a matching
+     * prefix according to the comparator.
+     * 
+     * @param prefix
+     *            the prefix
+     * @param snapId
+     *            the snapshot ID
+     * @param ascending
+     *            if <code>true</code>, entries will be returned in ascending
+     *            order; otherwise, they will be returned in descending order
+     * @param maxEntries
+     *            the maximum number of entries to return, or 0 if the number
+     *            of entries is unlimited
+     * @param keysOnly
+     *            if <code>true</code>, values are not copied and all entries
+     *            are returned with <code>null</code> values
+     * @return an iterator with key-value pairs
+     */
+    public ResultSet<byte[], byte[]> prefixLookup(byte[] prefix, int snapId, boolean ascending,
+        int maxEntries, boolean keysOnly) {
         
         if (prefix != null && prefix.length == 0)
             prefix = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
-        list.add(overlay.prefixLookup(prefix, snapId, true, ascending));
-        if (index != null) {
-            byte[][] rng = comp.prefixToRange(prefix, ascending);
-            list.add(index.rangeLookup(rng[0], rng[1], ascending));
-        }
+        byte[][] rng = comp.prefixToRange(prefix, ascending);
+        Iterator<Entry<byte[], byte[]>> overlayIt = keysOnly && !expiringEntries ? overlay.keyLookup(rng[0],
+            rng[1], snapId, true, ascending) : decodeRecords(overlay.rangeLookup(rng[0], rng[1], snapId, true,
+            ascending), keysOnly);
         
-        return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
+        return rangeLookup(overlayIt, overlay.getDeletedRanges(snapId), rng[0], rng[1], ascending,
+            maxEntries, keysOnly);
     }
     
     /**
@@ -291,6 +698,34 @@ public class LSMTree {
      * @return an iterator with key-value pairs
      */
     public ResultSet<byte[], byte[]> rangeLookup(byte[] from, byte[] to, boolean ascending) {
+        return rangeLookup(from, to, ascending, 0, false);
+    }
+    
+    /**
+     * Performs a range lookup that returns at most the given number of
+     * entries. Key-value pairs are returned in an iterator in the given key
+     * order, where only such keys are returned between <code>from</code>
+     * (inclusively) and <code>to</code> (exclusively), according to the
+     * comparator. Once the maximum number of entries has been returned, no
+     * further index blocks are read.
+     * 
+     * @param from
+     *            the first key (inclusively)
+     * @param to
+     *            the last key (exclusively)
+     * @param ascending
+     *            if <code>true</code>, entries will be returned in ascending
+     *            order; otherwise, they will be returned in descending order
+     * @param maxEntries
+     *            the maximum number of entries to return, or 0 if the number
+     *            of entries is unlimited
+     * @param keysOnly
+     *            if <code>true</code>, values are not copied and all entries
+     *            are returned with <code>null</code> values
+     * @return an iterator with key-value pairs
+     */
+    public ResultSet<byte[], byte[]> rangeLookup(byte[] from, byte[] to, boolean ascending, int maxEntries,
+        boolean keysOnly) {
         
         if (from.length == 0)
             from = null;
@@ -298,12 +733,10 @@ public class LSMTree {
         if (to.length == 0)
             to = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
-        list.add(overlay.rangeLookup(from, to, true, ascending));
-        if (index != null)
-            list.add(index.rangeLookup(from, to, ascending));
+        Iterator<Entry<byte[], byte[]>> overlayIt = keysOnly && !expiringEntries ? overlay.keyLookup(from, to,
+            true, ascending) : decodeRecords(overlay.rangeLookup(from, to, true, ascending), keysOnly);
         
-        return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
+        return rangeLookup(overlayIt, overlay.getDeletedRanges(), from, to, ascending, maxEntries, keysOnly);
     }
     
     /**
@@ -342,6 +775,35 @@ public class LSMTree {
      * @return an iterator with key-value pairs
      */
     public ResultSet<byte[], byte[]> rangeLookup(byte[] from, byte[] to, int snapId, boolean ascending) {
+        return rangeLookup(from, to, snapId, ascending, 0, false);
+    }
+    
+    /**
+     * Performs a range lookup in a given snapshot that returns at most the
+     * given number of entries. Key-value pairs are returned in an iterator in
+     * the given key order, where only such keys are returned between
+     * <code>from</code> (inclusively) and <code>to</code> (exclusively),
+     * according to the comparator.
+     * 
+     * @param from
+     *            the first key (inclusively)
+     * @param to
+     *            the last key (exclusively)
+     * @param snapId
+     *            the snapshot ID
+     * @param ascending
+     *            if <code>true</code>, entries will be returned in ascending
+     *            order; otherwise, they will be returned in descending order
+     * @param maxEntries
+     *            the maximum number of entries to return, or 0 if the number
+     *            of entries is unlimited
+     * @param keysOnly
+     *            if <code>true</code>, values are not copied and all entries
+     *            are returned with <code>null</code> values
+     * @return an iterator with key-value pairs
+     */
+    public ResultSet<byte[], byte[]> rangeLookup(byte[] from, byte[] to, int snapId, boolean ascending,
+        int maxEntries, boolean keysOnly) {
         
         if (from.length == 0)
             from = null;
@@ -349,12 +811,34 @@ public class LSMTree {
         if (to.length == 0)
             to = null;
         
-        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>(2);
-        list.add(overlay.rangeLookup(from, to, snapId, true, ascending));
-        if (index != null)
-            list.add(index.rangeLookup(from, to, ascending));
+        Iterator<Entry<byte[], byte[]>> overlayIt = keysOnly && !expiringEntries ? overlay.keyLookup(from, to,
+            snapId, true, ascending) : decodeRecords(overlay.rangeLookup(from, to, snapId, true, ascending),
+            keysOnly);
         
-        return new OverlayMergeIterator<byte[], byte[]>(list, comp, NULL_ELEMENT, ascending);
+        return rangeLookup(overlayIt, overlay.getDeletedRanges(snapId), from, to, ascending, maxEntries,
+            keysOnly);
+    }
+    
+    /**
+     * Creates a cursor over the LSM tree. The cursor merges cursors over the
+     * overlay trees and on-disk runs, which return keys and values as views on
+     * their internal buffers.
+     * 
+     * @return the cursor
+     */
+    public Cursor openCursor() {
+        return openCursor(overlay.openCursors(), overlay.getDeletedRanges());
+    }
+    
+    /**
+     * Creates a cursor over a given snapshot.
+     * 
+     * @param snapId
+     *            the snapshot ID
+     * @return the cursor
+     */
+    public Cursor openCursor(int snapId) {
+        return openCursor(overlay.openCursors(snapId), overlay.getDeletedRanges(snapId));
     }
     
     /**
@@ -367,7 +851,35 @@ public class LSMTree {
      */
     public void insert(byte[] key, byte[] value) {
         synchronized (lock) {
-            overlay.insert(key, value);
+            overlay.insert(key, encodeRecord(value, 0));
+            writeCount++;
+        }
+    }
+    
+    /**
+     * Inserts a key-value pair that expires at a given time. Once expired, the
+     * entry is no longer returned by lookups, and it is dropped when the next
+     * run containing it is written.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @param expiryTime
+     *            the time in milliseconds since 1970 at which the entry
+     *            expires; if 0, the entry does not expire
+     */
+    public void insert(byte[] key, byte[] value, long expiryTime) {
+        
+        if (expiryTime == 0 || value == null) {
+            insert(key, value);
+            return;
+        }
+        
+        synchronized (lock) {
+            overlay.insert(key, encodeRecord(value, expiryTime));
+            expiringEntries = true;
+            writeCount++;
         }
     }
     
@@ -381,36 +893,185 @@ public class LSMTree {
     public void delete(byte[] key) {
         synchronized (lock) {
             overlay.insert(key, null);
+            writeCount++;
         }
     }
     
     /**
-     * Creates a new in-memory snapshot.
+     * Merges an operand into the value of a key. The current value is looked
+     * up and replaced with the result of the merge operator atomically with
+     * respect to all other modifications of the tree.
      * 
-     * @return the snapshot ID
+     * @param key
+     *            the key
+     * @param operand
+     *            the operand
+     * @param op
+     *            the merge operator
      */
-    public int createSnapshot() {
-        return overlay.newOverlay();
+    public void merge(byte[] key, byte[] operand, MergeOperator op) {
+        synchronized (lock) {
+            overlay.insert(key, encodeRecord(op.merge(key, lookup(key), operand), 0));
+            writeCount++;
+        }
     }
     
     /**
-     * Writes an in-memory snapshot to a file on disk.
+     * Deletes all key-value pairs with keys between <code>from</code>
+     * (inclusively) and <code>to</code> (exclusively). The range is recorded
+     * as a whole in the overlay, regardless of the number of keys it
+     * contains. When the next checkpoint is written, the range is recorded in
+     * the new run, so that keys in the range are hidden in all older runs
+     * without rewriting them; they are dropped once the runs are merged.
      * 
-     * @param targetFile
-     *            the file to which to write the snapshot
-     * @param snapId
-     *            the snapshot ID
-     * @throws IOException
+     * @param from
+     *            the first key (inclusively)
+     * @param to
+     *            the last key (exclusively); if <code>null</code>, all keys
+     *            from <code>from</code> on are deleted
+     */
+    public void deleteRange(byte[] from, byte[] to) {
+        synchronized (lock) {
+            overlay.deleteRange(from, to);
+            writeCount++;
+        }
+    }
+    
+    /**
+     * Creates a new in-memory snapshot.
+     * 
+     * @return the snapshot ID
+     */
+    public int createSnapshot() {
+        synchronized (lock) {
+            int snapId = overlay.newOverlay();
+            snapshotWriteCounts.put(snapId, writeCount);
+            return snapId;
+        }
+    }
+    
+    /**
+     * Writes an in-memory snapshot to a file on disk.
+     * 
+     * @param targetFile
+     *            the file to which to write the snapshot
+     * @param snapId
+     *            the snapshot ID
+     * @throws IOException
      *             if an I/O error occurs while writing the snapshot
      */
     public void materializeSnapshot(String targetFile, int snapId) throws IOException {
+        writeBaseRun(targetFile, "", snapId);
+    }
+    
+    /**
+     * Writes an in-memory snapshot to a file on disk, such that only the
+     * changes since the last checkpoint are written. The in-memory snapshot is
+     * merged with the newest on-disk runs selected by the compaction policy to
+     * a new run in the given run directory. The resulting snapshot consists of
+     * a manifest that lists the new run and all remaining on-disk runs, which
+     * are referenced in place. If the in-memory snapshot does not contain any
+     * writes since the latest linked snapshot, no new run is written, so that
+     * only the manifest is written. Runs that do not reside in the run
+     * directory, such as runs of snapshots written by older releases, are
+     * merged into a new run along with all other runs, as they are deleted
+     * along with their snapshots. The snapshot has to be linked via
+     * <code>linkToSnapshot()</code> afterwards.
+     * 
+     * @param targetFile
+     *            the directory to which to write the snapshot
+     * @param runFile
+     *            the run directory, which may be shared with earlier
+     *            snapshots of the tree
+     * @param snapId
+     *            the snapshot ID
+     * @throws IOException
+     *             if an I/O error occurs while writing the snapshot
+     */
+    public void materializeIncrementalSnapshot(String targetFile, String runFile, int snapId)
+        throws IOException {
         
-        DiskIndexWriter writer = new DiskIndexWriter(targetFile, maxEntriesPerBlock, compressed,
-            maxBlockFileSize);
+        pendingRuns = null;
+        pendingRunPrefix = null;
+        pendingRunDir = runFile;
+        pendingIngestedRuns = null;
+        pendingWriteCount = -1;
+        numExpiredEntries = 0;
         
-        InternalMergeIterator it = internalPrefixLookup(null, snapId, true);
+        List<DiskIndex> runs = this.runs;
+        boolean inRunDir = runDir != null && new File(runDir).getAbsoluteFile().equals(
+            new File(runFile).getAbsoluteFile());
+        
+        // ingested runs become the newest runs of the snapshot
+        List<DiskIndex> ingested;
+        long snapWriteCount;
+        synchronized (lock) {
+            if (!ingestedRuns.isEmpty()
+                && !new File(ingestedRunDir).getAbsoluteFile().equals(new File(runFile).getAbsoluteFile()))
+                throw new IOException("ingested runs do not reside in run directory '" + runFile + "'");
+            ingested = new ArrayList<DiskIndex>(ingestedRuns);
+            Long count = snapshotWriteCounts.get(snapId);
+            snapWriteCount = count == null ? -1 : count;
+        }
+        pendingIngestedRuns = ingested;
+        
+        File targetDir = new File(targetFile);
+        if (!targetDir.exists() && !targetDir.mkdirs())
+            throw new IOException("could not create directory '" + targetFile + "'");
+        
+        // if the index has not changed since the latest linked snapshot, only
+        // write a manifest that refers to all runs
+        if (snapWriteCount != -1 && snapWriteCount == linkedWriteCount && (inRunDir || runs.isEmpty())) {
+            writeManifest(targetDir, runFile, ingested, null, false, runs);
+            pendingRuns = new ArrayList<DiskIndex>(runs);
+            pendingWriteCount = snapWriteCount;
+            return;
+        }
+        
+        int numMergedRuns = inRunDir ? getNumRunsToMerge(runs) : runs.size();
+        String runPrefix = newRunPrefix(runFile);
+        pendingRunPrefix = runPrefix;
+        
+        // if all runs need to be merged, write a new base run
+        if (numMergedRuns == runs.size()) {
+            writeBaseRun(runFile, runPrefix, snapId);
+            writeManifest(targetDir, runFile, ingested, runPrefix, false,
+                Collections.<DiskIndex> emptyList());
+            pendingWriteCount = snapWriteCount;
+            return;
+        }
+        
+        // merge the in-memory snapshot and the newest runs to a new run
+        List<DiskIndex> retainedRuns = runs.subList(numMergedRuns, runs.size());
+        DiskIndexWriter writer = new DiskIndexWriter(runFile, runPrefix, maxEntriesPerBlock, compressed,
+            maxBlockFileSize, NULL_ELEMENT, bloomFilterBitsPerKey);
+        writer.setExpiryReferenceTime(clock.currentTimeMillis());
+        writer.setBlockCodec(blockCodec);
+        writer.setKeyRestartInterval(keyRestartInterval);
+        writer.setMaxBlockSize(maxBlockSize);
+        
+        // the ranges deleted in the overlay and the merged runs are recorded
+        // in the new run, as they apply to the retained runs
+        KeyRangeSet<byte[]> deletedRanges = overlay.getDeletedRanges(snapId);
+        List<InternalDiskIndexIterator> its = new ArrayList<InternalDiskIndexIterator>(numMergedRuns);
+        for (DiskIndex run : runs.subList(0, numMergedRuns)) {
+            its.add(run.internalRangeLookup(null, null, true));
+            deletedRanges = deletedRanges.union(run.getDeletedRanges());
+        }
+        writer.setDeletedRanges(deletedRanges);
+        
+        InternalMergeIterator it = new InternalMergeIterator(decodeInternalRecords(overlay.prefixLookup(null,
+            snapId, true, true)), its, overlay.getDeletedRanges(snapId), comp, NULL_ELEMENT, false, true);
         writer.writeIndex(it);
         it.free();
+        
+        numExpiredEntries = writer.getNumExpiredEntries();
+        
+        // refer to the new run and all runs that remain unchanged
+        writeManifest(targetDir, runFile, ingested, runPrefix, true, retainedRuns);
+        
+        pendingRuns = new ArrayList<DiskIndex>(retainedRuns);
+        pendingWriteCount = snapWriteCount;
     }
     
     /**
@@ -431,7 +1092,11 @@ public class LSMTree {
         final SnapshotConfig snap) throws IOException {
         
         DiskIndexWriter writer = new DiskIndexWriter(targetFile, maxEntriesPerBlock, compressed,
-            maxBlockFileSize);
+            maxBlockFileSize, bloomFilterBitsPerKey);
+        writer.setExpiryReferenceTime(clock.currentTimeMillis());
+        writer.setBlockCodec(blockCodec);
+        writer.setKeyRestartInterval(keyRestartInterval);
+        writer.setMaxBlockSize(maxBlockSize);
         writer.writeIndex(new ResultSet<Object, Object>() {
             
             private ResultSet<Object, Object>[] iterators;
@@ -450,11 +1115,11 @@ public class LSMTree {
                     for (int i = 0; i < prefixes.length; i++)
                         iterators[i] = internalPrefixLookup(prefixes[i], snapId, true);
                 } else {
-                    iterators = new ResultSet[] { prefixLookup(null, snapId, true) };
+                    iterators = new ResultSet[] { internalPrefixLookup(null, snapId, true) };
                 }
                 
                 getNextElement();
-                
+            
             }
             
             @Override
@@ -509,7 +1174,7 @@ public class LSMTree {
                         break;
                 }
             }
-            
+        
         });
     }
     
@@ -524,17 +1189,194 @@ public class LSMTree {
      *             if an I/O error occurred while reading the snapshot file
      */
     public void linkToSnapshot(String snapshotFile) throws IOException {
-        final DiskIndex oldIndex = index;
+        final List<DiskIndex> oldRuns = runs;
         synchronized (lock) {
-            totalOnDiskSize -= index == null ? 0 : index.getSize();
-            index = new DiskIndex(snapshotFile, comp, this.compressed, useMmap());
-            totalOnDiskSize += index.getSize();
-            if (oldIndex != null)
-                oldIndex.destroy();
+            
+            List<DiskIndex> newRuns;
+            
+            // if the snapshot was materialized incrementally, only open the
+            // new run (if any) and keep all unchanged runs; otherwise, open
+            // all runs
+            if (pendingRuns != null && new File(snapshotFile, MANIFEST_FILE).exists()) {
+                newRuns = new ArrayList<DiskIndex>(pendingIngestedRuns.size() + pendingRuns.size() + 1);
+                newRuns.addAll(pendingIngestedRuns);
+                ingestedRuns.removeAll(pendingIngestedRuns);
+                if (pendingRunPrefix != null)
+                    newRuns.add(new DiskIndex(pendingRunDir, pendingRunPrefix, comp, compressed, useMmap(),
+                        NULL_ELEMENT));
+                newRuns.addAll(pendingRuns);
+                runDir = pendingRunDir;
+            } else {
+                
+                newRuns = openRuns(snapshotFile);
+                
+                // ingested runs to which the snapshot refers have been opened
+                // again
+                if (pendingIngestedRuns != null) {
+                    Set<String> prefixes = new HashSet<String>();
+                    for (DiskIndex run : newRuns)
+                        prefixes.add(run.getRunPrefix());
+                    for (DiskIndex run : pendingIngestedRuns)
+                        if (prefixes.contains(run.getRunPrefix())) {
+                            ingestedRuns.remove(run);
+                            run.destroy();
+                        }
+                }
+            }
+            
+            pendingRuns = null;
+            pendingRunPrefix = null;
+            pendingIngestedRuns = null;
+            runs = newRuns;
+            snapshotDir = snapshotFile;
+            
+            linkedWriteCount = pendingWriteCount;
+            pendingWriteCount = -1;
+            snapshotWriteCounts.clear();
+            
+            for (DiskIndex run : oldRuns)
+                if (!newRuns.contains(run)) {
+                    totalOnDiskSize -= run.getSize();
+                    run.destroy();
+                }
+            for (DiskIndex run : newRuns)
+                if (!oldRuns.contains(run))
+                    totalOnDiskSize += run.getSize();
+            
             overlay.cleanup();
         }
     }
     
+    /**
+     * Writes a sequence of entries to a new run in the given directory, which
+     * can subsequently be added to the LSM tree by means of
+     * <code>addIngestedRun()</code>. Entries are streamed to disk without
+     * passing the in-memory overlay.
+     * 
+     * @param targetFile
+     *            the directory in which to write the run
+     * @param entries
+     *            the entries; keys have to be in strictly ascending order
+     *            according to the comparator of the LSM tree
+     * @throws IOException
+     *             if an I/O error occurs while writing the run
+     * @throws IllegalArgumentException
+     *             if keys are not in strictly ascending order, or if a key or
+     *             value is <code>null</code>
+     */
+    public void writeIngestedRun(String targetFile, final Iterator<Entry<byte[], byte[]>> entries)
+        throws IOException {
+        
+        DiskIndexWriter writer = new DiskIndexWriter(targetFile, "", maxEntriesPerBlock, compressed,
+            maxBlockFileSize, NULL_ELEMENT, bloomFilterBitsPerKey);
+        writer.setBlockCodec(blockCodec);
+        writer.setKeyRestartInterval(keyRestartInterval);
+        writer.setMaxBlockSize(maxBlockSize);
+        writer.writeIndex(new ResultSet<Object, Object>() {
+            
+            private byte[] prevKey;
+            
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+            
+            public Entry<Object, Object> next() {
+                
+                Entry<byte[], byte[]> next = entries.next();
+                if (next.getKey() == null || next.getValue() == null)
+                    throw new IllegalArgumentException("null keys and values cannot be ingested");
+                if (prevKey != null && comp.compare(prevKey, next.getKey()) >= 0)
+                    throw new IllegalArgumentException("keys are not in strictly ascending order");
+                prevKey = next.getKey();
+                
+                return InternalBufferUtil.cast(next);
+            }
+            
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+            
+            public void free() {
+            }
+        });
+    }
+    
+    /**
+     * Adds a run written by <code>writeIngestedRun()</code> to the LSM tree.
+     * The files of the run are moved to the given run directory, but the run
+     * neither becomes visible nor is it referred to by any checkpoint until
+     * the next incrementally materialized snapshot has been linked, in which
+     * it is the newest run. As this snapshot is written to a new directory,
+     * checkpoints that exist already remain unchanged, and the run is
+     * discarded if the snapshot is never linked. Ingested entries do not
+     * expire, even if older entries with the same keys do.
+     * 
+     * @param sourceFile
+     *            the directory containing the run
+     * @param runFile
+     *            the run directory, which has to be the run directory of the
+     *            next snapshot
+     * @throws IOException
+     *             if an I/O error occurs while moving or opening the run
+     */
+    public void addIngestedRun(String sourceFile, String runFile) throws IOException {
+        
+        synchronized (lock) {
+            
+            if (!ingestedRuns.isEmpty()
+                && !new File(ingestedRunDir).getAbsoluteFile().equals(new File(runFile).getAbsoluteFile()))
+                throw new IOException("ingested runs do not reside in run directory '" + runFile + "'");
+            
+            File dir = new File(runFile);
+            if (!dir.exists() && !dir.mkdirs())
+                throw new IOException("could not create directory '" + runFile + "'");
+            
+            // move the block index last, as it marks the run as complete
+            String runPrefix = newRunPrefix(runFile);
+            List<String> files = new ArrayList<String>(Arrays.asList(new File(sourceFile).list()));
+            files.remove("blockindex.idx");
+            files.add("blockindex.idx");
+            for (String file : files) {
+                File target = new File(dir, runPrefix + file);
+                if (!new File(sourceFile, file).renameTo(target))
+                    throw new IOException("could not rename '" + file + "' to " + target);
+            }
+            
+            DiskIndex run = new DiskIndex(runFile, runPrefix, comp, compressed, useMmap(), NULL_ELEMENT);
+            ingestedRuns.add(0, run);
+            ingestedRunDir = runFile;
+        }
+    }
+    
+    /**
+     * Returns the number of on-disk runs.
+     * 
+     * @return the number of runs
+     */
+    public int getNumRuns() {
+        return runs.size();
+    }
+    
+    /**
+     * Returns the number of expired entries that have been dropped when the
+     * latest snapshot was materialized.
+     * 
+     * @return the number of expired entries
+     */
+    public int getNumExpiredEntries() {
+        return numExpiredEntries;
+    }
+    
+    /**
+     * Returns the number of bytes occupied by the in-memory overlay, including
+     * all in-memory snapshots that have not been linked to on-disk runs yet.
+     * 
+     * @return the number of bytes
+     */
+    public long getOverlayMemoryUsage() {
+        return overlay.getMemoryUsage();
+    }
+    
     /**
      * Checks if files containing index data are memory-mapped.
      * 
@@ -553,16 +1395,41 @@ public class LSMTree {
     	return compressed;
     }
     
+    /**
+     * Replaces the clock against which the expiry times of entries in all LSM
+     * trees are checked.
+     * 
+     * @param clock
+     *            the clock
+     */
+    public static void setClock(Clock clock) {
+        LSMTree.clock = clock;
+    }
+    
+    /**
+     * Returns the clock against which expiry times are checked.
+     * 
+     * @return the clock
+     */
+    public static Clock getClock() {
+        return clock;
+    }
+    
     /**
      * Destroys the LSM tree. Frees all in-memory indices plus the on-disk tree.
      */
     public void destroy() throws IOException {
         
         synchronized (lock) {
-            if (index != null) {
-                totalOnDiskSize -= index.getSize();
-                index.destroy();
+            List<DiskIndex> oldRuns = runs;
+            runs = Collections.emptyList();
+            for (DiskIndex run : oldRuns) {
+                totalOnDiskSize -= run.getSize();
+                run.destroy();
             }
+            for (DiskIndex run : ingestedRuns)
+                run.destroy();
+            ingestedRuns.clear();
             overlay.cleanup();
         }
     }
@@ -595,15 +1462,613 @@ public class LSMTree {
         if (prefix != null && prefix.length == 0)
             prefix = null;
         
-        Iterator<Entry<byte[], byte[]>> overlayIterator = overlay.prefixLookup(prefix, snapId, true,
-            ascending);
-        InternalDiskIndexIterator diskIndexIterator = null;
-        if (index != null) {
-            byte[][] rng = comp.prefixToRange(prefix, ascending);
-            diskIndexIterator = index.internalRangeLookup(rng[0], rng[1], ascending);
+        Iterator<Entry<byte[], byte[]>> overlayIterator = decodeInternalRecords(overlay.prefixLookup(prefix,
+            snapId, true, ascending));
+        List<DiskIndex> runs = this.runs;
+        List<InternalDiskIndexIterator> diskIndexIterators = new ArrayList<InternalDiskIndexIterator>(runs
+                .size());
+        byte[][] rng = comp.prefixToRange(prefix, ascending);
+        for (DiskIndex run : runs)
+            diskIndexIterators.add(run.internalRangeLookup(rng[0], rng[1], ascending));
+        
+        return new InternalMergeIterator(overlayIterator, diskIndexIterators, overlay
+                .getDeletedRanges(snapId), comp, NULL_ELEMENT, true, ascending);
+    }
+    
+    /**
+     * Acquires references to all current on-disk runs, so as to prevent them
+     * from being closed while they are being read. Runs may be replaced
+     * concurrently by <code>linkToSnapshot()</code>; if a run has been closed
+     * already, the references are released and the current runs are acquired
+     * again.
+     * 
+     * @return the acquired runs, newest run first
+     */
+    private List<DiskIndex> acquireRuns() {
+        
+        for (;;) {
+            
+            List<DiskIndex> runs = this.runs;
+            
+            int i = 0;
+            while (i < runs.size() && runs.get(i).acquire())
+                i++;
+            
+            if (i == runs.size())
+                return runs;
+            
+            releaseRuns(runs.subList(0, i));
+        }
+    }
+    
+    /**
+     * Merges an iterator over the overlay with iterators over all on-disk
+     * runs. The merged iterator retrieves entries lazily, so that no blocks
+     * are read once the maximum number of entries has been returned. Entries
+     * of each run are skipped if they fall in a range deleted in the overlay
+     * or in any newer run.
+     * 
+     * @param overlayIt
+     *            the iterator over the overlay, including deleted entries
+     * @param deletedRanges
+     *            the ranges deleted in the overlay
+     * @param from
+     *            the first key, or <code>null</code>
+     * @param to
+     *            the last key (exclusively), or <code>null</code>
+     * @param ascending
+     *            the iteration order
+     * @param maxEntries
+     *            the maximum number of entries, or 0
+     * @param keysOnly
+     *            if <code>true</code>, values are not copied from the runs
+     * @return the merged iterator
+     */
+    private ResultSet<byte[], byte[]> rangeLookup(Iterator<Entry<byte[], byte[]>> overlayIt,
+        KeyRangeSet<byte[]> deletedRanges, byte[] from, byte[] to, boolean ascending, int maxEntries,
+        boolean keysOnly) {
+        
+        List<Iterator<Entry<byte[], byte[]>>> list = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
+        list.add(overlayIt);
+        List<DiskIndex> runs = acquireRuns();
+        for (DiskIndex run : runs) {
+            list.add(KeyRange.filter(run.rangeLookup(from, to, ascending, keysOnly), deletedRanges));
+            deletedRanges = deletedRanges.union(run.getDeletedRanges());
+        }
+        
+        return new RunMergeIterator(list, runs, comp, ascending, maxEntries);
+    }
+    
+    private Cursor openCursor(List<IndexCursor> overlayCursors, KeyRangeSet<byte[]> deletedRanges) {
+        
+        List<DiskIndex> runs = acquireRuns();
+        List<IndexCursor> cursors = new ArrayList<IndexCursor>(overlayCursors.size() + runs.size());
+        long now = clock.currentTimeMillis();
+        for (IndexCursor cursor : overlayCursors)
+            cursors.add(new RecordCursor(cursor, expiringEntries, now));
+        for (DiskIndex run : runs) {
+            cursors.add(KeyRange.filter(run.cursor(), deletedRanges, comp));
+            deletedRanges = deletedRanges.union(run.getDeletedRanges());
+        }
+        
+        return new RunCursor(cursors, runs, comp);
+    }
+    
+    private static void releaseRuns(List<DiskIndex> runs) {
+        for (DiskIndex run : runs)
+            run.release();
+    }
+    
+    /**
+     * Writes an in-memory snapshot to a new base run, which does not contain
+     * any expired entries.
+     * 
+     * @param targetFile
+     *            the directory to which to write the run
+     * @param runPrefix
+     *            the prefix of the files of the run, or an empty string if the
+     *            run is written to a new directory of its own
+     * @param snapId
+     *            the snapshot ID
+     * @throws IOException
+     *             if an I/O error occurs while writing the snapshot
+     */
+    private void writeBaseRun(String targetFile, String runPrefix, int snapId) throws IOException {
+        
+        DiskIndexWriter writer = runPrefix.length() == 0 ? new DiskIndexWriter(targetFile,
+            maxEntriesPerBlock, compressed, maxBlockFileSize, bloomFilterBitsPerKey) : new DiskIndexWriter(
+            targetFile, runPrefix, maxEntriesPerBlock, compressed, maxBlockFileSize, null,
+            bloomFilterBitsPerKey);
+        writer.setExpiryReferenceTime(clock.currentTimeMillis());
+        writer.setBlockCodec(blockCodec);
+        writer.setKeyRestartInterval(keyRestartInterval);
+        writer.setMaxBlockSize(maxBlockSize);
+        
+        InternalMergeIterator it = internalPrefixLookup(null, snapId, true);
+        writer.writeIndex(it);
+        it.free();
+        
+        numExpiredEntries = writer.getNumExpiredEntries();
+    }
+    
+    private long estimate(byte[] from, byte[] to, boolean bytes) {
+        
+        long runsInRange = 0;
+        long runsTotal = 0;
+        
+        List<DiskIndex> runs = acquireRuns();
+        try {
+            for (DiskIndex run : runs) {
+                runsInRange += bytes ? run.estimateSize(from, to) : run.estimateCount(from, to);
+                runsTotal += bytes ? run.getSize() : run.numKeys();
+            }
+        } finally {
+            releaseRuns(runs);
         }
         
-        return new InternalMergeIterator(overlayIterator, diskIndexIterator, comp, NULL_ELEMENT, ascending);
+        long overlayTotal = bytes ? overlay.getDataSize() : overlay.getNumEntries();
+        
+        // without any on-disk entries, the distribution of the overlay
+        // entries is unknown, so that all of them are counted
+        if (runsTotal == 0)
+            return overlayTotal;
+        
+        return runsInRange + Math.round((double) overlayTotal * runsInRange / runsTotal);
+    }
+    
+    /**
+     * Looks up all keys for which no result has been found in the overlay in
+     * the on-disk runs, and replaces deletion markers with <code>null</code>.
+     * 
+     * @param keys
+     *            the keys
+     * @param results
+     *            the decoded results from the overlay, which will be
+     *            completed
+     * @return the completed results
+     */
+    private byte[][] lookupRuns(final byte[][] keys, byte[][] results) {
+        
+        // sort the positions of all pending keys by key
+        Integer[] pending = new Integer[keys.length];
+        int numPending = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (results[i] == null)
+                pending[numPending++] = i;
+        pending = Arrays.copyOf(pending, numPending);
+        Arrays.sort(pending, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return comp.compare(keys[o1], keys[o2]);
+            }
+        });
+        
+        List<DiskIndex> runs = acquireRuns();
+        try {
+            
+            // look up all pending keys in the newest run first, and the keys
+            // not found there in the next older run
+            if (pending.length > 0) {
+                for (DiskIndex run : runs) {
+                    
+                    byte[][] runKeys = new byte[pending.length][];
+                    for (int i = 0; i < pending.length; i++)
+                        runKeys[i] = keys[pending[i]];
+                    byte[][] runResults = run.lookup(runKeys);
+                    
+                    // keys in ranges deleted in the run are not looked up in
+                    // older runs
+                    KeyRangeSet<byte[]> deletedRanges = run.getDeletedRanges();
+                    numPending = 0;
+                    for (int i = 0; i < pending.length; i++) {
+                        if (runResults[i] != null)
+                            results[pending[i]] = runResults[i];
+                        else if (!deletedRanges.isEmpty() && deletedRanges.contains(keys[pending[i]]))
+                            results[pending[i]] = NULL_ELEMENT;
+                        else
+                            pending[numPending++] = pending[i];
+                    }
+                    
+                    if (numPending == 0)
+                        break;
+                    pending = Arrays.copyOf(pending, numPending);
+                }
+            }
+            
+            for (int i = 0; i < results.length; i++)
+                if (results[i] == NULL_ELEMENT)
+                    results[i] = null;
+            
+            return results;
+        
+        } finally {
+            releaseRuns(runs);
+        }
+    }
+    
+    /**
+     * Completes a lookup with the value stored in the overlay. If the overlay
+     * does not contain the key, it is looked up in the on-disk runs.
+     * 
+     * @param key
+     *            the key
+     * @param stored
+     *            the value stored in the overlay, or <code>null</code>
+     * @return the value associated with the key
+     */
+    private byte[] completeLookup(byte[] key, byte[] stored) {
+        
+        byte[] result = decodeRecord(stored, clock.currentTimeMillis());
+        
+        if (result == NULL_ELEMENT)
+            return null;
+        
+        if (result != null)
+            return result;
+        
+        List<DiskIndex> runs = acquireRuns();
+        try {
+            return lookupRuns(runs, key);
+        } finally {
+            releaseRuns(runs);
+        }
+    }
+    
+    private byte[] lookupRuns(List<DiskIndex> runs, byte[] key) {
+        
+        for (DiskIndex run : runs) {
+            
+            byte[] result = run.lookup(key);
+            
+            if (result == NULL_ELEMENT)
+                return null;
+            
+            if (result != null)
+                return result;
+            
+            // keys in ranges deleted in the run are not looked up in older
+            // runs
+            if (!run.getDeletedRanges().isEmpty() && run.getDeletedRanges().contains(key))
+                return null;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Encodes a value to be stored in the overlay. Values that do not expire
+     * are stored as they are, unless they start with
+     * <code>RECORD_MARKER</code>; such values and all expiring values are
+     * stored as records, which consist of the marker, the record type, the
+     * expiry time in case of expiring records, and the value.
+     * 
+     * @param value
+     *            the value, or <code>null</code>
+     * @param expiryTime
+     *            the time at which the value expires, or 0 if it does not
+     *            expire
+     * @return the value to store in the overlay
+     */
+    private static byte[] encodeRecord(byte[] value, long expiryTime) {
+        
+        if (value == null || (expiryTime == 0 && !isRecord(value)))
+            return value;
+        
+        ByteBuffer record = ByteBuffer.allocate(getRecordHeaderSize(expiryTime != 0) + value.length);
+        record.put(RECORD_MARKER);
+        if (expiryTime == 0)
+            record.put(PLAIN_RECORD);
+        else
+            record.put(EXPIRING_RECORD).putLong(expiryTime);
+        record.put(value);
+        
+        return record.array();
+    }
+    
+    /**
+     * Decodes a value stored in the overlay.
+     * 
+     * @param stored
+     *            the stored value, or <code>null</code>
+     * @param now
+     *            the time against which the expiry time of the value is
+     *            checked
+     * @return the value, or <code>NULL_ELEMENT</code> if it has been deleted
+     *         or has expired
+     */
+    private static byte[] decodeRecord(byte[] stored, long now) {
+        
+        if (!isRecord(stored))
+            return stored;
+        
+        long expiryTime = getRecordExpiryTime(stored);
+        if (expiryTime != 0 && expiryTime <= now)
+            return NULL_ELEMENT;
+        
+        return Arrays.copyOfRange(stored, getRecordHeaderSize(expiryTime != 0), stored.length);
+    }
+    
+    private static boolean isRecord(byte[] stored) {
+        return stored != null && stored.length > 0 && stored[0] == RECORD_MARKER;
+    }
+    
+    private static long getRecordExpiryTime(byte[] record) {
+        return record[1] == EXPIRING_RECORD ? ByteBuffer.wrap(record).getLong(2) : 0;
+    }
+    
+    private static int getRecordHeaderSize(boolean expiring) {
+        return expiring ? 2 + Long.SIZE / 8 : 2;
+    }
+    
+    /**
+     * Decodes the values returned by an iterator over the overlay for a range
+     * lookup. Expired entries are returned as deleted entries.
+     * 
+     * @param it
+     *            the iterator over the overlay, including deleted entries
+     * @param keysOnly
+     *            if <code>true</code>, entries that have been neither deleted
+     *            nor expired are returned with <code>null</code> values
+     * @return the decoding iterator
+     */
+    private static ResultSet<byte[], byte[]> decodeRecords(Iterator<Entry<byte[], byte[]>> it,
+        boolean keysOnly) {
+        return new RecordIterator(it, keysOnly, clock.currentTimeMillis(), false);
+    }
+    
+    /**
+     * Decodes the values returned by an iterator over the overlay for writing
+     * a run. Expiring entries are returned as <code>ExpiringEntry</code>
+     * objects, regardless of whether they have expired, so that the index
+     * writer can record their expiry times or drop them.
+     * 
+     * @param it
+     *            the iterator over the overlay
+     * @return the decoding iterator
+     */
+    private static ResultSet<byte[], byte[]> decodeInternalRecords(Iterator<Entry<byte[], byte[]>> it) {
+        return new RecordIterator(it, false, 0, true);
+    }
+    
+    /**
+     * Determines how many of the newest runs have to be merged with the next
+     * run to be written. Runs are merged if the maximum number of runs would
+     * be exceeded otherwise, or if a run is not significantly larger than the
+     * newer runs to be merged.
+     * 
+     * @param runs
+     *            the current runs, newest run first
+     * @return the number of runs to merge
+     */
+    private int getNumRunsToMerge(List<DiskIndex> runs) {
+        
+        int numRuns = Math.max(0, runs.size() + 1 - maxRuns);
+        
+        long mergedSize = 0;
+        for (int i = 0; i < numRuns; i++)
+            mergedSize += runs.get(i).getSize();
+        
+        while (numRuns > 0 && numRuns < runs.size()
+            && runs.get(numRuns).getSize() <= RUN_SIZE_RATIO * mergedSize) {
+            mergedSize += runs.get(numRuns).getSize();
+            numRuns++;
+        }
+        
+        return numRuns;
+    }
+    
+    /**
+     * Opens all runs of the checkpoint in the given directory. If the
+     * checkpoint has a manifest, the runs listed in the manifest are opened
+     * from the run directory; otherwise, all runs contained in the checkpoint
+     * directory are opened. The run directory of the tree is set accordingly.
+     * 
+     * @param dir
+     *            the checkpoint directory
+     * @return a list of runs, newest run first
+     * @throws IOException
+     *             if a run cannot be opened
+     */
+    private List<DiskIndex> openRuns(String dir) throws IOException {
+        
+        Manifest manifest = Manifest.read(dir);
+        if (manifest != null) {
+            
+            List<DiskIndex> result = new ArrayList<DiskIndex>(manifest.runPrefixes.size());
+            for (int i = 0; i < manifest.runPrefixes.size(); i++)
+                result.add(new DiskIndex(manifest.runDir, manifest.runPrefixes.get(i), comp, compressed,
+                    useMmap(), manifest.tagged.get(i) ? NULL_ELEMENT : null));
+            
+            runDir = manifest.runDir;
+            nextRunNumber = getNextRunNumber(manifest.runDir);
+            
+            return result;
+        }
+        
+        String[] files = new File(dir).list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return RUN_PATTERN.matcher(name).matches();
+            }
+        });
+        if (files == null)
+            throw new IOException("There is no index at " + dir);
+        
+        List<Integer> runNumbers = new ArrayList<Integer>(files.length);
+        boolean hasBaseRun = false;
+        for (String file : files) {
+            Matcher m = RUN_PATTERN.matcher(file);
+            m.matches();
+            if (m.group(2) == null)
+                hasBaseRun = true;
+            else
+                runNumbers.add(Integer.valueOf(m.group(2)));
+        }
+        Collections.sort(runNumbers, Collections.reverseOrder());
+        
+        List<DiskIndex> result = new ArrayList<DiskIndex>(files.length);
+        for (int runNumber : runNumbers)
+            result.add(new DiskIndex(dir, "run" + runNumber + "_", comp, compressed, useMmap(), NULL_ELEMENT));
+        if (hasBaseRun)
+            result.add(new DiskIndex(dir, comp, compressed, useMmap()));
+        
+        runDir = dir;
+        nextRunNumber = runNumbers.isEmpty() ? 1 : runNumbers.get(0) + 1;
+        
+        return result;
+    }
+    
+    /**
+     * Allocates the file prefix of a new run in the given run directory. The
+     * prefix differs from those of all files in the directory, including
+     * files of runs that have not been completed.
+     * 
+     * @param runFile
+     *            the run directory
+     * @return the prefix
+     */
+    private String newRunPrefix(String runFile) {
+        nextRunNumber = Math.max(nextRunNumber, getNextRunNumber(runFile));
+        return "run" + nextRunNumber++ + "_";
+    }
+    
+    private static int getNextRunNumber(String runFile) {
+        
+        int next = 1;
+        String[] files = new File(runFile).list();
+        if (files != null)
+            for (String file : files) {
+                Matcher m = RUN_FILE_PATTERN.matcher(file);
+                if (m.matches())
+                    next = Math.max(next, Integer.parseInt(m.group(1)) + 1);
+            }
+        
+        return next;
+    }
+    
+    /**
+     * Writes the manifest of a checkpoint.
+     * 
+     * @param targetDir
+     *            the checkpoint directory
+     * @param runFile
+     *            the run directory
+     * @param ingestedRuns
+     *            the ingested runs that are newer than the new run, newest
+     *            run first
+     * @param runPrefix
+     *            the prefix of the new run of the checkpoint, or
+     *            <code>null</code> if no new run has been written
+     * @param runTagged
+     *            specifies whether the values of the new run are tagged
+     * @param retainedRuns
+     *            the runs that are older than the new run, newest run first
+     * @throws IOException
+     *             if the manifest cannot be written
+     */
+    private static void writeManifest(File targetDir, String runFile, List<DiskIndex> ingestedRuns,
+        String runPrefix, boolean runTagged, List<DiskIndex> retainedRuns) throws IOException {
+        
+        int numRuns = ingestedRuns.size() + retainedRuns.size() + 1;
+        List<String> runPrefixes = new ArrayList<String>(numRuns);
+        List<Boolean> tagged = new ArrayList<Boolean>(numRuns);
+        for (DiskIndex run : ingestedRuns) {
+            runPrefixes.add(run.getRunPrefix());
+            tagged.add(run.isTagged());
+        }
+        if (runPrefix != null) {
+            runPrefixes.add(runPrefix);
+            tagged.add(runTagged);
+        }
+        for (DiskIndex run : retainedRuns) {
+            runPrefixes.add(run.getRunPrefix());
+            tagged.add(run.isTagged());
+        }
+        
+        new Manifest(runFile, runPrefixes, tagged).write(targetDir);
+    }
+    
+    /**
+     * Returns the total size of the runs of the checkpoint in the given
+     * directory.
+     * 
+     * @param dir
+     *            the checkpoint directory
+     * @return the size in bytes
+     * @throws IOException
+     *             if the manifest of the checkpoint cannot be read
+     */
+    private static long getTotalSize(String dir) throws IOException {
+        
+        Manifest manifest = Manifest.read(dir);
+        if (manifest == null)
+            return getTotalDirSize(new File(dir));
+        
+        long size = 0;
+        for (File file : manifest.getFiles())
+            size += file.length();
+        
+        return size;
+    }
+    
+    /**
+     * Returns the files of all runs that the checkpoint in the given directory
+     * refers to in its run directory.
+     * 
+     * @param snapshotFile
+     *            the checkpoint directory
+     * @return the run files, or an empty list if the checkpoint contains the
+     *         files of its runs itself
+     * @throws IOException
+     *             if the manifest of the checkpoint cannot be read
+     */
+    public static List<File> getRunFiles(String snapshotFile) throws IOException {
+        Manifest manifest = Manifest.read(snapshotFile);
+        return manifest == null ? Collections.<File> emptyList() : manifest.getFiles();
+    }
+    
+    /**
+     * Deletes the files of all runs in a run directory that are neither
+     * referred to by the manifest of one of the given checkpoints, nor part
+     * of the tree, of a snapshot that is being materialized, or of an
+     * ingested run that has not been linked yet.
+     * 
+     * @param runFile
+     *            the run directory
+     * @param snapshotFiles
+     *            the directories of all checkpoints that may refer to runs in
+     *            the run directory
+     * @throws IOException
+     *             if a manifest cannot be read
+     */
+    public void deleteUnreferencedRuns(String runFile, List<String> snapshotFiles) throws IOException {
+        
+        synchronized (lock) {
+            
+            File dir = new File(runFile).getAbsoluteFile();
+            Set<String> referenced = new HashSet<String>();
+            for (String snapshotFile : snapshotFiles) {
+                Manifest manifest = Manifest.read(snapshotFile);
+                if (manifest != null && new File(manifest.runDir).getAbsoluteFile().equals(dir))
+                    referenced.addAll(manifest.runPrefixes);
+            }
+            if (runDir != null && new File(runDir).getAbsoluteFile().equals(dir))
+                for (DiskIndex run : runs)
+                    referenced.add(run.getRunPrefix());
+            if (pendingRunPrefix != null)
+                referenced.add(pendingRunPrefix);
+            if (ingestedRunDir != null && new File(ingestedRunDir).getAbsoluteFile().equals(dir))
+                for (DiskIndex run : ingestedRuns)
+                    referenced.add(run.getRunPrefix());
+            
+            String[] files = dir.list();
+            if (files == null)
+                return;
+            
+            for (String file : files) {
+                Matcher m = RUN_FILE_PATTERN.matcher(file);
+                if (m.matches() && !referenced.contains("run" + m.group(1) + "_"))
+                    new File(dir, file).delete();
+            }
+        }
     }
     
     private static long getTotalDirSize(File dir) {
@@ -621,4 +2086,329 @@ public class LSMTree {
         return size;
     }
     
+    /**
+     * The manifest of a checkpoint, which lists the runs of the checkpoint and
+     * names the run directory in which they reside. The run directory is
+     * recorded relative to the parent directory of the checkpoint if both
+     * share the same parent, so that checkpoints may be renamed and moved
+     * along with their run directories.
+     */
+    private static class Manifest {
+        
+        /**
+         * the run directory
+         */
+        final String        runDir;
+        
+        /**
+         * the file prefixes of all runs, newest run first
+         */
+        final List<String>  runPrefixes;
+        
+        /**
+         * specifies for each run whether its values are tagged
+         */
+        final List<Boolean> tagged;
+        
+        Manifest(String runDir, List<String> runPrefixes, List<Boolean> tagged) {
+            this.runDir = runDir;
+            this.runPrefixes = runPrefixes;
+            this.tagged = tagged;
+        }
+        
+        /**
+         * Reads the manifest of a checkpoint.
+         * 
+         * @param snapshotFile
+         *            the checkpoint directory
+         * @return the manifest, or <code>null</code> if the checkpoint does
+         *         not have a manifest
+         * @throws IOException
+         *             if the manifest cannot be read
+         */
+        static Manifest read(String snapshotFile) throws IOException {
+            
+            File file = new File(snapshotFile, MANIFEST_FILE);
+            if (!file.exists())
+                return null;
+            
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                
+                File runDir = new File(in.readUTF());
+                if (!runDir.isAbsolute())
+                    runDir = new File(new File(snapshotFile).getAbsoluteFile().getParentFile(), runDir
+                            .getPath());
+                
+                int numRuns = in.readInt();
+                List<String> runPrefixes = new ArrayList<String>(numRuns);
+                List<Boolean> tagged = new ArrayList<Boolean>(numRuns);
+                for (int i = 0; i < numRuns; i++) {
+                    runPrefixes.add(in.readUTF());
+                    tagged.add(in.readBoolean());
+                }
+                
+                return new Manifest(runDir.getPath(), runPrefixes, tagged);
+            
+            } finally {
+                in.close();
+            }
+        }
+        
+        /**
+         * Writes the manifest to a checkpoint directory. An existing manifest
+         * is replaced atomically.
+         * 
+         * @param snapshotDir
+         *            the checkpoint directory
+         * @throws IOException
+         *             if the manifest cannot be written
+         */
+        void write(File snapshotDir) throws IOException {
+            
+            File dir = new File(runDir).getAbsoluteFile();
+            String name = dir.getParentFile().equals(snapshotDir.getAbsoluteFile().getParentFile()) ? dir
+                    .getName() : dir.getPath();
+            
+            File tmpFile = new File(snapshotDir, MANIFEST_FILE + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+            try {
+                out.writeUTF(name);
+                out.writeInt(runPrefixes.size());
+                for (int i = 0; i < runPrefixes.size(); i++) {
+                    out.writeUTF(runPrefixes.get(i));
+                    out.writeBoolean(tagged.get(i));
+                }
+            } finally {
+                out.close();
+            }
+            
+            File file = new File(snapshotDir, MANIFEST_FILE);
+            if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file)))
+                throw new IOException("could not rename '" + tmpFile + "' to " + file);
+        }
+        
+        /**
+         * Returns the files of all runs listed in the manifest.
+         * 
+         * @return the files
+         */
+        List<File> getFiles() {
+            
+            List<File> result = new ArrayList<File>();
+            String[] files = new File(runDir).list();
+            if (files == null)
+                return result;
+            
+            for (String file : files) {
+                Matcher m = RUN_FILE_PATTERN.matcher(file);
+                if (m.matches() && runPrefixes.contains("run" + m.group(1) + "_"))
+                    result.add(new File(runDir, file));
+            }
+            
+            return result;
+        }
+    
+    }
+    
+    /**
+     * An iterator that decodes the values returned by an iterator over the
+     * overlay.
+     */
+    private static class RecordIterator implements ResultSet<byte[], byte[]> {
+        
+        private final Iterator<Entry<byte[], byte[]>> it;
+        
+        private final boolean                         keysOnly;
+        
+        private final long                            now;
+        
+        private final boolean                         internal;
+        
+        public RecordIterator(Iterator<Entry<byte[], byte[]>> it, boolean keysOnly, long now,
+            boolean internal) {
+            this.it = it;
+            this.keysOnly = keysOnly;
+            this.now = now;
+            this.internal = internal;
+        }
+        
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+        
+        public Entry<byte[], byte[]> next() {
+            
+            Entry<byte[], byte[]> entry = it.next();
+            byte[] stored = entry.getValue();
+            
+            if (!isRecord(stored) && (!keysOnly || stored == NULL_ELEMENT))
+                return entry;
+            
+            byte[] value;
+            long expiryTime = 0;
+            if (internal) {
+                expiryTime = getRecordExpiryTime(stored);
+                value = Arrays.copyOfRange(stored, getRecordHeaderSize(expiryTime != 0), stored.length);
+            } else {
+                value = decodeRecord(stored, now);
+                if (keysOnly && value != NULL_ELEMENT)
+                    value = null;
+            }
+            
+            return new ExpiringEntry<byte[], byte[]>(entry.getKey(), value, expiryTime);
+        }
+        
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        public void free() {
+            if (it instanceof ResultSet<?, ?>)
+                ((ResultSet<?, ?>) it).free();
+        }
+    
+    }
+    
+    /**
+     * A cursor that decodes the values returned by a cursor over the overlay.
+     * Expired entries are marked as deleted.
+     */
+    private static class RecordCursor extends IndexCursor {
+        
+        private final IndexCursor cursor;
+        
+        /**
+         * indicates whether the cursor may encounter expiring entries
+         */
+        private final boolean     expiring;
+        
+        private final long        now;
+        
+        public RecordCursor(IndexCursor cursor, boolean expiring, long now) {
+            this.cursor = cursor;
+            this.expiring = expiring;
+            this.now = now;
+        }
+        
+        public boolean seek(byte[] key) {
+            return cursor.seek(key);
+        }
+        
+        public boolean seekForPrev(byte[] key) {
+            return cursor.seekForPrev(key);
+        }
+        
+        public boolean next() {
+            return cursor.next();
+        }
+        
+        public boolean prev() {
+            return cursor.prev();
+        }
+        
+        public boolean isValid() {
+            return cursor.isValid();
+        }
+        
+        public ByteBuffer key() {
+            return cursor.key();
+        }
+        
+        public ByteBuffer value() {
+            
+            ByteBuffer value = cursor.value();
+            int pos = value.position();
+            if (value.remaining() > 0 && value.get(pos) == RECORD_MARKER)
+                value.position(pos + getRecordHeaderSize(value.get(pos + 1) == EXPIRING_RECORD));
+            
+            return value;
+        }
+        
+        public boolean isDeleted() {
+            
+            if (cursor.isDeleted())
+                return true;
+            
+            if (!expiring)
+                return false;
+            
+            ByteBuffer value = cursor.value();
+            int pos = value.position();
+            if (value.remaining() == 0 || value.get(pos) != RECORD_MARKER
+                || value.get(pos + 1) != EXPIRING_RECORD)
+                return false;
+            
+            return value.getLong(pos + 2) <= now;
+        }
+        
+        public void free() {
+            cursor.free();
+        }
+    
+    }
+    
+    /**
+     * A merge iterator over an overlay and a set of acquired on-disk runs,
+     * which releases the runs when being freed or exhausted.
+     */
+    private static class RunMergeIterator extends OverlayMergeIterator<byte[], byte[]> {
+        
+        private final List<DiskIndex> runs;
+        
+        private final AtomicBoolean   freed;
+        
+        public RunMergeIterator(List<Iterator<Entry<byte[], byte[]>>> itList, List<DiskIndex> runs,
+            ByteRangeComparator comp, boolean ascending, int maxEntries) {
+            super(itList, comp, NULL_ELEMENT, ascending, maxEntries);
+            this.runs = runs;
+            this.freed = new AtomicBoolean();
+        }
+        
+        public boolean hasNext() {
+            
+            boolean hasNext = super.hasNext();
+            if (!hasNext)
+                release();
+            
+            return hasNext;
+        }
+        
+        public void free() {
+            super.free();
+            release();
+        }
+        
+        private void release() {
+            if (freed.compareAndSet(false, true))
+                releaseRuns(runs);
+        }
+    
+    }
+    
+    /**
+     * A merge cursor over an overlay and a set of acquired on-disk runs, which
+     * releases the runs when being freed.
+     */
+    private static class RunCursor extends MergeCursor {
+        
+        private final List<DiskIndex> runs;
+        
+        private final AtomicBoolean   freed;
+        
+        public RunCursor(List<IndexCursor> cursors, List<DiskIndex> runs, ByteRangeComparator comp) {
+            super(cursors, comp);
+            this.runs = runs;
+            this.freed = new AtomicBoolean();
+        }
+        
+        public void free() {
+            super.free();
+            if (freed.compareAndSet(false, true))
+                releaseRuns(runs);
+        }
+    
+    }
+    
 }
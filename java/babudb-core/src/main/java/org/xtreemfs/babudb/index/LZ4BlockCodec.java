@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure-Java block codec that produces the LZ4 block format. Encoding is
+ * based on a greedy search for matches of at least four bytes by means of a
+ * hash table, which trades compression ratio for speed; decoding merely copies
+ * literals and previous output, and is thus considerably faster than Deflate.
+ * <p>
+ * An encoded block consists of sequences, each of which comprises a token
+ * holding the lengths of its literals and its match, any further bytes of
+ * these lengths, the literals and the offset of the match in the decoded data.
+ * In compliance with the format, the last five bytes are always literals, and
+ * no match starts within the last twelve bytes.
+ * </p>
+ */
+public class LZ4BlockCodec extends BlockCodec {
+    
+    private static final int MIN_MATCH     = 4;
+    
+    private static final int LAST_LITERALS = 5;
+    
+    private static final int MF_LIMIT      = 12;
+    
+    private static final int MAX_DISTANCE  = 65535;
+    
+    private static final int HASH_LOG      = 12;
+    
+    public byte getId() {
+        return LZ4;
+    }
+    
+    public String getName() {
+        return "lz4";
+    }
+    
+    public int encode(byte[] src, int srcLength, byte[] dst) {
+        
+        // positions of the most recent occurrences of four-byte sequences
+        int[] table = new int[1 << HASH_LOG];
+        Arrays.fill(table, -1);
+        
+        int matchLimit = srcLength - LAST_LITERALS;
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+        
+        while (ip < srcLength - MF_LIMIT) {
+            
+            int sequence = readInt(src, ip);
+            int h = hash(sequence);
+            int ref = table[h];
+            table[h] = ip;
+            
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength])
+                matchLength++;
+            
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+            if (op < 0)
+                return -1;
+            
+            ip += matchLength;
+            anchor = ip;
+        }
+        
+        // the remaining bytes are written as the literals of a last sequence
+        // without a match
+        return writeSequence(src, anchor, srcLength - anchor, 0, 0, dst, op);
+    }
+    
+    public void decode(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength)
+        throws IOException {
+        
+        int ip = srcOffset;
+        int end = srcOffset + srcLength;
+        int op = dstOffset;
+        
+        try {
+            
+            for (;;) {
+                
+                int token = src[ip++] & 0xFF;
+                
+                // copy the literals
+                int literalLength = token >>> 4;
+                if (literalLength == 15)
+                    for (int b = 255; b == 255; literalLength += b)
+                        b = src[ip++] & 0xFF;
+                
+                System.arraycopy(src, ip, dst, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                
+                // the last sequence does not have a match
+                if (ip >= end)
+                    break;
+                
+                // copy the match, which may overlap with its own output
+                int distance = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+                int ref = op - distance;
+                if (distance == 0 || ref < dstOffset)
+                    throw new IOException("corrupt block: invalid match offset " + distance);
+                
+                int matchLength = token & 0x0F;
+                if (matchLength == 15)
+                    for (int b = 255; b == 255; matchLength += b)
+                        b = src[ip++] & 0xFF;
+                matchLength += MIN_MATCH;
+                
+                if (distance >= matchLength)
+                    System.arraycopy(dst, ref, dst, op, matchLength);
+                else
+                    for (int i = 0; i < matchLength; i++)
+                        dst[op + i] = dst[ref + i];
+                op += matchLength;
+            }
+        
+        } catch (IndexOutOfBoundsException exc) {
+            throw new IOException("corrupt block: " + exc);
+        }
+        
+        if (op != dstOffset + dstLength)
+            throw new IOException("corrupt block: expected " + dstLength + " bytes, decoded "
+                + (op - dstOffset));
+    }
+    
+    /**
+     * Writes a sequence.
+     * 
+     * @return the offset following the sequence, or -1 if the sequence does
+     *         not fit into <code>dst</code>
+     */
+    private static int writeSequence(byte[] src, int literalOffset, int literalLength, int distance,
+        int matchLength, byte[] dst, int op) {
+        
+        int matchRemainder = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        if (op + 1 + literalLength / 255 + 1 + literalLength + 2 + matchRemainder / 255 + 1 > dst.length)
+            return -1;
+        
+        int tokenOffset = op++;
+        int token = Math.min(literalLength, 15) << 4;
+        
+        op = writeLength(literalLength, dst, op);
+        System.arraycopy(src, literalOffset, dst, op, literalLength);
+        op += literalLength;
+        
+        if (matchLength != 0) {
+            dst[op++] = (byte) distance;
+            dst[op++] = (byte) (distance >>> 8);
+            token |= Math.min(matchRemainder, 15);
+            op = writeLength(matchRemainder, dst, op);
+        }
+        
+        dst[tokenOffset] = (byte) token;
+        return op;
+    }
+    
+    /**
+     * Writes the bytes following the token that extend a length of 15 or
+     * more.
+     */
+    private static int writeLength(int length, byte[] dst, int op) {
+        
+        if (length < 15)
+            return op;
+        
+        for (length -= 15; length >= 255; length -= 255)
+            dst[op++] = (byte) 255;
+        dst[op++] = (byte) length;
+        
+        return op;
+    }
+    
+    private static int readInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xFF) | (buf[offset + 1] & 0xFF) << 8 | (buf[offset + 2] & 0xFF) << 16
+            | (buf[offset + 3] & 0xFF) << 24;
+    }
+    
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+    
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.xtreemfs.babudb.api.database.Cursor;
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+
+/**
+ * A cursor that merges the entries of multiple cursors, the cursor over the
+ * newest data first. If a key is contained in multiple cursors, the entry of
+ * the newest cursor shadows all others; if it marks the key as deleted, the
+ * key is skipped.
+ * 
+ * <p>
+ * The underlying cursors are positioned at or after (or, when moving
+ * backwards, at or before) the current entry. Keys of different cursors are
+ * compared by copying one of them to an array, which is reused for keys of
+ * equal length. If only a single cursor has entries left, no keys are copied.
+ * </p>
+ */
+public class MergeCursor implements Cursor {
+    
+    private final IndexCursor[]       cursors;
+    
+    private final ByteRangeComparator comp;
+    
+    /**
+     * the copies of the keys the cursors are positioned at
+     */
+    private final byte[][]            keys;
+    
+    /**
+     * indicates for each cursor whether its key has been copied since it was
+     * last moved
+     */
+    private final boolean[]           copied;
+    
+    /**
+     * the index of the cursor positioned at the current entry, or -1 if the
+     * merge cursor is not positioned
+     */
+    private int                       current;
+    
+    private boolean                   forward;
+    
+    /**
+     * Creates a new merge cursor.
+     * 
+     * @param cursors
+     *            the cursors to merge, newest cursor first
+     * @param comp
+     *            the comparator for keys
+     */
+    public MergeCursor(List<IndexCursor> cursors, ByteRangeComparator comp) {
+        this.cursors = cursors.toArray(new IndexCursor[cursors.size()]);
+        this.comp = comp;
+        this.keys = new byte[this.cursors.length][];
+        this.copied = new boolean[this.cursors.length];
+        this.current = -1;
+    }
+    
+    public boolean seek(byte[] key) {
+        
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i].seek(key);
+            copied[i] = false;
+        }
+        
+        forward = true;
+        return findEntry();
+    }
+    
+    public boolean seekForPrev(byte[] key) {
+        
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i].seekForPrev(key);
+            copied[i] = false;
+        }
+        
+        forward = false;
+        return findEntry();
+    }
+    
+    public boolean next() {
+        
+        checkValid();
+        
+        byte[] key = getKey(current);
+        
+        // when changing the direction, position all other cursors at or after
+        // the current key
+        if (!forward) {
+            for (int i = 0; i < cursors.length; i++)
+                if (i != current) {
+                    cursors[i].seek(key);
+                    copied[i] = false;
+                }
+            forward = true;
+        }
+        
+        skip(key);
+        return findEntry();
+    }
+    
+    public boolean prev() {
+        
+        checkValid();
+        
+        byte[] key = getKey(current);
+        
+        // when changing the direction, position all other cursors at or before
+        // the current key
+        if (forward) {
+            for (int i = 0; i < cursors.length; i++)
+                if (i != current) {
+                    cursors[i].seekForPrev(key);
+                    copied[i] = false;
+                }
+            forward = false;
+        }
+        
+        skip(key);
+        return findEntry();
+    }
+    
+    public boolean isValid() {
+        return current != -1;
+    }
+    
+    public ByteBuffer key() {
+        checkValid();
+        return cursors[current].key();
+    }
+    
+    public ByteBuffer value() {
+        checkValid();
+        return cursors[current].value();
+    }
+    
+    public void free() {
+        
+        for (IndexCursor cursor : cursors)
+            cursor.free();
+        
+        current = -1;
+    }
+    
+    /**
+     * Checks whether the entry of the given cursor is part of the merged
+     * entries. Subclasses may hide further entries.
+     * 
+     * @param cursor
+     *            the cursor, which is positioned at the newest entry with its
+     *            key
+     * @return <code>true</code>, if the entry is visible, <code>false</code>,
+     *         otherwise
+     */
+    protected boolean isVisible(IndexCursor cursor) {
+        return !cursor.isDeleted();
+    }
+    
+    /**
+     * Returns a copy of the key of the entry that is currently examined, which
+     * remains valid until the cursor is moved.
+     * 
+     * @return the key
+     */
+    protected byte[] getCurrentKey() {
+        return getKey(current);
+    }
+    
+    /**
+     * Determines the cursor with the smallest (or, when moving backwards,
+     * largest) key and positions the merge cursor at its entry, skipping all
+     * keys whose newest entry is not visible.
+     */
+    private boolean findEntry() {
+        
+        for (;;) {
+            
+            current = -1;
+            for (int i = 0; i < cursors.length; i++) {
+                
+                if (!cursors[i].isValid())
+                    continue;
+                
+                if (current == -1) {
+                    current = i;
+                    continue;
+                }
+                
+                // in case of equal keys, the newer cursor takes precedence
+                int result = IndexCursor.compare(comp, cursors[i].key(), getKey(current));
+                if (forward ? result < 0 : result > 0)
+                    current = i;
+            }
+            
+            if (current == -1 || isVisible(cursors[current]))
+                return current != -1;
+            
+            skip(getKey(current));
+        }
+    }
+    
+    /**
+     * Moves all cursors that are positioned at the given key in the current
+     * direction.
+     */
+    private void skip(byte[] key) {
+        
+        for (int i = 0; i < cursors.length; i++)
+            if (cursors[i].isValid() && IndexCursor.compare(comp, cursors[i].key(), key) == 0) {
+                
+                if (forward)
+                    cursors[i].next();
+                else
+                    cursors[i].prev();
+                
+                copied[i] = false;
+            }
+    }
+    
+    private byte[] getKey(int i) {
+        
+        if (!copied[i]) {
+            keys[i] = IndexCursor.copy(cursors[i].key(), keys[i]);
+            copied[i] = true;
+        }
+        
+        return keys[i];
+    }
+    
+    private void checkValid() {
+        if (current == -1)
+            throw new NoSuchElementException();
+    }
+    
+}
@@ -20,7 +20,16 @@ import org.xtreemfs.babudb.api.database.ResultSet;
  * An iterator that merges a list of overlay trees. If a key occurs in multiple
  * trees, the value associated with the key in the first tree has the highest
  * priority, the one in the second tree the second highest priority, and so on.
- * The iterator will never return more than one value for each key.
+ * The iterator will never return more than one value for each key. <br/>
+ * 
+ * The iterators to merge are arranged in a binary heap, ordered by their next
+ * keys and, for equal keys, by their positions in the list. Thus, retrieving
+ * the next element takes O(log k) key comparisons for k trees. <br/>
+ * 
+ * Elements are retrieved lazily. The iterator from which the last element was
+ * taken is only advanced when the next element is requested, so that no
+ * further elements are retrieved from the underlying iterators once the
+ * maximum number of elements has been returned.
  * 
  * @author stender
  * 
@@ -36,6 +45,23 @@ public class OverlayMergeIterator<K, V> implements ResultSet<K, V> {
      */
     private Entry<K, V>                 nextElement;
     
+    /**
+     * indicates whether <code>nextElement</code> has been determined
+     */
+    private boolean                     fetched;
+    
+    /**
+     * the last element taken from the top of the heap, whose iterator has not
+     * been advanced yet
+     */
+    private Entry<K, V>                 lastElement;
+    
+    /**
+     * the number of elements that may still be returned, or -1 if the number
+     * of elements is unlimited
+     */
+    private int                         remaining;
+    
     /**
      * a list of potentially next elements
      */
@@ -46,6 +72,17 @@ public class OverlayMergeIterator<K, V> implements ResultSet<K, V> {
      */
     private List<Iterator<Entry<K, V>>> itList;
     
+    /**
+     * a binary heap containing the indices of all iterators that have more
+     * elements, ordered by their elements in <code>nextElements</code>
+     */
+    private int[]                       heap;
+    
+    /**
+     * the number of iterators in the heap
+     */
+    private int                         heapSize;
+    
     private Comparator<K>               comp;
     
     private V                           nullValue;
@@ -54,33 +91,68 @@ public class OverlayMergeIterator<K, V> implements ResultSet<K, V> {
     
     public OverlayMergeIterator(List<Iterator<Entry<K, V>>> itList, Comparator<K> comp, V nullValue,
         boolean ascending) {
+        this(itList, comp, nullValue, ascending, 0);
+    }
+    
+    /**
+     * Creates an iterator that returns at most the given number of elements.
+     * 
+     * @param itList
+     *            the iterators to merge, highest priority first
+     * @param comp
+     *            the key comparator
+     * @param nullValue
+     *            the value marking deleted entries, which are skipped; if
+     *            <code>null</code>, no entries are skipped
+     * @param ascending
+     *            the iteration order of all iterators
+     * @param maxEntries
+     *            the maximum number of elements to return, or 0 if the number
+     *            of elements is unlimited
+     */
+    public OverlayMergeIterator(List<Iterator<Entry<K, V>>> itList, Comparator<K> comp, V nullValue,
+        boolean ascending, int maxEntries) {
         
         this.itList = itList;
         this.comp = comp;
         this.nullValue = nullValue;
         this.ascending = ascending;
+        this.remaining = maxEntries > 0 ? maxEntries : -1;
         
         nextElements = new Entry[itList.size()];
-        for (int i = 0; i < nextElements.length; i++)
+        heap = new int[itList.size()];
+        for (int i = 0; i < nextElements.length; i++) {
             nextElements[i] = itList.get(i).hasNext() ? itList.get(i).next() : null;
+            if (nextElements[i] != null)
+                heap[heapSize++] = i;
+        }
         
-        nextElement = getNextElement();
+        for (int i = heapSize / 2 - 1; i >= 0; i--)
+            siftDown(i);
     }
     
     @Override
     public boolean hasNext() {
+        
+        if (!fetched) {
+            nextElement = remaining == 0 ? null : getNextElement();
+            fetched = true;
+        }
+        
         return nextElement != null;
     }
     
     @Override
     public Entry<K, V> next() {
         
-        if (nextElement == null)
+        if (!hasNext())
             throw new NoSuchElementException();
         
-        Entry<K, V> element = nextElement;
-        nextElement = getNextElement();
-        return element;
+        if (remaining > 0)
+            remaining--;
+        
+        fetched = false;
+        return nextElement;
     }
     
     @Override
@@ -96,44 +168,105 @@ public class OverlayMergeIterator<K, V> implements ResultSet<K, V> {
         for (Iterator<Entry<K, V>> it : itList)
             if (it instanceof ResultSet)
                 ((ResultSet) it).free();
-        
+    
+    }
+    
+    /**
+     * Checks whether an element is returned by the iterator. Subclasses may
+     * hide further elements.
+     * 
+     * @param entry
+     *            the element with the highest priority for its key
+     * @return <code>true</code>, if the element is returned,
+     *         <code>false</code>, otherwise
+     */
+    protected boolean isVisible(Entry<K, V> entry) {
+        return nullValue == null || entry.getValue() != nullValue;
     }
     
     private Entry<K, V> getNextElement() {
         
-        // find the smallest element in the 'rightmost' tree
+        if (lastElement != null) {
+            skip(lastElement.getKey());
+            lastElement = null;
+        }
+        
+        // take the smallest element from the 'leftmost' tree
         for (;;) {
             
-            int smallest = 0;
-            for (int i = 1; i < nextElements.length; i++) {
-                
-                if (nextElements[i] == null)
-                    continue;
-                
-                // if a smaller element was found, next element is the
-                // smallest
-                if (nextElements[smallest] == null
-                    || (ascending && comp.compare(nextElements[i].getKey(), nextElements[smallest].getKey()) < 0)
-                    || (!ascending && comp.compare(nextElements[i].getKey(), nextElements[smallest].getKey()) > 0))
-                    smallest = i;
-                
-                // if the smallest element is equal to the current one, remove
-                // the current one
-                else if (comp.compare(nextElements[i].getKey(), nextElements[smallest].getKey()) == 0) {
-                    Iterator<Entry<K, V>> it = itList.get(i);
-                    nextElements[i] = it.hasNext() ? it.next() : null;
-                }
+            if (heapSize == 0)
+                return null;
+            
+            Entry<K, V> entry = nextElements[heap[0]];
+            if (isVisible(entry)) {
+                lastElement = entry;
+                return entry;
             }
             
-            Entry<K, V> entry = nextElements[smallest];
-            Iterator<Entry<K, V>> it = itList.get(smallest);
-            nextElements[smallest] = it.hasNext() ? it.next() : null;
+            skip(entry.getKey());
+        }
+    }
+    
+    /**
+     * Advances the iterator at the top of the heap and all iterators of trees
+     * with lower priorities whose next elements have the given key; as equal
+     * keys are ordered by tree positions, they are at the top of the heap.
+     */
+    private void skip(K key) {
+        
+        advanceTop();
+        while (heapSize > 0 && comp.compare(nextElements[heap[0]].getKey(), key) == 0)
+            advanceTop();
+    }
+    
+    /**
+     * Replaces the element of the iterator at the top of the heap with the
+     * iterator's next element, or removes the iterator from the heap if it has
+     * no more elements.
+     */
+    private void advanceTop() {
+        
+        int top = heap[0];
+        Iterator<Entry<K, V>> it = itList.get(top);
+        
+        if (it.hasNext())
+            nextElements[top] = it.next();
+        else {
+            nextElements[top] = null;
+            heap[0] = heap[--heapSize];
+        }
+        
+        siftDown(0);
+    }
+    
+    private void siftDown(int pos) {
+        
+        int elem = heap[pos];
+        for (;;) {
+            
+            int child = 2 * pos + 1;
+            if (child >= heapSize)
+                break;
             
-            if (entry == null)
-                return null;
+            if (child + 1 < heapSize && precedes(heap[child + 1], heap[child]))
+                child++;
             
-            if (nullValue == null || entry.getValue() != nullValue)
-                return entry;
+            if (!precedes(heap[child], elem))
+                break;
+            
+            heap[pos] = heap[child];
+            pos = child;
         }
+        
+        heap[pos] = elem;
+    }
+    
+    private boolean precedes(int tree1, int tree2) {
+        
+        int cmp = comp.compare(nextElements[tree1].getKey(), nextElements[tree2].getKey());
+        if (cmp == 0)
+            return tree1 < tree2;
+        
+        return ascending ? cmp < 0 : cmp > 0;
     }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.xtreemfs.babudb.api.index.InPlaceByteRangeComparator;
+
+/**
+ * A comparator that orders keys lexicographically by their unsigned byte
+ * values, i.e. in the same order as <code>memcmp</code>. Keys are compared
+ * eight bytes at a time, which makes this comparator faster than the
+ * <code>DefaultByteRangeComparator</code> for keys with long common prefixes.
+ * <br/>
+ * 
+ * The order differs from the one of the <code>DefaultByteRangeComparator</code>
+ * for all keys that contain bytes >= 0x80. As the comparator class of each
+ * index is recorded with the database, existing databases retain their
+ * (signed) order. To switch an existing database to unsigned order, its
+ * entries have to be copied to a new database with this comparator, e.g. by
+ * means of <code>ComparatorConverter.convert()</code>.
+ */
+public class UnsignedByteRangeComparator implements InPlaceByteRangeComparator {
+    
+    private static UnsignedByteRangeComparator instance;
+    
+    @Override
+    public byte[][] prefixToRange(byte[] prefix, boolean ascending) {
+        
+        if (prefix == null)
+            return new byte[][] { null, null };
+        
+        // the smallest key that is larger than all keys starting with the
+        // prefix is obtained by incrementing the last byte that is not 0xFF
+        // and truncating the remaining bytes; if all bytes are 0xFF, the range
+        // is unbounded
+        int i = prefix.length - 1;
+        while (i >= 0 && prefix[i] == (byte) 0xFF)
+            i--;
+        
+        byte[] bytes = null;
+        if (i >= 0) {
+            bytes = new byte[i + 1];
+            System.arraycopy(prefix, 0, bytes, 0, i + 1);
+            bytes[i]++;
+        }
+        
+        return ascending ? new byte[][] { prefix, bytes } : new byte[][] { bytes, prefix };
+    }
+    
+    @Override
+    public int compare(ByteRange rng, byte[] buf) {
+        return compare(rng.getBuf(), rng.getStartOffset(), rng.getSize(), buf);
+    }
+    
+    @Override
+    public int compare(ByteBuffer rngBuf, int offset, int length, byte[] buf) {
+        
+        int n = Math.min(length, buf.length);
+        
+        // keys frequently differ in their first byte, in which case a
+        // word-wise comparison does not pay off
+        if (n > 0 && rngBuf.get(offset) != buf[0])
+            return (rngBuf.get(offset) & 0xFF) - (buf[0] & 0xFF);
+        
+        boolean bigEndian = rngBuf.order() == ByteOrder.BIG_ENDIAN;
+        
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            long v1 = rngBuf.getLong(offset + i);
+            if (!bigEndian)
+                v1 = Long.reverseBytes(v1);
+            long v2 = getLong(buf, i);
+            if (v1 != v2)
+                return compareUnsigned(v1, v2);
+        }
+        
+        for (; i < n; i++) {
+            int v1 = rngBuf.get(offset + i) & 0xFF;
+            int v2 = buf[i] & 0xFF;
+            if (v1 != v2)
+                return v1 - v2;
+        }
+        
+        return length - buf.length;
+    }
+    
+    @Override
+    public int compare(byte[] buf1, byte[] buf2) {
+        
+        int n = Math.min(buf1.length, buf2.length);
+        
+        if (n > 0 && buf1[0] != buf2[0])
+            return (buf1[0] & 0xFF) - (buf2[0] & 0xFF);
+        
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            long v1 = getLong(buf1, i);
+            long v2 = getLong(buf2, i);
+            if (v1 != v2)
+                return compareUnsigned(v1, v2);
+        }
+        
+        for (; i < n; i++) {
+            int v1 = buf1[i] & 0xFF;
+            int v2 = buf2[i] & 0xFF;
+            if (v1 != v2)
+                return v1 - v2;
+        }
+        
+        return buf1.length - buf2.length;
+    }
+    
+    public static UnsignedByteRangeComparator getInstance() {
+        
+        if (instance == null)
+            instance = new UnsignedByteRangeComparator();
+        
+        return instance;
+    }
+    
+    /**
+     * Reads eight bytes of an array as a big-endian <code>long</code>, without
+     * wrapping the array in a buffer.
+     */
+    private static long getLong(byte[] buf, int offset) {
+        return ((long) buf[offset] << 56) | ((long) (buf[offset + 1] & 0xFF) << 48)
+            | ((long) (buf[offset + 2] & 0xFF) << 40) | ((long) (buf[offset + 3] & 0xFF) << 32)
+            | ((long) (buf[offset + 4] & 0xFF) << 24) | ((buf[offset + 5] & 0xFF) << 16)
+            | ((buf[offset + 6] & 0xFF) << 8) | (buf[offset + 7] & 0xFF);
+    }
+    
+    private static int compareUnsigned(long v1, long v2) {
+        return (v1 ^ Long.MIN_VALUE) < (v2 ^ Long.MIN_VALUE) ? -1 : 1;
+    }
+    
+}
@@ -0,0 +1,761 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.InPlaceByteRangeComparator;
+import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.IndexCursor;
+
+/**
+ * An overlay tree that stores its keys and values outside of the Java heap. <br/>
+ * 
+ * The tree is a skip list whose nodes reside in an arena of direct buffers.
+ * Nodes are referenced by <code>long</code> addresses, which consist of the
+ * index of a chunk in the arena and an offset in the chunk, so that the size
+ * of a tree is only limited by the available direct memory. Memory is never
+ * freed individually; when a key is overwritten, its previous value remains
+ * in the arena until the whole tree is destroyed. No chunk is allocated
+ * before the first insert, so that empty trees do not occupy any memory
+ * outside of the Java heap. <br/>
+ * 
+ * Inserts are serialized, while lookups and iterations may proceed
+ * concurrently with inserts. Each lookup, iterator and cursor holds a
+ * reference to the tree while it reads the arena; once the tree has been
+ * destroyed and the last reference has been released, all chunks are freed
+ * at once, rather than when they are garbage-collected. Iterators release
+ * their references when they are exhausted or freed, cursors when they are
+ * freed.
+ */
+class ArenaOverlayTree implements BufferOverlayTree {
+    
+    private static final int                 CHUNK_BITS        = 20;
+    
+    private static final int                 CHUNK_SIZE        = 1 << CHUNK_BITS;
+    
+    private static final int                 INITIAL_CHUNKS    = 16;
+    
+    private static final int                 MAX_LEVEL         = 16;
+    
+    private static final int                 ADDRESS_SIZE      = 8;
+    
+    /**
+     * node layout: value address, key length, level, next node addresses of
+     * all levels, key bytes
+     */
+    private static final int                 VALUE_OFFSET      = 0;
+    
+    private static final int                 KEY_LENGTH_OFFSET = 8;
+    
+    private static final int                 LEVEL_OFFSET      = 12;
+    
+    private static final int                 NEXT_OFFSET       = 16;
+    
+    /**
+     * the address of the head node; as the head node is never the successor of
+     * another node, the address also denotes the end of a list
+     */
+    private static final long                HEAD              = 0;
+    
+    /**
+     * the value address of deleted entries
+     */
+    private static final long                DELETED           = -1;
+    
+    /**
+     * the method that frees the memory of a direct buffer, or
+     * <code>null</code> if the JVM does not provide one
+     */
+    private static final Method              INVOKE_CLEANER;
+    
+    private static final Object              UNSAFE;
+    
+    static {
+        
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception exc) {
+            // the cleaners of direct buffers are invoked instead
+        }
+        
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+    
+    private final ByteRangeComparator        comp;
+    
+    private final InPlaceByteRangeComparator inPlaceComp;
+    
+    private final byte[]                     nullValue;
+    
+    /**
+     * the chunks of the arena; the array is replaced when it is grown, which
+     * is published to readers along with the nodes in the new chunks
+     */
+    private ByteBuffer[]                     chunks;
+    
+    private final long[]                     preds;
+    
+    private int                              numChunks;
+    
+    /**
+     * the index of the chunk from which small allocations are served
+     */
+    private int                              currentChunk;
+    
+    private int                              currentOffset;
+    
+    private long                             allocated;
+    
+    private int                              seed;
+    
+    /**
+     * the number of allocated bytes visible to readers, or 0 if the head node
+     * has not been allocated yet; each insert writes this field after linking
+     * a new node or value, and each read accesses it after reading a link or
+     * value address, so as to guarantee that readers see the content of all
+     * nodes and values they reach, as well as the chunks containing them
+     */
+    private volatile long                    memoryUsage;
+    
+    private volatile long                    numEntries;
+    
+    /**
+     * the sum of the sizes of all keys and current values
+     */
+    private volatile long                    dataSize;
+    
+    /**
+     * the number of references to the tree, including the one held by its
+     * owner; the chunks are freed when the last reference is released
+     */
+    private final AtomicInteger              refCount          = new AtomicInteger(1);
+    
+    private final AtomicBoolean              destroyed         = new AtomicBoolean();
+    
+    public ArenaOverlayTree(ByteRangeComparator comp, byte[] nullValue) {
+        
+        this.comp = comp;
+        this.inPlaceComp = comp instanceof InPlaceByteRangeComparator ? (InPlaceByteRangeComparator) comp
+            : null;
+        this.nullValue = nullValue;
+        this.chunks = new ByteBuffer[INITIAL_CHUNKS];
+        this.preds = new long[MAX_LEVEL];
+        this.seed = 0x2545F491;
+    }
+    
+    public byte[] get(byte[] key) {
+        
+        // a destroyed tree is treated as empty
+        if (!acquire())
+            return null;
+        
+        try {
+            long node = findGreaterOrEqual(key);
+            if (node == HEAD || compare(node, key) != 0)
+                return null;
+            
+            return getValue(node);
+        
+        } finally {
+            release();
+        }
+    }
+    
+    public synchronized void put(byte[] key, byte[] value) {
+        
+        if (numChunks == 0)
+            allocateHead();
+        
+        // determine the predecessors of the key on all levels
+        long x = HEAD;
+        for (int l = MAX_LEVEL - 1; l >= 0; l--) {
+            long next = getNext(x, l);
+            while (next != HEAD && compare(next, key) < 0) {
+                x = next;
+                next = getNext(x, l);
+            }
+            preds[l] = x;
+        }
+        
+        long valueAddr = value == nullValue ? DELETED : allocateValue(value);
+        
+        // if the key exists, replace the value
+        long node = getNext(preds[0], 0);
+        if (node != HEAD && compare(node, key) == 0) {
+            long prevAddr = getValueAddress(node);
+            int prevLength = prevAddr == DELETED ? nullValue.length : chunk(prevAddr).getInt(
+                offset(prevAddr));
+            chunk(node).putLong(offset(node) + VALUE_OFFSET, valueAddr);
+            memoryUsage = allocated;
+            dataSize += value.length - prevLength;
+            return;
+        }
+        
+        // otherwise, create a new node
+        int level = randomLevel();
+        node = allocate(NEXT_OFFSET + level * ADDRESS_SIZE + key.length);
+        ByteBuffer buf = chunk(node);
+        int offset = offset(node);
+        buf.putLong(offset + VALUE_OFFSET, valueAddr);
+        buf.putInt(offset + KEY_LENGTH_OFFSET, key.length);
+        buf.putInt(offset + LEVEL_OFFSET, level);
+        for (int l = 0; l < level; l++)
+            buf.putLong(offset + NEXT_OFFSET + l * ADDRESS_SIZE, getNext(preds[l], l));
+        ByteBuffer tmp = buf.duplicate();
+        tmp.position(offset + NEXT_OFFSET + level * ADDRESS_SIZE);
+        tmp.put(key);
+        
+        // link the node bottom-up, and publish the node content along with
+        // each link
+        for (int l = 0; l < level; l++) {
+            chunk(preds[l]).putLong(offset(preds[l]) + NEXT_OFFSET + l * ADDRESS_SIZE, node);
+            memoryUsage = allocated;
+        }
+        numEntries++;
+        dataSize += key.length + value.length;
+    }
+    
+    public Iterator<Entry<byte[], byte[]>> rangeIterator(byte[] from, byte[] to, boolean ascending) {
+        return rangeIterator(from, to, ascending, false);
+    }
+    
+    public Iterator<Entry<byte[], byte[]>> keyIterator(byte[] from, byte[] to, boolean ascending) {
+        return rangeIterator(from, to, ascending, true);
+    }
+    
+    public IndexCursor cursor() {
+        return new ArenaCursor();
+    }
+    
+    private Iterator<Entry<byte[], byte[]>> rangeIterator(final byte[] from, final byte[] to,
+        final boolean ascending, final boolean keysOnly) {
+        
+        // a destroyed tree is treated as empty
+        final boolean acquired = acquire();
+        
+        return new ResultSet<byte[], byte[]>() {
+            
+            private long    node     = acquired ? checkBound(ascending ? (from == null ? first()
+                                         : findGreaterOrEqual(from)) : findLessOrEqual(from)) : HEAD;
+            
+            private boolean released = !acquired;
+            
+            @Override
+            public boolean hasNext() {
+                
+                if (node != HEAD)
+                    return true;
+                
+                free();
+                return false;
+            }
+            
+            @Override
+            public Entry<byte[], byte[]> next() {
+                
+                if (node == HEAD)
+                    throw new NoSuchElementException();
+                
+                final byte[] key = getKey(node);
+                final byte[] value = keysOnly ? (isDeleted(node) ? nullValue : null) : getValue(node);
+                
+                node = checkBound(ascending ? getNext(node, 0) : findLess(key));
+                if (node == HEAD)
+                    free();
+                
+                return new Entry<byte[], byte[]>() {
+                    
+                    @Override
+                    public byte[] getKey() {
+                        return key;
+                    }
+                    
+                    @Override
+                    public byte[] getValue() {
+                        return value;
+                    }
+                    
+                    @Override
+                    public byte[] setValue(byte[] value) {
+                        throw new UnsupportedOperationException();
+                    }
+                
+                };
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+            
+            @Override
+            public void free() {
+                
+                node = HEAD;
+                if (!released) {
+                    released = true;
+                    release();
+                }
+            }
+            
+            private long checkBound(long node) {
+                
+                if (node == HEAD || to == null)
+                    return node;
+                
+                int result = compare(node, to);
+                return (ascending ? result >= 0 : result <= 0) ? HEAD : node;
+            }
+        
+        };
+    }
+    
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+    
+    public long getNumEntries() {
+        return numEntries;
+    }
+    
+    public long getDataSize() {
+        return dataSize;
+    }
+    
+    /**
+     * Acquires a reference to the tree, so as to prevent its chunks from being
+     * freed while the tree is being read.
+     * 
+     * @return <code>true</code>, if the reference has been acquired,
+     *         <code>false</code>, if the tree has been destroyed already
+     */
+    boolean acquire() {
+        
+        for (;;) {
+            int count = refCount.get();
+            if (count == 0)
+                return false;
+            if (refCount.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+    
+    /**
+     * Releases a reference to the tree. If no further references exist, all
+     * chunks are freed.
+     */
+    void release() {
+        if (refCount.decrementAndGet() == 0)
+            freeChunks();
+    }
+    
+    public void destroy() {
+        if (destroyed.compareAndSet(false, true))
+            release();
+    }
+    
+    private long first() {
+        return isEmpty() ? HEAD : getNext(HEAD, 0);
+    }
+    
+    /**
+     * Returns the first node with a key greater than or equal to the given
+     * key.
+     */
+    private long findGreaterOrEqual(byte[] key) {
+        
+        if (isEmpty())
+            return HEAD;
+        
+        long x = HEAD;
+        long next = HEAD;
+        for (int l = MAX_LEVEL - 1; l >= 0; l--) {
+            next = getNext(x, l);
+            while (next != HEAD && compare(next, key) < 0) {
+                x = next;
+                next = getNext(x, l);
+            }
+        }
+        
+        return next;
+    }
+    
+    /**
+     * Returns the last node with a key less than the given key.
+     */
+    private long findLess(byte[] key) {
+        return findLast(key, false);
+    }
+    
+    /**
+     * Returns the last node with a key less than or equal to the given key, or
+     * the last node if the key is <code>null</code>.
+     */
+    private long findLessOrEqual(byte[] key) {
+        return findLast(key, true);
+    }
+    
+    private long findLast(byte[] key, boolean inclusive) {
+        
+        if (isEmpty())
+            return HEAD;
+        
+        long x = HEAD;
+        for (int l = MAX_LEVEL - 1; l >= 0; l--) {
+            long next = getNext(x, l);
+            while (next != HEAD
+                && (key == null || (inclusive ? compare(next, key) <= 0 : compare(next, key) < 0))) {
+                x = next;
+                next = getNext(x, l);
+            }
+        }
+        
+        return x;
+    }
+    
+    /**
+     * Checks whether the head node has not been allocated yet. Reading the
+     * volatile memory usage field guarantees that the calling thread sees the
+     * head node afterwards.
+     */
+    private boolean isEmpty() {
+        return memoryUsage == 0;
+    }
+    
+    /**
+     * Reads the volatile memory usage field after a link or value address has
+     * been read, which guarantees that the calling thread sees the content of
+     * the node or value it refers to.
+     */
+    private void synchronizeReads() {
+        if (memoryUsage < 0)
+            throw new IllegalStateException();
+    }
+    
+    private int compare(long node, byte[] key) {
+        
+        ByteBuffer buf = chunk(node);
+        int offset = offset(node);
+        int keyLength = buf.getInt(offset + KEY_LENGTH_OFFSET);
+        int keyOffset = offset + NEXT_OFFSET + buf.getInt(offset + LEVEL_OFFSET) * ADDRESS_SIZE;
+        
+        return inPlaceComp != null ? inPlaceComp.compare(buf, keyOffset, keyLength, key) : comp.compare(
+            new ByteRange(buf, keyOffset, keyOffset + keyLength), key);
+    }
+    
+    private long getNext(long node, int level) {
+        long next = chunk(node).getLong(offset(node) + NEXT_OFFSET + level * ADDRESS_SIZE);
+        synchronizeReads();
+        return next;
+    }
+    
+    private long getValueAddress(long node) {
+        long valueAddr = chunk(node).getLong(offset(node) + VALUE_OFFSET);
+        synchronizeReads();
+        return valueAddr;
+    }
+    
+    private byte[] getKey(long node) {
+        
+        ByteBuffer buf = chunk(node).duplicate();
+        int offset = offset(node);
+        byte[] key = new byte[buf.getInt(offset + KEY_LENGTH_OFFSET)];
+        buf.position(offset + NEXT_OFFSET + buf.getInt(offset + LEVEL_OFFSET) * ADDRESS_SIZE);
+        buf.get(key);
+        
+        return key;
+    }
+    
+    private boolean isDeleted(long node) {
+        return chunk(node).getLong(offset(node) + VALUE_OFFSET) == DELETED;
+    }
+    
+    private byte[] getValue(long node) {
+        
+        long valueAddr = getValueAddress(node);
+        if (valueAddr == DELETED)
+            return nullValue;
+        
+        ByteBuffer buf = chunk(valueAddr).duplicate();
+        int offset = offset(valueAddr);
+        byte[] value = new byte[buf.getInt(offset)];
+        buf.position(offset + 4);
+        buf.get(value);
+        
+        return value;
+    }
+    
+    private long allocateValue(byte[] value) {
+        
+        long addr = allocate(4 + value.length);
+        ByteBuffer buf = chunk(addr).duplicate();
+        int offset = offset(addr);
+        buf.putInt(offset, value.length);
+        buf.position(offset + 4);
+        buf.put(value);
+        
+        return addr;
+    }
+    
+    /**
+     * Allocates the head node, which precedes all nodes on all levels, in the
+     * first chunk of the arena.
+     */
+    private void allocateHead() {
+        
+        currentChunk = newChunk(CHUNK_SIZE);
+        long head = allocate(NEXT_OFFSET + MAX_LEVEL * ADDRESS_SIZE);
+        assert (head == HEAD);
+        ByteBuffer buf = chunks[0];
+        buf.putLong(VALUE_OFFSET, DELETED);
+        buf.putInt(KEY_LENGTH_OFFSET, 0);
+        buf.putInt(LEVEL_OFFSET, MAX_LEVEL);
+        for (int i = 0; i < MAX_LEVEL; i++)
+            buf.putLong(NEXT_OFFSET + i * ADDRESS_SIZE, HEAD);
+        
+        memoryUsage = allocated;
+    }
+    
+    /**
+     * Allocates a memory region in the arena. Regions are aligned to eight
+     * bytes. Regions that do not fit in a regular chunk are placed in a
+     * dedicated chunk.
+     */
+    private long allocate(int size) {
+        
+        size = (size + 7) & ~7;
+        
+        if (size > CHUNK_SIZE) {
+            int chunk = newChunk(size);
+            allocated += size;
+            return (long) chunk << CHUNK_BITS;
+        }
+        
+        if (currentOffset + size > CHUNK_SIZE) {
+            currentChunk = newChunk(CHUNK_SIZE);
+            currentOffset = 0;
+        }
+        
+        long addr = (long) currentChunk << CHUNK_BITS | currentOffset;
+        currentOffset += size;
+        allocated += size;
+        
+        return addr;
+    }
+    
+    private int newChunk(int size) {
+        
+        if (numChunks == chunks.length)
+            chunks = Arrays.copyOf(chunks, numChunks * 2);
+        
+        chunks[numChunks] = ByteBuffer.allocateDirect(size);
+        return numChunks++;
+    }
+    
+    /**
+     * Frees all chunks. As inserts are synchronized on the tree, so is this
+     * method, which guarantees that all chunks are visible.
+     */
+    private synchronized void freeChunks() {
+        
+        for (int i = 0; i < numChunks; i++) {
+            free(chunks[i]);
+            chunks[i] = null;
+        }
+        numChunks = 0;
+        allocated = 0;
+        memoryUsage = 0;
+    }
+    
+    /**
+     * Frees the memory of a direct buffer right away. If the JVM does not
+     * allow for this, the memory is freed when the buffer is
+     * garbage-collected.
+     */
+    private static void free(ByteBuffer buf) {
+        
+        try {
+            if (INVOKE_CLEANER != null)
+                INVOKE_CLEANER.invoke(UNSAFE, buf);
+            
+            else {
+                Method cleanerMethod = buf.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buf);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        
+        } catch (Exception exc) {
+            // leave the buffer to the garbage collector
+        }
+    }
+    
+    private ByteBuffer chunk(long addr) {
+        return chunks[(int) (addr >>> CHUNK_BITS)];
+    }
+    
+    private static int offset(long addr) {
+        return (int) addr & (CHUNK_SIZE - 1);
+    }
+    
+    /**
+     * A cursor over the tree, which returns keys and values as views on the
+     * chunks of the arena. A view is created the first time a chunk is
+     * accessed. Since nodes are only linked to their successors, moving
+     * backwards requires a search for the current key, which is copied to an
+     * array that is reused for keys of equal length. The cursor holds a
+     * reference to the tree until it is freed; a cursor over a destroyed tree
+     * is empty.
+     */
+    private class ArenaCursor extends IndexCursor {
+        
+        private final ByteBuffer nullView   = ByteBuffer.wrap(nullValue);
+        
+        private ByteBuffer[]     keyViews   = new ByteBuffer[0];
+        
+        private ByteBuffer[]     valueViews = new ByteBuffer[0];
+        
+        private long             node       = HEAD;
+        
+        private byte[]           keyCopy;
+        
+        private boolean          acquired   = acquire();
+        
+        public boolean seek(byte[] key) {
+            node = !acquired ? HEAD : key == null ? first() : findGreaterOrEqual(key);
+            return node != HEAD;
+        }
+        
+        public boolean seekForPrev(byte[] key) {
+            node = !acquired ? HEAD : findLessOrEqual(key);
+            return node != HEAD;
+        }
+        
+        public boolean next() {
+            
+            checkValid();
+            
+            node = getNext(node, 0);
+            return node != HEAD;
+        }
+        
+        public boolean prev() {
+            
+            keyCopy = copy(key(), keyCopy);
+            node = findLess(keyCopy);
+            return node != HEAD;
+        }
+        
+        public boolean isValid() {
+            return node != HEAD;
+        }
+        
+        public ByteBuffer key() {
+            
+            checkValid();
+            
+            ByteBuffer buf = chunk(node);
+            int offset = offset(node);
+            int keyOffset = offset + NEXT_OFFSET + buf.getInt(offset + LEVEL_OFFSET) * ADDRESS_SIZE;
+            
+            keyViews = getView(keyViews, node);
+            return view(keyViews[(int) (node >>> CHUNK_BITS)], keyOffset, keyOffset
+                + buf.getInt(offset + KEY_LENGTH_OFFSET));
+        }
+        
+        public ByteBuffer value() {
+            
+            checkValid();
+            
+            long valueAddr = getValueAddress(node);
+            if (valueAddr == DELETED)
+                return nullView;
+            
+            int offset = offset(valueAddr);
+            valueViews = getView(valueViews, valueAddr);
+            return view(valueViews[(int) (valueAddr >>> CHUNK_BITS)], offset + 4, offset + 4
+                + chunk(valueAddr).getInt(offset));
+        }
+        
+        public boolean isDeleted() {
+            checkValid();
+            return ArenaOverlayTree.this.isDeleted(node);
+        }
+        
+        public void free() {
+            
+            node = HEAD;
+            if (acquired) {
+                acquired = false;
+                release();
+            }
+        }
+        
+        private void checkValid() {
+            if (node == HEAD)
+                throw new NoSuchElementException();
+        }
+        
+        /**
+         * Ensures that an array of views contains a view on the chunk of the
+         * given address.
+         */
+        private ByteBuffer[] getView(ByteBuffer[] views, long addr) {
+            
+            int chunk = (int) (addr >>> CHUNK_BITS);
+            if (chunk >= views.length)
+                views = Arrays.copyOf(views, Math.max(chunk + 1, views.length * 2));
+            if (views[chunk] == null)
+                views[chunk] = chunks[chunk].duplicate();
+            
+            return views;
+        }
+        
+        private ByteBuffer view(ByteBuffer view, int start, int end) {
+            view.limit(end);
+            view.position(start);
+            return view;
+        }
+    
+    }
+    
+    private int randomLevel() {
+        
+        // xorshift, with a probability of 1/4 for each additional level
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        
+        int level = 1;
+        for (int r = seed; (r & 3) == 0 && level < MAX_LEVEL; r >>>= 2)
+            level++;
+        
+        return level;
+    }
+    
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import org.xtreemfs.babudb.index.IndexCursor;
+
+/**
+ * An overlay tree for byte buffers of a <code>MultiOverlayBufferTree</code>,
+ * which can be traversed by means of a cursor.
+ */
+interface BufferOverlayTree extends OverlayTree<byte[], byte[]> {
+    
+    /**
+     * Creates a cursor over the entries of the tree. Entries inserted while
+     * the cursor is in use may or may not be seen by the cursor.
+     * 
+     * @return the cursor
+     */
+    public IndexCursor cursor();
+    
+    /**
+     * Returns an iterator over all keys between <code>from</code>
+     * (inclusively) and <code>to</code> (exclusively), which does not copy
+     * any values. Entries are returned with <code>null</code> values, or
+     * with the null value of the tree if they have been marked as deleted.
+     * 
+     * @param from
+     *            the first key (inclusively), or <code>null</code>
+     * @param to
+     *            the last key (exclusively), or <code>null</code>
+     * @param ascending
+     *            the iteration order
+     * @return an iterator over the keys
+     */
+    public Iterator<Entry<byte[], byte[]>> keyIterator(byte[] from, byte[] to, boolean ascending);
+    
+}
@@ -8,16 +8,85 @@
 
 package org.xtreemfs.babudb.index.overlay;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.IndexCursor;
+import org.xtreemfs.babudb.index.KeyRange;
+import org.xtreemfs.babudb.index.KeyRangeSet;
+import org.xtreemfs.babudb.index.OverlayMergeIterator;
 
 public class MultiOverlayBufferTree extends MultiOverlayTree<byte[], byte[]> {
     
+    /**
+     * the estimated number of heap bytes occupied by an entry of an on-heap
+     * overlay in addition to its key and value bytes, i.e. by the skip list
+     * node, its share of index nodes, and the headers of the key and value
+     * arrays
+     */
+    private static final int    HEAP_ENTRY_OVERHEAD = 96;
+    
     private ByteRangeComparator comp;
     
+    private final byte[]        markerElement;
+    
     public MultiOverlayBufferTree(byte[] markerElement, ByteRangeComparator comp) {
-        super(markerElement, comp);
+        this(markerElement, comp, false);
+    }
+    
+    /**
+     * Creates a new multi-overlay tree for byte buffers.
+     * 
+     * @param markerElement
+     *            a value that marks entries as deleted
+     * @param comp
+     *            the comparator for the keys
+     * @param offHeap
+     *            if <code>true</code>, keys and values will be copied to
+     *            arenas outside of the Java heap, which are released as a whole
+     *            once a discarded overlay is no longer being read
+     */
+    public MultiOverlayBufferTree(final byte[] markerElement, final ByteRangeComparator comp,
+        boolean offHeap) {
+        super(markerElement, comp, offHeap ? new OverlayTree.Factory<byte[], byte[]>() {
+            public OverlayTree<byte[], byte[]> createTree() {
+                return new ArenaOverlayTree(comp, markerElement);
+            }
+        } : new OverlayTree.Factory<byte[], byte[]>() {
+            public OverlayTree<byte[], byte[]> createTree() {
+                return new HeapTree(comp, markerElement);
+            }
+        });
         this.comp = comp;
+        this.markerElement = markerElement;
+    }
+    
+    /**
+     * Creates cursors over all trees of the current overlay, newest tree
+     * first. Each cursor skips the ranges that have been deleted in newer
+     * trees.
+     * 
+     * @return the cursors
+     */
+    public List<IndexCursor> openCursors() {
+        return openCursors(getTreeList());
+    }
+    
+    /**
+     * Creates cursors over all trees of the given overlay, newest tree first.
+     * Each cursor skips the ranges that have been deleted in newer trees.
+     * 
+     * @param overlayId
+     *            the overlay ID
+     * @return the cursors
+     */
+    public List<IndexCursor> openCursors(int overlayId) {
+        return openCursors(getTreeList(overlayId));
     }
     
     public ResultSet<byte[], byte[]> prefixLookup(byte[] prefix, boolean includeDeletedEntries,
@@ -38,4 +107,126 @@ public class MultiOverlayBufferTree extends MultiOverlayTree<byte[], byte[]> {
         return rangeLookup(keyRange[0], keyRange[1], overlayId, includeDeletedEntries, ascending);
     }
     
+    /**
+     * Returns an iterator with all keys between <code>from</code>
+     * (inclusively) and <code>to</code> (exclusively) in the current overlay.
+     * Values are not copied; entries are returned with <code>null</code>
+     * values.
+     * 
+     * @param from
+     *            the first key (inclusively), or <code>null</code>
+     * @param to
+     *            the last key (exclusively), or <code>null</code>
+     * @param includeDeletedEntries
+     *            if <code>true</code>, entries that have been marked as
+     *            deleted will be included in the iterator, with the marker
+     *            element as their value
+     * @param ascending
+     *            the iteration order
+     * @return an iterator with keys
+     */
+    public ResultSet<byte[], byte[]> keyLookup(byte[] from, byte[] to, boolean includeDeletedEntries,
+        boolean ascending) {
+        return keyLookup(from, to, getTreeList(), includeDeletedEntries, ascending);
+    }
+    
+    /**
+     * Returns an iterator with all keys between <code>from</code>
+     * (inclusively) and <code>to</code> (exclusively) in the given overlay.
+     * Values are not copied; entries are returned with <code>null</code>
+     * values.
+     * 
+     * @param from
+     *            the first key (inclusively), or <code>null</code>
+     * @param to
+     *            the last key (exclusively), or <code>null</code>
+     * @param overlayId
+     *            the overlay ID
+     * @param includeDeletedEntries
+     *            if <code>true</code>, entries that have been marked as
+     *            deleted will be included in the iterator, with the marker
+     *            element as their value
+     * @param ascending
+     *            the iteration order
+     * @return an iterator with keys
+     */
+    public ResultSet<byte[], byte[]> keyLookup(byte[] from, byte[] to, int overlayId,
+        boolean includeDeletedEntries, boolean ascending) {
+        return keyLookup(from, to, getTreeList(overlayId), includeDeletedEntries, ascending);
+    }
+    
+    private ResultSet<byte[], byte[]> keyLookup(byte[] from, byte[] to,
+        OverlayTreeList<byte[], byte[]> treeList, boolean includeDeletedEntries, boolean ascending) {
+        
+        List<Iterator<Entry<byte[], byte[]>>> itList = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
+        KeyRangeSet<byte[]> ranges = new KeyRangeSet<byte[]>(comp);
+        for (OverlayTreeList<byte[], byte[]> list = treeList; list != null; list = list.next) {
+            itList.add(KeyRange.filter(((BufferOverlayTree) list.tree).keyIterator(from, to, ascending),
+                ranges));
+            ranges = ranges.union(list.deletedRanges);
+        }
+        
+        return new OverlayMergeIterator<byte[], byte[]>(itList, comp, includeDeletedEntries ? null
+            : markerElement, ascending);
+    }
+    
+    private List<IndexCursor> openCursors(OverlayTreeList<byte[], byte[]> treeList) {
+        
+        List<IndexCursor> cursors = new ArrayList<IndexCursor>();
+        KeyRangeSet<byte[]> ranges = new KeyRangeSet<byte[]>(comp);
+        for (OverlayTreeList<byte[], byte[]> list = treeList; list != null; list = list.next) {
+            cursors.add(KeyRange.filter(((BufferOverlayTree) list.tree).cursor(), ranges, comp));
+            ranges = ranges.union(list.deletedRanges);
+        }
+        
+        return cursors;
+    }
+    
+    /**
+     * An on-heap overlay tree, which tracks its memory usage.
+     */
+    private static class HeapTree extends SkipListOverlayTree<byte[], byte[]> implements BufferOverlayTree {
+        
+        private final byte[] nullValue;
+        
+        public HeapTree(ByteRangeComparator comp, byte[] nullValue) {
+            super(comp);
+            this.nullValue = nullValue;
+        }
+        
+        public IndexCursor cursor() {
+            return new SkipListOverlayCursor(getMap(), nullValue);
+        }
+        
+        public Iterator<Entry<byte[], byte[]>> keyIterator(byte[] from, byte[] to, boolean ascending) {
+            
+            final Iterator<Entry<byte[], byte[]>> it = rangeIterator(from, to, ascending);
+            return new Iterator<Entry<byte[], byte[]>>() {
+                
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+                
+                public Entry<byte[], byte[]> next() {
+                    Entry<byte[], byte[]> entry = it.next();
+                    return new SimpleImmutableEntry<byte[], byte[]>(entry.getKey(),
+                        entry.getValue() == nullValue ? nullValue : null);
+                }
+                
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        
+        protected long getSize(byte[] key, byte[] value) {
+            return key.length + value.length + HEAP_ENTRY_OVERHEAD;
+        }
+        
+        protected long getDataSize(byte[] key, byte[] value) {
+            return key.length + value.length;
+        }
+    
+    }
+    
 }
@@ -17,9 +17,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.index.KeyRange;
+import org.xtreemfs.babudb.index.KeyRangeSet;
 import org.xtreemfs.babudb.index.OverlayMergeIterator;
 
 /**
@@ -32,13 +33,20 @@ public class MultiOverlayTree<K, V> {
     
     static class OverlayTreeList<K, V> {
         
-        public ConcurrentSkipListMap<K, V> tree;
+        public OverlayTree<K, V>     tree;
 
         public OverlayTreeList<K, V> next;
         
-        public OverlayTreeList(ConcurrentSkipListMap<K, V> tree, OverlayTreeList<K, V> next) {
+        /**
+         * the ranges deleted in this overlay; entries in the trees of older
+         * overlays that fall in these ranges are regarded as deleted
+         */
+        public volatile KeyRangeSet<K> deletedRanges;
+        
+        public OverlayTreeList(OverlayTree<K, V> tree, OverlayTreeList<K, V> next, Comparator<K> comparator) {
             this.tree = tree;
             this.next = next;
+            this.deletedRanges = new KeyRangeSet<K>(comparator);
         }
     }
     
@@ -67,6 +75,11 @@ public class MultiOverlayTree<K, V> {
      */
     private OverlayTreeList<K, V>               treeList;
     
+    /**
+     * creates the trees of the overlays
+     */
+    private OverlayTree.Factory<K, V>           treeFactory;
+    
     /**
      * Creates a new multi-overlay tree. This call is equivalent to
      * <code>MultiOverlayTree(markerElement, null)</code>.
@@ -90,7 +103,29 @@ public class MultiOverlayTree<K, V> {
      *            is provided, the natural ordering of the keys will be used if
      *            defined.
      */
-    public MultiOverlayTree(V nullValue, Comparator<K> comparator) {
+    public MultiOverlayTree(V nullValue, final Comparator<K> comparator) {
+        this(nullValue, comparator, new OverlayTree.Factory<K, V>() {
+            public OverlayTree<K, V> createTree() {
+                return new SkipListOverlayTree<K, V>(comparator);
+            }
+        });
+    }
+    
+    /**
+     * Creates a new multi-overlay tree with a custom implementation of the
+     * overlay trees.
+     * 
+     * @param nullValue
+     *            A value that will never be inserted in the tree. This value
+     *            will be used to mark entries as deleted.
+     * @param comparator
+     *            The comparator for the keys. If a <code>null</code> comparator
+     *            is provided, the natural ordering of the keys will be used if
+     *            defined.
+     * @param treeFactory
+     *            the factory that creates the overlay trees
+     */
+    MultiOverlayTree(V nullValue, Comparator<K> comparator, OverlayTree.Factory<K, V> treeFactory) {
         
         if (comparator == null) {
             this.comparator = new Comparator<K>() {
@@ -102,7 +137,8 @@ public class MultiOverlayTree<K, V> {
         } else
             this.comparator = comparator;
         
-        treeList = new OverlayTreeList<K, V>(new ConcurrentSkipListMap<K, V>(comparator), null);
+        this.treeFactory = treeFactory;
+        treeList = new OverlayTreeList<K, V>(treeFactory.createTree(), null, comparator);
         overlayMap = Collections.synchronizedMap(new HashMap<Integer, OverlayTreeList<K, V>>());
         
         this.nullValue = nullValue;
@@ -115,18 +151,75 @@ public class MultiOverlayTree<K, V> {
      */
     public int newOverlay() {
         overlayMap.put(overlayId, treeList);
-        treeList = new OverlayTreeList<K, V>(new ConcurrentSkipListMap<K, V>(comparator), treeList);
+        treeList = new OverlayTreeList<K, V>(treeFactory.createTree(), treeList, comparator);
         return overlayId++;
     }
     
     /**
      * Destroys any read-only overlay trees, such that only the current
-     * read-write tree remains.
+     * read-write tree remains. The trees are dropped as a whole, regardless of
+     * the number of entries they contain. Trees that store their entries
+     * outside of the Java heap free their memory as soon as the last iterator
+     * or cursor on them has been exhausted or freed; iterators that are
+     * abandoned without being freed leave it to the garbage collector.
      */
     public void cleanup() {
+        
+        OverlayTreeList<K, V> dropped = treeList.next;
+        
         overlayMap.clear();
         treeList.next = null;
         overlayId = 0;
+        
+        for (OverlayTreeList<K, V> list = dropped; list != null; list = list.next)
+            list.tree.destroy();
+    }
+    
+    /**
+     * Returns the number of bytes occupied by the current overlay and all
+     * read-only overlays, as far as it is tracked by the overlay trees.
+     * 
+     * @return the number of bytes
+     */
+    public long getMemoryUsage() {
+        
+        long size = 0;
+        for (OverlayTreeList<K, V> list = treeList; list != null; list = list.next)
+            size += list.tree.getMemoryUsage();
+        
+        return size;
+    }
+    
+    /**
+     * Returns the number of entries in the current overlay and all read-only
+     * overlays. Keys contained in more than one overlay are counted multiple
+     * times.
+     * 
+     * @return the number of entries
+     */
+    public long getNumEntries() {
+        
+        long count = 0;
+        for (OverlayTreeList<K, V> list = treeList; list != null; list = list.next)
+            count += list.tree.getNumEntries();
+        
+        return count;
+    }
+    
+    /**
+     * Returns the total size of the keys and values in the current overlay and
+     * all read-only overlays, as far as it is tracked by the overlay trees.
+     * Keys contained in more than one overlay are counted multiple times.
+     * 
+     * @return the number of bytes
+     */
+    public long getDataSize() {
+        
+        long size = 0;
+        for (OverlayTreeList<K, V> list = treeList; list != null; list = list.next)
+            size += list.tree.getDataSize();
+        
+        return size;
     }
     
     /**
@@ -149,6 +242,55 @@ public class MultiOverlayTree<K, V> {
             treeList.tree.put(key, value);
     }
     
+    /**
+     * Deletes all keys between <code>from</code> (inclusively) and
+     * <code>to</code> (exclusively). Entries of the current overlay in the
+     * range are marked as deleted, and the range is recorded, so that entries
+     * of older overlays and any underlying data in the range are regarded as
+     * deleted as well.
+     * 
+     * @param from
+     *            the first key (inclusively); if <code>null</code>, the range
+     *            starts with the smallest possible key
+     * @param to
+     *            the last key (exclusively); if <code>null</code>, the range
+     *            ends with the largest possible key
+     */
+    public void deleteRange(K from, K to) {
+        
+        OverlayTreeList<K, V> list = treeList;
+        
+        List<K> keys = new ArrayList<K>();
+        for (Iterator<Entry<K, V>> it = list.tree.rangeIterator(from, to, true); it.hasNext();)
+            keys.add(it.next().getKey());
+        for (K key : keys)
+            list.tree.put(key, nullValue);
+        
+        list.deletedRanges = list.deletedRanges.add(new KeyRange<K>(from, to));
+    }
+    
+    /**
+     * Returns all ranges that have been deleted in the current overlay and
+     * all read-only overlays.
+     * 
+     * @return the deleted ranges
+     */
+    public KeyRangeSet<K> getDeletedRanges() {
+        return getDeletedRanges(treeList);
+    }
+    
+    /**
+     * Returns all ranges that have been deleted in the given overlay and all
+     * older overlays.
+     * 
+     * @param overlayId
+     *            the overlay ID
+     * @return the deleted ranges
+     */
+    public KeyRangeSet<K> getDeletedRanges(int overlayId) {
+        return getDeletedRanges(overlayMap.get(overlayId));
+    }
+    
     /**
      * Retrieves the value for the given key in the current overlay.
      * 
@@ -226,6 +368,28 @@ public class MultiOverlayTree<K, V> {
         return rangeLookup(from, to, overlayMap.get(overlayId), includeDeletedEntries, ascending);
     }
     
+    /**
+     * Returns the list of trees that make up the current overlay, newest tree
+     * first.
+     * 
+     * @return the tree list
+     */
+    OverlayTreeList<K, V> getTreeList() {
+        return treeList;
+    }
+    
+    /**
+     * Returns the list of trees that make up the given overlay, newest tree
+     * first.
+     * 
+     * @param overlayId
+     *            the overlay ID
+     * @return the tree list
+     */
+    OverlayTreeList<K, V> getTreeList(int overlayId) {
+        return overlayMap.get(overlayId);
+    }
+    
     private V lookup(K key, OverlayTreeList<K, V> list) {
         
         for (; list != null; list = list.next) {
@@ -234,42 +398,35 @@ public class MultiOverlayTree<K, V> {
             
             if (value != null)
                 return value;
+            
+            // entries of older overlays in deleted ranges are shadowed
+            if (list.deletedRanges.contains(key))
+                return nullValue;
         }
         
         return null;
     }
     
+    private KeyRangeSet<K> getDeletedRanges(OverlayTreeList<K, V> treeList) {
+        
+        KeyRangeSet<K> ranges = new KeyRangeSet<K>(comparator);
+        for (OverlayTreeList<K, V> list = treeList; list != null; list = list.next)
+            ranges = ranges.union(list.deletedRanges);
+        
+        return ranges;
+    }
+    
     private ResultSet<K, V> rangeLookup(K from, K to, OverlayTreeList<K, V> treeList,
         boolean includeDeletedEntries, boolean ascending) {
         
-        // initialize a final list w/ submap iterators of all overlays
+        // initialize a final list w/ submap iterators of all overlays; the
+        // entries of each overlay are filtered by the ranges deleted in all
+        // newer overlays
         final List<Iterator<Entry<K, V>>> itList = new ArrayList<Iterator<Entry<K, V>>>();
+        KeyRangeSet<K> ranges = new KeyRangeSet<K>(comparator);
         for (OverlayTreeList<K, V> list = treeList; list != null; list = list.next) {
-            if (from != null && to != null) {
-                // both boundaries are provided
-                if (ascending)
-                    itList.add(list.tree.subMap(from, to).entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().subMap(from, to).entrySet().iterator());
-            } else if (from == null && to == null) {
-                // no boundary is provided
-                if (ascending)
-                    itList.add(list.tree.entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().entrySet().iterator());
-            } else if (from != null && to == null) {
-                // only 'from' obundary is provided
-                if (ascending)
-                    itList.add(list.tree.tailMap(from).entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().tailMap(from).entrySet().iterator());
-            } else {
-                // only 'to' boundary is provided
-                if (ascending)
-                    itList.add(list.tree.headMap(to).entrySet().iterator());
-                else
-                    itList.add(list.tree.descendingMap().headMap(to).entrySet().iterator());
-            }
+            itList.add(KeyRange.filter(list.tree.rangeIterator(from, to, ascending), ranges));
+            ranges = ranges.union(list.deletedRanges);
         }
         
         return new OverlayMergeIterator<K, V>(itList, comparator, includeDeletedEntries ? null : nullValue,
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * A single sorted in-memory tree of a <code>MultiOverlayTree</code>. Trees
+ * support concurrent lookups while entries are being inserted.
+ */
+interface OverlayTree<K, V> {
+    
+    /**
+     * Creates the trees of a <code>MultiOverlayTree</code>.
+     */
+    static interface Factory<K, V> {
+        
+        public OverlayTree<K, V> createTree();
+    
+    }
+    
+    /**
+     * Retrieves the value associated with a key.
+     * 
+     * @param key
+     *            the key
+     * @return the value, or <code>null</code> if the tree does not contain the
+     *         key
+     */
+    public V get(K key);
+    
+    /**
+     * Associates a key with a value, replacing any previous value.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     */
+    public void put(K key, V value);
+    
+    /**
+     * Returns an iterator over all entries between two keys. In ascending
+     * order, entries range from <code>from</code> (inclusively) to
+     * <code>to</code> (exclusively); in descending order, they range from
+     * <code>from</code> (inclusively) down to <code>to</code> (exclusively).
+     * 
+     * @param from
+     *            the first key; if <code>null</code>, the iteration starts
+     *            with the first entry in the given order
+     * @param to
+     *            the key at which to stop; if <code>null</code>, the
+     *            iteration ends with the last entry in the given order
+     * @param ascending
+     *            the order of the entries
+     * @return an iterator over the entries
+     */
+    public Iterator<Entry<K, V>> rangeIterator(K from, K to, boolean ascending);
+    
+    /**
+     * Returns the number of bytes occupied by the tree, or 0 if the memory
+     * usage of the tree is not tracked.
+     * 
+     * @return the number of bytes
+     */
+    public long getMemoryUsage();
+    
+    /**
+     * Returns the number of entries in the tree, including deletion markers.
+     * 
+     * @return the number of entries
+     */
+    public long getNumEntries();
+    
+    /**
+     * Returns the total size of the keys and values in the tree, which
+     * approximates the number of bytes the entries will occupy once they have
+     * been written to disk. Unlike <code>getMemoryUsage()</code>, the size
+     * does not include any overhead of the tree itself, nor values that have
+     * been overwritten.
+     * 
+     * @return the number of bytes, or 0 if the size of entries is not tracked
+     */
+    public long getDataSize();
+    
+    /**
+     * Destroys the tree once it has been dropped from its
+     * <code>MultiOverlayTree</code>. Trees that hold resources outside of the
+     * Java heap release them as soon as all pending lookups have finished.
+     */
+    public void destroy();
+    
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.nio.ByteBuffer;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.xtreemfs.babudb.index.IndexCursor;
+
+/**
+ * A cursor over an overlay tree that stores its entries in a
+ * <code>ConcurrentSkipListMap</code>. The cursor moves by means of key-based
+ * navigation methods of the skip list, which, unlike the entry-based ones, do
+ * not create an object per step. As keys and values are kept in individual
+ * arrays, they are copied to buffers of the cursor when being accessed.
+ */
+class SkipListOverlayCursor extends IndexCursor {
+    
+    private final ConcurrentSkipListMap<byte[], byte[]> map;
+    
+    private final byte[]                                nullValue;
+    
+    private byte[]                                      key;
+    
+    private byte[]                                      value;
+    
+    private ByteBuffer                                  keyBuf;
+    
+    private ByteBuffer                                  valueBuf;
+    
+    public SkipListOverlayCursor(ConcurrentSkipListMap<byte[], byte[]> map, byte[] nullValue) {
+        this.map = map;
+        this.nullValue = nullValue;
+    }
+    
+    public boolean seek(byte[] key) {
+        
+        if (key == null) {
+            Entry<byte[], byte[]> first = map.firstEntry();
+            return setEntry(first == null ? null : first.getKey(), first == null ? null : first.getValue());
+        }
+        
+        return setEntry(map.ceilingKey(key));
+    }
+    
+    public boolean seekForPrev(byte[] key) {
+        
+        if (key == null) {
+            Entry<byte[], byte[]> last = map.lastEntry();
+            return setEntry(last == null ? null : last.getKey(), last == null ? null : last.getValue());
+        }
+        
+        return setEntry(map.floorKey(key));
+    }
+    
+    public boolean next() {
+        checkValid();
+        return setEntry(map.higherKey(key));
+    }
+    
+    public boolean prev() {
+        checkValid();
+        return setEntry(map.lowerKey(key));
+    }
+    
+    public boolean isValid() {
+        return key != null;
+    }
+    
+    public ByteBuffer key() {
+        checkValid();
+        return keyBuf = toBuffer(key, keyBuf);
+    }
+    
+    public ByteBuffer value() {
+        checkValid();
+        return valueBuf = toBuffer(value, valueBuf);
+    }
+    
+    public boolean isDeleted() {
+        checkValid();
+        return value == nullValue;
+    }
+    
+    public void free() {
+        key = null;
+        value = null;
+    }
+    
+    private boolean setEntry(byte[] key) {
+        // entries are never removed from overlay trees
+        return setEntry(key, key == null ? null : map.get(key));
+    }
+    
+    private boolean setEntry(byte[] key, byte[] value) {
+        this.key = key;
+        this.value = value;
+        return key != null;
+    }
+    
+    private void checkValid() {
+        if (key == null)
+            throw new NoSuchElementException();
+    }
+    
+    /**
+     * Copies an array to a buffer, which is replaced by a larger one if it
+     * lacks the capacity.
+     */
+    private static ByteBuffer toBuffer(byte[] bytes, ByteBuffer buf) {
+        
+        if (buf == null || buf.capacity() < bytes.length)
+            buf = ByteBuffer.allocate(Math.max(bytes.length, buf == null ? 0 : buf.capacity() * 2));
+        
+        buf.clear();
+        buf.put(bytes);
+        buf.flip();
+        
+        return buf;
+    }
+    
+}
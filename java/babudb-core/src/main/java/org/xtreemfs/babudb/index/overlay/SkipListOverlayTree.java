@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.overlay;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An overlay tree that stores its entries on the Java heap in a
+ * <code>ConcurrentSkipListMap</code>. The memory usage of the tree is tracked
+ * if subclasses provide the size of entries.
+ */
+class SkipListOverlayTree<K, V> implements OverlayTree<K, V> {
+    
+    private final ConcurrentSkipListMap<K, V> tree;
+    
+    private final AtomicLong                  memoryUsage;
+    
+    private final AtomicLong                  numEntries;
+    
+    private final AtomicLong                  dataSize;
+    
+    public SkipListOverlayTree(Comparator<K> comparator) {
+        tree = new ConcurrentSkipListMap<K, V>(comparator);
+        memoryUsage = new AtomicLong();
+        numEntries = new AtomicLong();
+        dataSize = new AtomicLong();
+    }
+    
+    public V get(K key) {
+        return tree.get(key);
+    }
+    
+    public void put(K key, V value) {
+        
+        V prev = tree.put(key, value);
+        if (prev == null)
+            numEntries.incrementAndGet();
+        
+        long delta = getSize(key, value) - (prev == null ? 0 : getSize(key, prev));
+        if (delta != 0)
+            memoryUsage.addAndGet(delta);
+        
+        delta = getDataSize(key, value) - (prev == null ? 0 : getDataSize(key, prev));
+        if (delta != 0)
+            dataSize.addAndGet(delta);
+    }
+    
+    public Iterator<Entry<K, V>> rangeIterator(K from, K to, boolean ascending) {
+        
+        if (from != null && to != null) {
+            // both boundaries are provided
+            if (ascending)
+                return tree.subMap(from, to).entrySet().iterator();
+            else
+                return tree.descendingMap().subMap(from, to).entrySet().iterator();
+        } else if (from == null && to == null) {
+            // no boundary is provided
+            if (ascending)
+                return tree.entrySet().iterator();
+            else
+                return tree.descendingMap().entrySet().iterator();
+        } else if (from != null && to == null) {
+            // only 'from' obundary is provided
+            if (ascending)
+                return tree.tailMap(from).entrySet().iterator();
+            else
+                return tree.descendingMap().tailMap(from).entrySet().iterator();
+        } else {
+            // only 'to' boundary is provided
+            if (ascending)
+                return tree.headMap(to).entrySet().iterator();
+            else
+                return tree.descendingMap().headMap(to).entrySet().iterator();
+        }
+    }
+    
+    public long getMemoryUsage() {
+        return memoryUsage.get();
+    }
+    
+    /**
+     * Returns the skip list that holds the entries of the tree.
+     * 
+     * @return the skip list
+     */
+    protected ConcurrentSkipListMap<K, V> getMap() {
+        return tree;
+    }
+    
+    public long getNumEntries() {
+        return numEntries.get();
+    }
+    
+    public long getDataSize() {
+        return dataSize.get();
+    }
+    
+    public void destroy() {
+        // nothing to do, the entries are garbage-collected
+    }
+    
+    /**
+     * Returns the number of heap bytes occupied by an entry, including the
+     * overhead of the skip list.
+     * 
+     * @param key
+     *            the key of the entry
+     * @param value
+     *            the value of the entry
+     * @return the number of bytes, or 0 if the size is unknown
+     */
+    protected long getSize(K key, V value) {
+        return 0;
+    }
+    
+    /**
+     * Returns the number of bytes occupied by the key and value of an entry,
+     * without any overhead.
+     * 
+     * @param key
+     *            the key of the entry
+     * @param value
+     *            the value of the entry
+     * @return the number of bytes, or 0 if the size is unknown
+     */
+    protected long getDataSize(K key, V value) {
+        return 0;
+    }
+    
+}
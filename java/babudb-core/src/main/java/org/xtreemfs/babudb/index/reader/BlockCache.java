@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A process-wide cache for blocks of on-disk indices that are not memory-mapped.
+ * Encoded blocks are cached in their decoded form, regardless of whether their
+ * index is memory-mapped. Blocks are identified by the channel of their block
+ * file and their offset in the file. <br/>
+ * 
+ * The cache is bounded by a total size in bytes and evicts blocks based on a
+ * segmented LRU policy: blocks that are read for the first time are added to a
+ * probationary segment; blocks that are hit again are moved to a protected
+ * segment, which may occupy up to 80% of the cache. Evicted blocks are always
+ * taken from the probationary segment, so that a single large range scan
+ * cannot displace frequently accessed blocks. Blocks that are larger than the
+ * probationary share of a stripe, i.e. larger than 20% of a stripe's capacity
+ * or 1/80 of the total capacity, are never cached, since adding them would
+ * evict the entire probationary segment of the stripe; such blocks are
+ * counted as bypasses. <br/>
+ * 
+ * In order to allow for concurrent accesses, the cache is divided into a fixed
+ * number of stripes, each of which holds an equal share of the capacity and is
+ * guarded by its own lock. Blocks are assigned to stripes by the hash of their
+ * file and offset, and the segmented LRU policy is applied to each stripe
+ * separately. <br/>
+ * 
+ * Cached buffers are never modified once they have been added to the cache.
+ * Block readers must hence work on duplicates of the buffers, so as to have
+ * their own positions and limits.
+ */
+public class BlockCache {
+    
+    private static final int        PROTECTED_RATIO = 80;
+    
+    /**
+     * the number of stripes; must be a power of two
+     */
+    public static final int         NUM_STRIPES     = 16;
+    
+    private static final BlockCache INSTANCE        = new BlockCache(0, false);
+    
+    private final Stripe[]          stripes;
+    
+    private volatile long           capacity;
+    
+    private volatile boolean        offHeap;
+    
+    public BlockCache(long capacity, boolean offHeap) {
+        this.capacity = capacity;
+        this.offHeap = offHeap;
+        this.stripes = new Stripe[NUM_STRIPES];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+    }
+    
+    /**
+     * Returns the process-wide block cache. The cache is disabled until a
+     * capacity has been assigned.
+     * 
+     * @return the block cache
+     */
+    public static BlockCache getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Changes the capacity of the cache. If the new capacity is smaller than
+     * the current size, blocks are evicted. A capacity of 0 disables the cache.
+     * 
+     * @param capacity
+     *            the capacity in bytes
+     * @param offHeap
+     *            if <code>true</code>, blocks added in the future will be
+     *            stored in direct buffers outside of the Java heap
+     */
+    public void configure(long capacity, boolean offHeap) {
+        
+        this.capacity = capacity;
+        this.offHeap = offHeap;
+        
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                stripe.evict(capacity / NUM_STRIPES);
+            }
+    }
+    
+    /**
+     * Checks whether the cache is enabled.
+     * 
+     * @return <code>true</code>, if the capacity is greater than 0
+     */
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+    
+    /**
+     * Allocates a buffer for a block that is supposed to be added to the
+     * cache.
+     * 
+     * @param size
+     *            the size of the block
+     * @return the buffer
+     */
+    public ByteBuffer allocate(int size) {
+        return offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+    
+    /**
+     * Looks up a block.
+     * 
+     * @param file
+     *            the channel of the block file
+     * @param offset
+     *            the offset of the block in the file
+     * @return the buffer containing the block, or <code>null</code>, if the
+     *         block is not cached
+     */
+    public ByteBuffer get(Object file, long offset) {
+        
+        Key key = new Key(file, offset);
+        Stripe stripe = getStripe(key);
+        synchronized (stripe) {
+            return stripe.get(key, capacity / NUM_STRIPES);
+        }
+    }
+    
+    /**
+     * Adds a block to the cache.
+     * 
+     * @param file
+     *            the channel of the block file
+     * @param offset
+     *            the offset of the block in the file
+     * @param buf
+     *            the buffer containing the block; the buffer must not be
+     *            modified afterwards; if it exceeds 20% of the capacity of a
+     *            stripe, the block is not added
+     */
+    public void put(Object file, long offset, ByteBuffer buf) {
+        
+        Key key = new Key(file, offset);
+        Stripe stripe = getStripe(key);
+        synchronized (stripe) {
+            stripe.put(key, buf, capacity / NUM_STRIPES);
+        }
+    }
+    
+    /**
+     * Removes all blocks of a file from the cache. This method should be
+     * invoked when the file is closed.
+     * 
+     * @param file
+     *            the channel of the block file
+     */
+    public void invalidate(Object file) {
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                stripe.invalidate(file);
+            }
+    }
+    
+    public long getSize() {
+        
+        long size = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                size += stripe.probationSize + stripe.protectedSize;
+            }
+        
+        return size;
+    }
+    
+    public long getHits() {
+        
+        long hits = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        
+        return hits;
+    }
+    
+    public long getMisses() {
+        
+        long misses = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        
+        return misses;
+    }
+    
+    /**
+     * Returns the number of blocks that were not added to the cache because
+     * they were too large.
+     * 
+     * @return the number of bypassed blocks
+     */
+    public long getBypasses() {
+        
+        long bypasses = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                bypasses += stripe.bypasses;
+            }
+        
+        return bypasses;
+    }
+    
+    private Stripe getStripe(Key key) {
+        
+        // spread the hash code, so that keys which only differ in the higher
+        // bits are distributed across stripes
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        
+        return stripes[h & (NUM_STRIPES - 1)];
+    }
+    
+    /**
+     * A stripe of the cache. All methods have to be invoked while holding the
+     * lock of the stripe.
+     */
+    private static final class Stripe {
+        
+        private final LinkedHashMap<Key, ByteBuffer> probation;
+        
+        private final LinkedHashMap<Key, ByteBuffer> protect;
+        
+        /**
+         * the keys of all cached blocks per file, which allow for
+         * invalidating a file without scanning the entire stripe
+         */
+        private final Map<Object, Set<Key>>          files;
+        
+        private long                                 probationSize;
+        
+        private long                                 protectedSize;
+        
+        private long                                 hits;
+        
+        private long                                 misses;
+        
+        private long                                 bypasses;
+        
+        public Stripe() {
+            this.probation = new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+            this.protect = new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+            this.files = new IdentityHashMap<Object, Set<Key>>();
+        }
+        
+        public ByteBuffer get(Key key, long capacity) {
+            
+            ByteBuffer buf = protect.get(key);
+            if (buf != null) {
+                hits++;
+                return buf;
+            }
+            
+            // on a second access, promote the block to the protected segment
+            buf = probation.remove(key);
+            if (buf != null) {
+                hits++;
+                probationSize -= buf.capacity();
+                protect.put(key, buf);
+                protectedSize += buf.capacity();
+                evict(capacity);
+                return buf;
+            }
+            
+            misses++;
+            return null;
+        }
+        
+        public void put(Key key, ByteBuffer buf, long capacity) {
+            
+            // do not cache blocks that would evict the entire probationary
+            // segment
+            if (buf.capacity() > capacity * (100 - PROTECTED_RATIO) / 100) {
+                bypasses++;
+                return;
+            }
+            
+            if (protect.containsKey(key) || probation.containsKey(key))
+                return;
+            
+            probation.put(key, buf);
+            probationSize += buf.capacity();
+            
+            Set<Key> keys = files.get(key.file);
+            if (keys == null) {
+                keys = new HashSet<Key>();
+                files.put(key.file, keys);
+            }
+            keys.add(key);
+            
+            evict(capacity);
+        }
+        
+        public void invalidate(Object file) {
+            
+            Set<Key> keys = files.remove(file);
+            if (keys == null)
+                return;
+            
+            for (Key key : keys) {
+                
+                ByteBuffer buf = probation.remove(key);
+                if (buf != null)
+                    probationSize -= buf.capacity();
+                
+                buf = protect.remove(key);
+                if (buf != null)
+                    protectedSize -= buf.capacity();
+            }
+        }
+        
+        public void evict(long capacity) {
+            
+            // demote the least recently used protected blocks if the protected
+            // segment is too large
+            Iterator<Entry<Key, ByteBuffer>> it = protect.entrySet().iterator();
+            while (protectedSize > capacity * PROTECTED_RATIO / 100 && it.hasNext()) {
+                Entry<Key, ByteBuffer> entry = it.next();
+                it.remove();
+                protectedSize -= entry.getValue().capacity();
+                probation.put(entry.getKey(), entry.getValue());
+                probationSize += entry.getValue().capacity();
+            }
+            
+            // drop the least recently used probationary blocks if the stripe
+            // is too large
+            it = probation.entrySet().iterator();
+            while (probationSize + protectedSize > capacity && it.hasNext()) {
+                Entry<Key, ByteBuffer> entry = it.next();
+                it.remove();
+                probationSize -= entry.getValue().capacity();
+                
+                Set<Key> keys = files.get(entry.getKey().file);
+                keys.remove(entry.getKey());
+                if (keys.isEmpty())
+                    files.remove(entry.getKey().file);
+            }
+        }
+    
+    }
+    
+    private static final class Key {
+        
+        private final Object file;
+        
+        private final long   offset;
+        
+        public Key(Object file, long offset) {
+            this.file = file;
+            this.offset = offset;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            
+            if (!(obj instanceof Key))
+                return false;
+            
+            Key other = (Key) obj;
+            return file == other.file && offset == other.offset;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(file) * 31 + (int) (offset ^ (offset >>> 32));
+        }
+    
+    }
+    
+}
@@ -41,6 +41,12 @@ public abstract class BlockReader {
     
     protected final boolean       isBuffered;
     
+    /**
+     * indicates whether each value in the block is preceded by the expiry
+     * time of its entry
+     */
+    private boolean               expiryTimes;
+    
     protected BlockReader(boolean isBuffered) {
         this.isBuffered = isBuffered;
     }
@@ -58,6 +64,41 @@ public abstract class BlockReader {
     public abstract ResultSet<ByteRange, ByteRange> rangeLookup(byte[] from, byte[] to,
         final boolean ascending);
     
+    /**
+     * Returns the position of the first entry with a key greater than or equal
+     * to the given key.
+     * 
+     * @param key
+     *            the key
+     * @return the position, or the number of entries if all keys are smaller
+     */
+    public int getInclTopPosition(byte[] key) {
+        return keys.getInclTopPosition(key);
+    }
+    
+    /**
+     * Returns the position of the last entry with a key less than or equal to
+     * the given key.
+     * 
+     * @param key
+     *            the key
+     * @return the position, or -1 if all keys are larger
+     */
+    public int getInclBottomPosition(byte[] key) {
+        return keys.getInclBottomPosition(key);
+    }
+    
+    /**
+     * Returns the prefix shared by all keys of the block, if it has been
+     * stripped off the keys in the key page.
+     * 
+     * @return the prefix, or <code>null</code> if the key page contains
+     *         complete keys
+     */
+    public byte[] getKeyPrefix() {
+        return null;
+    }
+    
     public MiniPage getKeys() {
         return keys;
     }
@@ -70,6 +111,22 @@ public abstract class BlockReader {
         return numEntries;
     }
     
+    /**
+     * Checks whether each value in the block is preceded by the expiry time
+     * of its entry, which is the case if the block has been marked with
+     * <code>DiskIndex.EXPIRY_TIMES_FLAG</code> in the block index.
+     * 
+     * @return <code>true</code>, if values are preceded by expiry times,
+     *         <code>false</code>, otherwise
+     */
+    public boolean hasExpiryTimes() {
+        return expiryTimes;
+    }
+    
+    void setExpiryTimes(boolean expiryTimes) {
+        this.expiryTimes = expiryTimes;
+    }
+    
     public void free() {
         if (readBuffer != null)
             BufferPool.free(readBuffer);
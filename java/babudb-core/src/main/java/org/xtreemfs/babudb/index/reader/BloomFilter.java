@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.xtreemfs.babudb.index.ByteRange;
+
+/**
+ * Reads the Bloom filters of an on-disk index. The index holds one filter
+ * per block, so that a lookup can rule out a key once the block index has
+ * been searched and before the block itself is read. <br/>
+ * 
+ * The filter file consists of the number of hash functions (int), followed by
+ * the bit sets of all blocks (longs), the word offsets of all bit sets plus
+ * the total number of words (ints), and the number of blocks (int). <br/>
+ * 
+ * Keys are hashed by their raw bytes. Bloom filters can hence only be used
+ * with comparators that consider two keys equal if and only if their bytes
+ * are equal.
+ */
+public class BloomFilter {
+    
+    private static final int HEADER_SIZE = Integer.SIZE / 8;
+    
+    private final ByteBuffer buf;
+    
+    private final int        numHashes;
+    
+    private final int        numBlocks;
+    
+    private final int        offsetsStart;
+    
+    /**
+     * Loads a Bloom filter file.
+     * 
+     * @param path
+     *            the path to the file
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public BloomFilter(String path) throws IOException {
+        
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            buf = ByteBuffer.allocate((int) file.length());
+            FileChannel channel = file.getChannel();
+            while (buf.hasRemaining())
+                if (channel.read(buf) == -1)
+                    throw new IOException("unexpected end of Bloom filter file '" + path + "'");
+        } finally {
+            file.close();
+        }
+        
+        numHashes = buf.getInt(0);
+        numBlocks = buf.getInt(buf.limit() - Integer.SIZE / 8);
+        offsetsStart = buf.limit() - (numBlocks + 2) * (Integer.SIZE / 8);
+        
+        if (numHashes <= 0 || numBlocks < 0 || offsetsStart < HEADER_SIZE)
+            throw new IOException("corrupted Bloom filter file '" + path + "'");
+    }
+    
+    /**
+     * Checks whether the block with the given index position may contain the
+     * given key.
+     * 
+     * @param blockIndexPosition
+     *            the position of the block in the block index
+     * @param key
+     *            the key
+     * @return <code>false</code>, if the key is definitely not contained in
+     *         the block, <code>true</code>, otherwise
+     */
+    public boolean mightContain(int blockIndexPosition, byte[] key) {
+        
+        if (blockIndexPosition < 0 || blockIndexPosition >= numBlocks)
+            return true;
+        
+        int startWord = buf.getInt(offsetsStart + blockIndexPosition * (Integer.SIZE / 8));
+        int endWord = buf.getInt(offsetsStart + (blockIndexPosition + 1) * (Integer.SIZE / 8));
+        long numBits = (long) (endWord - startWord) * Long.SIZE;
+        if (numBits == 0)
+            return true;
+        
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            long word = buf.getLong(HEADER_SIZE + (startWord + (int) (bit / Long.SIZE)) * (Long.SIZE / 8));
+            if ((word & (1L << (bit % Long.SIZE))) == 0)
+                return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the size of the filter in bytes.
+     * 
+     * @return the size
+     */
+    public int getSize() {
+        return buf.limit();
+    }
+    
+    /**
+     * Calculates the number of hash functions that minimizes the false
+     * positive rate for the given number of bits per key.
+     * 
+     * @param bitsPerKey
+     *            the number of bits per key
+     * @return the number of hash functions
+     */
+    public static int getNumHashes(int bitsPerKey) {
+        return Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * Math.log(2))));
+    }
+    
+    /**
+     * Sets the bits for a key in a bit set.
+     * 
+     * @param bits
+     *            the bit set
+     * @param numHashes
+     *            the number of hash functions
+     * @param hash
+     *            the hash of the key
+     */
+    public static void set(long[] bits, int numHashes, long hash) {
+        
+        long numBits = (long) bits.length * Long.SIZE;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit / Long.SIZE)] |= 1L << (bit % Long.SIZE);
+        }
+    }
+    
+    /**
+     * Calculates a 64-bit hash of a key.
+     * 
+     * @param key
+     *            the key, either a byte array or a <code>ByteRange</code>
+     * @return the hash
+     */
+    public static long hash(Object key) {
+        
+        long h = 0xcbf29ce484222325L;
+        
+        if (key instanceof byte[]) {
+            for (byte b : (byte[]) key)
+                h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        
+        else {
+            ByteRange range = (ByteRange) key;
+            if (range.getPrefix() != null)
+                for (byte b : range.getPrefix())
+                    h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+            ByteBuffer rangeBuf = range.getBuf();
+            for (int i = range.getStartOffset(); i < range.getEndOffset(); i++)
+                h = (h ^ (rangeBuf.get(i) & 0xFF)) * 0x100000001b3L;
+        }
+        
+        // mix the bits, so as to obtain two independent 32-bit hashes
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        
+        return h;
+    }
+    
+}
@@ -81,16 +81,19 @@ public class CompressedBlockReader extends BlockReader {
      * @param comp
      *            the byte range comparator
      */
-    public CompressedBlockReader(FileChannel channel, int position, int limit, ByteRangeComparator comp)
+    public CompressedBlockReader(FileChannel channel, long position, long limit, ByteRangeComparator comp)
         throws IOException {
         
         super(false);
         
-        this.readBuffer = BufferPool.allocate(limit - position);
+        // offsets refer to the read buffer, which only contains the block
+        int size = (int) (limit - position);
+        
+        this.readBuffer = BufferPool.allocate(size);
         channel.read(readBuffer.getBuffer(), position);
         
-        this.position = position;
-        this.limit = limit;
+        this.position = 0;
+        this.limit = size;
         this.comp = comp;
         
         int valsOffset = readBuffer.getBuffer().getInt(0);
@@ -115,8 +118,8 @@ public class CompressedBlockReader extends BlockReader {
             valsOffset, comp) : new FixedLenMiniPage(keyEntrySize, numEntries, readBuffer.getBuffer(),
             keysOffset, valsOffset, comp);
         values = valEntrySize == -1 ? new VarLenMiniPage(numEntries, readBuffer.getBuffer(), valsOffset,
-            limit - position, comp) : new FixedLenMiniPage(valEntrySize, numEntries, readBuffer.getBuffer(),
-            valsOffset, limit - position, comp);
+            size, comp) : new FixedLenMiniPage(valEntrySize, numEntries, readBuffer.getBuffer(), valsOffset,
+            size, comp);
         
     }
     
@@ -148,6 +151,48 @@ public class CompressedBlockReader extends BlockReader {
         return suffixKey;
     }
     
+    /**
+     * Compares the beginning of a key to the prefix of the block. Keys that
+     * are shorter than the prefix are regarded as smaller if they match the
+     * beginning of the prefix.
+     * 
+     * @param key
+     * @return a negative value, 0, or a positive value, if the key is smaller
+     *         than, starts with, or is larger than the prefix, respectively
+     */
+    private int comparePrefix(byte[] key) {
+        
+        if (prefix.length == 0)
+            return 0;
+        
+        byte[] keyPrefix = new byte[Math.min(prefix.length, key.length)];
+        System.arraycopy(key, 0, keyPrefix, 0, keyPrefix.length);
+        
+        return comp.compare(keyPrefix, prefix);
+    }
+    
+    public int getInclTopPosition(byte[] key) {
+        
+        if (key == null)
+            return 0;
+        
+        int result = comparePrefix(key);
+        return result < 0 ? 0 : result > 0 ? numEntries : keys.getInclTopPosition(usableSuffix(key));
+    }
+    
+    public int getInclBottomPosition(byte[] key) {
+        
+        if (key == null)
+            return numEntries - 1;
+        
+        int result = comparePrefix(key);
+        return result < 0 ? -1 : result > 0 ? numEntries - 1 : keys.getInclBottomPosition(usableSuffix(key));
+    }
+    
+    public byte[] getKeyPrefix() {
+        return prefix.length == 0 ? null : prefix;
+    }
+    
     public ByteRange lookup(byte[] key) {
         // if the key contains prefix check if the block
         // contains what remains after removing the prefix
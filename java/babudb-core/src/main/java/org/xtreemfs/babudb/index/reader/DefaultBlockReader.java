@@ -22,6 +22,18 @@ public class DefaultBlockReader extends BlockReader {
     
     public static final int KEYS_OFFSET = 4 * Integer.SIZE / 8;
     
+    /**
+     * Creates a reader without any entries, which is initialized by a
+     * subclass.
+     * 
+     * @param isBuffered
+     *            <code>true</code>, if the block is buffered,
+     *            <code>false</code>, if it is streamed
+     */
+    protected DefaultBlockReader(boolean isBuffered) {
+        super(isBuffered);
+    }
+    
     /**
      * Creates a reader for a buffered block.
      * 
@@ -74,20 +86,22 @@ public class DefaultBlockReader extends BlockReader {
      * @param comp
      *            the byte range comparator
      */
-    public DefaultBlockReader(FileChannel channel, int position, int limit, ByteRangeComparator comp)
+    public DefaultBlockReader(FileChannel channel, long position, long limit, ByteRangeComparator comp)
         throws IOException {
         
         super(false);
         
-        this.position = position;
-        this.limit = limit;
+        // offsets refer to the read buffer, which only contains the block
+        int size = (int) (limit - position);
+        this.position = 0;
+        this.limit = size;
         this.comp = comp;
         
-        this.readBuffer = BufferPool.allocate(limit - position);
+        this.readBuffer = BufferPool.allocate(size);
         channel.read(readBuffer.getBuffer(), position);
         
-        // with limit <= 0 there are no entries in the buffer
-        if (limit > 0) {
+        // with size <= 0 there are no entries in the buffer
+        if (size > 0) {
             int keysOffset = KEYS_OFFSET;
             int valsOffset = readBuffer.getBuffer().getInt(0);
             numEntries = readBuffer.getBuffer().getInt(4);
@@ -97,8 +111,8 @@ public class DefaultBlockReader extends BlockReader {
                 valsOffset, comp) : new FixedLenMiniPage(keyEntrySize, numEntries, readBuffer.getBuffer(),
                 keysOffset, valsOffset, comp);
             values = valEntrySize == -1 ? new VarLenMiniPage(numEntries, readBuffer.getBuffer(), valsOffset,
-                limit - position, comp) : new FixedLenMiniPage(valEntrySize, numEntries, readBuffer
-                    .getBuffer(), valsOffset, limit - position, comp);
+                size, comp) : new FixedLenMiniPage(valEntrySize, numEntries, readBuffer.getBuffer(),
+                valsOffset, size, comp);
         } else {
             numEntries = 0;
             keys = new FixedLenMiniPage(0, 0, null, 0, 0, comp);
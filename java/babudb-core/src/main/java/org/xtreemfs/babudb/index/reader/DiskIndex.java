@@ -7,43 +7,181 @@
  */
 package org.xtreemfs.babudb.index.reader;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.BlockCodec;
 import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.KeyRange;
+import org.xtreemfs.babudb.index.KeyRangeSet;
+import org.xtreemfs.babudb.index.LSMTree;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
 
 public class DiskIndex {
     
-    private ByteBuffer          blockIndexBuf;
+    /**
+     * Tag preceding each value stored in a delta run.
+     */
+    public static final byte        VALUE_TAG                 = 0;
+    
+    /**
+     * Tag marking a deleted entry in a delta run.
+     */
+    public static final byte        TOMBSTONE_TAG             = 1;
+    
+    /**
+     * the format of blocks that have been written by a
+     * <code>DefaultBlockWriter</code> or <code>CompressedBlockWriter</code>,
+     * depending on whether the index is compressed
+     */
+    public static final byte        PLAIN_BLOCK               = 0;
+    
+    /**
+     * the format of blocks that have been written by a
+     * <code>PrefixCodedBlockWriter</code>
+     */
+    public static final byte        PREFIX_CODED_BLOCK        = 1;
+    
+    /**
+     * the index format in which the block index records the offset of each
+     * block as a 32-bit integer, followed by the ID of the block file and,
+     * depending on how the index has been written, the codec and the format
+     * of the block
+     */
+    public static final int         FORMAT_V1                 = 1;
+    
+    /**
+     * the index format in which the block index records the offset of each
+     * block as a 64-bit integer, followed by the ID of the block file, the
+     * codec and the format of the block
+     */
+    public static final int         FORMAT_V2                 = 2;
+    
+    /**
+     * the size of an entry in the block index of a format-v2 index; entries
+     * of format-v1 indices are smaller
+     */
+    public static final int         FORMAT_V2_ENTRY_SIZE      = (Long.SIZE / 8) + (Short.SIZE / 8) + 2;
+    
+    /**
+     * flag that is combined with the format of a block in the block index if
+     * each value in the block is preceded by the expiry time of its entry, as
+     * a 64-bit integer that is 0 if the entry does not expire; in tagged
+     * runs, the expiry time precedes the tag
+     */
+    public static final byte        EXPIRY_TIMES_FLAG         = 0x10;
+    
+    /**
+     * name of the file that holds the key ranges deleted in a run; the file
+     * only exists if any ranges have been deleted
+     */
+    public static final String      DELETED_RANGES_FILE       = "deletedranges.idx";
     
-    private BlockReader         blockIndex;
+    /**
+     * number of lookups in all indices that were answered by a Bloom filter
+     * without reading a block
+     */
+    private static final AtomicLong bloomFilterHits           = new AtomicLong();
+    
+    /**
+     * number of lookups in all indices for which a Bloom filter could not rule
+     * out the key, so that a block had to be read
+     */
+    private static final AtomicLong bloomFilterMisses         = new AtomicLong();
+    
+    /**
+     * number of Bloom filter misses for which the key was not found in the
+     * block
+     */
+    private static final AtomicLong bloomFilterFalsePositives = new AtomicLong();
+    
+    private ByteBuffer              blockIndexBuf;
+    
+    private BlockReader             blockIndex;
+    
+    private MappedBlockFile[]       dbFiles;
+    
+    private FileChannel[]           dbFileChannels;
+    
+    private ByteRangeComparator     comp;
     
-    private MappedByteBuffer[]  dbFiles;
+    private long                    indexSize;
     
-    private FileChannel[]       dbFileChannels;
+    private final boolean           compressed;
     
-    private ByteRangeComparator comp;
+    private final boolean           mmaped;
     
-    private long                indexSize;
+    private final String            runPrefix;
     
-    private final boolean       compressed;
+    private final byte[]            tombstone;
     
-    private final boolean       mmaped;
+    private final BloomFilter       bloomFilter;
+    
+    /**
+     * the key ranges deleted in all runs older than this run
+     */
+    private final KeyRangeSet<byte[]> deletedRanges;
+    
+    /**
+     * the number of references to the index, including the one held by its
+     * owner; the index is closed when the last reference is released
+     */
+    private final AtomicInteger     refCount                  = new AtomicInteger(1);
+    
+    private final AtomicBoolean     closed                    = new AtomicBoolean();
+    
+    /**
+     * the number of keys, which is determined on first access, or -1 if it has
+     * not been determined yet
+     */
+    private volatile long           numKeys                   = -1;
     
     public DiskIndex(String path, ByteRangeComparator comp, boolean compressed, boolean mmaped)
         throws IOException {
+        this(path, "", comp, compressed, mmaped, null);
+    }
+    
+    /**
+     * Opens a single run of an index. All files of a run share a common
+     * prefix, which allows several runs to reside in the same directory.
+     * 
+     * @param path
+     *            the directory containing the index files
+     * @param runPrefix
+     *            the prefix of all files belonging to the run
+     * @param comp
+     *            a comparator for byte ranges
+     * @param compressed
+     *            specifies whether the blocks are compressed
+     * @param mmaped
+     *            specifies whether the block files are memory-mapped
+     * @param tombstone
+     *            if not <code>null</code>, values in the run are tagged (see
+     *            <code>VALUE_TAG</code> and <code>TOMBSTONE_TAG</code>), and
+     *            deleted entries are returned with <code>tombstone</code> as
+     *            their value
+     * @throws IOException
+     *             if the index cannot be read
+     */
+    public DiskIndex(String path, String runPrefix, ByteRangeComparator comp, boolean compressed,
+        boolean mmaped, byte[] tombstone) throws IOException {
         if (!path.endsWith(System.getProperty("file.separator")))
             path += System.getProperty("file.separator");
         
@@ -53,13 +191,15 @@ public class DiskIndex {
         this.comp = comp;
         this.compressed = compressed;
         this.mmaped = mmaped;
+        this.runPrefix = runPrefix;
+        this.tombstone = tombstone;
         Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "loading index ...");
         
         // First, read the block index into a buffer. For performance reasons,
         // the block index has to remain in memory all the time, so it cannot be
         // memory-mapped.
         
-        RandomAccessFile blockIndexFile = new RandomAccessFile(path + "blockindex.idx", "r");
+        RandomAccessFile blockIndexFile = new RandomAccessFile(path + runPrefix + "blockindex.idx", "r");
         blockIndexBuf = ByteBuffer.allocate((int) (blockIndexFile.length()));
         FileChannel channel = blockIndexFile.getChannel();
         channel.read(blockIndexBuf);
@@ -67,20 +207,28 @@ public class DiskIndex {
         blockIndex = new DefaultBlockReader(blockIndexBuf, 0, blockIndexBuf.limit(), comp);
         channel.close();
         
+        // load the Bloom filter, if the index has one
+        File bloomFilterFile = new File(path + runPrefix + "bloomfilter.idx");
+        bloomFilter = bloomFilterFile.exists() ? new BloomFilter(bloomFilterFile.getPath()) : null;
+        
+        // load the deleted ranges, if any ranges have been deleted
+        File deletedRangesFile = new File(path + runPrefix + DELETED_RANGES_FILE);
+        deletedRanges = deletedRangesFile.exists() ? readDeletedRanges(deletedRangesFile, comp)
+            : new KeyRangeSet<byte[]>(comp);
+        
         // Second, mmap each of the potentially large block list files
+        final Pattern p = Pattern.compile(Pattern.quote(runPrefix) + "blockfile_(\\d+).idx");
         FilenameFilter filter = new FilenameFilter() {
             public boolean accept(File dir, String filename) {
-                return filename.startsWith("blockfile_");
+                return p.matcher(filename).matches();
             }
         };
         String blockFilenames[] = new File(path).list(filter);
         
-        Pattern p = Pattern.compile("blockfile_(\\d+).idx");
-        
         dbFileChannels = new FileChannel[blockFilenames.length];
         
         if (mmaped)
-            dbFiles = new MappedByteBuffer[blockFilenames.length];
+            dbFiles = new MappedBlockFile[blockFilenames.length];
         
         for (String blockFilename : blockFilenames) {
             Matcher m = p.matcher(blockFilename);
@@ -94,8 +242,12 @@ public class DiskIndex {
                 // channels; otherwise, no maps will be created, and channels
                 // will be closed when the index is released
                 if (mmaped) {
-                    dbFiles[blockIndexId] = dbFileChannels[blockIndexId].map(MapMode.READ_ONLY, 0, blockFile
-                            .length());
+                    // block offsets are only needed if multiple segments are
+                    // mapped
+                    long[] blockOffsets = new long[0];
+                    if (blockFile.length() > MappedBlockFile.getMaxSegmentSize())
+                        blockOffsets = getBlockOffsets(blockIndexId);
+                    dbFiles[blockIndexId] = new MappedBlockFile(dbFileChannels[blockIndexId], blockOffsets);
                     Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
                             "block file index size: " + blockFile.length());
                     dbFileChannels[blockIndexId].close();
@@ -115,82 +267,167 @@ public class DiskIndex {
         if (indexPosition == -1)
             return null;
         
-        int startBlockOffset = getBlockOffset(indexPosition, blockIndex);
-        int fileId = getBlockFileId(indexPosition, blockIndex);
-        
-        int endBlockOffset;
-        if (indexPosition == blockIndex.getNumEntries() - 1)
-            // the last block in the block index
-            endBlockOffset = -1;
-        else {
-            ByteRange indexPos = getBlockEntry(indexPosition + 1, blockIndex);
-            ByteBuffer indexPosBuf = indexPos.getBuf();
-            endBlockOffset = getBlockIndexOffset(indexPosBuf, indexPos.getStartOffset());
-            
-            // is this the last block of the current block file?
-            // then the endBlockOffset should be set to the end of the file
-            if (getBlockIndexFileId(indexPosBuf, indexPos.getStartOffset()) > fileId)
-                endBlockOffset = -1;
-            
-            // endBlockOffset = getBlockOffset(indexPosition + 1, blockIndex);
+        // check the Bloom filter before reading the block
+        if (bloomFilter != null) {
+            if (!bloomFilter.mightContain(indexPosition, key)) {
+                bloomFilterHits.incrementAndGet();
+                return null;
+            }
+            bloomFilterMisses.incrementAndGet();
         }
         
         // create a view buffer on the target block
-        BlockReader targetBlock = null;
-        try {
-            targetBlock = mmaped ? getBlock(startBlockOffset, endBlockOffset, dbFiles[fileId]) : getBlock(
-                startBlockOffset, endBlockOffset, dbFileChannels[fileId]);
-        } catch (IOException e) {
-            Logging.logError(Logging.LEVEL_ERROR, this, e);
-        }
+        BlockReader targetBlock = readBlock(indexPosition);
         
         // search for the key in the target block and return the result
         ByteRange val = targetBlock.lookup(key);
-        byte[] result = val == null ? null : val.toBuffer();
+        byte[] result = val == null ? null : decodeValue(val, targetBlock.hasExpiryTimes(), LSMTree
+                .getClock().currentTimeMillis());
         targetBlock.free();
         
+        if (val == null && bloomFilter != null)
+            bloomFilterFalsePositives.incrementAndGet();
+        
         return result;
     }
     
+    /**
+     * Looks up multiple keys at once. Keys are expected in ascending order, so
+     * that consecutive keys falling in the same block share a single block
+     * read; keys in any other order are looked up correctly, but blocks may be
+     * read multiple times.
+     * 
+     * @param keys
+     *            the keys to look up, in ascending order
+     * @return an array containing the value associated with each key at the
+     *         same position, or <code>null</code> if the index does not
+     *         contain the key
+     */
+    public byte[][] lookup(byte[][] keys) {
+        
+        byte[][] results = new byte[keys.length][];
+        MiniPage indexKeys = blockIndex.getKeys();
+        long now = LSMTree.getClock().currentTimeMillis();
+        
+        BlockReader targetBlock = null;
+        int blockPosition = -1;
+        try {
+            
+            for (int i = 0; i < keys.length; i++) {
+                
+                // if the key precedes the first key of the next block, it
+                // belongs to the block read last; otherwise, search the block
+                // index
+                int indexPosition;
+                if (blockPosition != -1 && indexKeys.compare(blockPosition, keys[i]) <= 0
+                    && (blockPosition == blockIndex.getNumEntries() - 1
+                        || indexKeys.compare(blockPosition + 1, keys[i]) > 0))
+                    indexPosition = blockPosition;
+                else
+                    indexPosition = getBlockIndexPosition(keys[i], blockIndex);
+                
+                if (indexPosition == -1)
+                    continue;
+                
+                // check the Bloom filter before reading the block
+                if (bloomFilter != null) {
+                    if (!bloomFilter.mightContain(indexPosition, keys[i])) {
+                        bloomFilterHits.incrementAndGet();
+                        continue;
+                    }
+                    bloomFilterMisses.incrementAndGet();
+                }
+                
+                // read the target block, unless it has been read for a
+                // previous key
+                if (indexPosition != blockPosition) {
+                    if (targetBlock != null)
+                        targetBlock.free();
+                    targetBlock = readBlock(indexPosition);
+                    blockPosition = indexPosition;
+                }
+                
+                ByteRange val = targetBlock.lookup(keys[i]);
+                results[i] = val == null ? null : decodeValue(val, targetBlock.hasExpiryTimes(), now);
+                
+                if (val == null && bloomFilter != null)
+                    bloomFilterFalsePositives.incrementAndGet();
+            }
+            
+        } finally {
+            if (targetBlock != null)
+                targetBlock.free();
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Returns the number of keys in the index. The number is computed from the
+     * number of entries in the first and the last block on first access, and
+     * cached afterwards, as indices are immutable.
+     * 
+     * @return the number of keys
+     */
     public long numKeys() {
         
+        if (numKeys == -1)
+            numKeys = countKeys();
+        
+        return numKeys;
+    }
+    
+    /**
+     * Estimates the number of entries between two keys. The estimate is
+     * derived from the positions of the keys in the block index, assuming
+     * that all blocks hold the same number of entries and that the blocks
+     * containing the keys are covered halfway. Apart from the first call, no
+     * data blocks are read.
+     * 
+     * @param from
+     *            the first key (inclusively); if <code>null</code>, the
+     *            range starts with the first key in the index
+     * @param to
+     *            the last key (exclusively); if <code>null</code>, the range
+     *            ends with the last key in the index
+     * @return the estimated number of entries
+     */
+    public long estimateCount(byte[] from, byte[] to) {
+        return Math.round(numKeys() * getBlockFraction(from, to));
+    }
+    
+    /**
+     * Estimates the number of bytes occupied by the entries between two keys
+     * in the same way as <code>estimateCount()</code>.
+     * 
+     * @param from
+     *            the first key (inclusively); if <code>null</code>, the
+     *            range starts with the first key in the index
+     * @param to
+     *            the last key (exclusively); if <code>null</code>, the range
+     *            ends with the last key in the index
+     * @return the estimated number of bytes
+     */
+    public long estimateSize(byte[] from, byte[] to) {
+        return Math.round(indexSize * getBlockFraction(from, to));
+    }
+    
+    private long countKeys() {
+        
         int numBlocks = blockIndex.getNumEntries();
         
         // return 0 if no keys are contained
         if (numBlocks == 0)
             return 0;
         
-        int lastBlockStartOffset = getBlockOffset(numBlocks - 1, blockIndex);
-        int lastBlockEndOffset = -1;
-        BlockReader lastBlock = null;
-        try {
-            lastBlock = mmaped ? getBlock(lastBlockStartOffset, lastBlockEndOffset, dbFiles[getBlockFileId(
-                numBlocks - 1, blockIndex)]) : getBlock(lastBlockStartOffset, lastBlockEndOffset,
-                dbFileChannels[getBlockFileId(numBlocks - 1, blockIndex)]);
-        } catch (IOException e) {
-            Logging.logError(Logging.LEVEL_ERROR, this, e);
-        }
+        BlockReader lastBlock = readBlock(numBlocks - 1);
         long lastBlockEntryCount = lastBlock.getNumEntries();
         lastBlock.free();
         
         if (numBlocks == 1)
             return lastBlockEntryCount;
         
-        int firstBlockStartOffset = 0;
-        int firstBlockEndBlockOffset = getBlockOffset(1, blockIndex);
-        
-        // the 1 block is the last in the current block file
-        if (getBlockFileId(1, blockIndex) > getBlockFileId(0, blockIndex))
-            firstBlockEndBlockOffset = -1;
-        
-        BlockReader firstBlock = null;
-        try {
-            firstBlock = mmaped ? getBlock(firstBlockStartOffset, firstBlockEndBlockOffset,
-                dbFiles[getBlockFileId(0, blockIndex)]) : getBlock(firstBlockStartOffset,
-                firstBlockEndBlockOffset, dbFileChannels[getBlockFileId(0, blockIndex)]);
-        } catch (IOException e) {
-            Logging.logError(Logging.LEVEL_ERROR, this, e);
-        }
+        BlockReader firstBlock = readBlock(0);
         long firstBlocksEntryCount = (long) firstBlock.getNumEntries() * (numBlocks - 1);
         firstBlock.free();
         
@@ -199,21 +436,40 @@ public class DiskIndex {
     
     public ResultSet<byte[], byte[]> rangeLookup(final byte[] from, final byte[] to,
         final boolean ascending) {
+        return rangeLookup(from, to, ascending, false);
+    }
+    
+    /**
+     * Performs a range lookup. If only keys are requested, values are not
+     * copied from the index blocks.
+     * 
+     * @param from
+     *            the first key (inclusively), or <code>null</code>
+     * @param to
+     *            the last key (exclusively), or <code>null</code>
+     * @param ascending
+     *            the iteration order
+     * @param keysOnly
+     *            if <code>true</code>, entries are returned with
+     *            <code>null</code> values, or with the tombstone if they are
+     *            deleted
+     * @return an iterator over the entries
+     */
+    public ResultSet<byte[], byte[]> rangeLookup(final byte[] from, final byte[] to,
+        final boolean ascending, final boolean keysOnly) {
         
         // return iterator for mmap'ed indices
         if (mmaped) {
-            final ByteBuffer[] map = new ByteBuffer[dbFiles.length];
-            for (int i = 0; i < dbFiles.length; i++) {
-                dbFiles[i].position(0);
-                map[i] = dbFiles[i].slice();
-            }
+            final MappedBlockFile[] map = new MappedBlockFile[dbFiles.length];
+            for (int i = 0; i < dbFiles.length; i++)
+                map[i] = dbFiles[i].duplicate();
             
-            return new DiskIndexIterator(this, blockIndex, from, to, ascending, map);
+            return new DiskIndexIterator(this, blockIndex, from, to, ascending, keysOnly, map);
         }
         
         // return iterator for non-mmap'ed indices
         else
-            return new DiskIndexIterator(this, blockIndex, from, to, ascending, dbFileChannels);
+            return new DiskIndexIterator(this, blockIndex, from, to, ascending, keysOnly, dbFileChannels);
     }
     
     public InternalDiskIndexIterator internalRangeLookup(final byte[] from, final byte[] to,
@@ -221,11 +477,9 @@ public class DiskIndex {
         
         // return iterator for mmap'ed indices
         if (mmaped) {
-            final ByteBuffer[] map = new ByteBuffer[dbFiles.length];
-            for (int i = 0; i < dbFiles.length; i++) {
-                dbFiles[i].position(0);
-                map[i] = dbFiles[i].slice();
-            }
+            final MappedBlockFile[] map = new MappedBlockFile[dbFiles.length];
+            for (int i = 0; i < dbFiles.length; i++)
+                map[i] = dbFiles[i].duplicate();
             
             return new InternalDiskIndexIterator(this, blockIndex, from, to, ascending, map);
         }
@@ -235,6 +489,17 @@ public class DiskIndex {
             return new InternalDiskIndexIterator(this, blockIndex, from, to, ascending, dbFileChannels);
     }
     
+    /**
+     * Creates a cursor over the entries of the index. Deleted entries of tagged
+     * indices are returned as well and marked as such, as are entries that
+     * have expired when the cursor is created.
+     * 
+     * @return the cursor
+     */
+    public DiskIndexCursor cursor() {
+        return new DiskIndexCursor(this, blockIndex, LSMTree.getClock().currentTimeMillis());
+    }
+    
     public ByteRangeComparator getComparator() {
         return comp;
     }
@@ -243,53 +508,346 @@ public class DiskIndex {
         return indexSize;
     }
     
-    public void destroy() throws IOException {
-        blockIndex.free();
-        for (FileChannel c : dbFileChannels) {
-            c.close();
+    /**
+     * Returns the format of the index, which is determined by the size of the
+     * block index entries.
+     * 
+     * @return <code>FORMAT_V1</code> or <code>FORMAT_V2</code>
+     */
+    public int getFormatVersion() {
+        return blockIndex.getNumEntries() == 0 || hasLongOffset(0, blockIndex) ? FORMAT_V2 : FORMAT_V1;
+    }
+    
+    /**
+     * Returns the prefix shared by all files of this index.
+     * 
+     * @return the file prefix
+     */
+    public String getRunPrefix() {
+        return runPrefix;
+    }
+    
+    /**
+     * Checks whether the index contains tagged values, i.e. whether it may
+     * contain deleted entries.
+     * 
+     * @return <code>true</code>, if values are tagged, <code>false</code>,
+     *         otherwise
+     */
+    public boolean isTagged() {
+        return tombstone != null;
+    }
+    
+    /**
+     * Returns the key ranges that have been deleted after all older runs of
+     * the index were written. Entries of older runs in these ranges are
+     * regarded as deleted, whereas the entries of this run are not affected.
+     * 
+     * @return the deleted ranges
+     */
+    public KeyRangeSet<byte[]> getDeletedRanges() {
+        return deletedRanges;
+    }
+    
+    /**
+     * Returns the names of all files that make up this index.
+     * 
+     * @return the name of the block index file followed by the names of all
+     *         block files, the Bloom filter file and the file with the
+     *         deleted ranges, if any
+     */
+    public String[] getFileNames() {
+        List<String> files = new ArrayList<String>(dbFileChannels.length + 3);
+        files.add(runPrefix + "blockindex.idx");
+        for (int i = 0; i < dbFileChannels.length; i++)
+            files.add(runPrefix + "blockfile_" + i + ".idx");
+        if (bloomFilter != null)
+            files.add(runPrefix + "bloomfilter.idx");
+        if (!deletedRanges.isEmpty())
+            files.add(runPrefix + DELETED_RANGES_FILE);
+        return files.toArray(new String[files.size()]);
+    }
+    
+    private static KeyRangeSet<byte[]> readDeletedRanges(File file, ByteRangeComparator comp)
+        throws IOException {
+        
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int numRanges = in.readInt();
+            List<KeyRange<byte[]>> ranges = new ArrayList<KeyRange<byte[]>>(numRanges);
+            for (int i = 0; i < numRanges; i++) {
+                byte[] from = readKey(in);
+                ranges.add(new KeyRange<byte[]>(from, readKey(in)));
+            }
+            return new KeyRangeSet<byte[]>(ranges, comp);
+        } finally {
+            in.close();
         }
     }
     
+    private static byte[] readKey(DataInputStream in) throws IOException {
+        
+        int len = in.readInt();
+        if (len == -1)
+            return null;
+        
+        byte[] key = new byte[len];
+        in.readFully(key);
+        return key;
+    }
+    
+    /**
+     * Returns the number of lookups in all indices that were answered by a
+     * Bloom filter without reading a block.
+     * 
+     * @return the number of Bloom filter hits
+     */
+    public static long getBloomFilterHits() {
+        return bloomFilterHits.get();
+    }
+    
+    /**
+     * Returns the number of lookups in all indices for which a block had to be
+     * read, as the Bloom filter could not rule out the key.
+     * 
+     * @return the number of Bloom filter misses
+     */
+    public static long getBloomFilterMisses() {
+        return bloomFilterMisses.get();
+    }
+    
+    /**
+     * Returns the number of Bloom filter misses in all indices for which the
+     * key turned out not to be contained in the index.
+     * 
+     * @return the number of false positives
+     */
+    public static long getBloomFilterFalsePositives() {
+        return bloomFilterFalsePositives.get();
+    }
+    
+    /**
+     * Acquires a reference to the index, which keeps the index from being
+     * closed while it is being read.
+     * 
+     * @return <code>true</code>, if the reference was acquired,
+     *         <code>false</code>, if the index has been closed already
+     */
+    public boolean acquire() {
+        
+        for (;;) {
+            int count = refCount.get();
+            if (count == 0)
+                return false;
+            if (refCount.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+    
+    /**
+     * Releases a reference to the index. If no further references exist, the
+     * index is closed.
+     */
+    public void release() {
+        
+        if (refCount.decrementAndGet() == 0) {
+            try {
+                close();
+            } catch (IOException exc) {
+                Logging.logError(Logging.LEVEL_ERROR, this, exc);
+            }
+        }
+    }
+    
+    /**
+     * Releases the reference held by the owner of the index. The index is
+     * closed as soon as all readers have released their references.
+     * 
+     * @throws IOException
+     *             if the index files cannot be closed
+     */
+    public void destroy() throws IOException {
+        
+        if (refCount.decrementAndGet() == 0)
+            close();
+    }
+    
     public void finalize() throws Throwable {
         try {
-            destroy();
+            close();
         } catch (IOException exc) {
             Logging.logError(Logging.LEVEL_ERROR, this, exc);
         }
         super.finalize();
     }
     
-    protected BlockReader getBlock(int startBlockOffset, int endBlockOffset, ByteBuffer map) {
+    private void close() throws IOException {
         
-        if (startBlockOffset > map.limit())
-            return null;
+        if (!closed.compareAndSet(false, true))
+            return;
         
-        if (endBlockOffset == -1)
-            endBlockOffset = map.limit();
+        blockIndex.free();
+        for (FileChannel c : dbFileChannels) {
+            BlockCache.getInstance().invalidate(c);
+            c.close();
+        }
+    }
+    
+    /**
+     * Converts a value stored in the index to a byte array. Values are
+     * stripped of their expiry times and tags; deleted and expired entries
+     * are mapped to the tombstone.
+     * 
+     * @param val
+     *            the stored value
+     * @param expiryTimes
+     *            indicates whether the value is preceded by an expiry time
+     * @param now
+     *            the time against which the expiry time is checked
+     * @return the value as a byte array, or the tombstone if the entry was
+     *         deleted or has expired, which is <code>null</code> in untagged
+     *         indices
+     */
+    protected byte[] decodeValue(ByteRange val, boolean expiryTimes, long now) {
         
-        BlockReader targetBlock;
+        if (expiryTimes && isExpired(val, now))
+            return tombstone;
         
-        if (compressed) {
-            targetBlock = new CompressedBlockReader(map, startBlockOffset, endBlockOffset, comp);
-        } else {
-            targetBlock = new DefaultBlockReader(map, startBlockOffset, endBlockOffset, comp);
+        int start = getTagOffset(val, expiryTimes);
+        if (tombstone != null) {
+            if (val.getBuf().get(start) == TOMBSTONE_TAG)
+                return tombstone;
+            start++;
         }
         
-        return targetBlock;
+        if (start == val.getStartOffset())
+            return val.toBuffer();
+        
+        return new ByteRange(val.getBuf(), start, val.getEndOffset()).toBuffer();
     }
     
-    protected BlockReader getBlock(int startBlockOffset, int endBlockOffset, FileChannel channel)
-        throws IOException {
+    /**
+     * Determines whether a value stored in the index marks its entry as
+     * deleted or expired, without copying the value.
+     * 
+     * @param val
+     *            the stored value
+     * @param expiryTimes
+     *            indicates whether the value is preceded by an expiry time
+     * @param now
+     *            the time against which the expiry time is checked
+     * @return the tombstone if the entry was deleted or has expired,
+     *         <code>null</code> otherwise
+     */
+    protected byte[] decodeDeletion(ByteRange val, boolean expiryTimes, long now) {
+        
+        if (expiryTimes && isExpired(val, now))
+            return tombstone;
+        
+        if (tombstone == null || val.getBuf().get(getTagOffset(val, expiryTimes)) != TOMBSTONE_TAG)
+            return null;
+        
+        return tombstone;
+    }
+    
+    /**
+     * Strips the expiry time and the tag off a value stored in the index.
+     * Expired entries are not treated differently from others.
+     * 
+     * @param val
+     *            the stored value
+     * @param expiryTimes
+     *            indicates whether the value is preceded by an expiry time
+     * @return the stripped value, or the tombstone if the entry was deleted
+     */
+    protected Object decodeInternalValue(ByteRange val, boolean expiryTimes) {
+        
+        int start = getTagOffset(val, expiryTimes);
+        if (tombstone != null) {
+            if (val.getBuf().get(start) == TOMBSTONE_TAG)
+                return tombstone;
+            start++;
+        }
+        
+        if (start == val.getStartOffset())
+            return val;
+        
+        ByteRange result = new ByteRange(val.getBuf(), start, val.getEndOffset());
+        result.setReusableBuf(val.getReusableBuf());
+        return result;
+    }
+    
+    /**
+     * Returns the expiry time preceding a value stored in the index.
+     * 
+     * @param val
+     *            the stored value, which has to be preceded by an expiry time
+     * @return the expiry time, or 0 if the entry does not expire
+     */
+    protected static long getExpiryTime(ByteRange val) {
+        return val.getBuf().getLong(val.getStartOffset());
+    }
+    
+    /**
+     * Checks whether the expiry time preceding a value stored in the index
+     * has passed.
+     * 
+     * @param val
+     *            the stored value, which has to be preceded by an expiry time
+     * @param now
+     *            the time against which the expiry time is checked
+     * @return <code>true</code>, if the entry has expired, <code>false</code>,
+     *         otherwise
+     */
+    protected static boolean isExpired(ByteRange val, long now) {
+        long expiryTime = getExpiryTime(val);
+        return expiryTime != 0 && expiryTime <= now;
+    }
+    
+    /**
+     * Returns the offset at which a value stored in the index continues after
+     * its expiry time, i.e. the offset of its tag in tagged indices.
+     */
+    private static int getTagOffset(ByteRange val, boolean expiryTimes) {
+        return expiryTimes ? val.getStartOffset() + Long.SIZE / 8 : val.getStartOffset();
+    }
+    
+    protected BlockReader getBlock(long startBlockOffset, long endBlockOffset, byte format,
+        MappedBlockFile map) {
+        
+        if (startBlockOffset > map.size())
+            return null;
+        
+        if (endBlockOffset == -1)
+            endBlockOffset = map.size();
+        
+        // blocks never span multiple segments
+        int segment = map.getSegment(startBlockOffset);
+        long segmentOffset = map.getSegmentOffset(segment);
+        
+        return createBlockReader(map.getSegmentBuffer(segment), (int) (startBlockOffset - segmentOffset),
+            (int) (endBlockOffset - segmentOffset), format);
+    }
+    
+    protected BlockReader getBlock(long startBlockOffset, long endBlockOffset, byte format,
+        FileChannel channel) throws IOException {
         
         if (startBlockOffset > channel.size())
             return null;
         
         if (endBlockOffset == -1)
-            endBlockOffset = (int) channel.size();
+            endBlockOffset = channel.size();
+        
+        // if the block cache is enabled, read the block from the cache
+        BlockCache cache = BlockCache.getInstance();
+        if (cache.isEnabled())
+            return getBlock(startBlockOffset, endBlockOffset, format, channel, cache);
         
         BlockReader targetBlock;
         
-        if (compressed) {
+        if (format == PREFIX_CODED_BLOCK) {
+            targetBlock = new PrefixCodedBlockReader(channel, startBlockOffset, endBlockOffset, comp);
+        } else if (compressed) {
             targetBlock = new CompressedBlockReader(channel, startBlockOffset, endBlockOffset, comp);
         } else {
             targetBlock = new DefaultBlockReader(channel, startBlockOffset, endBlockOffset, comp);
@@ -298,6 +856,202 @@ public class DiskIndex {
         return targetBlock;
     }
     
+    private BlockReader getBlock(long startBlockOffset, long endBlockOffset, byte format,
+        FileChannel channel, BlockCache cache) throws IOException {
+        
+        ByteBuffer buf = cache.get(channel, startBlockOffset);
+        
+        // if the block is not cached yet, read it from disk and add it
+        if (buf == null) {
+            
+            buf = cache.allocate((int) (endBlockOffset - startBlockOffset));
+            while (buf.hasRemaining())
+                if (channel.read(buf, startBlockOffset + buf.position()) == -1)
+                    throw new IOException("unexpected end of block file");
+            buf.flip();
+            
+            cache.put(channel, startBlockOffset, buf);
+        }
+        
+        // cached buffers are shared, so each reader needs its own duplicate
+        buf = buf.duplicate();
+        
+        return createBlockReader(buf, 0, buf.limit(), format);
+    }
+    
+    /**
+     * Reads the block at the given position in the block index.
+     * 
+     * @param indexPosition
+     *            the position in the block index
+     * @return a reader for the block
+     */
+    BlockReader readBlock(int indexPosition) {
+        
+        BlockReader targetBlock = null;
+        try {
+            targetBlock = getBlock(indexPosition, mmaped ? dbFiles : null, dbFileChannels);
+        } catch (IOException e) {
+            Logging.logError(Logging.LEVEL_ERROR, this, e);
+        }
+        
+        return targetBlock;
+    }
+    
+    /**
+     * Reads the block at the given position in the block index.
+     * 
+     * @param indexPosition
+     *            the position in the block index
+     * @param maps
+     *            the memory-mapped block files, or <code>null</code> if the
+     *            index is not memory-mapped
+     * @param channels
+     *            the channels to the block files, or <code>null</code> if the
+     *            index is memory-mapped
+     * @return a reader for the block
+     * @throws IOException
+     *             if the block cannot be read
+     */
+    BlockReader getBlock(int indexPosition, MappedBlockFile[] maps, FileChannel[] channels)
+        throws IOException {
+        
+        long startBlockOffset = getBlockOffset(indexPosition, blockIndex);
+        int fileId = getBlockFileId(indexPosition, blockIndex);
+        
+        long endBlockOffset;
+        if (indexPosition == blockIndex.getNumEntries() - 1)
+            // the last block in the block index
+            endBlockOffset = -1;
+        else {
+            endBlockOffset = getBlockOffset(indexPosition + 1, blockIndex);
+            
+            // is this the last block of the current block file?
+            // then the endBlockOffset should be set to the end of the file
+            if (getBlockFileId(indexPosition + 1, blockIndex) > fileId)
+                endBlockOffset = -1;
+        }
+        
+        // the channels of the index identify the block files in the cache,
+        // as iterators over memory-mapped indices do not hold any channels
+        byte codec = getBlockCodec(indexPosition, blockIndex);
+        byte format = getBlockFormat(indexPosition, blockIndex);
+        BlockReader block;
+        if (codec != BlockCodec.NONE)
+            block = getEncodedBlock(startBlockOffset, endBlockOffset, codec, format, maps == null ? null
+                : maps[fileId], dbFileChannels[fileId]);
+        else
+            block = maps != null ? getBlock(startBlockOffset, endBlockOffset, format, maps[fileId])
+                : getBlock(startBlockOffset, endBlockOffset, format, channels[fileId]);
+        
+        if (block != null)
+            block.setExpiryTimes(hasExpiryTimes(indexPosition, blockIndex));
+        
+        return block;
+    }
+    
+    /**
+     * Reads and decodes an encoded block. If the block cache is enabled,
+     * decoded blocks are cached, so that frequently accessed blocks are not
+     * decoded again on each access.
+     * 
+     * @param startBlockOffset
+     *            the offset of the block in the block file
+     * @param endBlockOffset
+     *            the offset of the next block, or -1 if the block is the last
+     *            one in the block file
+     * @param codecId
+     *            the ID of the codec of the block
+     * @param format
+     *            the format of the decoded block
+     * @param map
+     *            the memory-mapped block file, or <code>null</code> if the
+     *            index is not memory-mapped
+     * @param channel
+     *            the channel to the block file, which identifies the block
+     *            file in the cache
+     * @return a reader for the decoded block
+     * @throws IOException
+     *             if the block cannot be read or decoded
+     */
+    private BlockReader getEncodedBlock(long startBlockOffset, long endBlockOffset, byte codecId,
+        byte format, MappedBlockFile map, FileChannel channel) throws IOException {
+        
+        BlockCodec codec = BlockCodec.getCodec(codecId);
+        
+        BlockCache cache = BlockCache.getInstance();
+        boolean cached = cache.isEnabled();
+        
+        ByteBuffer buf = cached ? cache.get(channel, startBlockOffset) : null;
+        
+        if (buf == null) {
+            
+            if (endBlockOffset == -1)
+                endBlockOffset = map != null ? map.size() : channel.size();
+            
+            // read the encoded block, which is preceded by the length of the
+            // decoded block
+            byte[] encodedBlock = new byte[(int) (endBlockOffset - startBlockOffset)];
+            if (map != null) {
+                int segment = map.getSegment(startBlockOffset);
+                ByteBuffer tmp = map.getSegmentBuffer(segment).duplicate();
+                tmp.position((int) (startBlockOffset - map.getSegmentOffset(segment)));
+                tmp.get(encodedBlock);
+            } else {
+                ByteBuffer tmp = ByteBuffer.wrap(encodedBlock);
+                while (tmp.hasRemaining())
+                    if (channel.read(tmp, startBlockOffset + tmp.position()) == -1)
+                        throw new IOException("unexpected end of block file");
+            }
+            int length = ByteBuffer.wrap(encodedBlock).getInt();
+            
+            // decode the block directly into the buffer, unless the buffer is
+            // a direct buffer
+            int headerLength = Integer.SIZE / 8;
+            buf = cached ? cache.allocate(length) : ByteBuffer.allocate(length);
+            if (buf.hasArray())
+                codec.decode(encodedBlock, headerLength, encodedBlock.length - headerLength, buf.array(), buf
+                        .arrayOffset(), length);
+            else {
+                byte[] block = new byte[length];
+                codec.decode(encodedBlock, headerLength, encodedBlock.length - headerLength, block, 0, length);
+                buf.put(block);
+                buf.clear();
+            }
+            
+            if (cached)
+                cache.put(channel, startBlockOffset, buf);
+        }
+        
+        // cached buffers are shared, so each reader needs its own duplicate
+        buf = buf.duplicate();
+        
+        return createBlockReader(buf, 0, buf.limit(), format);
+    }
+    
+    /**
+     * Returns the fraction of all blocks covered by a key range.
+     * 
+     * @param from
+     *            the first key, or <code>null</code>
+     * @param to
+     *            the last key, or <code>null</code>
+     * @return the fraction, between 0 and 1
+     */
+    private double getBlockFraction(byte[] from, byte[] to) {
+        
+        int numBlocks = blockIndex.getNumEntries();
+        if (numBlocks == 0)
+            return 0;
+        
+        // keys preceding the first block are mapped to position -1, so that
+        // they are counted as the start of the first block
+        double first = from == null ? 0 : Math.max(getBlockIndexPosition(from, blockIndex) + 0.5, 0);
+        double last = to == null ? numBlocks : Math.max(getBlockIndexPosition(to, blockIndex) + 0.5, 0);
+        
+        return Math.max(last - first, 0) / numBlocks;
+    }
+    
     /**
      * Returns the index of the block potentially contains the given key.
      * 
@@ -308,7 +1062,7 @@ public class DiskIndex {
      * @return the block index
      */
     protected int getBlockIndexPosition(byte[] key, BlockReader index) {
-        return SearchUtil.getInclBottomOffset(index.getKeys(), key, comp);
+        return SearchUtil.getInclBottomOffset(index.getKeys(), key);
     }
     
     /**
@@ -321,39 +1075,163 @@ public class DiskIndex {
      *            the block index
      * @return the offset
      */
-    protected static int getBlockOffset(int indexPosition, BlockReader index) {
-        ByteRange range = index.getValues().getEntry(indexPosition);
-        return range.getBuf().getInt(range.getStartOffset());
+    protected static long getBlockOffset(int indexPosition, BlockReader index) {
+        MiniPage values = index.getValues();
+        int offset = values.getEntryOffset(indexPosition);
+        return hasLongOffset(indexPosition, index) ? values.getBuffer().getLong(offset) : values.getBuffer()
+                .getInt(offset);
     }
     
     /**
-     * Returns the id of the block file
+     * Checks whether the offset of the block at the given index position is
+     * recorded as a 64-bit integer, which is the case in format-v2 indices.
      * 
      * @param indexPosition
      *            the position in the block index
      * @param index
      *            the block index
-     * @return the block file id
+     * @return <code>true</code>, if the offset is a 64-bit integer,
+     *         <code>false</code>, if it is a 32-bit integer
      */
-    protected static short getBlockFileId(int indexPosition, BlockReader index) {
-        ByteRange range = index.getValues().getEntry(indexPosition);
-        // block file index is after the int indicating the offset in the index
-        // file
-        return range.getBuf().getShort(range.getStartOffset() + (Integer.SIZE / 8));
+    protected static boolean hasLongOffset(int indexPosition, BlockReader index) {
+        MiniPage values = index.getValues();
+        int entrySize = values.getEntryEnd(indexPosition) - values.getEntryOffset(indexPosition);
+        return entrySize >= FORMAT_V2_ENTRY_SIZE;
     }
     
-    protected static ByteRange getBlockEntry(int indexPosition, BlockReader index) {
-        ByteRange range = index.getValues().getEntry(indexPosition);
-        // block file index is after the int indicating the offset in the index
-        // file
-        return range;
+    /**
+     * Returns the size of the block offset recorded at the given index
+     * position.
+     * 
+     * @param indexPosition
+     *            the position in the block index
+     * @param index
+     *            the block index
+     * @return the size in bytes
+     */
+    private static int getOffsetSize(int indexPosition, BlockReader index) {
+        return hasLongOffset(indexPosition, index) ? Long.SIZE / 8 : Integer.SIZE / 8;
     }
     
-    protected static int getBlockIndexOffset(ByteBuffer buf, int startOffset) {
-        return buf.getInt(startOffset);
+    /**
+     * Returns the offsets of all blocks in a block file.
+     * 
+     * @param fileId
+     *            the ID of the block file
+     * @return the offsets, in ascending order
+     */
+    private long[] getBlockOffsets(int fileId) {
+        
+        int count = 0;
+        for (int i = 0; i < blockIndex.getNumEntries(); i++)
+            if (getBlockFileId(i, blockIndex) == fileId)
+                count++;
+        
+        long[] offsets = new long[count];
+        count = 0;
+        for (int i = 0; i < blockIndex.getNumEntries(); i++)
+            if (getBlockFileId(i, blockIndex) == fileId)
+                offsets[count++] = getBlockOffset(i, blockIndex);
+        
+        return offsets;
     }
     
-    protected static short getBlockIndexFileId(ByteBuffer buf, int startOffset) {
-        return buf.getShort(startOffset + (Integer.SIZE / 8));
+    /**
+     * Returns the ID of the codec with which the block at the given index
+     * position has been encoded. The codec is recorded after the offset and
+     * the block file ID, if the index has been written with a codec or with
+     * prefix-coded blocks.
+     * 
+     * @param indexPosition
+     *            the position in the block index
+     * @param index
+     *            the block index
+     * @return the codec ID
+     */
+    protected static byte getBlockCodec(int indexPosition, BlockReader index) {
+        
+        MiniPage values = index.getValues();
+        int offset = values.getEntryOffset(indexPosition) + getOffsetSize(indexPosition, index)
+            + (Short.SIZE / 8);
+        
+        return offset < values.getEntryEnd(indexPosition) ? values.getBuffer().get(offset) : BlockCodec.NONE;
+    }
+    
+    /**
+     * Returns the format of the block at the given index position. The format
+     * is recorded after the codec ID, unless the block is a plain block
+     * without expiry times.
+     * 
+     * @param indexPosition
+     *            the position in the block index
+     * @param index
+     *            the block index
+     * @return the block format, without <code>EXPIRY_TIMES_FLAG</code>
+     */
+    protected static byte getBlockFormat(int indexPosition, BlockReader index) {
+        return (byte) (getRecordedBlockFormat(indexPosition, index) & ~EXPIRY_TIMES_FLAG);
     }
+    
+    /**
+     * Checks whether the values of the block at the given index position are
+     * preceded by expiry times.
+     * 
+     * @param indexPosition
+     *            the position in the block index
+     * @param index
+     *            the block index
+     * @return <code>true</code>, if the block has been marked with
+     *         <code>EXPIRY_TIMES_FLAG</code>, <code>false</code>, otherwise
+     */
+    protected static boolean hasExpiryTimes(int indexPosition, BlockReader index) {
+        return (getRecordedBlockFormat(indexPosition, index) & EXPIRY_TIMES_FLAG) != 0;
+    }
+    
+    private static byte getRecordedBlockFormat(int indexPosition, BlockReader index) {
+        
+        MiniPage values = index.getValues();
+        int offset = values.getEntryOffset(indexPosition) + getOffsetSize(indexPosition, index)
+            + (Short.SIZE / 8) + 1;
+        
+        return offset < values.getEntryEnd(indexPosition) ? values.getBuffer().get(offset) : PLAIN_BLOCK;
+    }
+    
+    /**
+     * Creates a reader for a buffered block.
+     * 
+     * @param buf
+     *            the buffer
+     * @param position
+     *            the position of the block in the buffer
+     * @param limit
+     *            the limit of the block in the buffer
+     * @param format
+     *            the format of the block
+     * @return the reader
+     */
+    private BlockReader createBlockReader(ByteBuffer buf, int position, int limit, byte format) {
+        
+        if (format == PREFIX_CODED_BLOCK)
+            return new PrefixCodedBlockReader(buf, position, limit, comp);
+        
+        return compressed ? new CompressedBlockReader(buf, position, limit, comp) : new DefaultBlockReader(buf,
+            position, limit, comp);
+    }
+    
+    /**
+     * Returns the id of the block file
+     * 
+     * @param indexPosition
+     *            the position in the block index
+     * @param index
+     *            the block index
+     * @return the block file id
+     */
+    protected static short getBlockFileId(int indexPosition, BlockReader index) {
+        MiniPage values = index.getValues();
+        // block file index is after the offset in the index file
+        return values.getBuffer().getShort(
+            values.getEntryOffset(indexPosition) + getOffsetSize(indexPosition, index));
+    }
+
 }
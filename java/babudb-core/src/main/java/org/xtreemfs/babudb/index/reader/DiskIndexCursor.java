@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import org.xtreemfs.babudb.index.IndexCursor;
+
+/**
+ * A cursor over an on-disk index. The cursor holds a single block at a time,
+ * which is located by means of the block index, and addresses entries by their
+ * position in the block. Keys and values are returned as views on the block
+ * buffer, which are created once per block. Only the keys of compressed and
+ * prefix-coded blocks are copied, as the prefix shared by all keys of a block
+ * or with the preceding key is not stored with each key. Entries that have
+ * expired when the cursor is created are marked as deleted.
+ */
+public class DiskIndexCursor extends IndexCursor {
+    
+    private final DiskIndex   index;
+    
+    private final BlockReader blockIndex;
+    
+    private final boolean     tagged;
+    
+    /**
+     * the time against which the expiry times of entries are checked
+     */
+    private final long        now;
+    
+    /**
+     * the position of the current block in the block index, or -1 if no block
+     * is held
+     */
+    private int               blockPosition;
+    
+    private BlockReader       block;
+    
+    /**
+     * the position of the current entry in the current block
+     */
+    private int               entry;
+    
+    private boolean           valid;
+    
+    private ByteBuffer        keyView;
+    
+    private ByteBuffer        valueView;
+    
+    /**
+     * a buffer for assembling the keys of compressed blocks
+     */
+    private ByteBuffer        keyBuf;
+    
+    DiskIndexCursor(DiskIndex index, BlockReader blockIndex, long now) {
+        this.index = index;
+        this.blockIndex = blockIndex;
+        this.tagged = index.isTagged();
+        this.now = now;
+        this.blockPosition = -1;
+    }
+    
+    public boolean seek(byte[] key) {
+        
+        int position = key == null ? -1 : index.getBlockIndexPosition(key, blockIndex);
+        
+        // keys preceding the first block are positioned at the first entry
+        if (position < 0)
+            return moveToBlock(0, true);
+        
+        if (!loadBlock(position))
+            return valid = false;
+        
+        entry = block.getInclTopPosition(key);
+        return entry < block.getNumEntries() ? (valid = true) : moveToBlock(position + 1, true);
+    }
+    
+    public boolean seekForPrev(byte[] key) {
+        
+        if (key == null)
+            return moveToBlock(blockIndex.getNumEntries() - 1, false);
+        
+        // keys preceding the first block precede all entries
+        int position = index.getBlockIndexPosition(key, blockIndex);
+        if (position < 0) {
+            releaseBlock();
+            return valid = false;
+        }
+        
+        if (!loadBlock(position))
+            return valid = false;
+        
+        entry = block.getInclBottomPosition(key);
+        return entry >= 0 ? (valid = true) : moveToBlock(position - 1, false);
+    }
+    
+    public boolean next() {
+        
+        checkValid();
+        
+        if (++entry < block.getNumEntries())
+            return true;
+        
+        return moveToBlock(blockPosition + 1, true);
+    }
+    
+    public boolean prev() {
+        
+        checkValid();
+        
+        if (--entry >= 0)
+            return true;
+        
+        return moveToBlock(blockPosition - 1, false);
+    }
+    
+    public boolean isValid() {
+        return valid;
+    }
+    
+    public ByteBuffer key() {
+        
+        checkValid();
+        
+        ByteBuffer key = block.getKeys().getEntryView(entry, keyView);
+        
+        byte[] prefix = block.getKeyPrefix();
+        if (prefix == null)
+            return key;
+        
+        int size = prefix.length + key.remaining();
+        if (keyBuf == null || keyBuf.capacity() < size)
+            keyBuf = ByteBuffer.allocate(Math.max(size, keyBuf == null ? 0 : keyBuf.capacity() * 2));
+        
+        keyBuf.clear();
+        keyBuf.put(prefix);
+        keyBuf.put(key);
+        keyBuf.flip();
+        
+        return keyBuf;
+    }
+    
+    public ByteBuffer value() {
+        
+        checkValid();
+        
+        // skip the expiry time and the tag of the value
+        MiniPage values = block.getValues();
+        int start = getTagOffset(values);
+        return view(valueView, tagged ? start + 1 : start, values.getEntryEnd(entry));
+    }
+    
+    public boolean isDeleted() {
+        
+        checkValid();
+        
+        MiniPage values = block.getValues();
+        if (block.hasExpiryTimes()) {
+            long expiryTime = values.getBuffer().getLong(values.getEntryOffset(entry));
+            if (expiryTime != 0 && expiryTime <= now)
+                return true;
+        }
+        
+        return tagged && values.getBuffer().get(getTagOffset(values)) == DiskIndex.TOMBSTONE_TAG;
+    }
+    
+    public void free() {
+        releaseBlock();
+        valid = false;
+    }
+    
+    /**
+     * Positions the cursor at the first or last entry of a block. Empty blocks
+     * are skipped.
+     * 
+     * @param position
+     *            the position of the block in the block index
+     * @param first
+     *            if <code>true</code>, the cursor is positioned at the first
+     *            entry of the block or any subsequent block; otherwise, it is
+     *            positioned at the last entry of the block or any preceding
+     *            block
+     * @return <code>true</code>, if the cursor is positioned at an entry,
+     *         <code>false</code>, otherwise
+     */
+    private boolean moveToBlock(int position, boolean first) {
+        
+        for (; position >= 0 && position < blockIndex.getNumEntries(); position += first ? 1 : -1) {
+            
+            if (!loadBlock(position))
+                return valid = false;
+            
+            if (block.getNumEntries() > 0) {
+                entry = first ? 0 : block.getNumEntries() - 1;
+                return valid = true;
+            }
+        }
+        
+        releaseBlock();
+        return valid = false;
+    }
+    
+    private boolean loadBlock(int position) {
+        
+        if (position == blockPosition)
+            return true;
+        
+        releaseBlock();
+        
+        block = index.readBlock(position);
+        if (block == null)
+            return false;
+        
+        blockPosition = position;
+        if (block.getNumEntries() > 0) {
+            keyView = block.getKeys().getBuffer().duplicate();
+            valueView = block.getValues().getBuffer().duplicate();
+        }
+        
+        return true;
+    }
+    
+    private void releaseBlock() {
+        
+        if (block != null)
+            block.free();
+        
+        block = null;
+        blockPosition = -1;
+        keyView = null;
+        valueView = null;
+    }
+    
+    /**
+     * Returns the offset of the current value in the block buffer, skipping
+     * its expiry time, if any.
+     */
+    private int getTagOffset(MiniPage values) {
+        int start = values.getEntryOffset(entry);
+        return block.hasExpiryTimes() ? start + Long.SIZE / 8 : start;
+    }
+    
+    private void checkValid() {
+        if (!valid)
+            throw new NoSuchElementException();
+    }
+    
+    private static ByteBuffer view(ByteBuffer view, int start, int end) {
+        view.limit(end);
+        view.position(start);
+        return view;
+    }
+    
+}
@@ -8,17 +8,30 @@
 
 package org.xtreemfs.babudb.index.reader;
 
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.NoSuchElementException;
 import java.util.Map.Entry;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.LSMTree;
 import org.xtreemfs.foundation.buffer.BufferPool;
 
 public class DiskIndexIterator extends DiskIndexIteratorBase implements ResultSet<byte[], byte[]> {
     
+    private final boolean         keysOnly;
+    
+    /**
+     * the time against which the expiry times of entries are checked
+     */
+    private final long            now;
+    
+    /**
+     * the next entry to return, or <code>null</code> if it has not been
+     * fetched yet
+     */
+    private Entry<byte[], byte[]> next;
+    
     /**
      * Disk index iterator for mmap'ed index files.
      * 
@@ -32,12 +45,18 @@ public class DiskIndexIterator extends DiskIndexIteratorBase implements ResultSe
      *            largest key (exclusively)
      * @param ascending
      *            defines the iteration order
+     * @param keysOnly
+     *            if <code>true</code>, values are not copied; entries are
+     *            returned with <code>null</code> values, or the tombstone if
+     *            they are deleted
      * @param maps
      *            an array of mmap'ed buffers
      */
     public DiskIndexIterator(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, ByteBuffer[] maps) {
+        boolean ascending, boolean keysOnly, MappedBlockFile[] maps) {
         super(index, blockIndexReader, from, to, ascending, maps, null);
+        this.keysOnly = keysOnly;
+        this.now = LSMTree.getClock().currentTimeMillis();
     }
     
     /**
@@ -53,51 +72,86 @@ public class DiskIndexIterator extends DiskIndexIteratorBase implements ResultSe
      *            largest key (exclusively)
      * @param ascending
      *            defines the iteration order
+     * @param keysOnly
+     *            if <code>true</code>, values are not copied; entries are
+     *            returned with <code>null</code> values, or the tombstone if
+     *            they are deleted
      * @param dbFileChannels
      *            an array of file channels
      */
     public DiskIndexIterator(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, FileChannel[] dbFileChannels) {
+        boolean ascending, boolean keysOnly, FileChannel[] dbFileChannels) {
         super(index, blockIndexReader, from, to, ascending, null, dbFileChannels);
+        this.keysOnly = keysOnly;
+        this.now = LSMTree.getClock().currentTimeMillis();
     }
     
+    /**
+     * Checks whether further entries exist. Expired entries are returned as
+     * deleted entries in tagged indices and skipped in untagged indices, which
+     * requires the next entry to be fetched in advance.
+     */
     @Override
-    public Entry<byte[], byte[]> next() {
+    public boolean hasNext() {
         
-        if (!hasNext())
-            throw new NoSuchElementException();
-        
-        final Entry<ByteRange, ByteRange> entry = currentBlockIterator.next();
-        return new Entry<byte[], byte[]>() {
-            
-            private byte[] key;
+        while (next == null && super.hasNext()) {
             
-            private byte[] value;
+            final Entry<ByteRange, ByteRange> entry = currentBlockIterator.next();
+            final boolean expiryTimes = hasExpiryTimes();
             
-            {
-                key = entry.getKey().toBuffer();
-                value = entry.getValue().toBuffer();
-                
-                if(entry.getValue().getReusableBuf() != null)
+            if (expiryTimes && !getIndex().isTagged() && DiskIndex.isExpired(entry.getValue(), now)) {
+                if (entry.getValue().getReusableBuf() != null)
                     BufferPool.free(entry.getValue().getReusableBuf());
+                continue;
             }
             
-            @Override
-            public byte[] getKey() {
-                return key;
-            }
-            
-            @Override
-            public byte[] getValue() {
-                return value;
-            }
-            
-            @Override
-            public byte[] setValue(byte[] value) {
-                throw new UnsupportedOperationException();
-            }
+            next = new Entry<byte[], byte[]>() {
+                
+                private byte[] key;
+                
+                private byte[] value;
+                
+                {
+                    key = entry.getKey().toBuffer();
+                    if (keysOnly)
+                        value = getIndex().decodeDeletion(entry.getValue(), expiryTimes, now);
+                    else
+                        value = getIndex().decodeValue(entry.getValue(), expiryTimes, now);
+                    
+                    if (entry.getValue().getReusableBuf() != null)
+                        BufferPool.free(entry.getValue().getReusableBuf());
+                }
+                
+                @Override
+                public byte[] getKey() {
+                    return key;
+                }
+                
+                @Override
+                public byte[] getValue() {
+                    return value;
+                }
+                
+                @Override
+                public byte[] setValue(byte[] value) {
+                    throw new UnsupportedOperationException();
+                }
             
-        };
+            };
+        }
+        
+        return next != null;
+    }
+    
+    @Override
+    public Entry<byte[], byte[]> next() {
+        
+        if (!hasNext())
+            throw new NoSuchElementException();
+        
+        Entry<byte[], byte[]> tmp = next;
+        next = null;
+        return tmp;
     }
     
 }
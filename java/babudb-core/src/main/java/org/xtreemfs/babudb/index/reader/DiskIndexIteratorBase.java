@@ -9,7 +9,6 @@
 package org.xtreemfs.babudb.index.reader;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
 import java.util.Iterator;
@@ -28,7 +27,7 @@ public abstract class DiskIndexIteratorBase {
     
     private final BlockReader                       blockIndexReader;
     
-    private final ByteBuffer[]                      maps;
+    private final MappedBlockFile[]                 maps;
     
     private final FileChannel[]                     dbFileChannels;
     
@@ -45,7 +44,7 @@ public abstract class DiskIndexIteratorBase {
     protected Iterator<Entry<ByteRange, ByteRange>> currentBlockIterator;
     
     protected DiskIndexIteratorBase(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, ByteBuffer[] maps, FileChannel[] dbFileChannels) {
+        boolean ascending, MappedBlockFile[] maps, FileChannel[] dbFileChannels) {
         
         this.maps = maps;
         this.dbFileChannels = dbFileChannels;
@@ -105,6 +104,21 @@ public abstract class DiskIndexIteratorBase {
             currentBlock.free();
     }
     
+    protected DiskIndex getIndex() {
+        return index;
+    }
+    
+    /**
+     * Checks whether the values of the block from which entries are currently
+     * returned are preceded by expiry times.
+     * 
+     * @return <code>true</code>, if values are preceded by expiry times,
+     *         <code>false</code>, otherwise
+     */
+    protected boolean hasExpiryTimes() {
+        return currentBlock != null && currentBlock.hasExpiryTimes();
+    }
+    
     protected void finalize() throws Throwable {
         free();
         super.finalize();
@@ -129,33 +143,8 @@ public abstract class DiskIndexIteratorBase {
             return;
         }
         
-        int startOffset = DiskIndex.getBlockOffset(currentBlockIndex, blockIndexReader);
-        // when last block or a single block the offset should be the
-        // size of the block
-        
-        int fileId = DiskIndex.getBlockFileId(currentBlockIndex, blockIndexReader);
-        int endOffset;
-        if (currentBlockIndex == blockIndexReader.getNumEntries() - 1)
-            // the last block in the block index
-            endOffset = -1;
-        else {
-            ByteRange indexPos = DiskIndex.getBlockEntry(currentBlockIndex + 1, blockIndexReader);
-            ByteBuffer indexPosBuf = indexPos.getBuf();
-            endOffset = DiskIndex.getBlockIndexOffset(indexPosBuf, indexPos.getStartOffset());
-            
-            // is this the last block of the current block file?
-            // then the endBlockOffset should be set to the end of the
-            // file
-            if (DiskIndex.getBlockIndexFileId(indexPosBuf, indexPos.getStartOffset()) > fileId)
-                endOffset = -1;
-            
-            // endBlockOffset = getBlockOffset(indexPosition + 1,
-            // blockIndex);
-        }
-        
         try {
-            currentBlock = maps != null ? index.getBlock(startOffset, endOffset, maps[fileId]) : index
-                    .getBlock(startOffset, endOffset, dbFileChannels[fileId]);
+            currentBlock = index.getBlock(currentBlockIndex, maps, dbFileChannels);
         } catch (ClosedByInterruptException exc) {
             Logging.logError(Logging.LEVEL_DEBUG, this, exc);
         } catch (IOException exc) {
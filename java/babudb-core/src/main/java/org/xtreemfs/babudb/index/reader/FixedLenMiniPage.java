@@ -32,9 +32,26 @@ public class FixedLenMiniPage extends MiniPage {
     }
     
     public ByteRange getEntry(int n) {
-        assert (offset < buf.limit()) : "offset == " + offset + ", buf.limit == " + buf.limit()
+        assert (offset + (n + 1) * entrySize <= limit) : "offset == " + offset + ", limit == " + limit
             + ", entrySize == " + entrySize + ", n == " + n;
-        return new ByteRange(buf, offset + n * entrySize, offset + (n + 1) * entrySize - 1);
+        return new ByteRange(buf, offset + n * entrySize, offset + (n + 1) * entrySize);
+    }
+    
+    public int getEntryOffset(int n) {
+        return offset + n * entrySize;
+    }
+    
+    public int getEntryEnd(int n) {
+        return offset + (n + 1) * entrySize;
+    }
+    
+    public int compare(int n, byte[] entry) {
+        
+        if (inPlaceComp == null)
+            return super.compare(n, entry);
+        
+        // compare the same range as the one returned by getEntry(n)
+        return inPlaceComp.compare(buf, offset + n * entrySize, entrySize, entry);
     }
     
     public String toString() {
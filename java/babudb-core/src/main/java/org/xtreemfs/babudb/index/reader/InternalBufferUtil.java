@@ -11,6 +11,7 @@ package org.xtreemfs.babudb.index.reader;
 import java.util.Map.Entry;
 
 import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.ExpiringEntry;
 
 /**
  * Utilities for internal buffer handling.
@@ -46,13 +47,18 @@ public class InternalBufferUtil {
         else {
             ByteRange range = (ByteRange) buf;
             
-            assert (range.getSize() <= offset);
+            assert (offset < range.getSize());
             return range.getBuf().get(range.getStartOffset() + offset);
         }
     }
     
+    @SuppressWarnings("unchecked")
     public static Entry<Object, Object> cast(final Entry<?, ?> byteEntry) {
         
+        // expiring entries are not wrapped, so as to retain their expiry times
+        if (byteEntry instanceof ExpiringEntry)
+            return (Entry<Object, Object>) byteEntry;
+        
         Entry<Object, Object> entry = new Entry<Object, Object>() {
             
             @Override
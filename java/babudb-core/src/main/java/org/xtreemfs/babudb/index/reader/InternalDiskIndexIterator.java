@@ -8,7 +8,6 @@
 
 package org.xtreemfs.babudb.index.reader;
 
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.NoSuchElementException;
 import java.util.Map.Entry;
@@ -36,7 +35,7 @@ public class InternalDiskIndexIterator extends DiskIndexIteratorBase implements
      *            an array of mmap'ed buffers
      */
     public InternalDiskIndexIterator(DiskIndex index, BlockReader blockIndexReader, byte[] from, byte[] to,
-        boolean ascending, ByteBuffer[] maps) {
+        boolean ascending, MappedBlockFile[] maps) {
         super(index, blockIndexReader, from, to, ascending, maps, null);
     }
     
@@ -8,23 +8,33 @@
 
 package org.xtreemfs.babudb.index.reader;
 
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Map.Entry;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
 import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.ExpiringEntry;
+import org.xtreemfs.babudb.index.KeyRangeSet;
 import org.xtreemfs.foundation.buffer.BufferPool;
 
 /**
- * Merges an iterator for an in-memory overlay with an iterator for an on-disk
- * index. <br/>
+ * Merges an iterator for an in-memory overlay with iterators for a set of
+ * on-disk index runs. <br/>
  * 
  * The iterator either returns a byte array or a <code>ByteRange</code> object,
  * depending on whether the current element is part of the overlay trees or the
  * on-disk index. The returned keys and values are direct references to the
- * internally used key-value pairs and should hence not be modified.
+ * internally used key-value pairs and should hence not be modified. If the same
+ * key occurs in multiple sources, the overlay takes precedence over all runs,
+ * and runs that occur earlier in the list take precedence over later ones.
+ * Entries of each run are skipped if they fall in a range that has been
+ * deleted in the overlay or in any newer run.
+ * Entries whose values are stored with expiry times are returned as
+ * <code>ExpiringEntry</code> objects, regardless of whether they have expired.
  * 
  * @author stenjan
  * 
@@ -33,11 +43,22 @@ public class InternalMergeIterator implements ResultSet<Object, Object> {
     
     private Iterator<Entry<byte[], byte[]>> overlayIterator;
     
-    private InternalDiskIndexIterator       diskIndexIterator;
+    private List<InternalDiskIndexIterator> diskIndexIterators;
     
-    private Entry<byte[], byte[]>           nextOverlayEntry;
+    /**
+     * the deleted key ranges of each disk index run, i.e. the ranges deleted
+     * in the overlay and all newer runs; entries of the run in these ranges
+     * are skipped
+     */
+    private KeyRangeSet<byte[]>[]           deletedRanges;
     
-    private Entry<ByteRange, ByteRange>     nextDiskIndexEntry;
+    private KeyRangeSet.KeyComparator<ByteRange, byte[]> keyComp;
+    
+    /**
+     * the next entry of each source; the first element refers to the overlay,
+     * all further elements refer to the disk index runs
+     */
+    private Entry<Object, Object>[]         nextEntries;
     
     private Entry<Object, Object>           nextEntry;
     
@@ -45,20 +66,93 @@ public class InternalMergeIterator implements ResultSet<Object, Object> {
     
     private byte[]                          nullValue;
     
+    private boolean                         skipNullValues;
+    
     private boolean                         ascending;
     
     public InternalMergeIterator(Iterator<Entry<byte[], byte[]>> overlayIterator,
         InternalDiskIndexIterator diskIndexIterator, ByteRangeComparator comp, byte[] nullValue,
         boolean ascending) {
         
+        this(overlayIterator, diskIndexIterator == null ? Collections.<InternalDiskIndexIterator> emptyList()
+            : Collections.singletonList(diskIndexIterator), comp, nullValue, true, ascending);
+    }
+    
+    /**
+     * Creates a new merge iterator.
+     * 
+     * @param overlayIterator
+     *            the iterator for the in-memory overlay
+     * @param diskIndexIterators
+     *            the iterators for the on-disk runs, newest run first
+     * @param comp
+     *            the comparator
+     * @param nullValue
+     *            the tombstone value, i.e. the value of deleted entries
+     * @param skipNullValues
+     *            if <code>true</code>, deleted entries are skipped; otherwise,
+     *            they are returned with <code>nullValue</code> as their value
+     * @param ascending
+     *            defines the iteration order
+     */
+    public InternalMergeIterator(Iterator<Entry<byte[], byte[]>> overlayIterator,
+        List<InternalDiskIndexIterator> diskIndexIterators, ByteRangeComparator comp, byte[] nullValue,
+        boolean skipNullValues, boolean ascending) {
+        this(overlayIterator, diskIndexIterators, new KeyRangeSet<byte[]>(comp), comp, nullValue,
+            skipNullValues, ascending);
+    }
+    
+    /**
+     * Creates a new merge iterator that skips all entries of the on-disk runs
+     * in the given key ranges, in addition to the ranges deleted in newer
+     * runs.
+     * 
+     * @param overlayIterator
+     *            the iterator for the in-memory overlay
+     * @param diskIndexIterators
+     *            the iterators for the on-disk runs, newest run first
+     * @param deletedRanges
+     *            the key ranges that have been deleted after all on-disk runs
+     *            were written
+     * @param comp
+     *            the comparator
+     * @param nullValue
+     *            the tombstone value, i.e. the value of deleted entries
+     * @param skipNullValues
+     *            if <code>true</code>, deleted entries are skipped; otherwise,
+     *            they are returned with <code>nullValue</code> as their value
+     * @param ascending
+     *            defines the iteration order
+     */
+    @SuppressWarnings("unchecked")
+    public InternalMergeIterator(Iterator<Entry<byte[], byte[]>> overlayIterator,
+        List<InternalDiskIndexIterator> diskIndexIterators, KeyRangeSet<byte[]> deletedRanges,
+        final ByteRangeComparator comp, byte[] nullValue, boolean skipNullValues, boolean ascending) {
+        
         assert (overlayIterator != null);
         
         this.overlayIterator = overlayIterator;
-        this.diskIndexIterator = diskIndexIterator;
+        this.diskIndexIterators = diskIndexIterators;
         this.comp = comp;
         this.nullValue = nullValue;
+        this.skipNullValues = skipNullValues;
         this.ascending = ascending;
         
+        this.deletedRanges = new KeyRangeSet[diskIndexIterators.size()];
+        for (int i = 0; i < this.deletedRanges.length; i++) {
+            this.deletedRanges[i] = deletedRanges;
+            deletedRanges = deletedRanges.union(diskIndexIterators.get(i).getIndex().getDeletedRanges());
+        }
+        this.keyComp = new KeyRangeSet.KeyComparator<ByteRange, byte[]>() {
+            public int compare(ByteRange key, byte[] bound) {
+                return comp.compare(key, bound);
+            }
+        };
+        
+        nextEntries = new Entry[diskIndexIterators.size() + 1];
+        for (int i = 0; i < nextEntries.length; i++)
+            fetch(i);
+        
         nextElement();
     }
     
@@ -85,100 +179,141 @@ public class InternalMergeIterator implements ResultSet<Object, Object> {
     }
     
     public void free() {
-        if (diskIndexIterator != null)
-            diskIndexIterator.free();
+        for (InternalDiskIndexIterator it : diskIndexIterators)
+            it.free();
     }
     
     private void nextElement() {
         
-        // find the smallest element in the 'rightmost' tree
         for (;;) {
             
-            // find the next element in the overlay
-            if (nextOverlayEntry == null && overlayIterator.hasNext())
-                nextOverlayEntry = overlayIterator.next();
-            
-            // find the next element in the disk index
-            if (nextDiskIndexEntry == null && diskIndexIterator != null && diskIndexIterator.hasNext())
-                nextDiskIndexEntry = diskIndexIterator.next();
-            
-            // if the next overlay key is equal to the next disk index key,
-            // shift disk index element
-            if (nextOverlayEntry != null && nextDiskIndexEntry != null
-                && comp.compare(nextDiskIndexEntry.getKey(), nextOverlayEntry.getKey()) == 0) {
+            // find the smallest or largest element, depending on the iteration
+            // order; elements from later sources that have the same key as an
+            // element from an earlier source are shadowed and skipped
+            int next = -1;
+            for (int i = 0; i < nextEntries.length; i++) {
                 
-                // free the buffer if necessary
-                if(nextDiskIndexEntry.getValue().getReusableBuf() != null)
-                    BufferPool.free(nextDiskIndexEntry.getValue().getReusableBuf());
-                
-                if (diskIndexIterator.hasNext())
-                    nextDiskIndexEntry = diskIndexIterator.next();
-                else
-                    nextDiskIndexEntry = null;
+                while (nextEntries[i] != null) {
+                    
+                    if (next == -1) {
+                        next = i;
+                        break;
+                    }
+                    
+                    int cmp = compare(nextEntries[i].getKey(), nextEntries[next].getKey());
+                    if (cmp == 0) {
+                        
+                        // free the buffer if necessary
+                        Object value = nextEntries[i].getValue();
+                        if (value instanceof ByteRange && ((ByteRange) value).getReusableBuf() != null)
+                            BufferPool.free(((ByteRange) value).getReusableBuf());
+                        
+                        fetch(i);
+                        continue;
+                    }
+                    
+                    if (ascending ? cmp < 0 : cmp > 0)
+                        next = i;
+                    
+                    break;
+                }
             }
             
             // if no more element exists, set 'next' to 'empty' and return
-            if (nextDiskIndexEntry == null && nextOverlayEntry == null) {
+            if (next == -1) {
                 nextEntry = null;
                 return;
             }
             
-            // otherwise, choose the element with the smallest or largest key,
-            // depending on the iteration order
-            if (ascending) {
-                
-                if (nextDiskIndexEntry == null) {
-                    nextEntry = InternalBufferUtil.cast(nextOverlayEntry);
-                    nextOverlayEntry = null;
-                }
-
-                else if (nextOverlayEntry == null) {
-                    nextEntry = InternalBufferUtil.cast(nextDiskIndexEntry);
-                    nextDiskIndexEntry = null;
-                }
-
-                else if (comp.compare(nextDiskIndexEntry.getKey(), nextOverlayEntry.getKey()) < 0) {
-                    nextEntry = InternalBufferUtil.cast(nextDiskIndexEntry);
-                    nextDiskIndexEntry = null;
-                }
-
-                else {
-                    nextEntry = InternalBufferUtil.cast(nextOverlayEntry);
-                    nextOverlayEntry = null;
-                }
-                
-            } else {
-                
-                if (nextDiskIndexEntry == null) {
-                    nextEntry = InternalBufferUtil.cast(nextOverlayEntry);
-                    nextOverlayEntry = null;
-                }
-
-                else if (nextOverlayEntry == null) {
-                    nextEntry = InternalBufferUtil.cast(nextDiskIndexEntry);
-                    nextDiskIndexEntry = null;
-                }
-
-                else if (comp.compare(nextDiskIndexEntry.getKey(), nextOverlayEntry.getKey()) > 0) {
-                    nextEntry = InternalBufferUtil.cast(nextDiskIndexEntry);
-                    nextDiskIndexEntry = null;
-                }
-
-                else {
-                    InternalBufferUtil.cast(nextOverlayEntry);
-                    nextOverlayEntry = null;
-                }
-                
-            }
-            
-            assert (nextEntry != null);
+            nextEntry = nextEntries[next];
+            fetch(next);
             
             // if no tombstone value was defined or the next entry's value is
             // not a tombstone value, return; otherwise, restart
-            if (nullValue == null || nextEntry.getValue() != nullValue)
+            if (!skipNullValues || nullValue == null || nextEntry.getValue() != nullValue)
                 return;
         }
         
     }
     
+    private void fetch(int source) {
+        
+        if (source == 0) {
+            nextEntries[0] = overlayIterator.hasNext() ? InternalBufferUtil.cast(overlayIterator.next()) : null;
+            return;
+        }
+        
+        InternalDiskIndexIterator it = diskIndexIterators.get(source - 1);
+        Entry<ByteRange, ByteRange> entry;
+        do {
+            if (!it.hasNext()) {
+                nextEntries[source] = null;
+                return;
+            }
+            entry = it.next();
+        } while (isDeleted(entry, deletedRanges[source - 1]));
+        
+        DiskIndex index = it.getIndex();
+        boolean expiryTimes = it.hasExpiryTimes();
+        long expiryTime = expiryTimes ? DiskIndex.getExpiryTime(entry.getValue()) : 0;
+        
+        if (expiryTime != 0)
+            nextEntries[source] = new ExpiringEntry<Object, Object>(entry.getKey(), index.decodeInternalValue(
+                entry.getValue(), true), expiryTime);
+        else if (index.isTagged() || expiryTimes)
+            nextEntries[source] = new DecodedEntry(entry.getKey(), index.decodeInternalValue(entry.getValue(),
+                expiryTimes));
+        else
+            nextEntries[source] = InternalBufferUtil.cast(entry);
+    }
+    
+    private boolean isDeleted(Entry<ByteRange, ByteRange> entry, KeyRangeSet<byte[]> ranges) {
+        
+        if (ranges.isEmpty() || ranges.getRange(entry.getKey(), keyComp) == null)
+            return false;
+        
+        // free the buffer if necessary
+        if (entry.getValue().getReusableBuf() != null)
+            BufferPool.free(entry.getValue().getReusableBuf());
+        
+        return true;
+    }
+    
+    private int compare(Object key1, Object key2) {
+        
+        if (key1 instanceof byte[])
+            return key2 instanceof byte[] ? comp.compare((byte[]) key1, (byte[]) key2) : -comp.compare(
+                (ByteRange) key2, (byte[]) key1);
+        
+        return comp.compare((ByteRange) key1, InternalBufferUtil.toBuffer(key2));
+    }
+    
+    private static class DecodedEntry implements Entry<Object, Object> {
+        
+        private final Object key;
+        
+        private final Object value;
+        
+        public DecodedEntry(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+        
+        @Override
+        public Object getKey() {
+            return key;
+        }
+        
+        @Override
+        public Object getValue() {
+            return value;
+        }
+        
+        @Override
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+        
+    }
+    
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A memory-mapped block file. As a single <code>MappedByteBuffer</code> cannot
+ * map more than 2 GB, a block file is mapped in segments of a limited size,
+ * which start at block boundaries, so that each block is entirely contained in
+ * a single segment and can be read from the segment buffer like from a file
+ * mapped as a whole.
+ */
+public class MappedBlockFile {
+    
+    /**
+     * the maximum size of a segment
+     */
+    private static volatile long maxSegmentSize = Integer.MAX_VALUE;
+    
+    /**
+     * the offsets at which the segments start in the file, in ascending order
+     */
+    private final long[]         segmentOffsets;
+    
+    private final ByteBuffer[]   segments;
+    
+    private final long           size;
+    
+    /**
+     * Maps a block file.
+     * 
+     * @param channel
+     *            the channel to the block file
+     * @param blockOffsets
+     *            the offsets of all blocks in the file, in ascending order
+     * @throws IOException
+     *             if the file cannot be mapped
+     */
+    public MappedBlockFile(FileChannel channel, long[] blockOffsets) throws IOException {
+        
+        this.size = channel.size();
+        
+        // start a new segment at the last block boundary before the current
+        // segment would exceed the maximum segment size
+        long limit = maxSegmentSize;
+        List<Long> offsets = new ArrayList<Long>();
+        offsets.add(0L);
+        for (int i = 0; i <= blockOffsets.length; i++) {
+            long blockEnd = i < blockOffsets.length ? blockOffsets[i] : size;
+            long segmentStart = offsets.get(offsets.size() - 1);
+            if (blockEnd - segmentStart > limit && i > 0 && blockOffsets[i - 1] > segmentStart)
+                offsets.add(blockOffsets[i - 1]);
+        }
+        
+        segmentOffsets = new long[offsets.size()];
+        segments = new ByteBuffer[offsets.size()];
+        for (int i = 0; i < segments.length; i++) {
+            segmentOffsets[i] = offsets.get(i);
+            long end = i == segments.length - 1 ? size : offsets.get(i + 1);
+            segments[i] = channel.map(MapMode.READ_ONLY, segmentOffsets[i], end - segmentOffsets[i]);
+        }
+    }
+    
+    private MappedBlockFile(long[] segmentOffsets, ByteBuffer[] segments, long size) {
+        this.segmentOffsets = segmentOffsets;
+        this.segments = segments;
+        this.size = size;
+    }
+    
+    /**
+     * Creates a view of the mapped file, whose segment buffers have
+     * independent positions and limits.
+     * 
+     * @return the view
+     */
+    public MappedBlockFile duplicate() {
+        
+        ByteBuffer[] dup = new ByteBuffer[segments.length];
+        for (int i = 0; i < dup.length; i++)
+            dup[i] = segments[i].duplicate();
+        
+        return new MappedBlockFile(segmentOffsets, dup, size);
+    }
+    
+    /**
+     * Returns the size of the mapped file.
+     * 
+     * @return the size in bytes
+     */
+    public long size() {
+        return size;
+    }
+    
+    /**
+     * Returns the number of segments in which the file is mapped.
+     * 
+     * @return the number of segments
+     */
+    public int getNumSegments() {
+        return segments.length;
+    }
+    
+    /**
+     * Returns the number of the segment containing the given offset.
+     * 
+     * @param offset
+     *            the offset in the file
+     * @return the segment number
+     */
+    public int getSegment(long offset) {
+        int pos = Arrays.binarySearch(segmentOffsets, offset);
+        return pos >= 0 ? pos : -pos - 2;
+    }
+    
+    /**
+     * Returns the buffer of a segment.
+     * 
+     * @param segment
+     *            the segment number
+     * @return the buffer
+     */
+    public ByteBuffer getSegmentBuffer(int segment) {
+        return segments[segment];
+    }
+    
+    /**
+     * Returns the offset at which a segment starts in the file.
+     * 
+     * @param segment
+     *            the segment number
+     * @return the offset
+     */
+    public long getSegmentOffset(int segment) {
+        return segmentOffsets[segment];
+    }
+    
+    /**
+     * Sets the maximum size of segments of files mapped afterwards. Segments
+     * may only exceed the size if they consist of a single block.
+     * 
+     * @param size
+     *            the size in bytes, which must not exceed
+     *            <code>Integer.MAX_VALUE</code>
+     */
+    public static void setMaxSegmentSize(long size) {
+        
+        if (size <= 0 || size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid segment size: " + size);
+        
+        maxSegmentSize = size;
+    }
+    
+    /**
+     * Returns the maximum size of segments.
+     * 
+     * @return the size in bytes
+     */
+    public static long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+    
+}
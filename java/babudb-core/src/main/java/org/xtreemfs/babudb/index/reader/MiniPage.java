@@ -11,17 +11,24 @@ package org.xtreemfs.babudb.index.reader;
 import java.nio.ByteBuffer;
 
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.InPlaceByteRangeComparator;
 import org.xtreemfs.babudb.index.ByteRange;
 
 public abstract class MiniPage {
     
-    protected int                       numEntries;
+    protected int                              numEntries;
     
-    protected ByteBuffer                buf;
+    protected ByteBuffer                       buf;
     
-    protected final int                 offset;
+    protected final int                        offset;
     
-    protected final ByteRangeComparator comp;
+    protected final ByteRangeComparator        comp;
+    
+    /**
+     * the comparator, if it is capable of comparing entries in place;
+     * <code>null</code>, otherwise
+     */
+    protected final InPlaceByteRangeComparator inPlaceComp;
     
     public MiniPage(int numEntries, ByteBuffer buf, int offset, ByteRangeComparator comp) {
         
@@ -37,6 +44,8 @@ public abstract class MiniPage {
         this.buf = buf;
         this.offset = offset;
         this.comp = comp;
+        this.inPlaceComp = comp instanceof InPlaceByteRangeComparator ? (InPlaceByteRangeComparator) comp
+            : null;
     }
     
     /**
@@ -57,6 +66,69 @@ public abstract class MiniPage {
      */
     public abstract ByteRange getEntry(int n);
     
+    /**
+     * Returns the offset at which the entry at a given index position starts
+     * in the underlying buffer.
+     * 
+     * @param n
+     *            the index position
+     * @return the start offset of the entry
+     */
+    public abstract int getEntryOffset(int n);
+    
+    /**
+     * Returns the offset at which the entry at a given index position ends in
+     * the underlying buffer (exclusively).
+     * 
+     * @param n
+     *            the index position
+     * @return the end offset of the entry
+     */
+    public abstract int getEntryEnd(int n);
+    
+    /**
+     * Returns a view on the entry at a given index position, without copying
+     * the entry.
+     * 
+     * @param n
+     *            the index position
+     * @param view
+     *            a duplicate of the buffer of the page, which is positioned at
+     *            the entry
+     * @return a buffer whose remaining content is the entry; it may be
+     *         overwritten when accessing another entry of the page
+     */
+    public ByteBuffer getEntryView(int n, ByteBuffer view) {
+        view.limit(getEntryEnd(n));
+        view.position(getEntryOffset(n));
+        return view;
+    }
+    
+    /**
+     * Returns the buffer that contains the entries of the page.
+     * 
+     * @return the buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buf;
+    }
+    
+    /**
+     * Compares the entry at a given index position to the given entry. If
+     * supported by the comparator, the entry is compared in place, i.e. without
+     * creating a <code>ByteRange</code> for it.
+     * 
+     * @param n
+     *            the index position
+     * @param entry
+     *            the entry to compare with
+     * @return a negative value, 0, or a positive value, if the entry at the
+     *         given index position is smaller, equal or larger, respectively
+     */
+    public int compare(int n, byte[] entry) {
+        return comp.compare(getEntry(n), entry);
+    }
+    
     /**
      * Returns the position of an entry in the page. If the entry is not
      * contained, -1 is returned.
@@ -66,7 +138,7 @@ public abstract class MiniPage {
      * @return the position of the entry, or -1, if the entry is not contained
      */
     public int getPosition(byte[] entry) {
-        return SearchUtil.getOffset(this, entry, comp);
+        return SearchUtil.getOffset(this, entry);
     }
     
     /**
@@ -85,7 +157,7 @@ public abstract class MiniPage {
         if (entry == null)
             return 0;
         
-        return SearchUtil.getExclTopOffset(this, entry, comp);
+        return SearchUtil.getExclTopOffset(this, entry);
     }
     
     /**
@@ -104,7 +176,7 @@ public abstract class MiniPage {
         if (entry == null)
             return 0;
         
-        return SearchUtil.getInclTopOffset(this, entry, comp);
+        return SearchUtil.getInclTopOffset(this, entry);
     }
     
     /**
@@ -123,7 +195,7 @@ public abstract class MiniPage {
         if (entry == null)
             return numEntries - 1;
         
-        return SearchUtil.getExclBottomOffset(this, entry, comp);
+        return SearchUtil.getExclBottomOffset(this, entry);
     }
     
     /**
@@ -142,7 +214,7 @@ public abstract class MiniPage {
         if (entry == null)
             return numEntries - 1;
         
-        return SearchUtil.getInclBottomOffset(this, entry, comp);
+        return SearchUtil.getInclBottomOffset(this, entry);
     }
     
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+package org.xtreemfs.babudb.index.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.foundation.buffer.BufferPool;
+
+/**
+ * A reader for blocks written by a <code>PrefixCodedBlockWriter</code>. Keys
+ * are accessed by means of a <code>PrefixCodedMiniPage</code>; lookups and
+ * range lookups work like with default blocks.
+ */
+public class PrefixCodedBlockReader extends DefaultBlockReader {
+    
+    public static final int KEYS_OFFSET = 4 * Integer.SIZE / 8;
+    
+    /**
+     * Creates a reader for a prefix-coded buffered block.
+     * 
+     * @param buf
+     *            the buffer
+     * @param position
+     *            the position of the block in the buffer
+     * @param limit
+     *            the limit of the block in the buffer
+     * @param comp
+     *            the byte range comparator
+     */
+    public PrefixCodedBlockReader(ByteBuffer buf, int position, int limit, ByteRangeComparator comp) {
+        
+        super(true);
+        
+        this.buffer = buf;
+        this.position = position;
+        this.limit = limit;
+        this.comp = comp;
+        
+        init(buf, position, limit);
+    }
+    
+    /**
+     * Creates a reader for a prefix-coded streamed block.
+     * 
+     * @param channel
+     *            the channel to the block file
+     * @param position
+     *            the position of the block
+     * @param limit
+     *            the limit of the block
+     * @param comp
+     *            the byte range comparator
+     */
+    public PrefixCodedBlockReader(FileChannel channel, long position, long limit, ByteRangeComparator comp)
+        throws IOException {
+        
+        super(false);
+        
+        // offsets refer to the read buffer, which only contains the block
+        int size = (int) (limit - position);
+        this.position = 0;
+        this.limit = size;
+        this.comp = comp;
+        
+        this.readBuffer = BufferPool.allocate(size);
+        channel.read(readBuffer.getBuffer(), position);
+        
+        init(readBuffer.getBuffer(), 0, size);
+    }
+    
+    private void init(ByteBuffer buf, int position, int limit) {
+        
+        // with limit <= position there are no entries in the buffer
+        if (limit > position) {
+            int keysOffset = position + KEYS_OFFSET;
+            int valsOffset = position + buf.getInt(position);
+            numEntries = buf.getInt(position + 4);
+            int restartInterval = buf.getInt(position + 8);
+            int valEntrySize = buf.getInt(position + 12);
+            keys = new PrefixCodedMiniPage(numEntries, restartInterval, buf, keysOffset, valsOffset, comp);
+            values = valEntrySize == -1 ? new VarLenMiniPage(numEntries, buf, valsOffset, limit, comp)
+                : new FixedLenMiniPage(valEntrySize, numEntries, buf, valsOffset, limit, comp);
+        } else {
+            numEntries = 0;
+            keys = new FixedLenMiniPage(0, 0, null, 0, 0, comp);
+            values = new FixedLenMiniPage(0, 0, null, 0, 0, comp);
+        }
+    }
+    
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.reader;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.ByteRange;
+
+/**
+ * A page of keys that have been front-coded relative to their predecessors by
+ * a <code>PrefixCodedBlockWriter</code>. Keys are located by means of a binary
+ * search over the restart points, i.e. the keys that are stored completely,
+ * followed by a linear scan of the keys between two restart points.
+ * <p>
+ * Keys are decoded into a buffer that is reused for subsequent keys, so that
+ * accessing the keys of the page in ascending order only requires a single
+ * decoding step per key. Pages are therefore not thread-safe.
+ * </p>
+ */
+public class PrefixCodedMiniPage extends MiniPage {
+    
+    private final int        restartInterval;
+    
+    private final int        numRestarts;
+    
+    /**
+     * the offset of the list of restart point offsets
+     */
+    private final int        restartListStart;
+    
+    /**
+     * a duplicate of the buffer, which is used for reading the suffixes of
+     * keys
+     */
+    private final ByteBuffer src;
+    
+    /**
+     * the most recently decoded key
+     */
+    private byte[]           key;
+    
+    private int              keyLength;
+    
+    /**
+     * a buffer wrapping the decoded key, which is used for in-place
+     * comparisons
+     */
+    private ByteBuffer       keyBuf;
+    
+    /**
+     * a buffer wrapping the decoded key, which is returned as a view
+     */
+    private ByteBuffer       keyView;
+    
+    /**
+     * the position of the most recently decoded key, or -1
+     */
+    private int              current;
+    
+    /**
+     * the offset of the entry following the most recently decoded key
+     */
+    private int              next;
+    
+    public PrefixCodedMiniPage(int numEntries, int restartInterval, ByteBuffer buf, int offset, int limit,
+        ByteRangeComparator comp) {
+        
+        super(numEntries, buf, offset, comp);
+        
+        this.restartInterval = restartInterval;
+        this.numRestarts = (numEntries + restartInterval - 1) / restartInterval;
+        this.restartListStart = limit - numRestarts * Integer.SIZE / 8;
+        this.src = buf.duplicate();
+        this.current = -1;
+        
+        setKeyBuffer(new byte[32]);
+    }
+    
+    public ByteRange getEntry(int n) {
+        decode(n);
+        return new ByteRange(ByteBuffer.wrap(Arrays.copyOf(key, keyLength)), 0, keyLength);
+    }
+    
+    public int getEntryOffset(int n) {
+        throw new UnsupportedOperationException("prefix-coded keys are not stored contiguously");
+    }
+    
+    public int getEntryEnd(int n) {
+        throw new UnsupportedOperationException("prefix-coded keys are not stored contiguously");
+    }
+    
+    public ByteBuffer getEntryView(int n, ByteBuffer view) {
+        decode(n);
+        keyView.limit(keyLength);
+        keyView.position(0);
+        return keyView;
+    }
+    
+    public int compare(int n, byte[] entry) {
+        decode(n);
+        return compareKey(entry);
+    }
+    
+    public int getPosition(byte[] entry) {
+        int pos = search(entry);
+        return pos >= 0 ? pos : -1;
+    }
+    
+    public int getExclTopPosition(byte[] entry) {
+        
+        if (entry == null)
+            return 0;
+        
+        int pos = search(entry);
+        return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+    
+    public int getInclTopPosition(byte[] entry) {
+        
+        if (entry == null)
+            return 0;
+        
+        int pos = search(entry);
+        return pos >= 0 ? pos : -pos - 1;
+    }
+    
+    public int getExclBottomPosition(byte[] entry) {
+        
+        if (entry == null)
+            return numEntries - 1;
+        
+        int pos = search(entry);
+        return pos >= 0 ? pos - 1 : -pos - 2;
+    }
+    
+    public int getInclBottomPosition(byte[] entry) {
+        
+        if (entry == null)
+            return numEntries - 1;
+        
+        int pos = search(entry);
+        return pos >= 0 ? pos : -pos - 2;
+    }
+    
+    /**
+     * Searches for a key. The restart point preceding the key is determined
+     * by means of a binary search, and the keys following the restart point
+     * are scanned linearly.
+     * 
+     * @param entry
+     *            the key to search for
+     * @return the position of the key, if contained; otherwise,
+     *         <code>(-(insertion point) - 1)</code>, where the insertion point
+     *         is the position of the first larger key, or the number of
+     *         entries if all keys are smaller
+     */
+    private int search(byte[] entry) {
+        
+        // find the last restart point with a key less than or equal to the
+        // given key
+        int restart = -1;
+        int low = 0;
+        int high = numRestarts - 1;
+        while (low <= high) {
+            
+            int mid = (low + high) >>> 1;
+            decode(mid * restartInterval);
+            int cmp = compareKey(entry);
+            if (cmp == 0)
+                return mid * restartInterval;
+            
+            if (cmp < 0) {
+                restart = mid;
+                low = mid + 1;
+            } else
+                high = mid - 1;
+        }
+        
+        if (restart == -1)
+            return -1;
+        
+        // scan the keys following the restart point
+        int end = Math.min((restart + 1) * restartInterval, numEntries);
+        for (int i = restart * restartInterval + 1; i < end; i++) {
+            
+            decode(i);
+            int cmp = compareKey(entry);
+            if (cmp == 0)
+                return i;
+            if (cmp > 0)
+                return -i - 1;
+        }
+        
+        return -end - 1;
+    }
+    
+    /**
+     * Decodes the key at the given position. Unless the most recently decoded
+     * key precedes the key in the same restart interval, decoding starts at
+     * the preceding restart point.
+     * 
+     * @param n
+     *            the position
+     */
+    private void decode(int n) {
+        
+        if (n == current)
+            return;
+        
+        if (current == -1 || n < current || n / restartInterval != current / restartInterval) {
+            int restart = n / restartInterval;
+            next = offset + buf.getInt(restartListStart + restart * Integer.SIZE / 8);
+            current = restart * restartInterval - 1;
+            keyLength = 0;
+        }
+        
+        while (current < n) {
+            
+            int shared = readVarInt();
+            int unshared = readVarInt();
+            
+            if (key.length < shared + unshared)
+                setKeyBuffer(Arrays.copyOf(key, Math.max(shared + unshared, key.length * 2)));
+            
+            src.limit(next + unshared);
+            src.position(next);
+            src.get(key, shared, unshared);
+            
+            next += unshared;
+            keyLength = shared + unshared;
+            current++;
+        }
+    }
+    
+    private int compareKey(byte[] entry) {
+        
+        if (inPlaceComp != null)
+            return inPlaceComp.compare(keyBuf, 0, keyLength, entry);
+        
+        return comp.compare(new ByteRange(keyBuf, 0, keyLength), entry);
+    }
+    
+    private int readVarInt() {
+        
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = buf.get(next++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+    
+    private void setKeyBuffer(byte[] key) {
+        this.key = key;
+        this.keyBuf = ByteBuffer.wrap(key);
+        this.keyView = ByteBuffer.wrap(key);
+    }
+    
+}
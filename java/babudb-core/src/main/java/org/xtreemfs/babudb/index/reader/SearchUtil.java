@@ -8,12 +8,9 @@
 
 package org.xtreemfs.babudb.index.reader;
 
-import org.xtreemfs.babudb.api.index.ByteRangeComparator;
-import org.xtreemfs.babudb.index.ByteRange;
-
 public class SearchUtil {
     
-    public static int getInclBottomOffset(MiniPage page, byte[] entry, ByteRangeComparator comp) {
+    public static int getInclBottomOffset(MiniPage page, byte[] entry) {
         
         assert (page.getNumEntries() >= 0) : "invalid number of page entries: " + page.getNumEntries();
         
@@ -27,9 +24,7 @@ public class SearchUtil {
         while (low <= high) {
             
             mid = (low + high) >>> 1;
-            ByteRange currKey = page.getEntry(mid);
-            
-            cmp = comp.compare(currKey, entry);
+            cmp = page.compare(mid, entry);
             if (cmp < 0)
                 low = mid + 1;
             else if (cmp > 0)
@@ -41,7 +36,7 @@ public class SearchUtil {
         return cmp > 0 ? mid - 1 : mid;
     }
     
-    public static int getExclBottomOffset(MiniPage page, byte[] entry, ByteRangeComparator comp) {
+    public static int getExclBottomOffset(MiniPage page, byte[] entry) {
         
         assert (page.getNumEntries() >= 0) : "invalid number of page entries: " + page.getNumEntries();
         
@@ -55,9 +50,7 @@ public class SearchUtil {
         while (low <= high) {
             
             mid = (low + high) >>> 1;
-            ByteRange currKey = page.getEntry(mid);
-            
-            cmp = comp.compare(currKey, entry);
+            cmp = page.compare(mid, entry);
             if (cmp < 0)
                 low = mid + 1;
             else if (cmp > 0)
@@ -69,7 +62,7 @@ public class SearchUtil {
         return cmp > 0 ? mid - 1 : mid;
     }
     
-    public static int getInclTopOffset(MiniPage page, byte[] entry, ByteRangeComparator comp) {
+    public static int getInclTopOffset(MiniPage page, byte[] entry) {
         
         assert (page.getNumEntries() >= 0) : "invalid number of page entries: " + page.getNumEntries();
         
@@ -83,9 +76,7 @@ public class SearchUtil {
         while (low <= high) {
             
             mid = (low + high) >>> 1;
-            ByteRange currKey = page.getEntry(mid);
-            
-            cmp = comp.compare(currKey, entry);
+            cmp = page.compare(mid, entry);
             if (cmp < 0)
                 low = mid + 1;
             else if (cmp > 0)
@@ -97,7 +88,7 @@ public class SearchUtil {
         return cmp > 0 ? mid : mid + 1;
     }
     
-    public static int getExclTopOffset(MiniPage page, byte[] entry, ByteRangeComparator comp) {
+    public static int getExclTopOffset(MiniPage page, byte[] entry) {
         
         assert (page.getNumEntries() >= 0) : "invalid number of page entries: " + page.getNumEntries();
         
@@ -111,9 +102,7 @@ public class SearchUtil {
         while (low <= high) {
             
             mid = (low + high) >>> 1;
-            ByteRange currKey = page.getEntry(mid);
-            
-            cmp = comp.compare(currKey, entry);
+            cmp = page.compare(mid, entry);
             if (cmp < 0)
                 low = mid + 1;
             else if (cmp > 0)
@@ -125,7 +114,7 @@ public class SearchUtil {
         return cmp > 0 ? mid : mid + 1;
     }
     
-    public static int getOffset(MiniPage page, byte[] entry, ByteRangeComparator comp) {
+    public static int getOffset(MiniPage page, byte[] entry) {
         
         assert (page.getNumEntries() >= 0) : "invalid number of page entries: " + page.getNumEntries();
         
@@ -139,9 +128,7 @@ public class SearchUtil {
         while (low <= high) {
             
             mid = (low + high) >>> 1;
-            ByteRange currKey = page.getEntry(mid);
-            
-            cmp = comp.compare(currKey, entry);
+            cmp = page.compare(mid, entry);
             if (cmp < 0)
                 low = mid + 1;
             else if (cmp > 0)
@@ -38,11 +38,32 @@ public class VarLenMiniPage extends MiniPage {
         int offsetEnd = offset;
         offsetEnd += buf.getInt(offsetListStart + n * Integer.SIZE / 8);
         
-        assert (offsetEnd > offsetStart);
+        assert (offsetEnd >= offsetStart);
         
         return new ByteRange(buf, offsetStart, offsetEnd);
     }
     
+    public int getEntryOffset(int n) {
+        return n > 0 ? offset + buf.getInt(offsetListStart + (n - 1) * Integer.SIZE / 8) : offset;
+    }
+    
+    public int getEntryEnd(int n) {
+        return offset + buf.getInt(offsetListStart + n * Integer.SIZE / 8);
+    }
+    
+    public int compare(int n, byte[] entry) {
+        
+        if (inPlaceComp == null)
+            return super.compare(n, entry);
+        
+        int offsetStart = getEntryOffset(n);
+        int offsetEnd = getEntryEnd(n);
+        
+        assert (offsetEnd >= offsetStart);
+        
+        return inPlaceComp.compare(buf, offsetStart, offsetEnd - offsetStart, entry);
+    }
+    
     public String toString() {
         
         buf.position(offset);
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.writer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.xtreemfs.babudb.index.reader.BloomFilter;
+
+/**
+ * Writes the per-block Bloom filters of an on-disk index. Keys have to be
+ * added block by block; the bit set of a block is written when the block is
+ * finished, so that the keys of only a single block need to be kept in memory.
+ * 
+ * @see BloomFilter
+ */
+public class BloomFilterWriter {
+    
+    private final DataOutputStream out;
+    
+    private final int              bitsPerKey;
+    
+    private final int              numHashes;
+    
+    private long[]                 keyHashes;
+    
+    private int                    numKeys;
+    
+    private int[]                  offsets;
+    
+    private int                    numBlocks;
+    
+    /**
+     * Creates a new Bloom filter file.
+     * 
+     * @param path
+     *            the path to the file
+     * @param bitsPerKey
+     *            the number of bits per key
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    public BloomFilterWriter(String path, int bitsPerKey) throws IOException {
+        
+        this.bitsPerKey = bitsPerKey;
+        this.numHashes = BloomFilter.getNumHashes(bitsPerKey);
+        this.keyHashes = new long[64];
+        this.offsets = new int[64];
+        
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        out.writeInt(numHashes);
+    }
+    
+    /**
+     * Adds a key to the current block.
+     * 
+     * @param key
+     *            the key, either a byte array or a <code>ByteRange</code>
+     */
+    public void add(Object key) {
+        
+        if (numKeys == keyHashes.length) {
+            long[] tmp = new long[keyHashes.length * 2];
+            System.arraycopy(keyHashes, 0, tmp, 0, numKeys);
+            keyHashes = tmp;
+        }
+        
+        keyHashes[numKeys++] = BloomFilter.hash(key);
+    }
+    
+    /**
+     * Writes the bit set for all keys added since the last block was
+     * finished.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void finishBlock() throws IOException {
+        
+        if (numBlocks + 1 == offsets.length) {
+            int[] tmp = new int[offsets.length * 2];
+            System.arraycopy(offsets, 0, tmp, 0, offsets.length);
+            offsets = tmp;
+        }
+        
+        long[] bits = new long[(numKeys * bitsPerKey + Long.SIZE - 1) / Long.SIZE];
+        for (int i = 0; i < numKeys; i++)
+            BloomFilter.set(bits, numHashes, keyHashes[i]);
+        
+        for (long word : bits)
+            out.writeLong(word);
+        
+        offsets[numBlocks + 1] = offsets[numBlocks] + bits.length;
+        numBlocks++;
+        numKeys = 0;
+    }
+    
+    /**
+     * Writes the block offsets and closes the file.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public void close() throws IOException {
+        
+        for (int i = 0; i <= numBlocks; i++)
+            out.writeInt(offsets[i]);
+        out.writeInt(numBlocks);
+        
+        out.close();
+    }
+    
+}
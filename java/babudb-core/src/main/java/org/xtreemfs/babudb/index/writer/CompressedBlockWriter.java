@@ -31,6 +31,25 @@ public class CompressedBlockWriter implements BlockWriter {
     
     private byte[]       prefix;
     
+    /**
+     * the length shared by all keys added so far, or -1 if they differ
+     */
+    private int          keyLen;
+    
+    /**
+     * the length shared by all values added so far, or -1 if they differ
+     */
+    private int          valLen;
+    
+    /**
+     * Creates a new block writer. As with <code>DefaultBlockWriter</code>,
+     * fixed-length pages are written for keys and values of equal length.
+     * 
+     * @param varLenKeys
+     *            if <code>true</code>, keys may have different lengths
+     * @param varLenVals
+     *            if <code>true</code>, values may have different lengths
+     */
     public CompressedBlockWriter(boolean varLenKeys, boolean varLenVals) {
         
         keys = new LinkedList<Object>();
@@ -38,9 +57,15 @@ public class CompressedBlockWriter implements BlockWriter {
         
         this.varLenKeys = varLenKeys;
         this.varLenVals = varLenVals;
+        this.keyLen = -1;
+        this.valLen = -1;
     }
     
     public void add(Object key, Object value) {
+        
+        keyLen = DefaultBlockWriter.entryLen(keyLen, key, keys.isEmpty());
+        valLen = DefaultBlockWriter.entryLen(valLen, value, values.isEmpty());
+        
         keys.add(key);
         values.add(value);
     }
@@ -51,8 +76,13 @@ public class CompressedBlockWriter implements BlockWriter {
         
         List<byte[]> compressedKeys = compress(keys);
         
+        // keys of equal length have suffixes of equal length, as all of them
+        // share the same prefix
+        boolean varLenKeys = this.varLenKeys && keyLen - prefix.length <= 0;
+        boolean varLenVals = this.varLenVals && valLen <= 0;
+        
         ReusableBuffer keyBuf = varLenKeys ? serializeVarLenPageBuf(compressedKeys)
-            : serializeFixedLenPage(keys);
+            : serializeFixedLenPageBuf(compressedKeys);
         ReusableBuffer valBuf = varLenVals ? serializeVarLenPage(values) : serializeFixedLenPage(values);
         
         int entries = keys.size();
@@ -231,6 +261,19 @@ public class CompressedBlockWriter implements BlockWriter {
         return newBuf;
     }
     
+    private static ReusableBuffer serializeFixedLenPageBuf(List<byte[]> list) {
+        
+        final int size = list.size() == 0 ? 0 : list.get(0).length * list.size();
+        
+        ReusableBuffer newBuf = BufferPool.allocate(size);
+        for (byte[] buf : list)
+            newBuf.put(buf);
+        
+        newBuf.position(0);
+        
+        return newBuf;
+    }
+    
     private static ReusableBuffer serializeFixedLenPage(List<Object> list) {
         
         final int size = list.size() == 0 ? 0 : InternalBufferUtil.size(list.get(0)) * list.size();
@@ -28,6 +28,27 @@ public class DefaultBlockWriter implements BlockWriter {
     
     private boolean      serialized;
     
+    /**
+     * the length shared by all keys added so far, or -1 if they differ
+     */
+    private int          keyLen;
+    
+    /**
+     * the length shared by all values added so far, or -1 if they differ
+     */
+    private int          valLen;
+    
+    /**
+     * Creates a new block writer. If keys or values may have variable lengths
+     * but all keys or values of the block turn out to have the same length, a
+     * fixed-length page is written for them, which neither requires an offset
+     * per entry nor a lookup to locate an entry.
+     * 
+     * @param varLenKeys
+     *            if <code>true</code>, keys may have different lengths
+     * @param varLenVals
+     *            if <code>true</code>, values may have different lengths
+     */
     public DefaultBlockWriter(boolean varLenKeys, boolean varLenVals) {
         
         keys = new LinkedList<Object>();
@@ -35,6 +56,8 @@ public class DefaultBlockWriter implements BlockWriter {
         
         this.varLenKeys = varLenKeys;
         this.varLenVals = varLenVals;
+        this.keyLen = -1;
+        this.valLen = -1;
     }
     
     /*
@@ -47,6 +70,9 @@ public class DefaultBlockWriter implements BlockWriter {
         if (serialized)
             throw new UnsupportedOperationException("already serialized");
         
+        keyLen = entryLen(keyLen, key, keys.isEmpty());
+        valLen = entryLen(valLen, value, values.isEmpty());
+        
         keys.add(key);
         values.add(value);
     }
@@ -63,6 +89,11 @@ public class DefaultBlockWriter implements BlockWriter {
         
         serialized = true;
         
+        // a fixed-length page of empty entries would occupy no space, which
+        // the readers only accept for pages without entries
+        boolean varLenKeys = this.varLenKeys && keyLen <= 0;
+        boolean varLenVals = this.varLenVals && valLen <= 0;
+        
         SerializedPage keyPage = varLenKeys ? serializeVarLenPage(keys) : serializeFixedLenPage(keys);
         SerializedPage valPage = varLenVals ? serializeVarLenPage(values) : serializeFixedLenPage(values);
         
@@ -96,7 +127,24 @@ public class DefaultBlockWriter implements BlockWriter {
         return keys.get(0);
     }
     
-    private static SerializedPage serializeVarLenPage(List<Object> list) {
+    /**
+     * Returns the length shared by all entries of a page after adding the
+     * given entry.
+     * 
+     * @param len
+     *            the length shared by all entries so far, or -1
+     * @param entry
+     *            the entry to add
+     * @param first
+     *            <code>true</code>, if the entry is the first one of the page
+     * @return the length shared by all entries, or -1 if they differ
+     */
+    static int entryLen(int len, Object entry, boolean first) {
+        int size = InternalBufferUtil.size(entry);
+        return first || size == len ? size : -1;
+    }
+    
+    static SerializedPage serializeVarLenPage(List<Object> list) {
         
         List<Object> offsetList = new LinkedList<Object>();
         
@@ -114,7 +162,7 @@ public class DefaultBlockWriter implements BlockWriter {
         return new SerializedPage(size, list, offsetList);
     }
     
-    private static SerializedPage serializeFixedLenPage(List<Object> list) {
+    static SerializedPage serializeFixedLenPage(List<Object> list) {
         
         int size = 0;
         for (Object buf : list)
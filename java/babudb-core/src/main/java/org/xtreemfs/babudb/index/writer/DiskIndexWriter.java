@@ -8,15 +8,23 @@
 
 package org.xtreemfs.babudb.index.writer;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Map.Entry;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.index.BlockCodec;
 import org.xtreemfs.babudb.index.ByteRange;
+import org.xtreemfs.babudb.index.ExpiringEntry;
+import org.xtreemfs.babudb.index.KeyRange;
+import org.xtreemfs.babudb.index.KeyRangeSet;
+import org.xtreemfs.babudb.index.reader.DiskIndex;
 import org.xtreemfs.babudb.index.reader.InternalBufferUtil;
 import org.xtreemfs.foundation.buffer.BufferPool;
 import org.xtreemfs.foundation.buffer.ReusableBuffer;
@@ -24,7 +32,7 @@ import org.xtreemfs.foundation.buffer.ReusableBuffer;
 /**
  * Writes an index to a set of files on disk. A file will not be larger than the
  * given max file size. Multiple files are necessary to handle databases larger
- * than 2 GB on 32-bit systems due to MMap limitations.
+ * than the address space of 32-bit systems, as block files are memory-mapped.
  * 
  * The index has two parts, a sorted list of blocks containing key/value-pairs
  * and a block index. The block index is a sparse index pointing to the sorted
@@ -35,15 +43,61 @@ import org.xtreemfs.foundation.buffer.ReusableBuffer;
  */
 public class DiskIndexWriter {
     
-    private String  path;
+    private String            path;
     
-    private int     maxBlockEntries;
+    private int               maxBlockEntries;
     
-    private boolean compressed;
+    private boolean           compressed;
     
-    private int     maxFileSize;
+    private long              maxFileSize;
     
-    private short   blockFileId;
+    private short             blockFileId;
+    
+    private String            runPrefix;
+    
+    private byte[]            tombstone;
+    
+    private int               bloomFilterBitsPerKey;
+    
+    private BloomFilterWriter bloomFilter;
+    
+    /**
+     * the time against which the expiry times of entries are checked, or 0 if
+     * no entries are supposed to be dropped
+     */
+    private long              expiryReferenceTime;
+    
+    private int               numExpiredEntries;
+    
+    /**
+     * the codec with which blocks are encoded, or <code>null</code> if blocks
+     * are stored as they are
+     */
+    private BlockCodec        blockCodec;
+    
+    /**
+     * the number of entries after which a key is stored completely in
+     * prefix-coded blocks, or 0 if blocks are not prefix-coded
+     */
+    private int               keyRestartInterval;
+    
+    /**
+     * the size in bytes after which a block is completed, or 0 if the size of
+     * blocks is only limited by the maximum number of entries
+     */
+    private int               maxBlockSize;
+    
+    /**
+     * the format of the index, which determines how block offsets are recorded
+     * in the block index
+     */
+    private int               formatVersion = DiskIndex.FORMAT_V2;
+    
+    /**
+     * the key ranges deleted after all older runs of the index were written,
+     * or <code>null</code> if no ranges have been deleted
+     */
+    private KeyRangeSet<byte[]> deletedRanges;
     
     /**
      * Creates a new DiskIndexWriter
@@ -60,15 +114,37 @@ public class DiskIndexWriter {
      *            system this should not be larger than 2GB.
      * @throws IOException
      */
-    public DiskIndexWriter(String path, int maxBlockEntries, boolean compressed, int maxFileSize)
+    public DiskIndexWriter(String path, int maxBlockEntries, boolean compressed, long maxFileSize)
         throws IOException {
+        this(path, maxBlockEntries, compressed, maxFileSize, 0);
+    }
+    
+    /**
+     * Creates a new DiskIndexWriter
+     * 
+     * @param path
+     *            The path to the directory where the index will be written. The
+     *            directory is created if it does not yet exist.
+     * @param maxBlockEntries
+     *            The maximum number of entries in a single block. If set to 0,
+     *            the number of entries is only limited by the maximum block
+     *            size.
+     * @param compressed
+     *            Indicates if the blocks should be compressed.
+     * @param maxFileSize
+     *            The max size of a file storing blocks in bytes. On a 32-bit
+     *            system this should not be larger than 2GB.
+     * @param bloomFilterBitsPerKey
+     *            The number of Bloom filter bits per key. If set to 0, no Bloom
+     *            filter will be written.
+     * @throws IOException
+     */
+    public DiskIndexWriter(String path, int maxBlockEntries, boolean compressed, long maxFileSize,
+        int bloomFilterBitsPerKey) throws IOException {
         
         if (!path.endsWith(System.getProperty("file.separator")))
             path += System.getProperty("file.separator");
         
-        // check that the file-size will be accepted by MMap
-        assert (maxFileSize <= Integer.MAX_VALUE);
-        
         File diDir = new File(path);
         
         if (diDir.exists())
@@ -83,6 +159,167 @@ public class DiskIndexWriter {
         this.path = path;
         this.maxBlockEntries = maxBlockEntries;
         this.maxFileSize = maxFileSize;
+        this.runPrefix = "";
+        this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+    }
+    
+    /**
+     * Creates a new DiskIndexWriter for a single run of an index. A run may be
+     * added to a directory that already contains other runs, as long as they
+     * are distinguished by different file prefixes.
+     * 
+     * @param path
+     *            The path to the directory where the run will be written. The
+     *            directory is created if it does not yet exist.
+     * @param runPrefix
+     *            The prefix of all files of the run.
+     * @param maxBlockEntries
+     *            The maximum number of entries in a single block.
+     * @param compressed
+     *            Indicates if the blocks should be compressed.
+     * @param maxFileSize
+     *            The max size of a file storing blocks in bytes.
+     * @param tombstone
+     *            If not <code>null</code>, all values are tagged, and entries
+     *            with <code>tombstone</code> as their value are written as
+     *            deleted entries.
+     * @param bloomFilterBitsPerKey
+     *            The number of Bloom filter bits per key. If set to 0, no Bloom
+     *            filter will be written.
+     * @throws IOException
+     */
+    public DiskIndexWriter(String path, String runPrefix, int maxBlockEntries, boolean compressed,
+        long maxFileSize, byte[] tombstone, int bloomFilterBitsPerKey) throws IOException {
+        
+        if (!path.endsWith(System.getProperty("file.separator")))
+            path += System.getProperty("file.separator");
+        
+        File diDir = new File(path);
+        
+        if (new File(diDir, runPrefix + "blockindex.idx").exists())
+            throw new IOException("index already exists");
+        
+        if (!diDir.exists() && !diDir.mkdirs())
+            throw new IOException("could not create directory '" + path + "'");
+        
+        this.compressed = compressed;
+        
+        this.path = path;
+        this.runPrefix = runPrefix;
+        this.maxBlockEntries = maxBlockEntries;
+        this.maxFileSize = maxFileSize;
+        this.tombstone = tombstone;
+        this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+    }
+    
+    /**
+     * Makes the writer drop all entries that have expired at the given
+     * reference time, so that expired entries do not cause any writes. If
+     * values are tagged, expired entries are written as deleted entries
+     * instead, so as to shadow entries of older runs. Expiring entries are
+     * passed to the writer as <code>ExpiringEntry</code> objects; those that
+     * have not expired yet are written along with their expiry times.
+     * 
+     * @param referenceTime
+     *            the time against which the expiry times are checked
+     */
+    public void setExpiryReferenceTime(long referenceTime) {
+        this.expiryReferenceTime = referenceTime;
+    }
+    
+    /**
+     * Makes the writer encode all blocks with the given codec. Blocks that do
+     * not become smaller when being encoded are stored as they are. The codec
+     * of each block is recorded in the block index, which thus requires an
+     * additional byte per block.
+     * 
+     * @param blockCodec
+     *            the codec, or <code>null</code> if blocks are supposed to be
+     *            stored as they are
+     */
+    public void setBlockCodec(BlockCodec blockCodec) {
+        this.blockCodec = blockCodec;
+    }
+    
+    /**
+     * Makes the writer write prefix-coded blocks, in which each key is
+     * front-coded relative to its predecessor, instead of blocks whose format
+     * depends on whether the index is compressed. The format of each block is
+     * recorded in the block index, which thus requires up to two additional
+     * bytes per block.
+     * 
+     * @param keyRestartInterval
+     *            the number of entries after which a key is stored completely,
+     *            or 0 if blocks are not supposed to be prefix-coded
+     */
+    public void setKeyRestartInterval(int keyRestartInterval) {
+        this.keyRestartInterval = keyRestartInterval;
+    }
+    
+    /**
+     * Limits the size of blocks. Entries are added to a block until its size
+     * reaches the given size or the next entry would make it exceed the given
+     * size, or until it contains the maximum number of entries, whatever
+     * happens first. An entry that exceeds the given size on its own is
+     * written to a separate block, so that large values do not inflate the
+     * blocks of their neighboring entries. Block sizes are calculated before
+     * blocks are encoded. <br/>
+     * 
+     * Values are always stored inline, i.e. there is no separate area for
+     * large values. A block with a single large entry is hence read as a
+     * whole on each lookup of the entry, and it is not cached if it exceeds
+     * the share of the <code>BlockCache</code> that a single block may
+     * occupy.
+     * 
+     * @param maxBlockSize
+     *            the size in bytes after which a block is completed, or 0 if
+     *            the size of blocks is supposed to be only limited by the
+     *            maximum number of entries
+     */
+    public void setMaxBlockSize(int maxBlockSize) {
+        this.maxBlockSize = maxBlockSize;
+    }
+    
+    /**
+     * Sets the format of the index. By default, indices are written in
+     * <code>DiskIndex.FORMAT_V2</code>, which records block offsets as 64-bit
+     * integers, so that block files may exceed 2 GB. Indices written in
+     * <code>DiskIndex.FORMAT_V1</code> can be read by older releases, unless
+     * they contain expiring entries, but the writer fails if a block file
+     * exceeds 2 GB.
+     * 
+     * @param formatVersion
+     *            the format version
+     */
+    public void setFormatVersion(int formatVersion) {
+        
+        if (formatVersion != DiskIndex.FORMAT_V1 && formatVersion != DiskIndex.FORMAT_V2)
+            throw new IllegalArgumentException("unsupported index format: " + formatVersion);
+        
+        this.formatVersion = formatVersion;
+    }
+    
+    /**
+     * Sets the key ranges that are recorded as deleted in the run. Deleted
+     * ranges apply to all runs that are older than the written run; they do
+     * not affect the entries of the run itself. They are written to a
+     * separate file of the run, which only exists if any ranges are given.
+     * 
+     * @param deletedRanges
+     *            the deleted ranges
+     */
+    public void setDeletedRanges(KeyRangeSet<byte[]> deletedRanges) {
+        this.deletedRanges = deletedRanges;
+    }
+    
+    /**
+     * Returns the number of expired entries that have been dropped when
+     * writing the index.
+     * 
+     * @return the number of expired entries
+     */
+    public int getNumExpiredEntries() {
+        return numExpiredEntries;
     }
     
     /**
@@ -93,22 +330,22 @@ public class DiskIndexWriter {
      * @param iterator
      * @throws IOException
      */
-    private void writeIndex(String path, BlockWriter blockIndex, Iterator<Entry<Object, Object>> iterator)
+    private void writeIndex(String path, BlockWriter blockIndex, LookaheadIterator iterator)
         throws IOException {
         
         FileOutputStream out = new FileOutputStream(path);
         
-        BlockWriter block;
-        
-        if (compressed)
-            block = new CompressedBlockWriter(true, true);
-        else
-            block = new DefaultBlockWriter(true, true);
+        BlockWriter block = createBlockWriter();
         
         int entryCount = 0;
-        int blockOffset = 0;
+        int blockSize = 0;
+        long blockOffset = 0;
         boolean newBlockFile = false;
         
+        // indicates whether the values of the current block are preceded by
+        // expiry times, which is determined by the first entry of the block
+        boolean expiryTimes = false;
+        
         // write each block to disk
         // note that blocks can become slightly larger than the maxFileSize
         // depending on the size of the last block
@@ -116,59 +353,110 @@ public class DiskIndexWriter {
             
             // add the next key-value pair to the current block
             Entry<Object, Object> next = iterator.next();
-            block.add(next.getKey(), next.getValue());
+            if (entryCount == 0)
+                expiryTimes = getExpiryTime(next) != 0;
+            block.add(next.getKey(), encode(next.getValue(), expiryTimes, getExpiryTime(next)));
+            if (bloomFilter != null)
+                bloomFilter.add(next.getKey());
             
             entryCount++;
+            blockSize += getEntrySize(next, expiryTimes);
+            
+            // check whether the block is full, either because it contains the
+            // maximum number of entries or because the next entry would make
+            // it exceed the maximum block size; a block without expiry times
+            // is also completed before the next entry if that entry expires
+            boolean blockFull = entryCount == maxBlockEntries;
+            if (maxBlockSize > 0 && iterator.hasNext())
+                blockFull |= blockSize + getEntrySize(iterator.peek(), expiryTimes) > maxBlockSize;
+            if (!expiryTimes && iterator.hasNext())
+                blockFull |= getExpiryTime(iterator.peek()) != 0;
             
-            // if the block size limit has been reached, or there are no more
-            // key-value pairs, serialize the block and write it to disk
-            if (entryCount % maxBlockEntries == 0 || !iterator.hasNext()) {
+            // if the block is full, or there are no more key-value pairs,
+            // serialize the block and write it to disk
+            if (blockFull || !iterator.hasNext()) {
                 
-                // serialize the offset of the block into a new buffer
-                ReusableBuffer buf = ReusableBuffer.wrap(new byte[(Integer.SIZE / 8) + (Short.SIZE / 8)]);
-                buf.putInt(blockOffset);
+                // serialize the offset of the block into a new buffer,
+                // followed by the codec and the format of the block; in
+                // format-v1 indices, the codec is only recorded if blocks are
+                // encoded or prefix-coded, and the format is only recorded for
+                // prefix-coded blocks and blocks with expiry times
+                boolean v1 = formatVersion == DiskIndex.FORMAT_V1;
+                boolean recordCodec = !v1 || blockCodec != null || keyRestartInterval != 0 || expiryTimes;
+                boolean recordFormat = !v1 || keyRestartInterval != 0 || expiryTimes;
+                
+                int entrySize = (v1 ? Integer.SIZE / 8 : Long.SIZE / 8) + (Short.SIZE / 8);
+                if (recordCodec)
+                    entrySize++;
+                if (recordFormat)
+                    entrySize++;
+                ReusableBuffer buf = ReusableBuffer.wrap(new byte[entrySize]);
+                if (v1) {
+                    if (blockOffset > Integer.MAX_VALUE)
+                        throw new IOException("block file exceeds the maximum size of format-v1 indices");
+                    buf.putInt((int) blockOffset);
+                } else
+                    buf.putLong(blockOffset);
                 buf.putShort(blockFileId);
                 
-                // add the key-offset mapping to the block index
-                blockIndex.add(InternalBufferUtil.toBuffer(block.getBlockKey()), buf.array());
+                // copy the block key before the block is written, as the
+                // buffers of the block are freed while writing them
+                byte[] blockKey = InternalBufferUtil.toBuffer(block.getBlockKey());
                 
-                // serialize the block and calculate the next block offset
+                // serialize the block
                 SerializedBlock serializedBlock = block.serialize();
-                blockOffset += serializedBlock.size();
                 
-                // write the block
-                int writtenBytes = 0;
-                Iterator<Object> it = serializedBlock.iterator();
-                while (it.hasNext()) {
+                if (bloomFilter != null)
+                    bloomFilter.finishBlock();
+                
+                // write the block and calculate the next block offset
+                if (blockCodec == null) {
                     
-                    // for robustness: check if the file descriptor is still valid,
-                    // re-open the file if necessary
-                    if(!out.getFD().valid()) {
-                        out.close();
-                        out = new FileOutputStream(path, true);
+                    int writtenBytes = 0;
+                    Iterator<Object> it = serializedBlock.iterator();
+                    while (it.hasNext()) {
+                        out = ensureOpen(out, path);
+                        writtenBytes += writeBuffer(out, freeBuffer(it.next()));
                     }
+                    assert (writtenBytes == serializedBlock.size());
                     
-                    Object nextBuffer = it.next();
+                    blockOffset += writtenBytes;
                     
-                    // check if the entry is the last from the buffer; if so, free it
-                    if(nextBuffer instanceof ByteRange) {
-                        ByteRange rng = (ByteRange) nextBuffer;
-                        if(rng.getReusableBuf() != null)
-                            BufferPool.free(rng.getReusableBuf());
-                    }
+                    if (recordCodec)
+                        buf.put(BlockCodec.NONE);
+                
+                } else {
+                    
+                    byte[] rawBlock = new byte[serializedBlock.size()];
+                    ByteBuffer tmp = ByteBuffer.wrap(rawBlock);
+                    Iterator<Object> it = serializedBlock.iterator();
+                    while (it.hasNext())
+                        tmp.put(InternalBufferUtil.toBuffer(freeBuffer(it.next())));
+                    assert (!tmp.hasRemaining());
+                    
+                    // store the block as it is unless encoding saves space
+                    byte[] encodedBlock = encode(rawBlock);
+                    buf.put(encodedBlock == null ? BlockCodec.NONE : blockCodec.getId());
                     
-                    writtenBytes += writeBuffer(out, nextBuffer);
+                    out = ensureOpen(out, path);
+                    out.write(encodedBlock == null ? rawBlock : encodedBlock);
+                    blockOffset += encodedBlock == null ? rawBlock.length : encodedBlock.length;
                 }
-                assert (writtenBytes == serializedBlock.size());
+                
+                if (recordFormat)
+                    buf.put((byte) ((keyRestartInterval > 0 ? DiskIndex.PREFIX_CODED_BLOCK
+                        : DiskIndex.PLAIN_BLOCK) | (expiryTimes ? DiskIndex.EXPIRY_TIMES_FLAG : 0)));
+                
+                // add the key-offset mapping to the block index
+                blockIndex.add(blockKey, buf.array());
                 
                 if (blockOffset >= maxFileSize) {
                     newBlockFile = true;
                 } else {
                     if (iterator.hasNext())
-                        if (compressed)
-                            block = new CompressedBlockWriter(true, true);
-                        else
-                            block = new DefaultBlockWriter(true, true);
+                        block = createBlockWriter();
+                    entryCount = 0;
+                    blockSize = 0;
                 }
             }
             
@@ -189,21 +477,30 @@ public class DiskIndexWriter {
      */
     public void writeIndex(ResultSet<Object, Object> iterator) throws IOException {
         
+        LookaheadIterator entries = new LookaheadIterator(expiryReferenceTime == 0 ? iterator
+            : new ExpiryFilter(iterator));
+        
         BlockWriter blockIndex = new DefaultBlockWriter(true, false);
         
+        if (bloomFilterBitsPerKey > 0)
+            bloomFilter = new BloomFilterWriter(path + runPrefix + "bloomfilter.idx", bloomFilterBitsPerKey);
+        
         // write all index files
-        while (iterator.hasNext()) {
-            String indexPath = path + "blockfile_" + new Short(blockFileId).toString() + ".idx";
-            writeIndex(indexPath, blockIndex, iterator);
+        while (entries.hasNext()) {
+            String indexPath = path + runPrefix + "blockfile_" + new Short(blockFileId).toString() + ".idx";
+            writeIndex(indexPath, blockIndex, entries);
             
             blockFileId++;
         }
         
-        iterator.free();
+        entries.free();
+        
+        if (bloomFilter != null)
+            bloomFilter.close();
         
         // write the block index
-        new File(path + "blockindex.idx").createNewFile();
-        FileOutputStream out = new FileOutputStream(path + "blockindex.idx", false);
+        new File(path + runPrefix + "blockindex.idx").createNewFile();
+        FileOutputStream out = new FileOutputStream(path + runPrefix + "blockindex.idx", false);
         
         SerializedBlock serializedBuf = blockIndex.serialize();
         
@@ -215,6 +512,216 @@ public class DiskIndexWriter {
         assert (bytesWritten == serializedBuf.size());
         
         out.close();
+        
+        if (deletedRanges != null && !deletedRanges.isEmpty())
+            writeDeletedRanges(path + runPrefix + DiskIndex.DELETED_RANGES_FILE);
+    }
+    
+    /**
+     * Writes the deleted ranges to a file. The file contains the number of
+     * ranges, followed by the first and the last key of each range in
+     * ascending order. Each key is stored as its length and its bytes; a
+     * length of -1 denotes an unbounded range.
+     * 
+     * @param file
+     *            the file
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    private void writeDeletedRanges(String file) throws IOException {
+        
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(deletedRanges.getRanges().size());
+            for (KeyRange<byte[]> range : deletedRanges.getRanges()) {
+                writeKey(out, range.getFrom());
+                writeKey(out, range.getTo());
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    private static void writeKey(DataOutputStream out, byte[] key) throws IOException {
+        
+        if (key == null) {
+            out.writeInt(-1);
+            return;
+        }
+        
+        out.writeInt(key.length);
+        out.write(key);
+    }
+    
+    /**
+     * Encodes a value to be stored in a block. If the values of the block are
+     * preceded by expiry times, the expiry time of the entry is prepended. If
+     * values are tagged, a tag is prepended in addition, which indicates
+     * whether the value denotes a deleted entry.
+     * 
+     * @param value
+     *            the value
+     * @param expiryTimes
+     *            indicates whether the values of the block are preceded by
+     *            expiry times
+     * @param expiryTime
+     *            the expiry time of the entry, or 0 if it does not expire
+     * @return the encoded value
+     */
+    private Object encode(Object value, boolean expiryTimes, long expiryTime) {
+        
+        if (tombstone == null && !expiryTimes)
+            return value;
+        
+        boolean deleted = tombstone != null && value == tombstone;
+        int size = deleted ? 0 : InternalBufferUtil.size(value);
+        int headerSize = (expiryTimes ? Long.SIZE / 8 : 0) + (tombstone != null ? 1 : 0);
+        
+        byte[] result = new byte[headerSize + size];
+        ByteBuffer buf = ByteBuffer.wrap(result);
+        if (expiryTimes)
+            buf.putLong(expiryTime);
+        if (tombstone != null)
+            buf.put(deleted ? DiskIndex.TOMBSTONE_TAG : DiskIndex.VALUE_TAG);
+        
+        if (value instanceof byte[])
+            System.arraycopy((byte[]) value, 0, result, headerSize, size);
+        else if (!deleted) {
+            ByteRange range = (ByteRange) value;
+            for (int i = 0; i < size; i++)
+                result[headerSize + i] = range.getBuf().get(range.getStartOffset() + i);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Returns the expiry time of an entry.
+     * 
+     * @param entry
+     *            the entry
+     * @return the expiry time, or 0 if the entry does not expire
+     */
+    private static long getExpiryTime(Entry<Object, Object> entry) {
+        return entry instanceof ExpiringEntry ? ((ExpiringEntry<?, ?>) entry).getExpiryTime() : 0;
+    }
+    
+    /**
+     * Checks whether an entry has expired at the reference time. If so, the
+     * entry is counted, and its value is freed.
+     * 
+     * @param entry
+     *            the entry
+     * @return <code>true</code>, if the entry has expired, <code>false</code>,
+     *         otherwise
+     */
+    private boolean expire(Entry<Object, Object> entry) {
+        
+        long expiryTime = getExpiryTime(entry);
+        if (expiryTime == 0 || expiryTime > expiryReferenceTime)
+            return false;
+        
+        numExpiredEntries++;
+        
+        // free the buffer if necessary
+        Object value = entry.getValue();
+        if (value instanceof ByteRange && ((ByteRange) value).getReusableBuf() != null)
+            BufferPool.free(((ByteRange) value).getReusableBuf());
+        
+        return true;
+    }
+    
+    /**
+     * Estimates the number of bytes an entry occupies in a block, including
+     * the offsets of its key and value.
+     * 
+     * @param entry
+     *            the entry
+     * @param expiryTimes
+     *            indicates whether the values of the block are preceded by
+     *            expiry times
+     * @return the estimated size of the entry
+     */
+    private int getEntrySize(Entry<Object, Object> entry, boolean expiryTimes) {
+        return InternalBufferUtil.size(entry.getKey()) + InternalBufferUtil.size(entry.getValue()) + 2
+            * Integer.SIZE / 8 + (expiryTimes ? Long.SIZE / 8 : 0);
+    }
+    
+    /**
+     * Creates a writer for the next block.
+     * 
+     * @return the block writer
+     */
+    private BlockWriter createBlockWriter() {
+        
+        if (keyRestartInterval > 0)
+            return new PrefixCodedBlockWriter(keyRestartInterval, true);
+        
+        return compressed ? new CompressedBlockWriter(true, true) : new DefaultBlockWriter(true, true);
+    }
+    
+    /**
+     * Encodes a block with the block codec.
+     * 
+     * @param rawBlock
+     *            the block
+     * @return the encoded block, preceded by the length of the original
+     *         block, or <code>null</code> if it is not smaller than the
+     *         original block
+     */
+    private byte[] encode(byte[] rawBlock) {
+        
+        byte[] encodedBlock = new byte[rawBlock.length];
+        int length = blockCodec.encode(rawBlock, rawBlock.length, encodedBlock);
+        if (length == -1 || length + Integer.SIZE / 8 >= rawBlock.length)
+            return null;
+        
+        byte[] result = new byte[length + Integer.SIZE / 8];
+        ByteBuffer.wrap(result).putInt(rawBlock.length);
+        System.arraycopy(encodedBlock, 0, result, Integer.SIZE / 8, length);
+        
+        return result;
+    }
+    
+    /**
+     * Checks if the file descriptor of a stream is still valid, and re-opens
+     * the file if necessary.
+     * 
+     * @param out
+     *            the stream
+     * @param path
+     *            the path to the file
+     * @return a stream to the file
+     * @throws IOException
+     *             if the file cannot be re-opened
+     */
+    private static FileOutputStream ensureOpen(FileOutputStream out, String path) throws IOException {
+        
+        if (out.getFD().valid())
+            return out;
+        
+        out.close();
+        return new FileOutputStream(path, true);
+    }
+    
+    /**
+     * Returns a buffer of a serialized block to the pool, if it is the last
+     * range of a pooled buffer. The content of the buffer remains accessible
+     * until the buffer is re-allocated.
+     * 
+     * @param buf
+     *            the buffer
+     * @return the buffer
+     */
+    private static Object freeBuffer(Object buf) {
+        
+        if (buf instanceof ByteRange) {
+            ByteRange rng = (ByteRange) buf;
+            if (rng.getReusableBuf() != null)
+                BufferPool.free(rng.getReusableBuf());
+        }
+        
+        return buf;
     }
     
     private int writeBuffer(FileOutputStream out, Object buf) throws IOException {
@@ -236,7 +743,130 @@ public class DiskIndexWriter {
             slice.limit(range.getSize());
             return out.getChannel().write(slice);
         }
+    
+    }
+    
+    /**
+     * Skips all expired entries of an iterator, or replaces their values with
+     * the tombstone if values are tagged.
+     */
+    private class ExpiryFilter implements ResultSet<Object, Object> {
+        
+        private final ResultSet<Object, Object> it;
+        
+        private Entry<Object, Object>           next;
+        
+        public ExpiryFilter(ResultSet<Object, Object> it) {
+            this.it = it;
+            this.next = getNextEntry();
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+        
+        @Override
+        public Entry<Object, Object> next() {
+            
+            if (next == null)
+                throw new NoSuchElementException();
+            
+            Entry<Object, Object> tmp = next;
+            next = getNextEntry();
+            return tmp;
+        }
         
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void free() {
+            it.free();
+        }
+        
+        private Entry<Object, Object> getNextEntry() {
+            
+            while (it.hasNext()) {
+                
+                Entry<Object, Object> entry = it.next();
+                if (getExpiryTime(entry) == 0)
+                    return entry;
+                
+                // the key is copied before the entry is expired, as the buffer
+                // containing the original key may be freed along with the value
+                final byte[] key = InternalBufferUtil.toBuffer(entry.getKey());
+                if (!expire(entry))
+                    return entry;
+                
+                if (tombstone != null)
+                    return new Entry<Object, Object>() {
+                        
+                        public Object getKey() {
+                            return key;
+                        }
+                        
+                        public Object getValue() {
+                            return tombstone;
+                        }
+                        
+                        public Object setValue(Object value) {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+            }
+            
+            return null;
+        }
+    }
+    
+    /**
+     * Wraps an iterator so as to provide access to the next entry before it is
+     * returned, which is needed to determine whether an entry still fits into
+     * the current block.
+     */
+    private static class LookaheadIterator implements ResultSet<Object, Object> {
+        
+        private final ResultSet<Object, Object> it;
+        
+        private Entry<Object, Object>           next;
+        
+        public LookaheadIterator(ResultSet<Object, Object> it) {
+            this.it = it;
+            this.next = it.hasNext() ? it.next() : null;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+        
+        @Override
+        public Entry<Object, Object> next() {
+            
+            if (next == null)
+                throw new NoSuchElementException();
+            
+            Entry<Object, Object> tmp = next;
+            next = it.hasNext() ? it.next() : null;
+            return tmp;
+        }
+        
+        public Entry<Object, Object> peek() {
+            return next;
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void free() {
+            it.free();
+        }
     }
     
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.index.writer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.xtreemfs.babudb.index.reader.InternalBufferUtil;
+import org.xtreemfs.babudb.index.reader.PrefixCodedBlockReader;
+
+/**
+ * A block writer that front-codes each key relative to its predecessor, i.e.
+ * only stores the length of the prefix shared with the preceding key and the
+ * remaining suffix. Every <code>restartInterval</code> entries, a key is stored
+ * completely; the offsets of these restart points are stored after the keys,
+ * so that readers can locate a key by means of a binary search over the
+ * restart points, followed by a linear scan of at most
+ * <code>restartInterval</code> keys.
+ * <p>
+ * Unlike <code>CompressedBlockWriter</code>, which only strips the prefix
+ * shared by all keys of a block, this format also benefits from long prefixes
+ * shared by neighboring keys, as in the case of hierarchical keys. Values are
+ * stored like in blocks written by <code>DefaultBlockWriter</code>.
+ * </p>
+ */
+public class PrefixCodedBlockWriter implements BlockWriter {
+    
+    private List<Object> keys;
+    
+    private List<Object> values;
+    
+    private final int    restartInterval;
+    
+    private boolean      varLenVals;
+    
+    private boolean      serialized;
+    
+    /**
+     * the length shared by all values added so far, or -1 if they differ
+     */
+    private int          valLen;
+    
+    /**
+     * Creates a new block writer.
+     * 
+     * @param restartInterval
+     *            the number of entries after which a key is stored completely
+     * @param varLenVals
+     *            if <code>true</code>, values may have different lengths
+     */
+    public PrefixCodedBlockWriter(int restartInterval, boolean varLenVals) {
+        
+        assert (restartInterval > 0) : "invalid restart interval: " + restartInterval;
+        
+        keys = new LinkedList<Object>();
+        values = new LinkedList<Object>();
+        
+        this.restartInterval = restartInterval;
+        this.varLenVals = varLenVals;
+        this.valLen = -1;
+    }
+    
+    public void add(Object key, Object value) {
+        
+        if (serialized)
+            throw new UnsupportedOperationException("already serialized");
+        
+        valLen = DefaultBlockWriter.entryLen(valLen, value, values.isEmpty());
+        
+        keys.add(key);
+        values.add(value);
+    }
+    
+    public SerializedBlock serialize() {
+        
+        if (serialized)
+            throw new UnsupportedOperationException("already serialized");
+        
+        serialized = true;
+        
+        byte[] keyPage = serializeKeys();
+        
+        boolean varLenVals = this.varLenVals && valLen <= 0;
+        SerializedPage valPage = varLenVals ? DefaultBlockWriter.serializeVarLenPage(values)
+            : DefaultBlockWriter.serializeFixedLenPage(values);
+        
+        int entries = keys.size();
+        int valsOffset = PrefixCodedBlockReader.KEYS_OFFSET + keyPage.length;
+        
+        // header: [offset of value page, #entries, restart interval, value
+        // size]
+        ByteBuffer tmp = ByteBuffer.wrap(new byte[4 * Integer.SIZE / 8]);
+        tmp.putInt(valsOffset);
+        tmp.putInt(entries);
+        tmp.putInt(restartInterval);
+        tmp.putInt(varLenVals ? -1 : entries == 0 ? 0 : (valPage.size / entries));
+        
+        List<Object> header = new ArrayList<Object>(2);
+        header.add(tmp.array());
+        header.add(keyPage);
+        
+        SerializedBlock result = new SerializedBlock();
+        result.addBuffers(tmp.limit() + keyPage.length, header);
+        result.addBuffers(valPage.size, valPage.entries);
+        
+        return result;
+    }
+    
+    public Object getBlockKey() {
+        return keys.get(0);
+    }
+    
+    /**
+     * Serializes the key page, which consists of the front-coded keys,
+     * followed by the offsets of all restart points relative to the start of
+     * the page. Each key is stored as the length of the prefix shared with the
+     * preceding key and the length of the suffix, both as variable-length
+     * integers, followed by the suffix.
+     * 
+     * @return the key page
+     */
+    private byte[] serializeKeys() {
+        
+        int numRestarts = (keys.size() + restartInterval - 1) / restartInterval;
+        
+        int size = 0;
+        for (Object key : keys)
+            size += InternalBufferUtil.size(key) + 10;
+        ByteBuffer buf = ByteBuffer.wrap(new byte[size + numRestarts * Integer.SIZE / 8]);
+        
+        int[] restarts = new int[numRestarts];
+        byte[] prev = null;
+        int i = 0;
+        for (Object entry : keys) {
+            
+            byte[] key = InternalBufferUtil.toBuffer(entry);
+            
+            int shared = 0;
+            if (i % restartInterval == 0)
+                restarts[i / restartInterval] = buf.position();
+            else
+                while (shared < prev.length && shared < key.length && prev[shared] == key[shared])
+                    shared++;
+            
+            putVarInt(buf, shared);
+            putVarInt(buf, key.length - shared);
+            buf.put(key, shared, key.length - shared);
+            
+            prev = key;
+            i++;
+        }
+        
+        for (int restart : restarts)
+            buf.putInt(restart);
+        
+        byte[] page = new byte[buf.position()];
+        System.arraycopy(buf.array(), 0, page, 0, page.length);
+        
+        return page;
+    }
+    
+    /**
+     * Writes a non-negative integer with seven bits per byte, starting with
+     * the least significant bits. The most significant bit of each byte
+     * indicates whether further bytes follow.
+     */
+    private static void putVarInt(ByteBuffer buf, int value) {
+        
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+    
+}
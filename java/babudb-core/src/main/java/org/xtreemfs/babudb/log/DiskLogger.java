@@ -261,6 +261,26 @@ public class DiskLogger extends LifeCycleThread {
         sync.unlock();
     }
 
+    /**
+     * Waits until all entries that have been appended so far have been
+     * written, so that their LSNs have been assigned.
+     * 
+     * @throws InterruptedException
+     *             if the thread has been interrupted while waiting.
+     */
+    public void waitForAppendedEntries() throws InterruptedException {
+
+        synchronized (this) {
+            while (!quit && !entries.isEmpty()) {
+                wait();
+            }
+        }
+
+        // the logger holds the lock while writing the entries it has polled
+        lock();
+        unlock();
+    }
+
     public LSN switchLogFile(boolean incrementViewId) throws IOException {
         if (!hasLock()) {
             throw new IllegalStateException("the lock is held by another thread or the logger is not locked.");
@@ -39,6 +39,14 @@ public class BabuDBInsertGroup implements DatabaseInsertGroup {
         rec.addInsert(indexId, key, value);
     }
     
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseInsertGroup#addInsert(int, byte[], byte[], long)
+     */
+    @Override
+    public void addInsert(int indexId, byte[] key, byte[] value, long expiryTime) {
+        rec.addInsert(indexId, key, value, expiryTime);
+    }
+    
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.lsmdb.InsertGroup#addDelete(int, byte[])
      */
@@ -47,6 +55,22 @@ public class BabuDBInsertGroup implements DatabaseInsertGroup {
         rec.addInsert(indexId, key, null);
     }
     
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseInsertGroup#addRangeDelete(int, byte[], byte[])
+     */
+    @Override
+    public void addRangeDelete(int indexId, byte[] from, byte[] to) {
+        rec.addRangeDelete(indexId, from, to);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseInsertGroup#addMerge(int, byte[], byte[])
+     */
+    @Override
+    public void addMerge(int indexId, byte[] key, byte[] operand) {
+        rec.addMerge(indexId, key, operand);
+    }
+    
     public String toString() {
         return rec.toString();
     }
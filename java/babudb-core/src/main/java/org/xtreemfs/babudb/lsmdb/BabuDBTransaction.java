@@ -24,6 +24,7 @@ import org.xtreemfs.babudb.api.dev.transaction.TransactionInternal;
 import org.xtreemfs.babudb.api.dev.transaction.OperationInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
 import org.xtreemfs.babudb.api.transaction.Operation;
 import org.xtreemfs.babudb.snapshots.SnapshotConfig;
 import org.xtreemfs.foundation.buffer.BufferPool;
@@ -68,8 +69,16 @@ public class BabuDBTransaction extends TransactionInternal {
     public TransactionInternal createDatabase(String databaseName, int numIndices, 
             ByteRangeComparator[] comparators) {
         
+        return createDatabase(databaseName, numIndices, comparators, null);
+    }
+    
+    @Override
+    public TransactionInternal createDatabase(String databaseName, int numIndices, 
+            ByteRangeComparator[] comparators, MergeOperator[] mergeOperators) {
+        
         return addOperation(new BabuDBOperation(Operation.TYPE_CREATE_DB, databaseName, 
-                new Object[] {numIndices, comparators }));
+                mergeOperators == null ? new Object[] {numIndices, comparators } 
+                        : new Object[] {numIndices, comparators, mergeOperators }));
     }
     
     @Override
@@ -84,6 +93,15 @@ public class BabuDBTransaction extends TransactionInternal {
         return insertRecordGroup(databaseName, irg);
     }
     
+    @Override
+    public TransactionInternal deleteRange(String databaseName, int indexId, byte[] from, 
+            byte[] to) {
+        
+        InsertRecordGroup irg = new InsertRecordGroup(-1);
+        irg.addRangeDelete(indexId, from, to);
+        return insertRecordGroup(databaseName, irg);
+    }
+    
     @Override
     public TransactionInternal insertRecord(String databaseName, int indexId, byte[] key, 
             byte[] value) {
@@ -432,7 +450,7 @@ public class BabuDBTransaction extends TransactionInternal {
                 irg.serialize(buf);
                 buf.flip();
                 
-                buffer.put(FIELD_TYPE_GROUP);
+                buffer.put(irg.isExtended() ? FIELD_TYPE_EXTENDED_GROUP : FIELD_TYPE_GROUP);
                 buffer.putInt(size);
                 buffer.put(buf);
                 BufferPool.free(buf);
@@ -504,7 +522,8 @@ public class BabuDBTransaction extends TransactionInternal {
                 
                 return obj;
             }
-            case FIELD_TYPE_GROUP: {
+            case FIELD_TYPE_GROUP:
+            case FIELD_TYPE_EXTENDED_GROUP: {
                 
                 int length = buffer.getInt();
                 ReusableBuffer view = null;
@@ -520,7 +539,7 @@ public class BabuDBTransaction extends TransactionInternal {
                     // reset buffer position
                     buffer.position(pos);
                     
-                    return InsertRecordGroup.deserialize(view);
+                    return InsertRecordGroup.deserialize(view, fieldType == FIELD_TYPE_EXTENDED_GROUP);
                 } finally {
                     if (view != null) BufferPool.free(view);
                 }
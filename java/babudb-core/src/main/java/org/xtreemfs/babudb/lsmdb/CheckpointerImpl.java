@@ -12,12 +12,21 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -38,7 +47,10 @@ import org.xtreemfs.foundation.util.OutputUtils;
 
 /**
  * This thread regularly checks the size of the database operations log and
- * initiates a checkpoint of all databases if necessary.
+ * the in-memory overlays, and initiates a checkpoint of all databases if
+ * necessary. Databases whose overlays exceed their individual size limits are
+ * flushed to disk on their own. If configured, the snapshots of the indices
+ * are written to disk by a pool of concurrent threads.
  * 
  * @author bjko
  */
@@ -64,6 +76,9 @@ public class CheckpointerImpl extends CheckpointerInternal {
     private static final String                RUNTIME_STATE_CPCOUNT        = "checkpointer.cpCount";
     private static final String                RUNTIME_STATE_LASTCP         = "checkpointer.lastCpTimestampMillis";
     private static final String                RUNTIME_STATE_LASTCPDURATION = "checkpointer.lastCpDurationMillis";
+    private static final String                RUNTIME_STATE_FLUSHCOUNT     = "checkpointer.flushCount";
+    private static final String                RUNTIME_STATE_INDEXDURATIONS = "checkpointer.lastIndexCpDurationsMillis";
+    private static final String                RUNTIME_STATE_EXPIREDENTRIES = "checkpointer.lastIndexCpExpiredEntries";
     
     private volatile boolean                   quit;
     
@@ -110,6 +125,26 @@ public class CheckpointerImpl extends CheckpointerInternal {
     
     private AtomicLong                         _lastCheckpointDuration      = new AtomicLong();
     
+    private AtomicInteger                      _flushCount                  = new AtomicInteger();
+    
+    /**
+     * the durations of writing the index snapshots in the course of the last
+     * checkpoint or flush, keyed by 'database name:index'
+     */
+    private volatile Map<String, Long>         _lastIndexDurations          = Collections.emptyMap();
+    
+    /**
+     * the numbers of expired entries dropped from the index snapshots in the
+     * course of the last checkpoint or flush, keyed by 'database name:index'
+     */
+    private volatile Map<String, Integer>      _lastExpiredEntries          = Collections.emptyMap();
+    
+    /**
+     * the thread pool used for writing index snapshots concurrently; created
+     * on demand
+     */
+    private ExecutorService                    snapshotWriters;
+    
     /**
      * Creates a new database checkpointer
      * 
@@ -190,6 +225,29 @@ public class CheckpointerImpl extends CheckpointerInternal {
         }
     }
     
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.dev.CheckpointerInternal#flush(java.lang.String)
+     */
+    @Override
+    public LSN flush(String dbName) throws BabuDBException {
+        
+        DatabaseInternal db = dbs.getDatabaseManager().getDatabase(dbName);
+        synchronized (dbs.getDatabaseManager().getDBModificationLock()) {
+            synchronized (this) {
+                try {
+                    logger.waitForAppendedEntries();
+                    LSN lsn = flushDatabase(db);
+                    _flushCount.incrementAndGet();
+                    return lsn;
+                } catch (InterruptedException e) {
+                    throw new BabuDBException(ErrorCode.INTERRUPTED, "interrupted", e);
+                }
+            }
+        }
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -238,6 +296,147 @@ public class CheckpointerImpl extends CheckpointerInternal {
         }
     }
     
+    /**
+     * Flushes the in-memory overlays of a single database to disk. Unlike a
+     * checkpoint, this neither switches nor deletes log files, as the logs
+     * still contain entries of other databases that have not been written to
+     * disk. When the logs are replayed, entries with LSNs up to the on-disk LSN
+     * of the database are skipped, as they have already been written to the
+     * database.
+     * 
+     * @param db
+     *            the database
+     * @return the LSN of the last log entry included in the flush
+     * @throws BabuDBException
+     * @throws InterruptedException
+     */
+    private LSN flushDatabase(DatabaseInternal db) throws BabuDBException, InterruptedException {
+        
+        Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "flushing database '" + db.getName()
+            + "'...");
+        
+        int[] snapIds;
+        LSN lsn;
+        try {
+            // critical block...
+            logger.lock();
+            snapIds = db.proceedCreateSnapshot();
+            lsn = logger.getLatestLSN();
+        } finally {
+            if (logger.hasLock())
+                logger.unlock();
+        }
+        
+        List<DatabaseInternal> databases = new ArrayList<DatabaseInternal>(1);
+        databases.add(db);
+        writeSnapshots(databases, new int[][] { snapIds }, lsn);
+        db.proceedCleanupSnapshot(lsn.getViewId(), lsn.getSequenceNo());
+        
+        Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "flush complete");
+        return lsn;
+    }
+    
+    /**
+     * Returns the number of bytes occupied by the in-memory overlays of all
+     * databases.
+     * 
+     * @return the number of bytes
+     */
+    private long getOverlayMemoryUsage() {
+        
+        long size = 0;
+        for (DatabaseInternal db : dbs.getDatabaseManager().getDatabaseList())
+            size += db.getLSMDB().getOverlayMemoryUsage();
+        
+        return size;
+    }
+    
+    /**
+     * Writes the snapshots of all indices of the given databases to disk. If
+     * more than one checkpoint thread has been configured, the snapshots of
+     * different indices are written concurrently. The method returns when all
+     * snapshots have been written, or when writing one of them has failed.
+     * 
+     * @param databases
+     *            the databases
+     * @param snapIds
+     *            the snapshot IDs of the indices of each database
+     * @param lsn
+     *            the LSN of the last write included in the snapshots
+     * @throws BabuDBException
+     *             if a snapshot cannot be written
+     * @throws InterruptedException
+     */
+    private void writeSnapshots(Collection<DatabaseInternal> databases, int[][] snapIds, final LSN lsn)
+        throws BabuDBException, InterruptedException {
+        
+        final Map<String, Long> durations = new ConcurrentHashMap<String, Long>();
+        final Map<String, Integer> expiredEntries = new ConcurrentHashMap<String, Integer>();
+        
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        int i = 0;
+        for (DatabaseInternal db : databases) {
+            
+            final LSMDatabase lsmDB = db.getLSMDB();
+            final int[] ids = snapIds[i++];
+            
+            for (int index = 0; index < ids.length; index++) {
+                
+                final int idx = index;
+                tasks.add(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        long start = System.currentTimeMillis();
+                        lsmDB.writeSnapshot(lsn.getViewId(), lsn.getSequenceNo(), ids[idx], idx);
+                        durations.put(lsmDB.getDatabaseName() + ":" + idx, System.currentTimeMillis()
+                            - start);
+                        expiredEntries.put(lsmDB.getDatabaseName() + ":" + idx, lsmDB.getIndex(idx)
+                                .getNumExpiredEntries());
+                        return null;
+                    }
+                });
+            }
+        }
+        
+        try {
+            
+            int numThreads = dbs.getConfig().getCheckpointThreads();
+            if (numThreads <= 1 || tasks.size() <= 1) {
+                for (Callable<Object> task : tasks)
+                    task.call();
+            } else {
+                
+                if (snapshotWriters == null)
+                    snapshotWriters = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "BabuDB snapshot writer");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                
+                // wait for all snapshots to be written and report the first
+                // failure, if any
+                for (Future<Object> future : snapshotWriters.invokeAll(tasks)) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        throw ex.getCause();
+                    }
+                }
+            }
+            
+        } catch (InterruptedException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw new BabuDBException(ErrorCode.IO_ERROR, "cannot write snapshot: " + ex, ex);
+        } catch (Throwable ex) {
+            throw new BabuDBException(ErrorCode.INTERNAL_ERROR, "cannot write snapshot: " + ex, ex);
+        } finally {
+            _lastIndexDurations = durations;
+            _lastExpiredEntries = expiredEntries;
+        }
+    }
+    
     /**
      * Internal method for creating a new database checkpoint. This involves the
      * following steps:
@@ -278,11 +477,12 @@ public class CheckpointerImpl extends CheckpointerInternal {
                     logger.unlock();
             }
             
-            i = 0;
-            for (DatabaseInternal db : databases) {
-                db.proceedWriteSnapshot(lastWrittenLSN.getViewId(), lastWrittenLSN.getSequenceNo(), snapIds[i++]);
+            // write all snapshots before linking any of them, so that the
+            // databases are not switched to the new checkpoint if writing one
+            // of the snapshots fails
+            writeSnapshots(databases, snapIds, lastWrittenLSN);
+            for (DatabaseInternal db : databases)
                 db.proceedCleanupSnapshot(lastWrittenLSN.getViewId(), lastWrittenLSN.getSequenceNo());
-            }
             
             // delete all logfile with LSN <= lastWrittenLSN
             File f = new File(dbs.getConfig().getDbLogDir());
@@ -389,14 +589,20 @@ public class CheckpointerImpl extends CheckpointerInternal {
                 }
                 
                 final long lfsize = logger.getLogFileSize();
-                if (manualCheckpoint || lfsize > maxLogLength) {
+                final long maxOverlayMemory = dbs.getConfig().getMaxOverlayMemory();
+                final long overlayMemory = maxOverlayMemory > 0 ? getOverlayMemoryUsage() : 0;
+                if (manualCheckpoint || lfsize > maxLogLength || overlayMemory > maxOverlayMemory) {
                     
-                    if (!manualCheckpoint) {
+                    if (manualCheckpoint) {
+                        Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "triggered manual checkpoint");
+                    } else if (lfsize > maxLogLength) {
                         Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
                                 "database operation log has exceeded threshold " + "size of " + maxLogLength + " ("
                                         + lfsize + ")");
                     } else {
-                        Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this, "triggered manual checkpoint");
+                        Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
+                                "in-memory overlays have exceeded threshold size of " + maxOverlayMemory + " ("
+                                        + overlayMemory + ")");
                     }
                     
                     synchronized (dbs.getDatabaseManager().getDBModificationLock()) {
@@ -411,6 +617,21 @@ public class CheckpointerImpl extends CheckpointerInternal {
                             _lastCheckpointDuration.set(System.currentTimeMillis() - start);
                         }
                     }
+                } else {
+                    
+                    // flush all databases that have exceeded their individual
+                    // overlay size limits
+                    synchronized (dbs.getDatabaseManager().getDBModificationLock()) {
+                        synchronized (this) {
+                            for (DatabaseInternal db : dbs.getDatabaseManager().getDatabaseList()) {
+                                long limit = dbs.getConfig().getMaxOverlayMemory(db.getName());
+                                if (limit > 0 && db.getLSMDB().getOverlayMemoryUsage() > limit) {
+                                    flushDatabase(db);
+                                    _flushCount.incrementAndGet();
+                                }
+                            }
+                        }
+                    }
                 }
             } catch (InterruptedException ex) {
                 if (quit)
@@ -434,6 +655,11 @@ public class CheckpointerImpl extends CheckpointerInternal {
             }
         }
         
+        synchronized (this) {
+            if (snapshotWriters != null)
+                snapshotWriters.shutdownNow();
+        }
+        
         Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "checkpointer shut down " + "successfully");
         notifyStopped();
     }
@@ -462,6 +688,12 @@ public class CheckpointerImpl extends CheckpointerInternal {
             return _lastCheckpoint.get();
         if (RUNTIME_STATE_LASTCPDURATION.equals(property))
             return _lastCheckpointDuration.get();
+        if (RUNTIME_STATE_FLUSHCOUNT.equals(property))
+            return _flushCount.get();
+        if (RUNTIME_STATE_INDEXDURATIONS.equals(property))
+            return new HashMap<String, Long>(_lastIndexDurations);
+        if (RUNTIME_STATE_EXPIREDENTRIES.equals(property))
+            return new HashMap<String, Integer>(_lastExpiredEntries);
         
         return null;
     }
@@ -472,6 +704,9 @@ public class CheckpointerImpl extends CheckpointerInternal {
         map.put(RUNTIME_STATE_CPCOUNT, _checkpointCount.get());
         map.put(RUNTIME_STATE_LASTCP, _lastCheckpoint.get());
         map.put(RUNTIME_STATE_LASTCPDURATION, _lastCheckpointDuration.get());
+        map.put(RUNTIME_STATE_FLUSHCOUNT, _flushCount.get());
+        map.put(RUNTIME_STATE_INDEXDURATIONS, new HashMap<String, Long>(_lastIndexDurations));
+        map.put(RUNTIME_STATE_EXPIREDENTRIES, new HashMap<String, Integer>(_lastExpiredEntries));
         return map;
     }
     
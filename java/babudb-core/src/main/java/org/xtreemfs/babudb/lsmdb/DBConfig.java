@@ -25,6 +25,8 @@ import org.xtreemfs.babudb.api.dev.DatabaseManagerInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
+import org.xtreemfs.babudb.conversion.AutoConverter;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
 
@@ -69,7 +71,8 @@ public class DBConfig {
             if (configFile.exists()) {
                 ois = new ObjectInputStream(new FileInputStream(configFile));
                 final int dbFormatVer = ois.readInt();
-                if (dbFormatVer != BABUDB_DB_FORMAT_VERSION) {
+                if (dbFormatVer != BABUDB_DB_FORMAT_VERSION
+                    && !AutoConverter.isUpgradableInPlace(dbFormatVer)) {
                     throw new BabuDBException(ErrorCode.IO_ERROR, "on-disk format (version " + dbFormatVer
                         + ") is incompatible with this BabuDB release " + "(uses on-disk format version "
                         + BABUDB_DB_FORMAT_VERSION + ")");
@@ -82,17 +85,9 @@ public class DBConfig {
                     final int dbId = ois.readInt();
                     final int numIndex = ois.readInt();
                     ByteRangeComparator[] comps = new ByteRangeComparator[numIndex];
+                    MergeOperator[] ops = new MergeOperator[numIndex];
                     for (int idx = 0; idx < numIndex; idx++) {
-                        final String className = (String) ois.readObject();
-                        ByteRangeComparator comp = dbman.getComparatorInstances().get(className);
-                        if (comp == null) {
-                            Class<?> clazz = Class.forName(className);
-                            comp = (ByteRangeComparator) clazz.newInstance();
-                            dbman.getComparatorInstances().put(className, comp);
-                        }
-                        
-                        assert (comp != null);
-                        comps[idx] = comp;
+                        readIndexClasses(ois, dbman, comps, ops, idx);
                     }
                     
                     ids.add(dbId);
@@ -102,20 +97,32 @@ public class DBConfig {
                         // reset existing DBs
                         db = dbman.getDatabase(dbId);
                         db.setLSMDB(new LSMDatabase(dbName, dbId, dbs.getConfig().getBaseDir() 
-                                + dbName + File.separatorChar, numIndex, true, comps, 
+                                + dbName + File.separatorChar, numIndex, true, comps, ops, 
                                 dbs.getConfig().getCompression(), 
                                 dbs.getConfig().getMaxNumRecordsPerBlock(), 
                                 dbs.getConfig().getMaxBlockFileSize(), 
                                 dbs.getConfig().getDisableMMap(),
-                                dbs.getConfig().getMMapLimit()));
+                                dbs.getConfig().getMMapLimit(),
+                                dbs.getConfig().getMaxRunsPerIndex(),
+                                dbs.getConfig().getBloomFilterBitsPerKey(),
+                                dbs.getConfig().getBlockCodec(),
+                                dbs.getConfig().getKeyRestartInterval(dbName),
+                                dbs.getConfig().getMaxBlockSize(),
+                                dbs.getConfig().getOffHeapOverlay()));
                     } catch (BabuDBException e) {
                         db = new DatabaseImpl(dbs, new LSMDatabase(dbName, dbId, 
                                 dbs.getConfig().getBaseDir() + dbName + File.separatorChar, 
-                                numIndex, true, comps, dbs.getConfig().getCompression(), 
+                                numIndex, true, comps, ops, dbs.getConfig().getCompression(), 
                                 dbs.getConfig().getMaxNumRecordsPerBlock(), 
                                 dbs.getConfig().getMaxBlockFileSize(), 
                                 dbs.getConfig().getDisableMMap(),
-                                dbs.getConfig().getMMapLimit()));
+                                dbs.getConfig().getMMapLimit(),
+                                dbs.getConfig().getMaxRunsPerIndex(),
+                                dbs.getConfig().getBloomFilterBitsPerKey(),
+                                dbs.getConfig().getBlockCodec(),
+                                dbs.getConfig().getKeyRestartInterval(dbName),
+                                dbs.getConfig().getMaxBlockSize(),
+                                dbs.getConfig().getOffHeapOverlay()));
                         
                         dbman.putDatabase(db);
                     }
@@ -170,7 +177,8 @@ public class DBConfig {
             if (configFile.exists()) {
                 ois = new ObjectInputStream(new FileInputStream(configFile));
                 dbFormatVer = ois.readInt();
-                if (dbFormatVer != BABUDB_DB_FORMAT_VERSION)
+                if (dbFormatVer != BABUDB_DB_FORMAT_VERSION
+                    && !AutoConverter.isUpgradableInPlace(dbFormatVer))
                     conversionRequired = true;
                 final int numDB = ois.readInt();
                 dbman.setNextDBId(ois.readInt());
@@ -180,26 +188,24 @@ public class DBConfig {
                     final int dbId = ois.readInt();
                     final int numIndex = ois.readInt();
                     ByteRangeComparator[] comps = new ByteRangeComparator[numIndex];
+                    MergeOperator[] ops = new MergeOperator[numIndex];
                     for (int idx = 0; idx < numIndex; idx++) {
-                        final String className = (String) ois.readObject();
-                        ByteRangeComparator comp = dbman.getComparatorInstances().get(className);
-                        if (comp == null) {
-                            Class<?> clazz = Class.forName(className);
-                            comp = (ByteRangeComparator) clazz.newInstance();
-                            dbman.getComparatorInstances().put(className, comp);
-                        }
-                        
-                        assert (comp != null);
-                        comps[idx] = comp;
+                        readIndexClasses(ois, dbman, comps, ops, idx);
                     }
                     
                     if (!conversionRequired) {
                         DatabaseInternal db = new DatabaseImpl(this.dbs, 
                                 new LSMDatabase(dbName, dbId, this.dbs.getConfig().getBaseDir()
-                            + dbName + File.separatorChar, numIndex, true, comps, dbs.getConfig()
+                            + dbName + File.separatorChar, numIndex, true, comps, ops, dbs.getConfig()
                                 .getCompression(), this.dbs.getConfig().getMaxNumRecordsPerBlock(), 
                                 dbs.getConfig().getMaxBlockFileSize(), dbs.getConfig().getDisableMMap(),
-                                dbs.getConfig().getMMapLimit()));
+                                dbs.getConfig().getMMapLimit(),
+                                dbs.getConfig().getMaxRunsPerIndex(),
+                                dbs.getConfig().getBloomFilterBitsPerKey(),
+                                dbs.getConfig().getBlockCodec(),
+                                dbs.getConfig().getKeyRestartInterval(dbName),
+                                dbs.getConfig().getMaxBlockSize(),
+                                dbs.getConfig().getOffHeapOverlay()));
                         dbman.putDatabase(db);
                         Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
                                 "loaded DB " + dbName + "(" + dbId + ") successfully.");
@@ -228,6 +234,13 @@ public class DBConfig {
                     /* who cares? */
                 }
         }
+        
+        // databases of an older format version that can still be read are
+        // upgraded by rewriting the config file with the current version
+        if (configFile.exists() && AutoConverter.isUpgradableInPlace(dbFormatVer)) {
+            AutoConverter.upgradeInPlace(dbFormatVer, this, dbs.getConfig());
+            dbFormatVer = BABUDB_DB_FORMAT_VERSION;
+        }
     }
     
     /**
@@ -254,8 +267,15 @@ public class DBConfig {
                     oos.writeInt(dbId);
                     oos.writeInt(db.getIndexCount());
                     String[] compClasses = db.getComparatorClassNames();
+                    String[] mergeOpClasses = db.getMergeOperatorClassNames();
                     for (int i = 0; i < db.getIndexCount(); i++) {
-                        oos.writeObject(compClasses[i]);
+                        // indices with merge operators are recorded as pairs
+                        // of class names, so as to retain the format of
+                        // existing configurations
+                        if (mergeOpClasses[i] == null)
+                            oos.writeObject(compClasses[i]);
+                        else
+                            oos.writeObject(new String[] { compClasses[i], mergeOpClasses[i] });
                     }
                 }
                 
@@ -283,6 +303,33 @@ public class DBConfig {
         }
     }
     
+    /**
+     * Reads the class names of an index's comparator and merge operator from
+     * the config file and instantiates them.
+     */
+    private static void readIndexClasses(ObjectInputStream ois, DatabaseManagerInternal dbman,
+        ByteRangeComparator[] comps, MergeOperator[] ops, int idx) throws IOException, ClassNotFoundException,
+        InstantiationException, IllegalAccessException {
+        
+        final Object obj = ois.readObject();
+        final String className;
+        if (obj instanceof String[]) {
+            className = ((String[]) obj)[0];
+            ops[idx] = (MergeOperator) Class.forName(((String[]) obj)[1]).newInstance();
+        } else
+            className = (String) obj;
+        
+        ByteRangeComparator comp = dbman.getComparatorInstances().get(className);
+        if (comp == null) {
+            Class<?> clazz = Class.forName(className);
+            comp = (ByteRangeComparator) clazz.newInstance();
+            dbman.getComparatorInstances().put(className, comp);
+        }
+        
+        assert (comp != null);
+        comps[idx] = comp;
+    }
+    
     public void save() throws BabuDBException {
         save(dbs.getConfig().getBaseDir() + dbs.getConfig().getDbCfgFile());
     }
@@ -10,32 +10,44 @@ package org.xtreemfs.babudb.lsmdb;
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.xtreemfs.babudb.BabuDBRequestResultImpl;
+import org.xtreemfs.babudb.api.database.Cursor;
 import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
 import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.database.UserDefinedLookup;
 import org.xtreemfs.babudb.api.dev.BabuDBInternal;
 import org.xtreemfs.babudb.api.dev.DatabaseInternal;
+import org.xtreemfs.babudb.api.dev.transaction.TransactionInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.LSMTree;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
+import org.xtreemfs.babudb.lsmdb.InsertRecordGroup.InsertRecord;
 import org.xtreemfs.babudb.snapshots.SnapshotConfig;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
 
 public class DatabaseImpl implements DatabaseInternal {
-        
+    
     private final BabuDBInternal        dbs;
     
     private LSMDatabase                 lsmDB;
-    
+
 /*
  * constructors/destructors
  */
-
+    
     /**
      * Creates a new Database.
      * 
@@ -75,7 +87,7 @@ public class DatabaseImpl implements DatabaseInternal {
     /*
      * DB modification operations
      */
-
+    
     /*
      * (non-Javadoc)
      * 
@@ -92,6 +104,22 @@ public class DatabaseImpl implements DatabaseInternal {
         return insert(irg, context);
     }
     
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.database.Database#singleMerge(int, byte[], byte[],
+     * java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<Object> singleMerge(int indexId, byte[] key, 
+            byte[] operand, Object context) {
+        
+        BabuDBInsertGroup irg = new BabuDBInsertGroup(lsmDB);
+        irg.addMerge(indexId, key, operand);
+        
+        return insert(irg, context);
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -104,11 +132,25 @@ public class DatabaseImpl implements DatabaseInternal {
         InsertRecordGroup ins = irg.getRecord();
         int dbId = ins.getDatabaseId();
         
-        LSMDBWorker w = dbs.getWorker(dbId);
+        // determine the workers responsible for the inserted keys
+        Set<LSMDBWorker> workers = new LinkedHashSet<LSMDBWorker>();
+        for (InsertRecord insert : ins.getInserts()) {
+            if (insert.isRangeDelete()) {
+                // a deleted range may span the keys of all workers
+                workers.addAll(dbs.getWorkers(dbId));
+            } else {
+                workers.add(dbs.getWorker(dbId, insert.getIndexId(), insert.getKey()));
+            }
+        }
+        if (workers.size() > 1) {
+            return lockedInsert(irg, workers, context);
+        }
+        
+        LSMDBWorker w = workers.isEmpty() ? dbs.getWorker(dbId) : workers.iterator().next();
         if (w != null) {
             if (Logging.isDebug()) {
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "insert request"
-                        + " is sent to worker #" + dbId % dbs.getWorkerCount());
+                        + " is sent to " + w.getName());
             }
             
             BabuDBRequestResultImpl<Object> result = 
@@ -126,6 +168,44 @@ public class DatabaseImpl implements DatabaseInternal {
         }
     }
     
+    /**
+     * Inserts a group of inserts whose keys are handled by different workers
+     * in the context of the invoking thread. All of these workers are locked
+     * while the group is applied, so as to retain the order of requests
+     * referring to the same keys.
+     * 
+     * @param irg - the group of inserts.
+     * @param workers - the workers responsible for the keys.
+     * @param context - the context object for this request.
+     * 
+     * @return the request future.
+     */
+    private DatabaseRequestResult<Object> lockedInsert(BabuDBInsertGroup irg, 
+            Collection<LSMDBWorker> workers, Object context) {
+        
+        BabuDBRequestResultImpl<Object> result = 
+            new BabuDBRequestResultImpl<Object>(context, dbs.getResponseManager());
+        
+        try {
+            TransactionInternal txn = dbs.getDatabaseManager().createTransaction()
+                    .insertRecordGroup(getName(), irg.getRecord(), getLSMDB());
+            
+            Map<String, Collection<DatabaseRequestResult<AtomicBoolean>>> lockFutureMap = 
+                new HashMap<String, Collection<DatabaseRequestResult<AtomicBoolean>>>();
+            lockFutureMap.put(getName(), dbs.lockWorkers(workers, context));
+            txn.updateWorkerLocks(lockFutureMap);
+            
+            dbs.getTransactionManager().makePersistent(txn, result);
+        } catch (BabuDBException e) {
+            result.failed(e);
+        } catch (InterruptedException ex) {
+            result.failed(new BabuDBException(ErrorCode.INTERRUPTED, 
+                    "operation was interrupted", ex));
+        }
+        
+        return result;
+    }
+    
     /**
      * Insert an group of inserts in the context of the invoking thread.
      * Proper insertion is not guaranteed, since the result of the attempt to
@@ -137,7 +217,7 @@ public class DatabaseImpl implements DatabaseInternal {
      * @return the request future.
      */
     private DatabaseRequestResult<Object> directInsert(BabuDBInsertGroup irg, Object context) {
-
+        
         BabuDBRequestResultImpl<Object> result = 
             new BabuDBRequestResultImpl<Object>(context, dbs.getResponseManager());
         
@@ -154,28 +234,27 @@ public class DatabaseImpl implements DatabaseInternal {
         
         return result;
     }
-    
+
 /*
  * DB lookup operations
  */
-
+    
     /* (non-Javadoc)
      * 
      * @see org.xtreemfs.babudb.lsmdb.DatabaseRO#lookup(int, byte[],
      * java.lang.Object)
      */
     @Override
-    public DatabaseRequestResult<byte[]> lookup(int indexId, byte[] key, 
+    public DatabaseRequestResult<byte[]> lookup(final int indexId, final byte[] key, 
             Object context) {
         
-        BabuDBRequestResultImpl<byte[]> result = 
+        final BabuDBRequestResultImpl<byte[]> result = 
             new BabuDBRequestResultImpl<byte[]>(context, dbs.getResponseManager());
-        LSMDBWorker w = dbs.getWorker(lsmDB.getDatabaseId());
+        LSMDBWorker w = readsBypassWorkers() ? null : dbs.getWorker(lsmDB.getDatabaseId(), indexId, key);
         if (w != null) {
             if (Logging.isDebug()) {
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "lookup request"
-                        + " is sent to worker #" 
-                        + lsmDB.getDatabaseId() % dbs.getWorkerCount());
+                        + " is sent to " + w.getName());
             }
             
             try {
@@ -186,11 +265,61 @@ public class DatabaseImpl implements DatabaseInternal {
                         "operation was interrupted", ex));
             }
         } else
-            directLookup(indexId, key, result);
+            executeRead(new Runnable() {
+                public void run() {
+                    directLookup(indexId, key, result);
+                }
+            }, result);
         
         return result;
     }
     
+    /**
+     * Checks whether lookups are performed without passing through the worker
+     * queues, so that they do not have to wait for pending inserts.
+     * 
+     * @return <code>true</code>, if lookups bypass the workers.
+     */
+    private boolean readsBypassWorkers() {
+        return dbs.getConfig().getReadThreads() >= 0;
+    }
+    
+    /**
+     * Performs a read without using a worker thread, either on a read thread
+     * or, if no read threads exist, on the calling thread. Lookups on the
+     * on-disk runs acquire the runs, so that reads are safe while a checkpoint
+     * replaces the runs.
+     * 
+     * @param read
+     * @param listener
+     *            the result listener, which is failed if the read cannot be
+     *            performed.
+     */
+    private void executeRead(final Runnable read, final BabuDBRequestResultImpl<?> listener) {
+        
+        Executor readers = dbs.getReadExecutor();
+        if (readers == null) {
+            read.run();
+            return;
+        }
+        
+        try {
+            readers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        read.run();
+                    } catch (RuntimeException ex) {
+                        listener.failed(new BabuDBException(ErrorCode.INTERNAL_ERROR, 
+                                "lookup failed", ex));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            listener.failed(new BabuDBException(ErrorCode.INTERRUPTED, 
+                    "read threads have been shut down", ex));
+        }
+    }
+    
     /**
      * Looks up a key in the database, without using a worker thread.
      * 
@@ -209,13 +338,58 @@ public class DatabaseImpl implements DatabaseInternal {
             listener.finished(lsmDB.getIndex(indexId).lookup(key));
     }
     
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseRO#multiLookup(int, byte[][], 
+     *          java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<byte[][]> multiLookup(final int indexId, final byte[][] keys, 
+            Object context) {
+        
+        final BabuDBRequestResultImpl<byte[][]> result = 
+            new BabuDBRequestResultImpl<byte[][]>(context, dbs.getResponseManager());
+        
+        // if there are worker threads, delegate the lookup to the responsible
+        // worker thread, unless lookups bypass the workers
+        LSMDBWorker w = readsBypassWorkers() ? null : dbs.getWorker(lsmDB.getDatabaseId());
+        if (w != null) {
+            if (Logging.isDebug()) {
+                Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "multi-lookup request"
+                        + " is sent to " + w.getName());
+            }
+            
+            try {
+                w.addRequest(new LSMDBRequest<byte[][]>(lsmDB, indexId, result, keys));
+            } catch (InterruptedException ex) {
+                result.failed(new BabuDBException(ErrorCode.INTERRUPTED, 
+                        "operation was interrupted", ex));
+            }
+        }
+        
+        // otherwise, perform a direct lookup
+        else {
+            
+            executeRead(new Runnable() {
+                public void run() {
+                    if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
+                        result.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
+                                "index does not exist"));
+                    else
+                        result.finished(lsmDB.getIndex(indexId).lookup(keys));
+                }
+            }, result);
+        }
+        
+        return result;
+    }
+    
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.database.DatabaseRO#prefixLookup(int, byte[], java.lang.Object)
      */
     @Override
     public DatabaseRequestResult<ResultSet<byte[], byte[]>> prefixLookup(
             int indexId, byte[] key, Object context) {
-        return prefixLookup(indexId, key, context, true);
+        return prefixLookup(indexId, key, context, true, 0, false);
     }
     
     /* (non-Javadoc)
@@ -224,7 +398,17 @@ public class DatabaseImpl implements DatabaseInternal {
     @Override
     public DatabaseRequestResult<ResultSet<byte[], byte[]>> 
             reversePrefixLookup(int indexId, byte[] key, Object context) {
-        return prefixLookup(indexId, key, context, false);
+        return prefixLookup(indexId, key, context, false, 0, false);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.Database#prefixLookup(int, byte[], int, boolean, 
+     *          java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<ResultSet<byte[], byte[]>> prefixLookup(int indexId, 
+            byte[] key, int maxEntries, boolean keysOnly, Object context) {
+        return prefixLookup(indexId, key, context, true, maxEntries, keysOnly);
     }
     
     /**
@@ -234,18 +418,21 @@ public class DatabaseImpl implements DatabaseInternal {
      * @param key
      * @param context
      * @param ascending
+     * @param maxEntries
+     * @param keysOnly
      * @return the request result object.
      */
     private DatabaseRequestResult<ResultSet<byte[], byte[]>> prefixLookup(
-            int indexId, byte[] key, Object context, boolean ascending) {
+            final int indexId, final byte[] key, Object context, final boolean ascending, 
+            final int maxEntries, final boolean keysOnly) {
         
         final BabuDBRequestResultImpl<ResultSet<byte[], byte[]>> result = 
             new BabuDBRequestResultImpl<ResultSet<byte[], byte[]>>(context, 
                     dbs.getResponseManager());
         
         // if there are worker threads, delegate the prefix lookup to the
-        // responsible worker thread
-        LSMDBWorker w = dbs.getWorker(lsmDB.getDatabaseId());
+        // responsible worker thread, unless lookups bypass the workers
+        LSMDBWorker w = readsBypassWorkers() ? null : dbs.getWorker(lsmDB.getDatabaseId());
         if (w != null) {
             if (Logging.isDebug() && w != null) {
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "lookup request"
@@ -255,22 +442,26 @@ public class DatabaseImpl implements DatabaseInternal {
             
             try {
                 w.addRequest(new LSMDBRequest<ResultSet<byte[], byte[]>>(
-                        lsmDB, indexId, result, key, ascending));
+                        lsmDB, indexId, result, key, ascending, maxEntries, keysOnly));
             } catch (InterruptedException ex) {
                 result.failed(new BabuDBException(ErrorCode.INTERRUPTED, 
                         "operation was interrupted", ex));
             }
         }
-
+        
         // otherwise, perform a direct prefix lookup
         else {
             
-            if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
-                result.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
-                        "index does not exist"));
-            else
-                result.finished(lsmDB.getIndex(indexId).prefixLookup(key, 
-                        ascending));
+            executeRead(new Runnable() {
+                public void run() {
+                    if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
+                        result.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
+                                "index does not exist"));
+                    else
+                        result.finished(lsmDB.getIndex(indexId).prefixLookup(key, 
+                                ascending, maxEntries, keysOnly));
+                }
+            }, result);
         }
         
         return result;
@@ -283,7 +474,7 @@ public class DatabaseImpl implements DatabaseInternal {
     @Override
     public DatabaseRequestResult<ResultSet<byte[], byte[]>> rangeLookup(
             int indexId, byte[] from, byte[] to, Object context) {
-        return rangeLookup(indexId, from, to, context, true);
+        return rangeLookup(indexId, from, to, context, true, 0, false);
     }
     
     /* (non-Javadoc)
@@ -294,7 +485,17 @@ public class DatabaseImpl implements DatabaseInternal {
     public DatabaseRequestResult<ResultSet<byte[], byte[]>> 
             reverseRangeLookup(int indexId, byte[] from, byte[] to, 
                     Object context) {
-        return rangeLookup(indexId, from, to, context, false);
+        return rangeLookup(indexId, from, to, context, false, 0, false);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.Database#rangeLookup(int, byte[], byte[], int, 
+     *          boolean, java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<ResultSet<byte[], byte[]>> rangeLookup(int indexId, 
+            byte[] from, byte[] to, int maxEntries, boolean keysOnly, Object context) {
+        return rangeLookup(indexId, from, to, context, true, maxEntries, keysOnly);
     }
     
     /**
@@ -305,19 +506,21 @@ public class DatabaseImpl implements DatabaseInternal {
      * @param to
      * @param context
      * @param ascending
+     * @param maxEntries
+     * @param keysOnly
      * @return the request result object.
      */
     private DatabaseRequestResult<ResultSet<byte[], byte[]>> rangeLookup(
-            int indexId, byte[] from, byte[] to, Object context, 
-            boolean ascending) {
+            final int indexId, final byte[] from, final byte[] to, Object context, 
+            final boolean ascending, final int maxEntries, final boolean keysOnly) {
         
         final BabuDBRequestResultImpl<ResultSet<byte[], byte[]>> result = 
             new BabuDBRequestResultImpl<ResultSet<byte[], byte[]>>(context, 
                     dbs.getResponseManager());
         
         // if there are worker threads, delegate the range lookup to the
-        // responsible worker thread
-        LSMDBWorker w = dbs.getWorker(lsmDB.getDatabaseId());
+        // responsible worker thread, unless lookups bypass the workers
+        LSMDBWorker w = readsBypassWorkers() ? null : dbs.getWorker(lsmDB.getDatabaseId());
         if (w != null) {
             if (Logging.isDebug() && w != null) {
                 Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this, "lookup request"
@@ -327,22 +530,26 @@ public class DatabaseImpl implements DatabaseInternal {
             
             try {
                 w.addRequest(new LSMDBRequest<ResultSet<byte[], byte[]>>(
-                        lsmDB, indexId, result, from, to, ascending));
+                        lsmDB, indexId, result, from, to, ascending, maxEntries, keysOnly));
             } catch (InterruptedException ex) {
                 result.failed(new BabuDBException(ErrorCode.INTERRUPTED, 
                         "operation was interrupted", ex));
             }
         }
-
+        
         // otherwise, perform a direct range lookup
         else {
             
-            if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
-                result.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
-                        "index does not exist"));
-            else
-                result.finished(lsmDB.getIndex(indexId).rangeLookup(from, to, 
-                        ascending));
+            executeRead(new Runnable() {
+                public void run() {
+                    if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
+                        result.failed(new BabuDBException(ErrorCode.NO_SUCH_INDEX, 
+                                "index does not exist"));
+                    else
+                        result.finished(lsmDB.getIndex(indexId).rangeLookup(from, to, 
+                                ascending, maxEntries, keysOnly));
+                }
+            }, result);
         }
         
         return result;
@@ -426,7 +633,7 @@ public class DatabaseImpl implements DatabaseInternal {
         }
         return lsmDB.getIndex(indexId).prefixLookup(key, snapId, ascending);
     }
-
+    
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.dev.DatabaseInternal#directRangeLookup(int, int, byte[], byte[], 
      *          boolean)
@@ -524,7 +731,7 @@ public class DatabaseImpl implements DatabaseInternal {
         } catch (IOException ex) {
             throw new BabuDBException(ErrorCode.IO_ERROR, "cannot write snapshot: " + ex, ex);
         }
-        
+    
     }
     
     /* (non-Javadoc)
@@ -559,7 +766,7 @@ public class DatabaseImpl implements DatabaseInternal {
             throw new BabuDBException(ErrorCode.IO_ERROR, "cannot write snapshot: " + ex, ex);
         }
     }
-
+    
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.dev.DatabaseInternal#setLSMDB(
      *          org.xtreemfs.babudb.lsmdb.LSMDatabase)
@@ -587,6 +794,44 @@ public class DatabaseImpl implements DatabaseInternal {
         return lsmDB.getComparators();
     }
     
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.database.Database#estimateCount(int, byte[], byte[])
+     */
+    @Override
+    public long estimateCount(int indexId, byte[] from, byte[] to) throws BabuDBException {
+        return getIndex(indexId).estimateCount(from, to);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.database.Database#estimateSize(int, byte[], byte[])
+     */
+    @Override
+    public long estimateSize(int indexId, byte[] from, byte[] to) throws BabuDBException {
+        return getIndex(indexId).estimateSize(from, to);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.database.Database#openCursor(int)
+     */
+    @Override
+    public Cursor openCursor(int indexId) throws BabuDBException {
+        return getIndex(indexId).openCursor();
+    }
+    
+    private LSMTree getIndex(int indexId) throws BabuDBException {
+        
+        if ((indexId >= lsmDB.getIndexCount()) || (indexId < 0))
+            throw new BabuDBException(ErrorCode.NO_SUCH_INDEX, "index does not exist");
+        
+        return lsmDB.getIndex(indexId);
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -596,7 +841,7 @@ public class DatabaseImpl implements DatabaseInternal {
     public String getName() {
         return lsmDB.getDatabaseName();
     }
-
+    
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.database.Database#insert(org.xtreemfs.babudb.api.database.DatabaseInsertGroup, java.lang.Object)
      */
@@ -13,8 +13,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -30,12 +34,16 @@ import org.xtreemfs.babudb.api.dev.transaction.TransactionInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
 import org.xtreemfs.babudb.api.transaction.Operation;
 import org.xtreemfs.babudb.api.transaction.Transaction;
 import org.xtreemfs.babudb.api.transaction.TransactionListener;
 import org.xtreemfs.babudb.config.BabuDBConfig;
 import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
+import org.xtreemfs.babudb.index.UnsignedByteRangeComparator;
 import org.xtreemfs.babudb.index.LSMTree;
+import org.xtreemfs.babudb.index.reader.BlockCache;
+import org.xtreemfs.babudb.index.reader.DiskIndex;
 import org.xtreemfs.babudb.lsmdb.InsertRecordGroup.InsertRecord;
 import org.xtreemfs.foundation.buffer.ReusableBuffer;
 import org.xtreemfs.foundation.logging.Logging;
@@ -46,6 +54,16 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
     
     private static final String                    RUNTIME_STATE_DBCREATIONCOUNT = "databaseManager.dbCreationCount";
     private static final String                    RUNTIME_STATE_DBDELETIONCOUNT = "databaseManager.dbDeletionCount";
+    private static final String                    RUNTIME_STATE_BFHITS          = "databaseManager.bloomFilterHitCount";
+    private static final String                    RUNTIME_STATE_BFMISSES        = "databaseManager.bloomFilterMissCount";
+    private static final String                    RUNTIME_STATE_BFFALSEPOS      =
+        "databaseManager.bloomFilterFalsePositiveCount";
+    private static final String                    RUNTIME_STATE_BCHITS          = "databaseManager.blockCacheHitCount";
+    private static final String                    RUNTIME_STATE_BCMISSES        = "databaseManager.blockCacheMissCount";
+    private static final String                    RUNTIME_STATE_BCBYPASSES      =
+        "databaseManager.blockCacheBypassCount";
+    private static final String                    RUNTIME_STATE_BCSIZE          = "databaseManager.blockCacheSize";
+    private static final String                    RUNTIME_STATE_OVERLAYMEM      = "databaseManager.overlayMemory";
     
     private BabuDBInternal                         dbs;
     
@@ -74,6 +92,11 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
      */
     private final Object                           dbModificationLock;
     
+    /**
+     * object used for serializing ingestions of sorted entries.
+     */
+    private final Object                           ingestLock;
+    
     private AtomicInteger                          _dbCreationCount              = new AtomicInteger();
     
     private AtomicInteger                          _dbDeletionCount              = new AtomicInteger();
@@ -87,9 +110,11 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
         
         this.compInstances = new HashMap<String, ByteRangeComparator>();
         this.compInstances.put(DefaultByteRangeComparator.class.getName(), new DefaultByteRangeComparator());
+        this.compInstances.put(UnsignedByteRangeComparator.class.getName(), new UnsignedByteRangeComparator());
         
         this.nextDbId = 1;
         this.dbModificationLock = new Object();
+        this.ingestLock = new Object();
         
         initializeTransactionManager();
     }
@@ -105,6 +130,7 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
         
         compInstances.clear();
         compInstances.put(DefaultByteRangeComparator.class.getName(), new DefaultByteRangeComparator());
+        compInstances.put(UnsignedByteRangeComparator.class.getName(), new UnsignedByteRangeComparator());
         
         dbs.getDBConfigFile().reset();
     }
@@ -201,10 +227,25 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
     @Override
     public DatabaseInternal createDatabase(String databaseName, int numIndices, ByteRangeComparator[] comparators)
             throws BabuDBException {
+        return createDatabase(databaseName, numIndices, comparators, null);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.xtreemfs.babudb.api.dev.DatabaseManagerInternal#createDatabase(java
+     * .lang.String, int, org.xtreemfs.babudb.api.index.ByteRangeComparator[],
+     * org.xtreemfs.babudb.api.index.MergeOperator[])
+     */
+    @Override
+    public DatabaseInternal createDatabase(String databaseName, int numIndices, ByteRangeComparator[] comparators,
+            MergeOperator[] mergeOperators) throws BabuDBException {
         
         BabuDBRequestResultImpl<Object> result = new BabuDBRequestResultImpl<Object>(dbs.getResponseManager());
         dbs.getTransactionManager().makePersistent(
-                createTransaction().createDatabase(databaseName, numIndices, comparators), result);
+                createTransaction().createDatabase(databaseName, numIndices, comparators, mergeOperators),
+                result);
         Object obj = ((Object[]) result.get())[0];
         
         _dbCreationCount.incrementAndGet();
@@ -290,6 +331,51 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
         }
     }
     
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.xtreemfs.babudb.api.DatabaseManager#ingestSorted(java.lang.String,
+     * int, java.util.Iterator)
+     */
+    @Override
+    public void ingestSorted(String dbName, int indexId, Iterator<Entry<byte[], byte[]>> entries)
+            throws BabuDBException {
+        
+        DatabaseInternal db = getDatabase(dbName);
+        LSMDatabase lsmDB = db.getLSMDB();
+        if (indexId < 0 || indexId >= lsmDB.getIndexCount())
+            throw new BabuDBException(ErrorCode.NO_SUCH_INDEX, "index " + indexId + " does not exist");
+        
+        synchronized (ingestLock) {
+            
+            try {
+                lsmDB.writeIngestedRun(indexId, entries);
+            } catch (IOException exc) {
+                throw new BabuDBException(ErrorCode.IO_ERROR, "could not write ingested entries", exc);
+            } catch (IllegalArgumentException exc) {
+                throw new BabuDBException(ErrorCode.INTERNAL_ERROR, exc.getMessage(), exc);
+            }
+            
+            // the run becomes visible with the next flush of the database,
+            // which writes a new checkpoint covering all log entries of the
+            // database; otherwise, replaying older log entries after a restart
+            // might replace ingested entries. An empty insertion ensures that
+            // the checkpoint has a new LSN, and hence, a new directory.
+            // Holding the modification lock prevents concurrent checkpoints
+            // from linking the run before the flush.
+            synchronized (dbModificationLock) {
+                try {
+                    lsmDB.addIngestedRun(indexId);
+                } catch (IOException exc) {
+                    throw new BabuDBException(ErrorCode.IO_ERROR, "could not add ingested entries", exc);
+                }
+                db.insert(db.createInsertGroup(), null).get();
+                dbs.getCheckpointer().flush(dbName);
+            }
+        }
+    }
+    
     /**
      * Feed the transactionManager with the knowledge to handle
      * database-modifying related requests.
@@ -323,9 +409,15 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                 Object[] args = operation.getParams();
                 int numIndices = (Integer) args[0];
                 
+                // null parameters are not recorded in the log, so comparators
+                // and merge operators are identified by their types
                 ByteRangeComparator[] com = null;
-                if (args.length > 2) {
-                    com = (ByteRangeComparator[]) args[1];
+                MergeOperator[] ops = null;
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i] instanceof ByteRangeComparator[])
+                        com = (ByteRangeComparator[]) args[i];
+                    else if (args[i] instanceof MergeOperator[])
+                        ops = (MergeOperator[]) args[i];
                 }
                 if (com == null) {
                     ByteRangeComparator[] comps = new ByteRangeComparator[numIndices];
@@ -348,9 +440,13 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                         final int dbId = nextDbId++;
                         db = new DatabaseImpl(dbs, new LSMDatabase(operation.getDatabaseName(), dbId, dbs.getConfig()
                                 .getBaseDir() + operation.getDatabaseName() + File.separatorChar, numIndices, false,
-                                com, dbs.getConfig().getCompression(), dbs.getConfig().getMaxNumRecordsPerBlock(), dbs
-                                        .getConfig().getMaxBlockFileSize(), dbs.getConfig().getDisableMMap(), dbs
-                                        .getConfig().getMMapLimit()));
+                                com, ops, dbs.getConfig().getCompression(), dbs.getConfig()
+                                        .getMaxNumRecordsPerBlock(), dbs.getConfig().getMaxBlockFileSize(), dbs
+                                        .getConfig().getDisableMMap(), dbs.getConfig().getMMapLimit(), dbs
+                                        .getConfig().getMaxRunsPerIndex(), dbs.getConfig()
+                                        .getBloomFilterBitsPerKey(), dbs.getConfig().getBlockCodec(), dbs
+                                        .getConfig().getKeyRestartInterval(operation.getDatabaseName()), dbs
+                                        .getConfig().getMaxBlockSize(), dbs.getConfig().getOffHeapOverlay()));
                         dbsById.put(dbId, db);
                         dbsByName.put(operation.getDatabaseName(), db);
                         dbs.getDBConfigFile().save();
@@ -463,9 +559,13 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                 // create new DB and load from snapshot
                 DatabaseInternal newDB = new DatabaseImpl(dbs, new LSMDatabase(destDB, dbId, dbs.getConfig()
                         .getBaseDir() + destDB + File.separatorChar, sDB.getLSMDB().getIndexCount(), true, sDB
-                        .getComparators(), dbs.getConfig().getCompression(),
-                        dbs.getConfig().getMaxNumRecordsPerBlock(), dbs.getConfig().getMaxBlockFileSize(), dbs
-                                .getConfig().getDisableMMap(), dbs.getConfig().getMMapLimit()));
+                        .getComparators(), sDB.getLSMDB().getMergeOperators(), dbs.getConfig()
+                        .getCompression(), dbs.getConfig().getMaxNumRecordsPerBlock(), dbs.getConfig()
+                                .getMaxBlockFileSize(), dbs.getConfig().getDisableMMap(), dbs.getConfig()
+                                .getMMapLimit(), dbs.getConfig().getMaxRunsPerIndex(), dbs.getConfig()
+                                .getBloomFilterBitsPerKey(), dbs.getConfig().getBlockCodec(), dbs.getConfig()
+                                .getKeyRestartInterval(destDB), dbs.getConfig().getMaxBlockSize(), dbs
+                                .getConfig().getOffHeapOverlay()));
                 
                 // insert real database
                 synchronized (dbModificationLock) {
@@ -530,13 +630,25 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                         throw new BabuDBException(ErrorCode.NO_SUCH_INDEX, "index " + ir.getIndexId()
                                 + " does not exist");
                     }
+                    
+                    if (ir.isMerge() && lsmDB.getMergeOperators()[ir.getIndexId()] == null) {
+                        
+                        throw new BabuDBException(ErrorCode.INTERNAL_ERROR, "index " + ir.getIndexId()
+                                + " does not have a merge operator");
+                    }
                 }
                 
                 // insert into the in-memory-tree
                 for (InsertRecord ir : irg.getInserts()) {
                     LSMTree index = lsmDB.getIndex(ir.getIndexId());
                     
-                    if (ir.getValue() != null) {
+                    if (ir.isRangeDelete()) {
+                        index.deleteRange(ir.getKey(), ir.getRangeEnd());
+                    } else if (ir.isMerge()) {
+                        index.merge(ir.getKey(), ir.getValue(), lsmDB.getMergeOperators()[ir.getIndexId()]);
+                    } else if (ir.getExpiryTime() != 0) {
+                        index.insert(ir.getKey(), ir.getValue(), ir.getExpiryTime());
+                    } else if (ir.getValue() != null) {
                         index.insert(ir.getKey(), ir.getValue());
                     } else {
                         index.delete(ir.getKey());
@@ -639,32 +751,18 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
         // acquire worker locks asynchronously if necessary
         if (dbs.getWorkerCount() > 0) {
             
-            // maps the lockFuture of the workers affected by this txn
-            Map<LSMDBWorker, BabuDBRequestResultImpl<AtomicBoolean>> workerLockFutureMap = new HashMap<LSMDBWorker, BabuDBRequestResultImpl<AtomicBoolean>>();
-            
-            // maps the lockFutures by the databases affected by this txn
-            Map<String, DatabaseRequestResult<AtomicBoolean>> databaseLockFutureMap = new HashMap<String, DatabaseRequestResult<AtomicBoolean>>();
+            // the workers responsible for the databases affected by this txn;
+            // if workers are sharded by key, a database may be handled by
+            // multiple workers
+            Map<String, Collection<LSMDBWorker>> databaseWorkerMap = new HashMap<String, Collection<LSMDBWorker>>();
+            Set<LSMDBWorker> workers = new LinkedHashSet<LSMDBWorker>();
             
             for (String dbName : txn.databasesAffected()) {
                 try {
-                    // setup the lock-request if necessary
-                    if (!databaseLockFutureMap.containsKey(dbName)) {
-                        
-                        LSMDBWorker worker = dbs.getWorker(getDatabase(dbName).getLSMDB().getDatabaseId());
-                        
-                        // retrieve the lockFuture of the worker if already
-                        // available
-                        BabuDBRequestResultImpl<AtomicBoolean> lockFuture = workerLockFutureMap.get(worker);
-                        
-                        // create a new lockFuture otherwise
-                        if (lockFuture == null) {
-                            lockFuture = new BabuDBRequestResultImpl<AtomicBoolean>(txn, dbs.getResponseManager());
-                            worker.addRequest(new LSMDBRequest<AtomicBoolean>(lockFuture));
-                            workerLockFutureMap.put(worker, lockFuture);
-                        }
-                        
-                        databaseLockFutureMap.put(dbName, lockFuture);
-                    }
+                    Collection<LSMDBWorker> dbWorkers = dbs.getWorkers(getDatabase(dbName).getLSMDB()
+                            .getDatabaseId());
+                    databaseWorkerMap.put(dbName, dbWorkers);
+                    workers.addAll(dbWorkers);
                 } catch (BabuDBException be) {
                     assert (be.getErrorCode() == ErrorCode.NO_SUCH_DB);
                     
@@ -672,11 +770,29 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
                      * affected database does not exist yet; exception will be
                      * ignored
                      */
-                } catch (InterruptedException ie) {
-                    throw new BabuDBException(ErrorCode.INTERRUPTED, ie.getMessage(), ie);
                 }
             }
             
+            // acquire a single lock per worker
+            Map<LSMDBWorker, DatabaseRequestResult<AtomicBoolean>> workerLockFutureMap = new HashMap<LSMDBWorker, DatabaseRequestResult<AtomicBoolean>>();
+            try {
+                Iterator<DatabaseRequestResult<AtomicBoolean>> lockFutures = dbs.lockWorkers(workers, txn)
+                        .iterator();
+                for (LSMDBWorker worker : workers)
+                    workerLockFutureMap.put(worker, lockFutures.next());
+            } catch (InterruptedException ie) {
+                throw new BabuDBException(ErrorCode.INTERRUPTED, ie.getMessage(), ie);
+            }
+            
+            // maps the lockFutures by the databases affected by this txn
+            Map<String, Collection<DatabaseRequestResult<AtomicBoolean>>> databaseLockFutureMap = new HashMap<String, Collection<DatabaseRequestResult<AtomicBoolean>>>();
+            for (Entry<String, Collection<LSMDBWorker>> entry : databaseWorkerMap.entrySet()) {
+                List<DatabaseRequestResult<AtomicBoolean>> lockFutures = new ArrayList<DatabaseRequestResult<AtomicBoolean>>();
+                for (LSMDBWorker worker : entry.getValue())
+                    lockFutures.add(workerLockFutureMap.get(worker));
+                databaseLockFutureMap.put(entry.getKey(), lockFutures);
+            }
+            
             txn.updateWorkerLocks(databaseLockFutureMap);
         }
         
@@ -726,6 +842,22 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
             return _dbCreationCount.get();
         if (RUNTIME_STATE_DBDELETIONCOUNT.equals(property))
             return _dbDeletionCount.get();
+        if (RUNTIME_STATE_BFHITS.equals(property))
+            return DiskIndex.getBloomFilterHits();
+        if (RUNTIME_STATE_BFMISSES.equals(property))
+            return DiskIndex.getBloomFilterMisses();
+        if (RUNTIME_STATE_BFFALSEPOS.equals(property))
+            return DiskIndex.getBloomFilterFalsePositives();
+        if (RUNTIME_STATE_BCHITS.equals(property))
+            return BlockCache.getInstance().getHits();
+        if (RUNTIME_STATE_BCMISSES.equals(property))
+            return BlockCache.getInstance().getMisses();
+        if (RUNTIME_STATE_BCBYPASSES.equals(property))
+            return BlockCache.getInstance().getBypasses();
+        if (RUNTIME_STATE_BCSIZE.equals(property))
+            return BlockCache.getInstance().getSize();
+        if (RUNTIME_STATE_OVERLAYMEM.equals(property))
+            return getOverlayMemoryUsage();
         
         return null;
     }
@@ -735,6 +867,23 @@ public class DatabaseManagerImpl implements DatabaseManagerInternal {
         Map<String, Object> map = new HashMap<String, Object>();
         map.put(RUNTIME_STATE_DBCREATIONCOUNT, _dbCreationCount.get());
         map.put(RUNTIME_STATE_DBDELETIONCOUNT, _dbDeletionCount.get());
+        map.put(RUNTIME_STATE_BFHITS, DiskIndex.getBloomFilterHits());
+        map.put(RUNTIME_STATE_BFMISSES, DiskIndex.getBloomFilterMisses());
+        map.put(RUNTIME_STATE_BFFALSEPOS, DiskIndex.getBloomFilterFalsePositives());
+        map.put(RUNTIME_STATE_BCHITS, BlockCache.getInstance().getHits());
+        map.put(RUNTIME_STATE_BCMISSES, BlockCache.getInstance().getMisses());
+        map.put(RUNTIME_STATE_BCBYPASSES, BlockCache.getInstance().getBypasses());
+        map.put(RUNTIME_STATE_BCSIZE, BlockCache.getInstance().getSize());
+        map.put(RUNTIME_STATE_OVERLAYMEM, getOverlayMemoryUsage());
         return map;
     }
+    
+    private long getOverlayMemoryUsage() {
+        
+        long size = 0;
+        for (DatabaseInternal db : getDatabaseList())
+            size += db.getLSMDB().getOverlayMemoryUsage();
+        
+        return size;
+    }
 }
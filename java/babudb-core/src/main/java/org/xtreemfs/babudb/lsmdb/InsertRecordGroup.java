@@ -19,11 +19,31 @@ import org.xtreemfs.foundation.buffer.ReusableBuffer;
  */
 public class InsertRecordGroup {
     
-    public final static int DB_ID_UNKNOWN       = -1;
+    public final static int DB_ID_UNKNOWN                = -1;
     
-    private final List<InsertRecord> records    = new LinkedList<InsertRecord>();
+    /**
+     * record type of inserts and deletes of single keys
+     */
+    public final static byte RECORD_TYPE_INSERT          = 0;
     
-    private int                      databaseId = DB_ID_UNKNOWN;
+    /**
+     * record type of range deletes
+     */
+    public final static byte RECORD_TYPE_RANGE_DELETE    = 1;
+    
+    /**
+     * record type of merges
+     */
+    public final static byte RECORD_TYPE_MERGE           = 2;
+    
+    /**
+     * record type of inserts with an expiry time
+     */
+    public final static byte RECORD_TYPE_EXPIRING_INSERT = 3;
+    
+    private final List<InsertRecord> records             = new LinkedList<InsertRecord>();
+    
+    private int                      databaseId          = DB_ID_UNKNOWN;
     
     public InsertRecordGroup() {}
     
@@ -35,6 +55,18 @@ public class InsertRecordGroup {
         records.add(new InsertRecord(indexId, key, value));
     }
     
+    public void addInsert(int indexId, byte[] key, byte[] value, long expiryTime) {
+        records.add(new InsertRecord(indexId, key, value, false, null, false, expiryTime));
+    }
+    
+    public void addRangeDelete(int indexId, byte[] from, byte[] to) {
+        records.add(new InsertRecord(indexId, from == null ? new byte[0] : from, null, true, to, false, 0));
+    }
+    
+    public void addMerge(int indexId, byte[] key, byte[] operand) {
+        records.add(new InsertRecord(indexId, key, operand, false, null, true, 0));
+    }
+    
     public List<InsertRecord> getInserts() {
         return records;
     }
@@ -52,24 +84,51 @@ public class InsertRecordGroup {
         records.add(rec);
     }
     
+    /**
+     * Checks whether the group has to be serialized in the extended format.
+     * The original format only supports inserts and deletes of single keys; in
+     * the extended format, each record is preceded by its record type. Groups
+     * in the extended format are logged with a different field type, so that
+     * older versions reject them instead of misinterpreting their records.
+     * 
+     * @return <code>true</code>, if the group contains records of other types
+     *         than <code>RECORD_TYPE_INSERT</code>, <code>false</code>,
+     *         otherwise
+     */
+    public boolean isExtended() {
+        for (InsertRecord ir : records)
+            if (ir.getRecordType() != RECORD_TYPE_INSERT)
+                return true;
+        return false;
+    }
+    
     public int getSize() {
+        boolean extended = isExtended();
         int size = Integer.SIZE / 8;
         for (InsertRecord ir : records)
-            size += ir.getSize();
+            size += extended ? Byte.SIZE / 8 + ir.getSize() : ir.getSize();
         return size;
     }
     
     public void serialize(ReusableBuffer buffer) {
+        boolean extended = isExtended();
         buffer.putInt(databaseId);
-        for (InsertRecord ir : records)
+        for (InsertRecord ir : records) {
+            if (extended)
+                buffer.put(ir.getRecordType());
             ir.serialize(buffer);
+        }
     }
     
     public static InsertRecordGroup deserialize(ReusableBuffer buffer) {
+        return deserialize(buffer, false);
+    }
+    
+    public static InsertRecordGroup deserialize(ReusableBuffer buffer, boolean extended) {
         int dbId = buffer.getInt();
         InsertRecordGroup ai = new InsertRecordGroup(dbId);
         while (buffer.hasRemaining()) {
-            InsertRecord ir = InsertRecord.deserialize(buffer);
+            InsertRecord ir = InsertRecord.deserialize(buffer, extended ? buffer.get() : RECORD_TYPE_INSERT);
             ai.addInsertRecord(ir);
         }
         return ai;
@@ -82,10 +141,40 @@ public class InsertRecordGroup {
         
         private final byte[] value;
         
+        /**
+         * if <code>true</code>, the record deletes all keys from
+         * <code>key</code> (inclusively) to <code>rangeEnd</code>
+         * (exclusively)
+         */
+        private final boolean rangeDelete;
+        
+        private final byte[] rangeEnd;
+        
+        /**
+         * if <code>true</code>, the value is an operand that has to be merged
+         * into the current value of the key
+         */
+        private final boolean merge;
+        
+        /**
+         * the time in milliseconds since 1970 at which the inserted entry
+         * expires, or 0 if it does not expire
+         */
+        private final long    expiryTime;
+        
         public InsertRecord(int indexId, byte[] key, byte[] value) {
+            this(indexId, key, value, false, null, false, 0);
+        }
+        
+        private InsertRecord(int indexId, byte[] key, byte[] value, boolean rangeDelete, byte[] rangeEnd,
+            boolean merge, long expiryTime) {
             this.indexId = (byte) indexId;
             this.key = key;
             this.value = value;
+            this.rangeDelete = rangeDelete;
+            this.rangeEnd = rangeEnd;
+            this.merge = merge;
+            this.expiryTime = value == null ? 0 : expiryTime;
         }
         
         public int getIndexId() {
@@ -100,8 +189,46 @@ public class InsertRecordGroup {
             return value;
         }
         
+        public boolean isRangeDelete() {
+            return rangeDelete;
+        }
+        
+        /**
+         * Returns the end of the range deleted by the record.
+         * 
+         * @return the first key (exclusively) that is not deleted anymore, or
+         *         <code>null</code> if all keys from the record's key on are
+         *         deleted
+         */
+        public byte[] getRangeEnd() {
+            return rangeEnd;
+        }
+        
+        public boolean isMerge() {
+            return merge;
+        }
+        
+        public long getExpiryTime() {
+            return expiryTime;
+        }
+        
+        public byte getRecordType() {
+            if (rangeDelete)
+                return RECORD_TYPE_RANGE_DELETE;
+            else if (merge)
+                return RECORD_TYPE_MERGE;
+            else if (expiryTime != 0)
+                return RECORD_TYPE_EXPIRING_INSERT;
+            else
+                return RECORD_TYPE_INSERT;
+        }
+        
         public int getSize() {
-            if (value != null)
+            if (rangeDelete && rangeEnd != null)
+                return Byte.SIZE / 8 + Integer.SIZE / 8 * 2 + key.length + rangeEnd.length;
+            else if (expiryTime != 0)
+                return Byte.SIZE / 8 + Integer.SIZE / 8 * 2 + Long.SIZE / 8 + key.length + value.length;
+            else if (value != null)
                 return Byte.SIZE / 8 + Integer.SIZE / 8 * 2 + key.length + value.length;
             else
                 return Byte.SIZE / 8 + Integer.SIZE / 8 * 2 + key.length;
@@ -111,15 +238,27 @@ public class InsertRecordGroup {
             buffer.put(indexId);
             buffer.putInt(key.length);
             buffer.put(key);
-            if (value != null) {
+            
+            // the end of a range delete is preceded by its length, or -1 for
+            // an open range
+            if (rangeDelete) {
+                buffer.putInt(rangeEnd == null ? -1 : rangeEnd.length);
+                if (rangeEnd != null)
+                    buffer.put(rangeEnd);
+            }
+            
+            // the value of an expiring insert is followed by the expiry time
+            else if (value != null) {
                 buffer.putInt(value.length);
                 buffer.put(value);
+                if (expiryTime != 0)
+                    buffer.putLong(expiryTime);
             } else {
                 buffer.putInt(0);
             }
         }
         
-        public static InsertRecord deserialize(ReusableBuffer buffer) {
+        public static InsertRecord deserialize(ReusableBuffer buffer, byte recordType) {
             byte tmp = buffer.get();
             int indexId = 0x00FF & tmp;
             
@@ -128,13 +267,26 @@ public class InsertRecordGroup {
             buffer.get(key);
             
             size = buffer.getInt();
+            if (recordType == RECORD_TYPE_RANGE_DELETE) {
+                byte[] rangeEnd = null;
+                if (size != -1) {
+                    rangeEnd = new byte[size];
+                    buffer.get(rangeEnd);
+                }
+                return new InsertRecord(indexId, key, null, true, rangeEnd, false, 0);
+            }
+            
+            // merge operands and values of expiring inserts may be empty
             byte[] value = null;
-            if (size > 0) {
+            if (size > 0 || recordType != RECORD_TYPE_INSERT) {
                 value = new byte[size];
                 buffer.get(value);
             }
             
-            return new InsertRecord(indexId, key, value);
+            long expiryTime = recordType == RECORD_TYPE_EXPIRING_INSERT ? buffer.getLong() : 0;
+            
+            return new InsertRecord(indexId, key, value, false, null, recordType == RECORD_TYPE_MERGE,
+                expiryTime);
         }
         
         public String toString() {
@@ -143,6 +295,12 @@ public class InsertRecordGroup {
             sb.append("index: " + indexId);
             sb.append(", key: " + (key == null ? null : Arrays.toString(key)));
             sb.append(", value: " + (value == null ? null : Arrays.toString(value)));
+            if (merge)
+                sb.append(", merge");
+            if (expiryTime != 0)
+                sb.append(", expiry time: " + expiryTime);
+            if (rangeDelete)
+                sb.append(", range end: " + (rangeEnd == null ? null : Arrays.toString(rangeEnd)));
             
             return sb.toString();
         }
@@ -31,12 +31,18 @@ public class LSMDBRequest<T> {
     
     private final byte[]                        lookupKey;
     
+    private byte[][]                            lookupKeys;
+    
     private byte[]                              from;
     
     private byte[]                              to;
     
     private boolean                             ascending;
     
+    private int                                 maxEntries;
+    
+    private boolean                             keysOnly;
+    
     private final UserDefinedLookup             udLookup;
     
     /**
@@ -76,9 +82,21 @@ public class LSMDBRequest<T> {
         this.udLookup = null;
     }
     
+    public LSMDBRequest(LSMDatabase database, int indexId, 
+            BabuDBRequestResultImpl<T> listener, byte[][] keys) {
+        this.operation = RequestOperation.MULTI_LOOKUP;
+        this.database = database;
+        this.indexId = indexId;
+        this.lookupKey = null;
+        this.lookupKeys = keys;
+        this.insertData = null;
+        this.listener = listener;
+        this.udLookup = null;
+    }
+    
     public LSMDBRequest(LSMDatabase database, int indexId, 
             BabuDBRequestResultImpl<T> listener, byte[] prefix, 
-            boolean ascending) {
+            boolean ascending, int maxEntries, boolean keysOnly) {
         this.operation = RequestOperation.PREFIX_LOOKUP;
         this.database = database;
         this.indexId = indexId;
@@ -87,11 +105,13 @@ public class LSMDBRequest<T> {
         this.listener = listener;
         this.udLookup = null;
         this.ascending = ascending;
+        this.maxEntries = maxEntries;
+        this.keysOnly = keysOnly;
     }
     
     public LSMDBRequest(LSMDatabase database, int indexId, 
             BabuDBRequestResultImpl<T> listener, byte[] from, byte[] to, 
-            boolean ascending) {
+            boolean ascending, int maxEntries, boolean keysOnly) {
         this.operation = RequestOperation.RANGE_LOOKUP;
         this.database = database;
         this.indexId = indexId;
@@ -102,6 +122,8 @@ public class LSMDBRequest<T> {
         this.listener = listener;
         this.udLookup = null;
         this.ascending = ascending;
+        this.maxEntries = maxEntries;
+        this.keysOnly = keysOnly;
     }
     
     public LSMDBRequest(LSMDatabase database, 
@@ -135,6 +157,10 @@ public class LSMDBRequest<T> {
         return lookupKey;
     }
     
+    public byte[][] getLookupKeys() {
+        return lookupKeys;
+    }
+    
     public byte[] getFrom() {
         return from;
     }
@@ -147,6 +173,14 @@ public class LSMDBRequest<T> {
         return ascending;
     }
     
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+    
+    public boolean isKeysOnly() {
+        return keysOnly;
+    }
+    
     public BabuDBRequestResultImpl<T> getListener() {
         return listener;
     }
@@ -29,7 +29,7 @@ import org.xtreemfs.foundation.logging.Logging.Category;
 public class LSMDBWorker extends LifeCycleThread {
     
     public static enum RequestOperation {
-        INSERT, LOOKUP, PREFIX_LOOKUP, RANGE_LOOKUP, USER_DEFINED_LOOKUP, LOCK
+        INSERT, LOOKUP, MULTI_LOOKUP, PREFIX_LOOKUP, RANGE_LOOKUP, USER_DEFINED_LOOKUP, LOCK
     };
     
     private final AtomicBoolean                  locked = new AtomicBoolean(false);
@@ -166,6 +166,9 @@ public class LSMDBWorker extends LifeCycleThread {
         case LOOKUP:
             doLookup((LSMDBRequest<byte[]>) r);
             break;
+        case MULTI_LOOKUP:
+            doMultiLookup((LSMDBRequest<byte[][]>) r);
+            break;
         case PREFIX_LOOKUP:
             doPrefixLookup((LSMDBRequest<Iterator<Entry<byte[], byte[]>>>) r);
             break;
@@ -222,6 +225,19 @@ public class LSMDBWorker extends LifeCycleThread {
         }
     }
     
+    private void doMultiLookup(final LSMDBRequest<byte[][]> r) {
+        final LSMDatabase db = r.getDatabase();
+        final int numIndices = db.getIndexCount();
+        
+        if ((r.getIndexId() >= numIndices) || (r.getIndexId() < 0)) {
+            r.getListener().failed(
+                new BabuDBException(ErrorCode.NO_SUCH_INDEX, "index " + r.getIndexId() + 
+                        " does not exist"));
+        } else {
+            r.getListener().finished(db.getIndex(r.getIndexId()).lookup(r.getLookupKeys()));
+        }
+    }
+    
     private void doPrefixLookup(final LSMDBRequest<Iterator<Map.Entry<byte[], byte[]>>> r) {
         final LSMDatabase db = r.getDatabase();
         final int numIndices = db.getIndexCount();
@@ -231,7 +247,8 @@ public class LSMDBWorker extends LifeCycleThread {
                 new BabuDBException(ErrorCode.NO_SUCH_INDEX, "index " + r.getIndexId() + 
                         " does not exist"));
         } else {
-            r.getListener().finished(db.getIndex(r.getIndexId()).prefixLookup(r.getLookupKey()));
+            r.getListener().finished(db.getIndex(r.getIndexId()).prefixLookup(r.getLookupKey(), 
+                    r.isAscending(), r.getMaxEntries(), r.isKeysOnly()));
         }
     }
     
@@ -245,7 +262,8 @@ public class LSMDBWorker extends LifeCycleThread {
                         " does not exist"));
         } else {
             r.getListener().finished(
-                    db.getIndex(r.getIndexId()).rangeLookup(r.getFrom(), r.getTo()));
+                    db.getIndex(r.getIndexId()).rangeLookup(r.getFrom(), r.getTo(), 
+                            r.isAscending(), r.getMaxEntries(), r.isKeysOnly()));
         }
     }
     
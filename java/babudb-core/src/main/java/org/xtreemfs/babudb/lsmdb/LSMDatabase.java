@@ -13,13 +13,17 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
+import org.xtreemfs.babudb.index.BlockCodec;
 import org.xtreemfs.babudb.index.LSMTree;
 import org.xtreemfs.babudb.snapshots.SnapshotConfig;
 import org.xtreemfs.foundation.logging.Logging;
@@ -42,6 +46,8 @@ public class LSMDatabase {
     
     private static final String         SNAPSHOT_FILENAME_REGEXP = "IX(\\d+)V(\\d+)SEQ(\\d+)\\.idx";
     
+    private static final String         RUN_DIRNAME_REGEXP       = "IX(\\d+)\\.runs";
+    
     /**
      * The actual indices stores in LSMTrees.
      */
@@ -74,6 +80,12 @@ public class LSMDatabase {
     
     private final ByteRangeComparator[] comparators;
     
+    /**
+     * the merge operators of all indices; indices without merge operator have
+     * a <code>null</code> entry
+     */
+    private final MergeOperator[]       mergeOperators;
+    
     /**
      * enables compression of the on-disk index
      */
@@ -87,7 +99,7 @@ public class LSMDatabase {
     /**
      * the maximum size of an on-disk index file
      */
-    private final int                   maxBlockFileSize;
+    private final long                  maxBlockFileSize;
     
     /**
      * disables memory-mapping of block files
@@ -100,6 +112,39 @@ public class LSMDatabase {
      */
     private final int                   mmapLimit;
     
+    /**
+     * the maximum number of on-disk runs per index
+     */
+    private final int                   maxRunsPerIndex;
+    
+    /**
+     * the number of Bloom filter bits per key in on-disk indices
+     */
+    private final int                   bloomFilterBitsPerKey;
+    
+    /**
+     * the codec with which the blocks of on-disk indices are encoded, or
+     * <code>null</code> if blocks are not encoded
+     */
+    private final BlockCodec            blockCodec;
+    
+    /**
+     * the number of entries after which a key is stored completely in
+     * prefix-coded blocks, or 0 if blocks are not prefix-coded
+     */
+    private final int                   keyRestartInterval;
+    
+    /**
+     * the size in bytes after which a block of an on-disk index is completed,
+     * or 0 if block sizes are only limited by the number of entries
+     */
+    private final int                   maxBlockSize;
+    
+    /**
+     * specifies whether the overlays of all indices are stored off-heap
+     */
+    private final boolean               offHeapOverlay;
+    
     /**
      * Creates a new database and loads data from disk if requested.
      * 
@@ -115,6 +160,9 @@ public class LSMDatabase {
      *            true if data should be read from disk
      * @param comparators
      *            an array containing the comparators of all indices
+     * @param mergeOperators
+     *            an array containing the merge operators of all indices, or
+     *            <code>null</code> if no index has a merge operator
      * @param compression
      *            specified if compression is enabled
      * @param maxEntriesPerBlock
@@ -126,13 +174,35 @@ public class LSMDatabase {
      * @param mmapLimit
      *            defines the maximum size of all databases in MB after which
      *            block files will no longer be memory-mapped
+     * @param maxRunsPerIndex
+     *            the maximum number of on-disk runs per index; if set to 1,
+     *            each checkpoint rewrites the entire index
+     * @param bloomFilterBitsPerKey
+     *            the number of Bloom filter bits per key in on-disk indices; if
+     *            set to 0, no Bloom filters will be written
+     * @param blockCodec
+     *            the codec with which the blocks of on-disk indices are
+     *            encoded, or <code>null</code> if blocks are not encoded
+     * @param keyRestartInterval
+     *            the number of entries after which a key is stored completely
+     *            in prefix-coded blocks of on-disk indices; if set to 0,
+     *            blocks will not be prefix-coded
+     * @param maxBlockSize
+     *            the size in bytes after which a block of an on-disk index is
+     *            completed; if set to 0, the size of blocks will only be
+     *            limited by the maximum number of entries per block
+     * @param offHeapOverlay
+     *            specifies whether the in-memory overlays of all indices store
+     *            keys and values outside of the Java heap
      * @throws BabuDBException
      *             if on-disk data cannot be read or DB directory cannot be
      *             created
      */
     public LSMDatabase(String databaseName, int databaseId, String databaseDir, int numIndices,
-        boolean readFromDisk, ByteRangeComparator[] comparators, boolean compression, int maxEntriesPerBlock,
-        int maxBlockFileSize, boolean disableMMap, int mmapLimit) throws BabuDBException {
+        boolean readFromDisk, ByteRangeComparator[] comparators, MergeOperator[] mergeOperators,
+        boolean compression, int maxEntriesPerBlock, long maxBlockFileSize, boolean disableMMap,
+        int mmapLimit, int maxRunsPerIndex, int bloomFilterBitsPerKey, BlockCodec blockCodec,
+        int keyRestartInterval, int maxBlockSize, boolean offHeapOverlay) throws BabuDBException {
         
         this.numIndices = numIndices;
         this.databaseId = databaseId;
@@ -144,11 +214,18 @@ public class LSMDatabase {
         this.databaseName = databaseName;
         this.trees = new ArrayList<LSMTree>(numIndices);
         this.comparators = comparators;
+        this.mergeOperators = mergeOperators != null ? mergeOperators : new MergeOperator[numIndices];
         this.compression = compression;
         this.maxEntriesPerBlock = maxEntriesPerBlock;
         this.maxBlockFileSize = maxBlockFileSize;
         this.disableMMap = disableMMap;
         this.mmapLimit = mmapLimit;
+        this.maxRunsPerIndex = maxRunsPerIndex;
+        this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+        this.blockCodec = blockCodec;
+        this.keyRestartInterval = keyRestartInterval;
+        this.maxBlockSize = maxBlockSize;
+        this.offHeapOverlay = offHeapOverlay;
         
         if (readFromDisk) {
             loadFromDisk(numIndices);
@@ -157,7 +234,8 @@ public class LSMDatabase {
                 for (int i = 0; i < numIndices; i++) {
                     assert (comparators[i] != null);
                     trees.add(new LSMTree(null, comparators[i], this.compression, maxEntriesPerBlock,
-                        maxBlockFileSize, !disableMMap, mmapLimit));
+                        maxBlockFileSize, !disableMMap, mmapLimit, maxRunsPerIndex, bloomFilterBitsPerKey,
+                        offHeapOverlay, blockCodec, keyRestartInterval, maxBlockSize));
                 }
                 ondiskLSN = NO_DB_LSN;
             } catch (IOException ex) {
@@ -178,6 +256,25 @@ public class LSMDatabase {
         return comparators;
     }
     
+    /**
+     * Returns the class names of the merge operators of all indices.
+     * 
+     * @return an array containing the class name of each index's merge
+     *         operator, or <code>null</code> for indices without merge
+     *         operator
+     */
+    public String[] getMergeOperatorClassNames() {
+        String[] array = new String[trees.size()];
+        for (int i = 0; i < trees.size(); i++) {
+            array[i] = mergeOperators[i] == null ? null : mergeOperators[i].getClass().getName();
+        }
+        return array;
+    }
+    
+    public MergeOperator[] getMergeOperators() {
+        return mergeOperators;
+    }
+    
     /**
      * Load the most recent snapshots of each tree.
      * 
@@ -232,7 +329,9 @@ public class LSMDatabase {
                     assert (comparators[index] != null);
                     trees.set(index, new LSMTree(databaseDir + File.separator
                         + getSnapshotFilename(index, maxView, maxSeq), comparators[index], this.compression,
-                        this.maxEntriesPerBlock, this.maxBlockFileSize, !this.disableMMap, this.mmapLimit));
+                        this.maxEntriesPerBlock, this.maxBlockFileSize, !this.disableMMap, this.mmapLimit,
+                        this.maxRunsPerIndex, this.bloomFilterBitsPerKey, this.offHeapOverlay,
+                        this.blockCodec, this.keyRestartInterval, this.maxBlockSize));
                     ondiskLSN = new LSN(maxView, maxSeq);
                 } else {
                     ondiskLSN = NO_DB_LSN;
@@ -240,7 +339,9 @@ public class LSMDatabase {
                         + this.databaseName);
                     assert (comparators[index] != null);
                     trees.set(index, new LSMTree(null, comparators[index], this.compression,
-                        this.maxEntriesPerBlock, this.maxBlockFileSize, !this.disableMMap, this.mmapLimit));
+                        this.maxEntriesPerBlock, this.maxBlockFileSize, !this.disableMMap, this.mmapLimit,
+                        this.maxRunsPerIndex, this.bloomFilterBitsPerKey, this.offHeapOverlay,
+                        this.blockCodec, this.keyRestartInterval, this.maxBlockSize));
                 }
             } catch (IOException ex) {
                 Logging.logError(Logging.LEVEL_ERROR, this, ex);
@@ -270,6 +371,21 @@ public class LSMDatabase {
         return trees.size();
     }
     
+    /**
+     * Get the number of bytes occupied by the in-memory overlays of all
+     * indices in this database.
+     * 
+     * @return the number of bytes
+     */
+    public long getOverlayMemoryUsage() {
+        
+        long size = 0;
+        for (LSMTree tree : trees)
+            size += tree.getOverlayMemoryUsage();
+        
+        return size;
+    }
+    
     /**
      * Get the LSN of the current on-disk snapshot (i.e. all writes with LSN <=
      * the on-disk LSN are in the snapshot on disk).
@@ -324,41 +440,113 @@ public class LSMDatabase {
         
         Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
                 "writing snapshot, database = " + databaseName + "...");
-        for (int index = 0; index < trees.size(); index++) {
-            
-            final LSMTree tree = trees.get(index);
-            
-            if (Logging.isInfo())
-                Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
-                        "snapshotting index " + index + "(dbName = " + databaseName + ")...");
-            
-            File tmpDir = new File(databaseDir, ".currentSnapshot");
-            File targetDir = new File(databaseDir, getSnapshotFilename(index, viewId, sequenceNo));
-            
-            if (targetDir.exists()) {
-                Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
-                        "skipping index'" + index + ", as a valid checkpoint (" + targetDir + ") exists already");
-                continue;
-            }
-            
-            // clean up incomplete old checkpoints if necessary
-            if (tmpDir.exists())
-                FSUtils.delTree(tmpDir);
-            
-            tree.materializeSnapshot(tmpDir.getAbsolutePath(), snapIds[index]);
-            
-            if (!tmpDir.renameTo(targetDir))
-                throw new IOException("could not rename '" + tmpDir + "' to " + targetDir);
-            
-            if (Logging.isInfo())
-                Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
-                        "... done (index = " + index + ", dbName = " + databaseName + ")");
-        }
+        for (int index = 0; index < trees.size(); index++)
+            writeSnapshot(viewId, sequenceNo, snapIds[index], index);
         if (Logging.isInfo())
             Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
                     "snapshot written, database = " + databaseName);
     }
     
+    /**
+     * Writes the snapshot of a single index to disk. Snapshots of different
+     * indices may be written concurrently.
+     * 
+     * @param viewId
+     *            current viewId (i.e. of the last write)
+     * @param sequenceNo
+     *            current sequenceNo (i.e. of the last write)
+     * @param snapId
+     *            the snapshot Id of the index (obtained via createSnapshot).
+     * @param index
+     *            the index
+     * @throws java.io.IOException
+     *             if the snapshot cannot be written to disk
+     */
+    public void writeSnapshot(int viewId, long sequenceNo, int snapId, int index) throws IOException {
+        
+        final LSMTree tree = trees.get(index);
+        
+        if (Logging.isInfo())
+            Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
+                    "snapshotting index " + index + "(dbName = " + databaseName + ")...");
+        
+        File tmpDir = new File(databaseDir, ".currentSnapshot" + index);
+        File targetDir = new File(databaseDir, getSnapshotFilename(index, viewId, sequenceNo));
+        
+        if (targetDir.exists()) {
+            Logging.logMessage(Logging.LEVEL_DEBUG, Category.babudb, this,
+                    "skipping index'" + index + ", as a valid checkpoint (" + targetDir + ") exists already");
+            return;
+        }
+        
+        // clean up incomplete old checkpoints if necessary
+        if (tmpDir.exists())
+            FSUtils.delTree(tmpDir);
+        
+        tree.materializeIncrementalSnapshot(tmpDir.getAbsolutePath(), new File(databaseDir,
+            getRunDirname(index)).getAbsolutePath(), snapId);
+        
+        if (!tmpDir.renameTo(targetDir))
+            throw new IOException("could not rename '" + tmpDir + "' to " + targetDir);
+        
+        if (Logging.isInfo())
+            Logging.logMessage(Logging.LEVEL_INFO, Category.babudb, this,
+                    "... done (index = " + index + ", dbName = " + databaseName + ", expired entries = "
+                        + tree.getNumExpiredEntries() + ")");
+    }
+    
+    /**
+     * Writes a sequence of sorted entries to a new run of a single index. The
+     * run is kept in a temporary directory until it is added to the index by
+     * means of <code>addIngestedRun()</code>.
+     * 
+     * @param index
+     *            the index
+     * @param entries
+     *            the entries, in strictly ascending order of their keys
+     * @throws IOException
+     *             if the run cannot be written to disk
+     * @throws IllegalArgumentException
+     *             if the entries are not sorted
+     */
+    public void writeIngestedRun(int index, Iterator<Entry<byte[], byte[]>> entries) throws IOException {
+        
+        File tmpDir = new File(databaseDir, ".ingest" + index);
+        
+        // clean up incomplete old runs if necessary
+        if (tmpDir.exists())
+            FSUtils.delTree(tmpDir);
+        
+        try {
+            trees.get(index).writeIngestedRun(tmpDir.getAbsolutePath(), entries);
+        } catch (IOException exc) {
+            FSUtils.delTree(tmpDir);
+            throw exc;
+        } catch (RuntimeException exc) {
+            FSUtils.delTree(tmpDir);
+            throw exc;
+        }
+    }
+    
+    /**
+     * Adds the run written by <code>writeIngestedRun()</code> to an index.
+     * The run is moved to the run directory of the index; it becomes visible
+     * and part of the on-disk state of the index when the next checkpoint of
+     * the database is linked.
+     * 
+     * @param index
+     *            the index
+     * @throws IOException
+     *             if the run cannot be added to the index
+     */
+    public void addIngestedRun(int index) throws IOException {
+        
+        File tmpDir = new File(databaseDir, ".ingest" + index);
+        trees.get(index).addIngestedRun(tmpDir.getAbsolutePath(),
+            new File(databaseDir, getRunDirname(index)).getAbsolutePath());
+        FSUtils.delTree(tmpDir);
+    }
+    
     public void writeSnapshot(String directory, int[] snapIds, int viewId, long sequenceNumber)
         throws IOException {
         
@@ -399,6 +587,13 @@ public class LSMDatabase {
      */
     public void cleanupSnapshot(final int viewId, final long sequenceNo) throws IOException {
         
+        // if the database is linked to the snapshot already, no log entries
+        // have been written since it was created; the in-memory overlays are
+        // retained, as they may contain entries whose log entries are still
+        // pending, and which are thus not contained in the snapshot
+        if (new LSN(viewId, sequenceNo).equals(ondiskLSN))
+            return;
+        
         for (int index = 0; index < trees.size(); index++) {
             
             final LSMTree tree = trees.get(index);
@@ -447,6 +642,23 @@ public class LSMDatabase {
                 }
             }
             
+            // delete all runs to which the remaining snapshots of the index
+            // do not refer anymore
+            List<String> snapshotFiles = new ArrayList<String>();
+            for (String fname : f.list()) {
+                Matcher m = p.matcher(fname);
+                if (m.matches() && Integer.valueOf(m.group(1)) == index)
+                    snapshotFiles.add(databaseDir + File.separator + fname);
+            }
+            try {
+                tree.deleteUnreferencedRuns(databaseDir + File.separator + getRunDirname(index),
+                    snapshotFiles);
+            } catch (IOException exc) {
+                Logging.logError(Logging.LEVEL_ERROR, this, exc);
+                if (exception == null)
+                    exception = exc;
+            }
+            
             // throw any I/O exception that has occurred before
             if (exception != null)
                 throw new IOException(exception);
@@ -466,6 +678,27 @@ public class LSMDatabase {
         return "IX" + indexId + "V" + viewId + "SEQ" + sequenceNo + ".idx";
     }
     
+    /**
+     * Returns the name of the directory containing the runs to which the
+     * snapshots of an index refer.
+     * 
+     * @param indexId
+     *            the index
+     * @return the name of the run directory
+     */
+    public static String getRunDirname(int indexId) {
+        return "IX" + indexId + ".runs";
+    }
+    
+    /**
+     * @param fileName
+     * @return true, if the given <code>fileName</code> matches the pattern of
+     *         run directory names, false otherwise.
+     */
+    public static boolean isRunDirname(String fileName) {
+        return new File(fileName).getName().matches(RUN_DIRNAME_REGEXP);
+    }
+    
     /**
      * 
      * @param fname
@@ -531,6 +764,16 @@ public class LSMDatabase {
                             result.add(new DBFileMetaData(databaseDir + File.separator + fName
                                 + File.separator + file.getName(), file.length()));
                         }
+                        
+                        // add the files of all runs to which the snapshot refers
+                        try {
+                            for (File file : LSMTree.getRunFiles(snapshotDir.getPath()))
+                                result.add(new DBFileMetaData(databaseDir + File.separator
+                                    + file.getParentFile().getName() + File.separator + file.getName(), file
+                                        .length()));
+                        } catch (IOException exc) {
+                            Logging.logError(Logging.LEVEL_ERROR, this, exc);
+                        }
                     } else {
                         // for compatibility with older versions of BabuDB
                         result.add(new DBFileMetaData(databaseDir + File.separator + fName, snapshotDir
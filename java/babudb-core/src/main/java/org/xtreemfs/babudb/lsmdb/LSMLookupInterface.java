@@ -37,6 +37,20 @@ public class LSMLookupInterface {
         return tree.lookup(key,snapId);
     }
     
+    public byte[][] multiLookup(int indexId, byte[][] keys) throws BabuDBException {
+        LSMTree tree = database.getIndex(indexId);
+        if (tree == null)
+            throw new BabuDBException(BabuDBException.ErrorCode.NO_SUCH_INDEX, "index " + indexId + " does not exist");
+        return tree.lookup(keys);
+    }
+    
+    public byte[][] multiLookup(int indexId, byte[][] keys, int snapId) throws BabuDBException {
+        LSMTree tree = database.getIndex(indexId);
+        if (tree == null)
+            throw new BabuDBException(BabuDBException.ErrorCode.NO_SUCH_INDEX, "index " + indexId + " does not exist");
+        return tree.lookup(keys, snapId);
+    }
+    
     public Iterator<Entry<byte[],byte[]>> prefixLookup(int indexId, byte[] startKey) throws BabuDBException {
         LSMTree tree = database.getIndex(indexId);
         if (tree == null)
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.sandbox;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.xtreemfs.babudb.api.index.InPlaceByteRangeComparator;
+import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
+import org.xtreemfs.babudb.index.UnsignedByteRangeComparator;
+
+/**
+ * Compares the throughput of the signed default comparator and the unsigned
+ * word-at-a-time comparator when comparing keys in a buffer, as done when
+ * searching on-disk index blocks. Keys share a common prefix of configurable
+ * length, so as to simulate typical hierarchical keys.
+ */
+public class ComparatorPerformanceTest {
+    
+    public static void main(String[] args) throws Exception {
+        
+        if (args.length != 3) {
+            System.out.println("usage: java " + ComparatorPerformanceTest.class.getCanonicalName()
+                + " <key_length> <common_prefix_length> <num_comparisons>");
+            System.exit(1);
+        }
+        
+        final int keyLength = Integer.parseInt(args[0]);
+        final int prefixLength = Math.min(keyLength, Integer.parseInt(args[1]));
+        final long numComparisons = Long.parseLong(args[2]);
+        
+        // create a set of random keys with a common prefix
+        final int numKeys = 1024;
+        Random rnd = new Random(1);
+        byte[] prefix = new byte[prefixLength];
+        rnd.nextBytes(prefix);
+        
+        byte[][] keys = new byte[numKeys][keyLength];
+        ByteBuffer buf = ByteBuffer.allocate(numKeys * keyLength);
+        for (byte[] key : keys) {
+            rnd.nextBytes(key);
+            System.arraycopy(prefix, 0, key, 0, prefixLength);
+            buf.put(key);
+        }
+        
+        InPlaceByteRangeComparator[] comps = { new DefaultByteRangeComparator(),
+            new UnsignedByteRangeComparator() };
+        
+        // run each benchmark twice, so as to warm up the JIT compiler
+        for (int run = 0; run < 2; run++) {
+            for (InPlaceByteRangeComparator comp : comps) {
+                
+                long checksum = 0;
+                long t0 = System.nanoTime();
+                for (long i = 0; i < numComparisons; i++) {
+                    int k1 = (int) (i % numKeys);
+                    int k2 = (int) ((i * 31) % numKeys);
+                    checksum += comp.compare(buf, k1 * keyLength, keyLength, keys[k2]);
+                }
+                long time = System.nanoTime() - t0;
+                
+                if (run == 1)
+                    System.out.println(comp.getClass().getSimpleName() + ": " + numComparisons * 1000 / time
+                        + " comparisons/us (checksum " + checksum + ")");
+            }
+        }
+    }
+    
+}
@@ -42,6 +42,10 @@ public class DiskIndexPerformanceTest {
         options.put("scans", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 1000));
         options.put("debug", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, Logging.LEVEL_EMERG));
         options.put("compression", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.SWITCH, false));
+        // if > 0, keys are prefix-coded with a restart point every n entries
+        options.put("restartinterval", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 0));
+        // if > 0, blocks are completed after the given number of bytes
+        options.put("maxblockbytes", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.NUMBER, 0));
         options.put("mmap", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.SWITCH, true));
         options.put("overwrite", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.SWITCH, false));
         options.put("h", new CLIParser.CliOption(CLIParser.CliOption.OPTIONTYPE.SWITCH, false));
@@ -76,6 +80,8 @@ public class DiskIndexPerformanceTest {
         final Random generator = new Random();
 
         final boolean compress = options.get("compression").switchValue.booleanValue();
+        final int restartInterval = options.get("restartinterval").numValue.intValue();
+        final int maxBlockBytes = options.get("maxblockbytes").numValue.intValue();
         final boolean mmap = options.get("mmap").switchValue.booleanValue();
         final boolean overwrite = options.get("overwrite").switchValue.booleanValue();
 
@@ -91,7 +97,8 @@ public class DiskIndexPerformanceTest {
         }
 
         final String path = arguments.get(0) + "_" + input.substring(input.lastIndexOf("/") + 1) + "_" + "compressed_"
-                + compress + "_" + size + "_" + entriesPerBlock;
+                + compress + "_restart_" + restartInterval + "_" + size + "_" + entriesPerBlock + "_"
+                + maxBlockBytes;
 
         boolean verbose = false;
         final ArrayList<byte[]> lookupHits = new ArrayList<byte[]>((int) (hitrate * size) + 1);
@@ -106,6 +113,8 @@ public class DiskIndexPerformanceTest {
 
             // write the map to a disk index
             DiskIndexWriter index = new DiskIndexWriter(path, entriesPerBlock.intValue(), compress, blockFileSize);
+            index.setKeyRestartInterval(restartInterval);
+            index.setMaxBlockSize(maxBlockBytes);
 
             if (!input.equals(DEFAULT_DATAGEN)) {
                 /* note that the iterator must return the items sorted */
@@ -212,6 +221,8 @@ public class DiskIndexPerformanceTest {
 
         System.out.print(path + ", ");
         System.out.print(size + ", ");
+        /* size of the index on disk in bytes */
+        System.out.print(diskIndex.getSize() + ", ");
         System.out.print(lookups + ", ");
         System.out.print(hits + ", ");
         System.out.print(sumLookups + ", ");
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.sandbox;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+
+import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
+import org.xtreemfs.babudb.index.OverlayMergeIterator;
+
+/**
+ * Measures the throughput of merging a varying number of sorted sources with
+ * an <code>OverlayMergeIterator</code>, as done by range and prefix lookups
+ * across multiple overlay trees and on-disk runs.
+ */
+public class OverlayMergePerformanceTest {
+    
+    public static void main(String[] args) throws Exception {
+        
+        if (args.length != 2) {
+            System.out.println("usage: java " + OverlayMergePerformanceTest.class.getCanonicalName()
+                + " <num_entries> <max_num_sources>");
+            System.exit(1);
+        }
+        
+        final int numEntries = Integer.parseInt(args[0]);
+        final int maxSources = Integer.parseInt(args[1]);
+        final byte[] nullValue = new byte[0];
+        
+        Random rnd = new Random(1);
+        
+        for (int k = 1; k <= maxSources; k *= 2) {
+            
+            // distribute the entries across k sources
+            List<TreeMap<byte[], byte[]>> sources = new ArrayList<TreeMap<byte[], byte[]>>();
+            for (int i = 0; i < k; i++)
+                sources.add(new TreeMap<byte[], byte[]>(DefaultByteRangeComparator.getInstance()));
+            for (int i = 0; i < numEntries; i++) {
+                byte[] key = new byte[16];
+                rnd.nextBytes(key);
+                sources.get(i % k).put(key, key);
+            }
+            
+            // run each merge twice, so as to warm up the JIT compiler
+            long time = 0;
+            int count = 0;
+            for (int run = 0; run < 2; run++) {
+                
+                List<Iterator<Entry<byte[], byte[]>>> itList = new ArrayList<Iterator<Entry<byte[], byte[]>>>();
+                for (TreeMap<byte[], byte[]> source : sources)
+                    itList.add(source.entrySet().iterator());
+                
+                long t0 = System.nanoTime();
+                OverlayMergeIterator<byte[], byte[]> it = new OverlayMergeIterator<byte[], byte[]>(itList,
+                    DefaultByteRangeComparator.getInstance(), nullValue, true);
+                for (count = 0; it.hasNext(); count++)
+                    it.next();
+                time = System.nanoTime() - t0;
+            }
+            
+            System.out.println(k + " sources: " + count + " entries in " + time / 1000000 + " ms, "
+                + (long) count * 1000000000L / Math.max(time, 1) + " entries/s");
+        }
+    }
+    
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2008 - 2011, Jan Stender, Bjoern Kolbeck, Mikael Hoegqvist,
+ *                     Felix Hupfeld, Zuse Institute Berlin
+ * 
+ * Licensed under the BSD License, see LICENSE file for details.
+ * 
+ */
+
+package org.xtreemfs.babudb.sandbox;
+
+import java.io.File;
+import java.util.Random;
+
+import org.xtreemfs.babudb.BabuDBFactory;
+import org.xtreemfs.babudb.api.BabuDB;
+import org.xtreemfs.babudb.api.database.Database;
+import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
+import org.xtreemfs.babudb.config.ConfigBuilder;
+import org.xtreemfs.foundation.logging.Logging;
+import org.xtreemfs.foundation.util.FSUtils;
+
+/**
+ * Measures the throughput of concurrent inserts and lookups on a single
+ * database with a varying number of worker threads, both with one worker per
+ * database and with requests sharded across all workers by key. Whether
+ * sharding improves the throughput depends on the number of available
+ * processors; the number of workers is hence limited to the number of
+ * processors, so that the measurements are not distorted by workers that
+ * cannot run in parallel.
+ */
+public class WorkerShardingPerformanceTest {
+    
+    public static void main(String[] args) throws Exception {
+        
+        if (args.length != 3) {
+            System.out.println("usage: java " + WorkerShardingPerformanceTest.class.getCanonicalName()
+                + " <db_dir> <num_ops_per_client> <max_num_workers>");
+            System.exit(1);
+        }
+        
+        final String dbDir = args[0];
+        final int numOps = Integer.parseInt(args[1]);
+        final int numProcessors = Runtime.getRuntime().availableProcessors();
+        final int maxWorkers = Math.min(Integer.parseInt(args[2]), numProcessors);
+        
+        Logging.start(Logging.LEVEL_WARN);
+        System.out.println(numProcessors + " processors available, measuring up to " + maxWorkers
+            + " workers");
+        
+        for (int numWorkers = 1; numWorkers <= maxWorkers; numWorkers *= 2) {
+            for (boolean shardByKey : new boolean[] { false, true }) {
+                
+                FSUtils.delTree(new File(dbDir));
+                BabuDB babuDB = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(dbDir)
+                        .setMultiThreaded(numWorkers).setShardWorkersByKey(shardByKey).build());
+                final Database db = babuDB.getDatabaseManager().createDatabase("test", 1);
+                
+                // run twice as many clients as workers, each of which
+                // alternately inserts and looks up random keys
+                Thread[] clients = new Thread[2 * numWorkers];
+                for (int i = 0; i < clients.length; i++) {
+                    final Random rnd = new Random(i);
+                    clients[i] = new Thread() {
+                        public void run() {
+                            try {
+                                for (int j = 0; j < numOps; j++) {
+                                    byte[] key = ("key" + rnd.nextInt(numOps)).getBytes();
+                                    if (j % 2 == 0) {
+                                        DatabaseInsertGroup ig = db.createInsertGroup();
+                                        ig.addInsert(0, key, key);
+                                        db.insert(ig, null).get();
+                                    } else
+                                        db.lookup(0, key, null).get();
+                                }
+                            } catch (Exception exc) {
+                                exc.printStackTrace();
+                            }
+                        }
+                    };
+                }
+                
+                long t0 = System.nanoTime();
+                for (Thread client : clients)
+                    client.start();
+                for (Thread client : clients)
+                    client.join();
+                long time = System.nanoTime() - t0;
+                
+                long count = (long) clients.length * numOps;
+                String mode = shardByKey ? "sharded by key" : "one per database";
+                System.out.println(numWorkers + " workers, " + mode + ": " + count + " ops in " + time
+                    / 1000000 + " ms, " + count * 1000000000L / Math.max(time, 1) + " ops/s");
+                
+                babuDB.shutdown();
+            }
+        }
+        
+        FSUtils.delTree(new File(dbDir));
+    }
+    
+}
@@ -9,7 +9,14 @@
 package org.xtreemfs.babudb;
 
 import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Map.Entry;
 
 import junit.framework.TestCase;
@@ -22,13 +29,31 @@ import org.xtreemfs.babudb.api.BabuDB;
 import org.xtreemfs.babudb.api.DatabaseManager;
 import org.xtreemfs.babudb.api.SnapshotManager;
 import org.xtreemfs.babudb.api.StaticInitialization;
+import org.xtreemfs.babudb.api.database.Cursor;
 import org.xtreemfs.babudb.api.database.Database;
 import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
+import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.database.UserDefinedLookup;
+import org.xtreemfs.babudb.api.dev.DatabaseInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
+import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
+import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
+import org.xtreemfs.babudb.api.transaction.Transaction;
 import org.xtreemfs.babudb.config.BabuDBConfig;
+import org.xtreemfs.babudb.config.ConfigBuilder;
+import org.xtreemfs.babudb.conversion.AutoConverter;
+import org.xtreemfs.babudb.conversion.ComparatorConverter;
+import org.xtreemfs.babudb.index.AppendMergeOperator;
+import org.xtreemfs.babudb.index.Clock;
+import org.xtreemfs.babudb.index.CounterMergeOperator;
+import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
+import org.xtreemfs.babudb.index.LSMTree;
+import org.xtreemfs.babudb.index.UnsignedByteRangeComparator;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
+import org.xtreemfs.babudb.lsmdb.LSMDatabase;
 import org.xtreemfs.babudb.lsmdb.LSMLookupInterface;
+import org.xtreemfs.babudb.lsmdb.LSN;
 import org.xtreemfs.foundation.buffer.BufferPool;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.logging.Logging.Category;
@@ -67,6 +92,7 @@ public class BabuDBTest extends TestCase {
     
     @After
     public void tearDown() throws Exception {
+        LSMTree.setClock(Clock.SYSTEM);
     }
     
     @Test
@@ -324,7 +350,7 @@ public class BabuDBTest extends TestCase {
         System.out.println("shutting down database...");
         
         database.shutdown();
-        
+    
     }
     
     @Test
@@ -562,8 +588,1032 @@ public class BabuDBTest extends TestCase {
         database.shutdown();
     }
     
+    @Test
+    public void testOverlayMemoryLimit() throws Exception {
+        
+        // flush the 'test' database once its overlays exceed 64 KB, and check
+        // the overlay size every second
+        Properties props = new ConfigBuilder().setDataPath(baseDir).setMaxOverlayMemory("test", 64 * 1024)
+                .build().getProps();
+        props.setProperty("babudb.checkInterval", "1");
+        database = BabuDBFactory.createBabuDB(new BabuDBConfig(props));
+        
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        Database other = database.getDatabaseManager().createDatabase("other", 1);
+        for (int i = 0; i < 1000; i++) {
+            db.singleInsert(0, ("key" + i).getBytes(), ("value" + i).getBytes(), null).get();
+            other.singleInsert(0, ("key" + i).getBytes(), ("value" + i).getBytes(), null).get();
+        }
+        long overlayMemory = (Long) database.getRuntimeState("databaseManager.overlayMemory");
+        assertTrue(overlayMemory > 2 * 64 * 1024);
+        
+        // wait for the 'test' database to be flushed
+        for (int i = 0; i < 50 && (Integer) database.getRuntimeState("checkpointer.flushCount") == 0; i++)
+            Thread.sleep(100);
+        assertTrue((Integer) database.getRuntimeState("checkpointer.flushCount") > 0);
+        assertEquals(0, database.getRuntimeState("checkpointer.cpCount"));
+        assertTrue((Long) database.getRuntimeState("databaseManager.overlayMemory") < overlayMemory);
+        
+        // the contents of both databases must survive a restart
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(new BabuDBConfig(props));
+        db = database.getDatabaseManager().getDatabase("test");
+        other = database.getDatabaseManager().getDatabase("other");
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value" + i, new String(db.lookup(0, ("key" + i).getBytes(), null).get()));
+            assertEquals("value" + i, new String(other.lookup(0, ("key" + i).getBytes(), null).get()));
+        }
+        
+        database.shutdown();
+    }
+    
+    public void testParallelCheckpoint() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setCheckpointThreads(4)
+                .build());
+        
+        Database db = database.getDatabaseManager().createDatabase("test", 3);
+        Database other = database.getDatabaseManager().createDatabase("other", 2);
+        for (int i = 0; i < 1000; i++) {
+            for (int index = 0; index < 3; index++)
+                db.singleInsert(index, ("key" + i).getBytes(), ("value" + index + i).getBytes(), null).get();
+            for (int index = 0; index < 2; index++)
+                other.singleInsert(index, ("key" + i).getBytes(), ("value" + index + i).getBytes(), null).get();
+        }
+        
+        database.getCheckpointer().checkpoint();
+        
+        // the duration of writing each index must have been recorded
+        Map<?, ?> durations = (Map<?, ?>) database.getRuntimeState("checkpointer.lastIndexCpDurationsMillis");
+        assertEquals(5, durations.size());
+        assertTrue(durations.containsKey("test:2"));
+        assertTrue(durations.containsKey("other:1"));
+        
+        // all indices must be restored from the checkpoint
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setCheckpointThreads(4)
+                .build());
+        db = database.getDatabaseManager().getDatabase("test");
+        other = database.getDatabaseManager().getDatabase("other");
+        for (int i = 0; i < 1000; i++) {
+            for (int index = 0; index < 3; index++)
+                assertEquals("value" + index + i, new String(db.lookup(index, ("key" + i).getBytes(), null)
+                        .get()));
+            for (int index = 0; index < 2; index++)
+                assertEquals("value" + index + i, new String(other.lookup(index, ("key" + i).getBytes(), null)
+                        .get()));
+        }
+        
+        database.shutdown();
+    }
+    
+    public void testUntouchedIndexCheckpoint() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMaxRunsPerIndex(4)
+                .build());
+        Database db = database.getDatabaseManager().createDatabase("test", 2);
+        for (int i = 0; i < 1000; i++)
+            for (int index = 0; index < 2; index++)
+                db.singleInsert(index, ("key" + i).getBytes(), ("value" + index + i).getBytes(), null).get();
+        database.getCheckpointer().checkpoint();
+        
+        File dbDir = new File(baseDir, "test");
+        File[] runFiles = new File(dbDir, LSMDatabase.getRunDirname(1)).listFiles();
+        assertTrue(runFiles.length > 0);
+        for (File file : runFiles)
+            assertTrue(file.setLastModified(1000));
+        
+        // a checkpoint must not write any run data of an index that has not
+        // been written since the previous checkpoint
+        db.singleInsert(0, "new".getBytes(), "new".getBytes(), null).get();
+        database.getCheckpointer().checkpoint();
+        
+        String[] snapshots = dbDir.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith("IX1V");
+            }
+        });
+        assertEquals(1, snapshots.length);
+        assertTrue(Arrays.equals(new String[] { LSMTree.MANIFEST_FILE },
+            new File(dbDir, snapshots[0]).list()));
+        assertEquals(runFiles.length, new File(dbDir, LSMDatabase.getRunDirname(1)).list().length);
+        for (File file : runFiles)
+            assertEquals(1000, file.lastModified());
+        
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMaxRunsPerIndex(4)
+                .build());
+        db = database.getDatabaseManager().getDatabase("test");
+        for (int i = 0; i < 1000; i++)
+            assertEquals("value1" + i, new String(db.lookup(1, ("key" + i).getBytes(), null).get()));
+        assertEquals("new", new String(db.lookup(0, "new".getBytes(), null).get()));
+        
+        database.shutdown();
+    }
+    
+    public void testShardedWorkers() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMultiThreaded(4)
+                .setShardWorkersByKey(true).build());
+        
+        Database db = database.getDatabaseManager().createDatabase("test", 2);
+        
+        // insert groups spanning multiple workers, as well as single records
+        for (int i = 0; i < 100; i++) {
+            DatabaseInsertGroup ig = db.createInsertGroup();
+            for (int j = 0; j < 10; j++)
+                ig.addInsert(j % 2, ("key" + i + "_" + j).getBytes(), ("value" + j).getBytes());
+            db.insert(ig, null);
+            db.singleInsert(0, ("key" + i).getBytes(), ("value" + i).getBytes(), null);
+        }
+        
+        // lookups must see all preceding inserts of the same keys
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 10; j++)
+                assertEquals("value" + j, new String(db.lookup(j % 2, ("key" + i + "_" + j).getBytes(), null)
+                        .get()));
+            assertEquals("value" + i, new String(db.lookup(0, ("key" + i).getBytes(), null).get()));
+        }
+        
+        // transactions lock all workers of a database
+        Transaction txn = database.getDatabaseManager().createTransaction();
+        txn.insertRecord("test", 1, "txnKey".getBytes(), "txnValue".getBytes());
+        txn.deleteRecord("test", 0, "key0".getBytes());
+        database.getDatabaseManager().executeTransaction(txn);
+        
+        assertEquals("txnValue", new String(db.lookup(1, "txnKey".getBytes(), null).get()));
+        assertNull(db.lookup(0, "key0".getBytes(), null).get());
+        
+        database.shutdown();
+    }
+    
+    public void testReadThreads() throws Exception {
+        
+        // lookups performed by dedicated read threads and by the calling
+        // threads must be consistent while checkpoints replace on-disk runs
+        for (int readThreads : new int[] { 2, 0 }) {
+            
+            FSUtils.delTree(new File(baseDir));
+            database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMultiThreaded(2)
+                    .setReadThreads(readThreads).build());
+            
+            final Database db = database.getDatabaseManager().createDatabase("test", 1);
+            for (int i = 0; i < 500; i++)
+                db.singleInsert(0, ("key" + i).getBytes(), ("value" + i).getBytes(), null).get();
+            
+            final Exception[] error = new Exception[1];
+            Thread reader = new Thread() {
+                public void run() {
+                    try {
+                        for (int round = 0; round < 20; round++) {
+                            for (int i = 0; i < 500; i += 7)
+                                assertEquals("value" + i, new String(db.lookup(0, ("key" + i).getBytes(),
+                                        null).get()));
+                            ResultSet<byte[], byte[]> it = db.prefixLookup(0, "key".getBytes(), null).get();
+                            int count = 0;
+                            for (; it.hasNext(); it.next())
+                                count++;
+                            it.free();
+                            assertTrue(count >= 500);
+                        }
+                    } catch (Exception exc) {
+                        error[0] = exc;
+                    }
+                }
+            };
+            reader.start();
+            
+            // insert further records and create checkpoints concurrently
+            for (int i = 500; i < 1000; i++) {
+                db.singleInsert(0, ("key" + i).getBytes(), ("value" + i).getBytes(), null).get();
+                if (i % 100 == 0)
+                    database.getCheckpointer().checkpoint();
+            }
+            reader.join();
+            
+            if (error[0] != null)
+                throw error[0];
+            
+            for (int i = 0; i < 1000; i++)
+                assertEquals("value" + i, new String(db.lookup(0, ("key" + i).getBytes(), null).get()));
+            
+            database.shutdown();
+        }
+    }
+    
+    public void testMultiLookup() throws Exception {
+        
+        for (int readThreads : new int[] { -1, 2 }) {
+            
+            FSUtils.delTree(new File(baseDir));
+            database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMultiThreaded(1)
+                    .setReadThreads(readThreads).build());
+            
+            Database db = database.getDatabaseManager().createDatabase("test", 2);
+            for (int i = 0; i < 200; i++)
+                db.singleInsert(0, ("key" + i).getBytes(), ("value" + i).getBytes(), null).get();
+            
+            // move the records to an on-disk run and overwrite or delete some
+            // of them in the overlay
+            database.getCheckpointer().checkpoint();
+            DatabaseInsertGroup ig = db.createInsertGroup();
+            ig.addInsert(0, "key5".getBytes(), "newValue5".getBytes());
+            ig.addDelete(0, "key7".getBytes());
+            ig.addInsert(0, "key300".getBytes(), "value300".getBytes());
+            db.insert(ig, null).get();
+            
+            byte[][] keys = new byte[][] { "key9".getBytes(), "key5".getBytes(), "key7".getBytes(),
+                "key300".getBytes(), "nokey".getBytes(), "key10".getBytes(), "key9".getBytes() };
+            byte[][] values = db.multiLookup(0, keys, null).get();
+            
+            assertEquals(keys.length, values.length);
+            assertEquals("value9", new String(values[0]));
+            assertEquals("newValue5", new String(values[1]));
+            assertNull(values[2]);
+            assertEquals("value300", new String(values[3]));
+            assertNull(values[4]);
+            assertEquals("value10", new String(values[5]));
+            assertEquals("value9", new String(values[6]));
+            
+            // the results of a batch must match those of single lookups
+            keys = new byte[200][];
+            for (int i = 0; i < keys.length; i++)
+                keys[i] = ("key" + (keys.length - i)).getBytes();
+            values = db.multiLookup(0, keys, null).get();
+            for (int i = 0; i < keys.length; i++) {
+                byte[] value = db.lookup(0, keys[i], null).get();
+                if (value == null)
+                    assertNull(values[i]);
+                else
+                    assertEquals(new String(value), new String(values[i]));
+            }
+            
+            try {
+                db.multiLookup(2, keys, null).get();
+                fail();
+            } catch (BabuDBException exc) {
+                // expected
+            }
+            
+            database.shutdown();
+        }
+    }
+    
+    public void testEstimates() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMultiThreaded(0)
+                .build());
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        
+        assertEquals(0, db.estimateCount(0, null, null));
+        
+        // write 4000 records to disk, and add 1000 more that are evenly
+        // distributed across the key range to the overlay
+        for (int i = 0; i < 5000; i++)
+            if (i % 5 != 0)
+                db.singleInsert(0, String.format("key%05d", i).getBytes(), ("value" + i).getBytes(), null)
+                        .get();
+        database.getCheckpointer().checkpoint();
+        for (int i = 0; i < 5000; i += 5)
+            db.singleInsert(0, String.format("key%05d", i).getBytes(), ("value" + i).getBytes(), null).get();
+        
+        long count = db.estimateCount(0, null, null);
+        assertTrue(count >= 4500 && count <= 5500);
+        
+        // a quarter of the records
+        count = db.estimateCount(0, "key01000".getBytes(), "key02250".getBytes());
+        assertTrue(count >= 1000 && count <= 1500);
+        
+        assertEquals(0, db.estimateCount(0, "a".getBytes(), "b".getBytes()));
+        assertEquals(0, db.estimateCount(0, "key02000".getBytes(), "key01000".getBytes()));
+        
+        long size = db.estimateSize(0, null, null);
+        long partSize = db.estimateSize(0, "key01000".getBytes(), "key02250".getBytes());
+        assertTrue(size > 0 && partSize > size / 8 && partSize < size / 2);
+        
+        try {
+            db.estimateCount(1, null, null);
+            fail();
+        } catch (BabuDBException exc) {
+            // expected
+        }
+        
+        database.shutdown();
+    }
+    
+    public void testLimitedLookups() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMultiThreaded(0)
+                .build());
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        
+        for (int i = 1000; i < 1100; i += 2)
+            db.singleInsert(0, (i + "").getBytes(), ("v" + i).getBytes(), null).get();
+        database.getCheckpointer().checkpoint();
+        for (int i = 1001; i < 1100; i += 2)
+            db.singleInsert(0, (i + "").getBytes(), ("v" + i).getBytes(), null).get();
+        db.singleInsert(0, "1010".getBytes(), null, null).get();
+        
+        ResultSet<byte[], byte[]> it = db.rangeLookup(0, "1005".getBytes(), "1050".getBytes(), 8, false, null)
+                .get();
+        for (int i = 1005; i < 1014; i++) {
+            if (i == 1010)
+                continue;
+            Entry<byte[], byte[]> next = it.next();
+            assertEquals(i + "", new String(next.getKey()));
+            assertEquals("v" + i, new String(next.getValue()));
+        }
+        assertFalse(it.hasNext());
+        it.free();
+        
+        it = db.prefixLookup(0, "109".getBytes(), 0, true, null).get();
+        for (int i = 1090; i < 1100; i++) {
+            Entry<byte[], byte[]> next = it.next();
+            assertEquals(i + "", new String(next.getKey()));
+            assertNull(next.getValue());
+        }
+        assertFalse(it.hasNext());
+        it.free();
+        
+        it = db.prefixLookup(0, "10".getBytes(), 3, true, null).get();
+        assertEquals("1000", new String(it.next().getKey()));
+        assertEquals("1001", new String(it.next().getKey()));
+        assertEquals("1002", new String(it.next().getKey()));
+        assertFalse(it.hasNext());
+        it.free();
+        
+        database.shutdown();
+    }
+    
+    public void testCursors() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMultiThreaded(0)
+                .build());
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        
+        // write the even records to disk and the odd ones to the overlay, and
+        // delete every tenth record
+        for (int i = 0; i < 1000; i += 2)
+            db.singleInsert(0, String.format("key%05d", i).getBytes(), ("value" + i).getBytes(), null).get();
+        database.getCheckpointer().checkpoint();
+        for (int i = 1; i < 1000; i += 2)
+            db.singleInsert(0, String.format("key%05d", i).getBytes(), ("value" + i).getBytes(), null).get();
+        for (int i = 0; i < 1000; i += 10)
+            db.singleInsert(0, String.format("key%05d", i).getBytes(), null, null).get();
+        
+        Cursor cursor = db.openCursor(0);
+        
+        int count = 0;
+        for (boolean valid = cursor.seek(null); valid; valid = cursor.next())
+            count++;
+        assertEquals(900, count);
+        
+        assertTrue(cursor.seek("key00500".getBytes()));
+        assertEquals("key00501", toString(cursor.key()));
+        assertEquals("value501", toString(cursor.value()));
+        assertTrue(cursor.prev());
+        assertEquals("key00499", toString(cursor.key()));
+        assertTrue(cursor.seekForPrev("key00500".getBytes()));
+        assertEquals("key00499", toString(cursor.key()));
+        assertTrue(cursor.next());
+        assertEquals("key00501", toString(cursor.key()));
+        
+        assertFalse(cursor.seek("key01000".getBytes()));
+        assertFalse(cursor.seekForPrev("key00000".getBytes()));
+        cursor.free();
+        
+        try {
+            db.openCursor(1);
+            fail();
+        } catch (BabuDBException exc) {
+            // expected
+        }
+        
+        database.shutdown();
+    }
+    
+    public void testRangeDeletes() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMultiThreaded(0)
+                .build());
+        Database db = database.getDatabaseManager().createDatabase("test", 2);
+        
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = String.format("key%04d", i).getBytes();
+            db.singleInsert(i % 2, key, key, null).get();
+        }
+        
+        // write half of the records to disk
+        database.getCheckpointer().checkpoint();
+        for (int i = 1000; i < 2000; i++) {
+            byte[] key = String.format("key%04d", i).getBytes();
+            db.singleInsert(i % 2, key, key, null).get();
+        }
+        
+        // delete a range that spans the on-disk and in-memory records, and
+        // all keys with prefix "key19"
+        DatabaseInsertGroup ig = db.createInsertGroup();
+        ig.addRangeDelete(0, "key0500".getBytes(), "key1500".getBytes());
+        byte[][] rng = DefaultByteRangeComparator.getInstance().prefixToRange("key19".getBytes(), true);
+        ig.addRangeDelete(0, rng[0], rng[1]);
+        ig.addInsert(0, "key1000".getBytes(), "new".getBytes());
+        db.insert(ig, null).get();
+        
+        for (int k = 0; k < 3; k++) {
+            
+            assertRangeDeleted(db);
+            
+            // restart the database, which replays the range deletes from the
+            // log at first, and reads them from a checkpoint afterwards
+            database.shutdown();
+            database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir)
+                    .setMultiThreaded(0).build());
+            db = database.getDatabaseManager().getDatabase("test");
+            if (k == 1)
+                database.getCheckpointer().checkpoint();
+        }
+        
+        database.shutdown();
+    }
+    
+    public void testMergeOperators() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMultiThreaded(2)
+                .build());
+        final Database db = database.getDatabaseManager().createDatabase("test", 3, null,
+            new MergeOperator[] { new CounterMergeOperator(), new AppendMergeOperator(), null });
+        
+        // increment some counters concurrently
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 100; j++)
+                            db.singleMerge(0, ("counter" + j % 5).getBytes(), CounterMergeOperator.toBytes(1),
+                                null).get();
+                    } catch (BabuDBException exc) {
+                        fail(exc.toString());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        
+        DatabaseInsertGroup ig = db.createInsertGroup();
+        ig.addMerge(1, "list".getBytes(), "a".getBytes());
+        ig.addMerge(1, "list".getBytes(), "b".getBytes());
+        ig.addMerge(0, "counter0".getBytes(), CounterMergeOperator.toBytes(-10));
+        db.insert(ig, null).get();
+        db.singleMerge(1, "list".getBytes(), "c".getBytes(), null).get();
+        
+        // merges are not possible in indices without merge operator
+        try {
+            db.singleMerge(2, "x".getBytes(), "y".getBytes(), null).get();
+            fail();
+        } catch (BabuDBException exc) {
+            // expected
+        }
+        
+        for (int k = 0; k < 3; k++) {
+            
+            Database restarted = database.getDatabaseManager().getDatabase("test");
+            assertEquals(70, CounterMergeOperator.toLong(restarted.lookup(0, "counter0".getBytes(), null)
+                    .get()));
+            for (int i = 1; i < 5; i++)
+                assertEquals(80, CounterMergeOperator.toLong(restarted.lookup(0, ("counter" + i).getBytes(),
+                    null).get()));
+            assertEquals("abc", new String(restarted.lookup(1, "list".getBytes(), null).get()));
+            
+            // restart the database, which replays the merges from the log at
+            // first, and reads the merged values from a checkpoint afterwards
+            database.shutdown();
+            database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir)
+                    .setMultiThreaded(2).build());
+            if (k == 1)
+                database.getCheckpointer().checkpoint();
+        }
+        
+        // merge operators have to be retained across restarts
+        Database db2 = database.getDatabaseManager().getDatabase("test");
+        db2.singleMerge(1, "list".getBytes(), "d".getBytes(), null).get();
+        assertEquals("abcd", new String(db2.lookup(1, "list".getBytes(), null).get()));
+        
+        database.shutdown();
+    }
+    
+    public void testMergeReplayAfterFlush() throws Exception {
+        
+        // flush the 'test' database once its overlays exceed 64 KB, while the
+        // 'other' database remains in memory, so that the log is replayed
+        // from an LSN below the on-disk LSN of the 'test' database
+        Properties props = new ConfigBuilder().setDataPath(baseDir).setMaxOverlayMemory("test", 64 * 1024)
+                .build().getProps();
+        props.setProperty("babudb.checkInterval", "1");
+        database = BabuDBFactory.createBabuDB(new BabuDBConfig(props));
+        
+        Database db = database.getDatabaseManager().createDatabase("test", 1, null,
+            new MergeOperator[] { new CounterMergeOperator() });
+        Database other = database.getDatabaseManager().createDatabase("other", 1);
+        other.singleInsert(0, "key".getBytes(), "value".getBytes(), null).get();
+        for (int i = 0; i < 1000; i++) {
+            db.singleMerge(0, ("counter" + i).getBytes(), CounterMergeOperator.toBytes(1), null).get();
+            db.singleMerge(0, "total".getBytes(), CounterMergeOperator.toBytes(1), null).get();
+        }
+        
+        // wait for the 'test' database to be flushed
+        for (int i = 0; i < 50 && (Integer) database.getRuntimeState("checkpointer.flushCount") == 0; i++)
+            Thread.sleep(100);
+        assertTrue((Integer) database.getRuntimeState("checkpointer.flushCount") > 0);
+        db.singleMerge(0, "total".getBytes(), CounterMergeOperator.toBytes(1), null).get();
+        
+        // merges that have been flushed must not be applied again when the
+        // log is replayed
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(new BabuDBConfig(props));
+        db = database.getDatabaseManager().getDatabase("test");
+        assertEquals(1001, CounterMergeOperator.toLong(db.lookup(0, "total".getBytes(), null).get()));
+        for (int i = 0; i < 1000; i++)
+            assertEquals(1, CounterMergeOperator.toLong(db.lookup(0, ("counter" + i).getBytes(), null)
+                    .get()));
+        other = database.getDatabaseManager().getDatabase("other");
+        assertEquals("value", new String(other.lookup(0, "key".getBytes(), null).get()));
+        
+        database.shutdown();
+    }
+    
+    public void testExpiry() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMaxRunsPerIndex(1)
+                .build());
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        
+        ManualClock clock = new ManualClock(1000000);
+        LSMTree.setClock(clock);
+        
+        long expiryTime = clock.time + 3000;
+        DatabaseInsertGroup ig = db.createInsertGroup();
+        for (int i = 0; i < 30; i++)
+            ig.addInsert(0, ("key" + i).getBytes(), ("val" + i).getBytes(), i % 3 == 0 ? 0
+                : i % 3 == 1 ? expiryTime : clock.time - 1);
+        db.insert(ig, null).get();
+        
+        // entries that have expired already are hidden immediately, also after
+        // the inserts have been replayed from the log or read from a checkpoint
+        for (int k = 0; k < 3; k++) {
+            
+            db = database.getDatabaseManager().getDatabase("test");
+            for (int i = 0; i < 30; i++)
+                assertEquals(i % 3 != 2, db.lookup(0, ("key" + i).getBytes(), null).get() != null);
+            
+            database.shutdown();
+            database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir)
+                    .setMaxRunsPerIndex(1).build());
+            if (k == 1)
+                database.getCheckpointer().checkpoint();
+        }
+        
+        // all other entries with an expiry time expire later on
+        clock.time = expiryTime;
+        
+        db = database.getDatabaseManager().getDatabase("test");
+        for (int i = 0; i < 30; i++)
+            assertEquals(i % 3 == 0, db.lookup(0, ("key" + i).getBytes(), null).get() != null);
+        
+        int count = 0;
+        ResultSet<byte[], byte[]> it = db.prefixLookup(0, new byte[0], null).get();
+        while (it.hasNext()) {
+            assertEquals(0, Integer.parseInt(new String(it.next().getKey()).substring(3)) % 3);
+            count++;
+        }
+        it.free();
+        assertEquals(10, count);
+        
+        // the expired entries are dropped with the next checkpoint
+        db.singleInsert(0, "key0".getBytes(), "new".getBytes(), null).get();
+        database.getCheckpointer().checkpoint();
+        assertEquals(10, ((Map<?, ?>) database.getRuntimeState("checkpointer.lastIndexCpExpiredEntries"))
+                .get("test:0"));
+        
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setMaxRunsPerIndex(1)
+                .build());
+        db = database.getDatabaseManager().getDatabase("test");
+        for (int i = 0; i < 30; i++)
+            assertEquals(i % 3 == 0, db.lookup(0, ("key" + i).getBytes(), null).get() != null);
+        
+        database.shutdown();
+    }
+    
+    private void assertRangeDeleted(Database db) throws Exception {
+        
+        for (int i = 0; i < 2000; i += 2) {
+            byte[] key = String.format("key%04d", i).getBytes();
+            byte[] value = db.lookup(0, key, null).get();
+            if (i == 1000)
+                assertEquals("new", new String(value));
+            else if ((i >= 500 && i < 1500) || i >= 1900)
+                assertNull(value);
+            else
+                assertEquals(new String(key), new String(value));
+            
+            // other indices must not be affected
+            key = String.format("key%04d", i + 1).getBytes();
+            assertEquals(new String(key), new String(db.lookup(1, key, null).get()));
+        }
+        
+        int count = 0;
+        ResultSet<byte[], byte[]> it = db.prefixLookup(0, new byte[0], null).get();
+        while (it.hasNext()) {
+            String key = new String(it.next().getKey());
+            int i = Integer.parseInt(key.substring(3));
+            assertTrue(i == 1000 || i < 500 || (i >= 1500 && i < 1900));
+            count++;
+        }
+        it.free();
+        assertEquals(250 + 1 + 200, count);
+        
+        it = db.prefixLookup(0, "key19".getBytes(), null).get();
+        assertFalse(it.hasNext());
+        it.free();
+    }
+    
+    public void testBlockCodecs() throws Exception {
+        
+        // runs written with different codecs have to be readable regardless
+        // of the codec currently configured
+        String[] codecs = { "lz4", "deflate", "none" };
+        for (int k = 0; k < codecs.length; k++) {
+            
+            database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir)
+                    .setMaxRunsPerIndex(3).setBlockCodec(codecs[k]).build());
+            Database db = k == 0 ? database.getDatabaseManager().createDatabase("test", 1) : database
+                    .getDatabaseManager().getDatabase("test");
+            
+            DatabaseInsertGroup ig = db.createInsertGroup();
+            for (int i = 0; i < 1000; i++)
+                ig.addInsert(0, ("key" + k + "-" + i).getBytes(), ("value-" + (i % 10)).getBytes());
+            db.insert(ig, null).get();
+            database.getCheckpointer().checkpoint();
+            
+            for (int j = 0; j <= k; j++)
+                for (int i = 0; i < 1000; i++) {
+                    byte[] value = db.lookup(0, ("key" + j + "-" + i).getBytes(), null).get();
+                    assertEquals("value-" + (i % 10), new String(value));
+                }
+            
+            database.shutdown();
+        }
+        
+        try {
+            new ConfigBuilder().setDataPath(baseDir).setBlockCodec("zip").build();
+            fail();
+        } catch (IllegalArgumentException exc) {
+            // expected
+        }
+    }
+    
+    public void testCheckpointAtSameLSN() throws Exception {
+        
+        database = BabuDBFactory.createBabuDB(new ConfigBuilder().setDataPath(baseDir).setLogAppendSyncMode(
+            SyncMode.SYNC_WRITE).build());
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        db.singleInsert(0, "key1".getBytes(), "value1".getBytes(), null).get();
+        database.getCheckpointer().checkpoint();
+        
+        // insert an entry in memory w/o logging it, as it happens when a
+        // checkpoint is taken while the log entry of an insert is pending;
+        // as nothing has been logged since the last checkpoint, the next
+        // checkpoint has the same LSN and must not discard the entry
+        LSMDatabase lsmDB = ((DatabaseInternal) db).getLSMDB();
+        LSN lsn = lsmDB.getOndiskLSN();
+        lsmDB.getIndex(0).insert("key2".getBytes(), "value2".getBytes());
+        database.getCheckpointer().checkpoint();
+        assertEquals(lsn, lsmDB.getOndiskLSN());
+        
+        assertEquals("value1", new String(db.lookup(0, "key1".getBytes(), null).get()));
+        assertEquals("value2", new String(db.lookup(0, "key2".getBytes(), null).get()));
+        
+        database.shutdown();
+    }
+    
+    public void testPrefixCodedBlocks() throws Exception {
+        
+        // only the blocks of the second database are prefix-coded at first;
+        // after a restart, those of both databases are
+        for (int k = 0; k < 2; k++) {
+            
+            ConfigBuilder builder = new ConfigBuilder().setDataPath(baseDir).setMaxRunsPerIndex(3)
+                    .setKeyRestartInterval("test2", 4);
+            if (k == 1)
+                builder.setKeyRestartInterval(8);
+            BabuDBConfig cfg = builder.build();
+            assertEquals(k * 8, cfg.getKeyRestartInterval("test1"));
+            assertEquals(4, cfg.getKeyRestartInterval("test2"));
+            database = BabuDBFactory.createBabuDB(cfg);
+            
+            for (String dbName : new String[] { "test1", "test2" }) {
+                
+                Database db = k == 0 ? database.getDatabaseManager().createDatabase(dbName, 1) : database
+                        .getDatabaseManager().getDatabase(dbName);
+                
+                DatabaseInsertGroup ig = db.createInsertGroup();
+                for (int i = 0; i < 1000; i++)
+                    ig.addInsert(0, ("tenant" + k + "/user" + (i % 10) + "/object" + i).getBytes(),
+                        ("value" + i).getBytes());
+                db.insert(ig, null).get();
+            }
+            database.getCheckpointer().checkpoint();
+            
+            for (String dbName : new String[] { "test1", "test2" }) {
+                
+                Database db = database.getDatabaseManager().getDatabase(dbName);
+                for (int j = 0; j <= k; j++) {
+                    
+                    for (int i = 0; i < 1000; i++) {
+                        byte[] value = db.lookup(0, ("tenant" + j + "/user" + (i % 10) + "/object" + i)
+                                .getBytes(), null).get();
+                        assertEquals("value" + i, new String(value));
+                    }
+                    
+                    int count = 0;
+                    ResultSet<byte[], byte[]> it = db.prefixLookup(0, ("tenant" + j + "/user3/").getBytes(),
+                        null).get();
+                    while (it.hasNext()) {
+                        assertTrue(new String(it.next().getKey()).startsWith("tenant" + j + "/user3/"));
+                        count++;
+                    }
+                    it.free();
+                    assertEquals(100, count);
+                }
+            }
+            
+            database.shutdown();
+        }
+    }
+    
+    @Test
+    public void testIngestSorted() throws Exception {
+        
+        BabuDBConfig cfg = new ConfigBuilder().setDataPath(baseDir).setMaxRunsPerIndex(3).build();
+        database = BabuDBFactory.createBabuDB(cfg);
+        
+        ManualClock clock = new ManualClock(1000000);
+        LSMTree.setClock(clock);
+        
+        Database db = database.getDatabaseManager().createDatabase("test", 2);
+        DatabaseInsertGroup ig = db.createInsertGroup();
+        for (int i = 0; i < 1000; i += 2)
+            ig.addInsert(0, key(i), "old".getBytes());
+        long expiryTime = clock.time + 1000;
+        ig.addInsert(0, key(1), "expiring".getBytes(), expiryTime);
+        ig.addInsert(1, key(0), "other".getBytes());
+        db.insert(ig, null).get();
+        
+        // ingested entries replace older ones, including expiring ones
+        database.getDatabaseManager().ingestSorted("test", 0, entries(0, 1000, "new"));
+        clock.time = expiryTime;
+        assertIngested(db, 0, 1000, "new");
+        assertEquals("other", new String(db.lookup(1, key(0), null).get()));
+        
+        // newer entries replace ingested ones, also after a restart
+        ig = db.createInsertGroup();
+        ig.addInsert(0, key(5), "newer".getBytes());
+        ig.addDelete(0, key(6));
+        db.insert(ig, null).get();
+        
+        for (int k = 0; k < 2; k++) {
+            
+            database.shutdown();
+            database = BabuDBFactory.createBabuDB(cfg);
+            db = database.getDatabaseManager().getDatabase("test");
+            
+            assertEquals("newer", new String(db.lookup(0, key(5), null).get()));
+            assertNull(db.lookup(0, key(6), null).get());
+            assertEquals("new1", new String(db.lookup(0, key(1), null).get()));
+            assertEquals("new7", new String(db.lookup(0, key(7), null).get()));
+            assertEquals("new998", new String(db.lookup(0, key(998), null).get()));
+            assertEquals("other", new String(db.lookup(1, key(0), null).get()));
+            
+            database.getCheckpointer().checkpoint();
+        }
+        
+        // ingest further entries into an index that has been checkpointed;
+        // the run is linked via a new checkpoint
+        LSN lsn = ((DatabaseInternal) db).getLSMDB().getOndiskLSN();
+        database.getDatabaseManager().ingestSorted("test", 0, entries(1000, 2000, "new"));
+        assertTrue(((DatabaseInternal) db).getLSMDB().getOndiskLSN().compareTo(lsn) > 0);
+        assertIngested(db, 1000, 2000, "new");
+        assertEquals("newer", new String(db.lookup(0, key(5), null).get()));
+        
+        // unsorted entries and unknown indices are rejected
+        Map<byte[], byte[]> unsorted = new LinkedHashMap<byte[], byte[]>();
+        unsorted.put(key(3000), "x".getBytes());
+        unsorted.put(key(2999), "y".getBytes());
+        try {
+            database.getDatabaseManager().ingestSorted("test", 0, unsorted.entrySet().iterator());
+            fail("unsorted entries were ingested");
+        } catch (BabuDBException exc) {
+            // ok
+        }
+        try {
+            database.getDatabaseManager().ingestSorted("test", 2, entries(0, 10, "new"));
+            fail("entries were ingested into a non-existing index");
+        } catch (BabuDBException exc) {
+            assertEquals(ErrorCode.NO_SUCH_INDEX, exc.getErrorCode());
+        }
+        assertNull(db.lookup(0, key(3000), null).get());
+        
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(cfg);
+        db = database.getDatabaseManager().getDatabase("test");
+        assertIngested(db, 1000, 2000, "new");
+        assertNull(db.lookup(0, key(3000), null).get());
+        
+        database.shutdown();
+    }
+    
+    @Test
+    public void testFormatUpgrade() throws Exception {
+        
+        BabuDBConfig cfg = new ConfigBuilder().setDataPath(baseDir).build();
+        database = BabuDBFactory.createBabuDB(cfg);
+        Database db = database.getDatabaseManager().createDatabase("test", 1);
+        db.singleInsert(0, "Yagga".getBytes(), "Brabbel".getBytes(), null).get();
+        database.getCheckpointer().checkpoint();
+        database.shutdown();
+        
+        // turn the database into a database of the previous format version;
+        // the version is the first value in the block data of the config file
+        File cfgFile = new File(cfg.getBaseDir(), cfg.getDbCfgFile());
+        RandomAccessFile raf = new RandomAccessFile(cfgFile, "rw");
+        try {
+            raf.seek(6);
+            assertEquals(BabuDBFactory.BABUDB_DB_FORMAT_VERSION, raf.readInt());
+            raf.seek(6);
+            raf.writeInt(AutoConverter.OLDEST_READABLE_FORMAT_VERSION);
+        } finally {
+            raf.close();
+        }
+        
+        // the database is upgraded in place, and the previous config file is
+        // retained
+        database = BabuDBFactory.createBabuDB(cfg);
+        db = database.getDatabaseManager().getDatabase("test");
+        assertEquals("Brabbel", new String(db.lookup(0, "Yagga".getBytes(), null).get()));
+        db.singleInsert(0, "Brabbel".getBytes(), "Blupp".getBytes(), null).get();
+        database.getCheckpointer().checkpoint();
+        database.shutdown();
+        
+        assertTrue(new File(cfg.getBaseDir(), ".backup-" + AutoConverter.OLDEST_READABLE_FORMAT_VERSION + "/"
+            + cfgFile.getName()).exists());
+        raf = new RandomAccessFile(cfgFile, "r");
+        try {
+            raf.seek(6);
+            assertEquals(BabuDBFactory.BABUDB_DB_FORMAT_VERSION, raf.readInt());
+        } finally {
+            raf.close();
+        }
+        
+        database = BabuDBFactory.createBabuDB(cfg);
+        db = database.getDatabaseManager().getDatabase("test");
+        assertEquals("Brabbel", new String(db.lookup(0, "Yagga".getBytes(), null).get()));
+        assertEquals("Blupp", new String(db.lookup(0, "Brabbel".getBytes(), null).get()));
+        database.shutdown();
+    }
+    
+    public void testComparatorConversion() throws Exception {
+        
+        BabuDBConfig cfg = new ConfigBuilder().setDataPath(baseDir).setMultiThreaded(0).build();
+        database = BabuDBFactory.createBabuDB(cfg);
+        DatabaseManager dbMan = database.getDatabaseManager();
+        Database db = dbMan.createDatabase("test", 2);
+        
+        // keys w/ a first byte above 0x7f are ordered differently by the
+        // signed and the unsigned comparator; some of the entries are
+        // written to disk, and some are deleted
+        for (int i = 0; i < 256; i++) {
+            byte[] key = { (byte) i, 'k' };
+            db.singleInsert(0, key, ("v" + i).getBytes(), null).get();
+            db.singleInsert(1, key, ("w" + i).getBytes(), null).get();
+        }
+        database.getCheckpointer().checkpoint();
+        for (int i = 0; i < 256; i += 3)
+            db.singleInsert(0, new byte[] { (byte) i, 'k' }, null, null).get();
+        
+        Database converted = ComparatorConverter.convert(dbMan, "test", "unsigned",
+            new ByteRangeComparator[] { UnsignedByteRangeComparator.getInstance(), null });
+        
+        // the first index is ordered by unsigned bytes, the second one
+        // retains the signed order
+        ResultSet<byte[], byte[]> it = converted.prefixLookup(0, null, null).get();
+        for (int i = 0; i < 256; i++) {
+            if (i % 3 == 0)
+                continue;
+            Entry<byte[], byte[]> next = it.next();
+            assertEquals((byte) i, next.getKey()[0]);
+            assertEquals("v" + i, new String(next.getValue()));
+        }
+        assertFalse(it.hasNext());
+        it.free();
+        
+        assertSameEntries(db.prefixLookup(1, null, null).get(), converted.prefixLookup(1, null, null).get());
+        
+        // the source database remains unchanged, and existing databases are
+        // not overwritten
+        assertNull(db.lookup(0, new byte[] { 0, 'k' }, null).get());
+        assertEquals("v1", new String(db.lookup(0, new byte[] { 1, 'k' }, null).get()));
+        try {
+            ComparatorConverter.convert(dbMan, "test", "unsigned", new ByteRangeComparator[2]);
+            fail();
+        } catch (BabuDBException exc) {
+            assertEquals(ErrorCode.DB_EXISTS, exc.getErrorCode());
+        }
+        try {
+            ComparatorConverter.convert(dbMan, "test", "other", new ByteRangeComparator[1]);
+            fail();
+        } catch (BabuDBException exc) {
+            // expected
+        }
+        
+        // the comparators of the new database are retained across restarts
+        database.getCheckpointer().checkpoint();
+        database.shutdown();
+        database = BabuDBFactory.createBabuDB(cfg);
+        converted = database.getDatabaseManager().getDatabase("unsigned");
+        assertTrue(converted.getComparators()[0] instanceof UnsignedByteRangeComparator);
+        it = converted.prefixLookup(0, new byte[] { (byte) 0xfe }, null).get();
+        assertEquals("v254", new String(it.next().getValue()));
+        assertFalse(it.hasNext());
+        it.free();
+        database.shutdown();
+    }
+    
+    private static void assertSameEntries(Iterator<Entry<byte[], byte[]>> expected,
+        Iterator<Entry<byte[], byte[]>> it) {
+        
+        while (expected.hasNext()) {
+            Entry<byte[], byte[]> next = it.next();
+            Entry<byte[], byte[]> exp = expected.next();
+            assertTrue(Arrays.equals(exp.getKey(), next.getKey()));
+            assertTrue(Arrays.equals(exp.getValue(), next.getValue()));
+        }
+        assertFalse(it.hasNext());
+    }
+    
+    private static byte[] key(int i) {
+        return String.format("key%05d", i).getBytes();
+    }
+    
+    private static Iterator<Entry<byte[], byte[]>> entries(int from, int to, String prefix) {
+        
+        Map<byte[], byte[]> entries = new LinkedHashMap<byte[], byte[]>();
+        for (int i = from; i < to; i++)
+            entries.put(key(i), (prefix + i).getBytes());
+        
+        return entries.entrySet().iterator();
+    }
+    
+    private static void assertIngested(Database db, int from, int to, String prefix) throws Exception {
+        
+        int count = 0;
+        ResultSet<byte[], byte[]> it = db.rangeLookup(0, key(from), key(to), null).get();
+        while (it.hasNext()) {
+            Entry<byte[], byte[]> next = it.next();
+            assertEquals(new String(key(from + count)), new String(next.getKey()));
+            assertEquals(prefix + (from + count), new String(next.getValue()));
+            count++;
+        }
+        it.free();
+        assertEquals(to - from, count);
+    }
+    
+    private static String toString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.duplicate().get(bytes);
+        return new String(bytes);
+    }
+    
     public static void main(String[] args) {
         TestRunner.run(BabuDBTest.class);
     }
     
+    /**
+     * A clock that only advances when its time is set.
+     */
+    private static class ManualClock implements Clock {
+        
+        private volatile long time;
+        
+        public ManualClock(long time) {
+            this.time = time;
+        }
+        
+        public long currentTimeMillis() {
+            return time;
+        }
+    }
+    
 }
\ No newline at end of file
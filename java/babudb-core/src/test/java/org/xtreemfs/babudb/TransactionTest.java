@@ -32,6 +32,8 @@ import org.xtreemfs.babudb.config.BabuDBConfig;
 import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
 import org.xtreemfs.babudb.log.DiskLogger.SyncMode;
 import org.xtreemfs.babudb.lsmdb.BabuDBTransaction;
+import org.xtreemfs.babudb.lsmdb.InsertRecordGroup;
+import org.xtreemfs.babudb.lsmdb.InsertRecordGroup.InsertRecord;
 import org.xtreemfs.babudb.lsmdb.LSMDatabase;
 import org.xtreemfs.foundation.buffer.BufferPool;
 import org.xtreemfs.foundation.buffer.ReusableBuffer;
@@ -186,6 +188,72 @@ public class TransactionTest extends TestCase {
         }
     }
     
+    @Test
+    public void testExtendedGroupSerialization() throws Exception {
+        
+        BabuDBTransaction txn = new BabuDBTransaction();
+        txn.insertRecord("db1", 0, "hello".getBytes(), "world".getBytes());
+        txn.deleteRecord("db1", 0, "blub".getBytes());
+        txn.deleteRange("db1", 0, "a".getBytes(), "c".getBytes());
+        txn.deleteRange("db1", 1, "x".getBytes(), null);
+        InsertRecordGroup irg = new InsertRecordGroup();
+        irg.addMerge(0, "counter".getBytes(), new byte[0]);
+        txn.insertRecordGroup("db1", irg);
+        irg = new InsertRecordGroup();
+        irg.addInsert(0, "temp".getBytes(), "value".getBytes(), 4711);
+        txn.insertRecordGroup("db1", irg);
+        
+        // only groups with records unknown to older versions have to be
+        // serialized in the extended format
+        assertFalse(((InsertRecordGroup) txn.getOperations().get(0).getParams()[0]).isExtended());
+        assertFalse(((InsertRecordGroup) txn.getOperations().get(1).getParams()[0]).isExtended());
+        assertTrue(((InsertRecordGroup) txn.getOperations().get(2).getParams()[0]).isExtended());
+        assertTrue(((InsertRecordGroup) txn.getOperations().get(3).getParams()[0]).isExtended());
+        assertTrue(((InsertRecordGroup) txn.getOperations().get(4).getParams()[0]).isExtended());
+        assertTrue(((InsertRecordGroup) txn.getOperations().get(5).getParams()[0]).isExtended());
+        
+        int size = txn.getSize();
+        ReusableBuffer buf = BufferPool.allocate(size);
+        txn.serialize(buf);
+        assertEquals(size, buf.position());
+        buf.position(0);
+        TransactionInternal txn2 = TransactionInternal.deserialize(buf);
+        assertEquals(size, buf.position());
+        BufferPool.free(buf);
+        
+        InsertRecord ir = getRecord(txn2, 0);
+        assertFalse(ir.isRangeDelete());
+        assertEquals("hello", new String(ir.getKey()));
+        assertEquals("world", new String(ir.getValue()));
+        
+        ir = getRecord(txn2, 1);
+        assertFalse(ir.isRangeDelete());
+        assertEquals("blub", new String(ir.getKey()));
+        assertNull(ir.getValue());
+        
+        ir = getRecord(txn2, 2);
+        assertTrue(ir.isRangeDelete());
+        assertEquals("a", new String(ir.getKey()));
+        assertEquals("c", new String(ir.getRangeEnd()));
+        
+        ir = getRecord(txn2, 3);
+        assertTrue(ir.isRangeDelete());
+        assertEquals(1, ir.getIndexId());
+        assertEquals("x", new String(ir.getKey()));
+        assertNull(ir.getRangeEnd());
+        
+        ir = getRecord(txn2, 4);
+        assertTrue(ir.isMerge());
+        assertEquals("counter", new String(ir.getKey()));
+        assertEquals(0, ir.getValue().length);
+        
+        ir = getRecord(txn2, 5);
+        assertFalse(ir.isMerge());
+        assertEquals("temp", new String(ir.getKey()));
+        assertEquals("value", new String(ir.getValue()));
+        assertEquals(4711, ir.getExpiryTime());
+    }
+    
     @Test
     public void testTransactionExecution() throws Exception {
         
@@ -468,6 +536,12 @@ public class TransactionTest extends TestCase {
         return df.format(num);
     }
     
+    private static InsertRecord getRecord(TransactionInternal txn, int op) {
+        InsertRecordGroup irg = (InsertRecordGroup) txn.getOperations().get(op).getParams()[0];
+        assertEquals(1, irg.getInserts().size());
+        return irg.getInserts().get(0);
+    }
+    
     public static void main(String[] args) {
         TestRunner.run(TransactionTest.class);
     }
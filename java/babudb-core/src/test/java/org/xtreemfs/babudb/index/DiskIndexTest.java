@@ -10,6 +10,9 @@ package org.xtreemfs.babudb.index;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
@@ -22,7 +25,11 @@ import junit.textui.TestRunner;
 
 import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.index.reader.BlockCache;
+import org.xtreemfs.babudb.index.reader.BlockReader;
+import org.xtreemfs.babudb.index.reader.DefaultBlockReader;
 import org.xtreemfs.babudb.index.reader.DiskIndex;
+import org.xtreemfs.babudb.index.reader.MappedBlockFile;
 import org.xtreemfs.babudb.index.writer.DiskIndexWriter;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.util.FSUtils;
@@ -136,6 +143,92 @@ public class DiskIndexTest extends TestCase {
         diskIndex.destroy();
     }
     
+    public void testLookupWithoutInPlaceComparator() throws Exception {
+        
+        // a comparator that can only compare byte ranges, so that blocks
+        // cannot be searched in place
+        ByteRangeComparator comp = new ByteRangeComparator() {
+            
+            public int compare(byte[] o1, byte[] o2) {
+                return COMP.compare(o1, o2);
+            }
+            
+            public int compare(ByteRange rng, byte[] buf) {
+                return COMP.compare(rng, buf);
+            }
+            
+            public byte[][] prefixToRange(byte[] prefix, boolean ascending) {
+                return COMP.prefixToRange(prefix, ascending);
+            }
+        };
+        
+        byte[][] entries = createRandomByteArrays(NUM_ENTRIES / 10);
+        populateDiskIndex(entries);
+        DiskIndex diskIndex = new DiskIndex(PATH2, comp, COMPRESSED, MMAPED);
+        
+        for (byte[] entry : entries)
+            assertEquals(0, COMP.compare(entry, diskIndex.lookup(entry)));
+        assertNull(diskIndex.lookup(new byte[0]));
+        diskIndex.destroy();
+    }
+    
+    public void testUnsignedComparator() throws Exception {
+        
+        UnsignedByteRangeComparator comp = UnsignedByteRangeComparator.getInstance();
+        
+        // compare random keys w/ common prefixes to a byte-wise comparison
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            
+            byte[] key1 = new byte[rnd.nextInt(20)];
+            byte[] key2 = new byte[rnd.nextInt(20)];
+            rnd.nextBytes(key1);
+            rnd.nextBytes(key2);
+            System.arraycopy(key1, 0, key2, 0, Math.min(rnd.nextInt(20), Math.min(key1.length, key2.length)));
+            
+            int expected = 0;
+            for (int j = 0; j < Math.min(key1.length, key2.length) && expected == 0; j++)
+                expected = (key1[j] & 0xFF) - (key2[j] & 0xFF);
+            if (expected == 0)
+                expected = key1.length - key2.length;
+            
+            ByteBuffer buf = ByteBuffer.allocate(key1.length + 2);
+            buf.position(1);
+            buf.put(key1);
+            
+            assertEquals(Integer.signum(expected), Integer.signum(comp.compare(key1, key2)));
+            assertEquals(Integer.signum(expected), Integer.signum(comp.compare(new ByteRange(buf, 1,
+                key1.length + 1), key2)));
+        }
+        
+        // create an index with the unsigned comparator and look up each key
+        SortedMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+            byte[] key = new byte[rnd.nextInt(20) + 1];
+            rnd.nextBytes(key);
+            map.put(key, key);
+        }
+        
+        FSUtils.delTree(new File(PATH1));
+        DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED, MAX_BLOCK_FILE_SIZE);
+        index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+        
+        DiskIndex diskIndex = new DiskIndex(PATH1, comp, COMPRESSED, MMAPED);
+        for (byte[] key : map.keySet())
+            assertEquals(0, comp.compare(key, diskIndex.lookup(key)));
+        
+        // check the order of all keys w/ the first byte 0x7F or 0x80
+        Iterator<Entry<byte[], byte[]>> it = diskIndex.rangeLookup(new byte[] { 0x7F },
+            new byte[] { (byte) 0x81 }, true);
+        byte[] last = null;
+        while (it.hasNext()) {
+            byte[] key = it.next().getKey();
+            assertTrue(key[0] == 0x7F || key[0] == (byte) 0x80);
+            assertTrue(last == null || comp.compare(last, key) < 0);
+            last = key;
+        }
+        diskIndex.destroy();
+    }
+    
     public void testCompleteLookup() throws Exception {
         
         // initialize a map w/ random strings
@@ -173,6 +266,677 @@ public class DiskIndexTest extends TestCase {
         diskIndex.destroy();
     }
     
+    public void testBloomFilterLookup() throws Exception {
+        
+        for (boolean compressed : new boolean[] { false, true }) {
+            
+            // initialize a map w/ random fixed-length keys, so that no key is
+            // a prefix of another one
+            SortedMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+            for (int i = 0; i < NUM_ENTRIES / 10; i++)
+                map.put(Long.toString(1000000000L + rnd.nextInt(1000000000)).getBytes(), createRandomString(
+                    1, 15).getBytes());
+            
+            // write the map to a disk index w/ Bloom filters
+            FSUtils.delTree(new File(PATH1));
+            DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, compressed,
+                MAX_BLOCK_FILE_SIZE, 10);
+            index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+            
+            DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), compressed,
+                MMAPED);
+            
+            // look up each element; no element must be ruled out
+            for (Entry<byte[], byte[]> entry : map.entrySet())
+                assertEquals(0, COMP.compare(entry.getValue(), diskIndex.lookup(entry.getKey())));
+            
+            // look up absent keys; most of them should be ruled out by the
+            // Bloom filters
+            long hits = DiskIndex.getBloomFilterHits();
+            int numAbsent = 0;
+            for (byte[] key : map.keySet()) {
+                byte[] absentKey = new byte[key.length + 1];
+                System.arraycopy(key, 0, absentKey, 0, key.length);
+                if (map.containsKey(absentKey))
+                    continue;
+                assertNull(diskIndex.lookup(absentKey));
+                numAbsent++;
+            }
+            assertTrue(DiskIndex.getBloomFilterHits() - hits > numAbsent / 2);
+            
+            diskIndex.destroy();
+        }
+    }
+    
+    public void testMultiLookup() throws Exception {
+        
+        // initialize a map w/ random strings
+        SortedMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES / 10; i++)
+            map.put(createRandomString(1, 15).getBytes(), createRandomString(1, 15).getBytes());
+        
+        // write the map to a disk index
+        FSUtils.delTree(new File(PATH1));
+        DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED, MAX_BLOCK_FILE_SIZE);
+        index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+        
+        DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), COMPRESSED,
+            MMAPED);
+        
+        // look up all keys at once, in ascending order
+        byte[][] keys = map.keySet().toArray(new byte[map.size()][]);
+        byte[][] values = diskIndex.lookup(keys);
+        assertEquals(keys.length, values.length);
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(0, COMP.compare(map.get(keys[i]), values[i]));
+        
+        // look up a sorted mix of present and absent keys
+        SortedMap<byte[], byte[]> mixed = new TreeMap<byte[], byte[]>(COMP);
+        for (byte[] key : map.keySet()) {
+            byte[] absentKey = new byte[key.length + 1];
+            System.arraycopy(key, 0, absentKey, 0, key.length);
+            mixed.put(key, map.get(key));
+            if (!map.containsKey(absentKey))
+                mixed.put(absentKey, null);
+        }
+        mixed.put(new byte[0], null);
+        
+        keys = mixed.keySet().toArray(new byte[mixed.size()][]);
+        values = diskIndex.lookup(keys);
+        for (int i = 0; i < keys.length; i++) {
+            byte[] expected = mixed.get(keys[i]);
+            if (expected == null)
+                assertNull(values[i]);
+            else
+                assertEquals(0, COMP.compare(expected, values[i]));
+            assertEquals(values[i] == null, diskIndex.lookup(keys[i]) == null);
+        }
+        
+        diskIndex.destroy();
+    }
+    
+    public void testBlockCache() throws Exception {
+        
+        BlockCache cache = BlockCache.getInstance();
+        cache.configure(1024 * 1024, false);
+        
+        try {
+            
+            // initialize a map w/ random strings
+            SortedMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+            for (int i = 0; i < NUM_ENTRIES / 10; i++)
+                map.put(createRandomString(1, 15).getBytes(), createRandomString(1, 15).getBytes());
+            
+            // write the map to a disk index
+            FSUtils.delTree(new File(PATH1));
+            DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED,
+                MAX_BLOCK_FILE_SIZE);
+            index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+            
+            DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), COMPRESSED,
+                false);
+            
+            // look up each element twice; the second lookup has to be served
+            // from the cache
+            for (int i = 0; i < 2; i++) {
+                long hits = cache.getHits();
+                for (Entry<byte[], byte[]> entry : map.entrySet())
+                    assertEquals(0, COMP.compare(entry.getValue(), diskIndex.lookup(entry.getKey())));
+                if (i == 1)
+                    assertEquals(map.size(), cache.getHits() - hits);
+            }
+            
+            // iterate over all elements, which are now cached
+            Iterator<Entry<byte[], byte[]>> it = diskIndex.rangeLookup(null, null, true);
+            for (Entry<byte[], byte[]> entry : map.entrySet()) {
+                Entry<byte[], byte[]> next = it.next();
+                assertEquals(0, COMP.compare(entry.getKey(), next.getKey()));
+                assertEquals(0, COMP.compare(entry.getValue(), next.getValue()));
+            }
+            assertFalse(it.hasNext());
+            
+            // destroying the index has to remove all of its blocks
+            assertTrue(cache.getSize() > 0);
+            diskIndex.destroy();
+            assertEquals(0, cache.getSize());
+        
+        } finally {
+            cache.configure(0, false);
+        }
+        
+        // a block that has been hit twice must survive a scan; each stripe
+        // of the cache has a capacity of 1000 bytes
+        cache.configure(BlockCache.NUM_STRIPES * 1000, false);
+        try {
+            Object file = new Object();
+            cache.put(file, 0, ByteBuffer.allocate(100));
+            assertNotNull(cache.get(file, 0));
+            for (int i = 1; i <= 100 * BlockCache.NUM_STRIPES; i++)
+                cache.put(file, i * 100, ByteBuffer.allocate(100));
+            assertNotNull(cache.get(file, 0));
+            assertNull(cache.get(file, 100));
+            assertTrue(cache.getSize() <= BlockCache.NUM_STRIPES * 1000);
+            
+            // invalidating a file must only remove its own blocks
+            Object other = new Object();
+            cache.put(other, 0, ByteBuffer.allocate(100));
+            cache.invalidate(file);
+            assertNull(cache.get(file, 0));
+            assertEquals(100, cache.getSize());
+            assertNotNull(cache.get(other, 0));
+        } finally {
+            cache.configure(0, false);
+        }
+    }
+    
+    public void testFixedLengthEntries() throws Exception {
+        
+        // initialize a map w/ 8-byte keys and 16-byte values; a few values are
+        // shorter, so that some blocks contain variable-length values
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+            byte[] value = new byte[i % 1000 == 0 ? 3 : 16];
+            rnd.nextBytes(value);
+            map.put(ByteBuffer.allocate(8).putLong(i * 7L).array(), value);
+        }
+        
+        for (boolean compressed : new boolean[] { false, true })
+            for (boolean mmaped : new boolean[] { false, true }) {
+                
+                FSUtils.delTree(new File(PATH1));
+                DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, compressed,
+                    MAX_BLOCK_FILE_SIZE);
+                index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+                
+                DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(),
+                    compressed, mmaped);
+                
+                // without offsets, entries take less than 4 bytes of space in
+                // addition to their keys and values
+                assertTrue(diskIndex.getSize() < map.size() * (8 + 16 + 4));
+                
+                for (Entry<byte[], byte[]> entry : map.entrySet())
+                    assertEquals(0, COMP.compare(entry.getValue(), diskIndex.lookup(entry.getKey())));
+                assertNull(diskIndex.lookup(ByteBuffer.allocate(8).putLong(1).array()));
+                assertNull(diskIndex.lookup(new byte[4]));
+                
+                for (boolean ascending : new boolean[] { true, false }) {
+                    
+                    SortedMap<byte[], byte[]> expectedMap = ascending ? map : map.descendingMap();
+                    Iterator<Entry<byte[], byte[]>> expected = expectedMap.entrySet().iterator();
+                    Iterator<Entry<byte[], byte[]>> it = diskIndex.rangeLookup(null, null, ascending);
+                    while (it.hasNext()) {
+                        Entry<byte[], byte[]> next = expected.next();
+                        Entry<byte[], byte[]> entry = it.next();
+                        assertEquals(0, COMP.compare(next.getKey(), entry.getKey()));
+                        assertEquals(0, COMP.compare(next.getValue(), entry.getValue()));
+                    }
+                    assertFalse(expected.hasNext());
+                }
+                
+                IndexCursor cursor = diskIndex.cursor();
+                assertTrue(cursor.seek(ByteBuffer.allocate(8).putLong(701).array()));
+                assertEquals(707, cursor.key().getLong());
+                assertEquals(16, cursor.value().remaining());
+                assertTrue(cursor.prev());
+                assertEquals(700, cursor.key().getLong());
+                assertEquals(0, COMP.compare(map.get(ByteBuffer.allocate(8).putLong(700).array()), IndexCursor
+                        .copy(cursor.value(), null)));
+                cursor.free();
+                
+                diskIndex.destroy();
+            }
+    }
+    
+    public void testBlockCodecs() throws Exception {
+        
+        // initialize a map w/ compressible entries; the values of every tenth
+        // block are random, so that these blocks are stored unencoded
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+            byte[] value = ("value-" + (i % 7) + "-value-" + (i % 7)).getBytes();
+            if (i / MAX_BLOCK_ENTRIES % 10 == 0)
+                rnd.nextBytes(value);
+            map.put(String.format("key%08d", i).getBytes(), value);
+        }
+        
+        // encoding and decoding has to preserve arbitrary data
+        BlockCodec[] codecs = { BlockCodec.getCodec("deflate"), BlockCodec.getCodec("lz4") };
+        for (BlockCodec codec : codecs) {
+            for (int length : new int[] { 0, 1, 13, 100, 70000 }) {
+                byte[] src = new byte[length];
+                for (int i = 0; i < length; i++)
+                    src[i] = (byte) (i % 3 == 0 ? rnd.nextInt() : i / 40);
+                byte[] dst = new byte[length * 2 + 64];
+                int encodedLength = codec.encode(src, length, dst);
+                assertTrue(encodedLength >= 0);
+                byte[] decoded = new byte[length + 2];
+                codec.decode(dst, 0, encodedLength, decoded, 1, length);
+                assertEquals(0, COMP.compare(src, Arrays.copyOfRange(decoded, 1, length + 1)));
+                if (length > 0)
+                    assertEquals(-1, codec.encode(src, length, new byte[encodedLength - 1]));
+            }
+        }
+        
+        FSUtils.delTree(new File(PATH1));
+        DiskIndexWriter rawWriter = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, false, MAX_BLOCK_FILE_SIZE);
+        rawWriter.writeIndex(getBufferIterator(map.entrySet().iterator()));
+        DiskIndex rawIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), false, false);
+        long rawSize = rawIndex.getSize();
+        rawIndex.destroy();
+        
+        BlockCache cache = BlockCache.getInstance();
+        for (String codec : new String[] { "deflate", "lz4" })
+            for (boolean compressed : new boolean[] { false, true })
+                for (boolean mmaped : new boolean[] { false, true })
+                    for (boolean cached : new boolean[] { false, true }) {
+                        
+                        cache.configure(cached ? 1024 * 1024 : 0, false);
+                        try {
+                            
+                            FSUtils.delTree(new File(PATH1));
+                            DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, compressed,
+                                MAX_BLOCK_FILE_SIZE);
+                            index.setBlockCodec(BlockCodec.getCodec(codec));
+                            index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+                            
+                            DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator
+                                    .getInstance(), compressed, mmaped);
+                            assertTrue(diskIndex.getSize() < rawSize);
+                            
+                            for (int i = 0; i < 2; i++)
+                                for (Entry<byte[], byte[]> entry : map.entrySet())
+                                    assertEquals(0, COMP.compare(entry.getValue(), diskIndex.lookup(entry
+                                            .getKey())));
+                            assertNull(diskIndex.lookup("key".getBytes()));
+                            assertNull(diskIndex.lookup("kez".getBytes()));
+                            
+                            for (boolean ascending : new boolean[] { true, false }) {
+                                
+                                SortedMap<byte[], byte[]> expectedMap = ascending ? map : map.descendingMap();
+                                Iterator<Entry<byte[], byte[]>> expected = expectedMap.entrySet().iterator();
+                                Iterator<Entry<byte[], byte[]>> it = diskIndex.rangeLookup(null, null,
+                                    ascending);
+                                while (it.hasNext()) {
+                                    Entry<byte[], byte[]> next = expected.next();
+                                    Entry<byte[], byte[]> entry = it.next();
+                                    assertEquals(0, COMP.compare(next.getKey(), entry.getKey()));
+                                    assertEquals(0, COMP.compare(next.getValue(), entry.getValue()));
+                                }
+                                assertFalse(expected.hasNext());
+                            }
+                            
+                            IndexCursor cursor = diskIndex.cursor();
+                            assertTrue(cursor.seek("key00000700x".getBytes()));
+                            assertEquals("key00000701", new String(IndexCursor.copy(cursor.key(), null)));
+                            assertTrue(cursor.prev());
+                            assertEquals("key00000700", new String(IndexCursor.copy(cursor.key(), null)));
+                            cursor.free();
+                            
+                            diskIndex.destroy();
+                        
+                        } finally {
+                            cache.configure(0, false);
+                        }
+                    }
+    }
+    
+    public void testPrefixCodedBlocks() throws Exception {
+        
+        // initialize a map w/ hierarchical keys, some of which are prefixes of
+        // others
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+            String key = "tenant" + (i % 3) + "/user" + (i % 17) + "/object" + (i % 101);
+            String fullKey = i % 5 == 0 ? key : key + "/version" + i;
+            map.put(fullKey.getBytes(), createRandomString(1, 15).getBytes());
+        }
+        
+        long[] plainSizes = new long[2];
+        for (int i = 0; i < 2; i++) {
+            FSUtils.delTree(new File(PATH1));
+            DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, i == 1, MAX_BLOCK_FILE_SIZE);
+            index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+            DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), i == 1,
+                false);
+            plainSizes[i] = diskIndex.getSize();
+            diskIndex.destroy();
+        }
+        
+        BlockCache cache = BlockCache.getInstance();
+        for (int interval : new int[] { 1, 4, MAX_BLOCK_ENTRIES })
+            for (boolean encoded : new boolean[] { false, true })
+                for (boolean mmaped : new boolean[] { false, true })
+                    for (boolean cached : new boolean[] { false, true }) {
+                        
+                        cache.configure(cached ? 1024 * 1024 : 0, false);
+                        try {
+                            
+                            // the compression flag of the index is ignored for
+                            // prefix-coded blocks
+                            FSUtils.delTree(new File(PATH1));
+                            DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, true,
+                                MAX_BLOCK_FILE_SIZE);
+                            index.setKeyRestartInterval(interval);
+                            if (encoded)
+                                index.setBlockCodec(BlockCodec.getCodec("lz4"));
+                            index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+                            
+                            DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator
+                                    .getInstance(), true, mmaped);
+                            // with a single restart point per block, keys take
+                            // less space than in plain or compressed blocks
+                            if (interval == MAX_BLOCK_ENTRIES)
+                                assertTrue(diskIndex.getSize() < Math.min(plainSizes[0], plainSizes[1]));
+                            
+                            for (Entry<byte[], byte[]> entry : map.entrySet()) {
+                                assertEquals(0, COMP.compare(entry.getValue(), diskIndex.lookup(entry
+                                        .getKey())));
+                                byte[] missing = Arrays.copyOf(entry.getKey(), entry.getKey().length + 1);
+                                assertNull(diskIndex.lookup(missing));
+                            }
+                            assertNull(diskIndex.lookup("tenant".getBytes()));
+                            assertNull(diskIndex.lookup("tenant9".getBytes()));
+                            
+                            for (boolean ascending : new boolean[] { true, false }) {
+                                
+                                SortedMap<byte[], byte[]> expectedMap = ascending ? map : map.descendingMap();
+                                Iterator<Entry<byte[], byte[]>> expected = expectedMap.entrySet().iterator();
+                                Iterator<Entry<byte[], byte[]>> it = diskIndex.rangeLookup(null, null,
+                                    ascending);
+                                while (it.hasNext()) {
+                                    Entry<byte[], byte[]> next = expected.next();
+                                    Entry<byte[], byte[]> entry = it.next();
+                                    assertEquals(0, COMP.compare(next.getKey(), entry.getKey()));
+                                    assertEquals(0, COMP.compare(next.getValue(), entry.getValue()));
+                                }
+                                assertFalse(expected.hasNext());
+                            }
+                            
+                            // range lookups w/ bounds that are not contained
+                            byte[] from = "tenant1/user12/object5".getBytes();
+                            byte[] to = "tenant1/user3/object".getBytes();
+                            Iterator<byte[]> expected = map.subMap(from, to).keySet().iterator();
+                            Iterator<Entry<byte[], byte[]>> it = diskIndex.rangeLookup(from, to, true);
+                            while (it.hasNext())
+                                assertEquals(0, COMP.compare(expected.next(), it.next().getKey()));
+                            assertFalse(expected.hasNext());
+                            
+                            IndexCursor cursor = diskIndex.cursor();
+                            for (byte[] key : new byte[][] { from, to, "tenant0/user0/object0".getBytes() }) {
+                                assertTrue(cursor.seek(key));
+                                assertEquals(0, COMP.compare(map.ceilingKey(key), IndexCursor.copy(cursor
+                                        .key(), null)));
+                                assertEquals(0, COMP.compare(map.get(map.ceilingKey(key)), IndexCursor.copy(
+                                    cursor.value(), null)));
+                                assertTrue(cursor.seekForPrev(key));
+                                assertEquals(0, COMP.compare(map.floorKey(key), IndexCursor.copy(cursor
+                                        .key(), null)));
+                            }
+                            int count = 0;
+                            for (boolean valid = cursor.seek(null); valid; valid = cursor.next())
+                                count++;
+                            assertEquals(map.size(), count);
+                            cursor.free();
+                            
+                            diskIndex.destroy();
+                        
+                        } finally {
+                            cache.configure(0, false);
+                        }
+                    }
+    }
+    
+    public void testMaxBlockSize() throws Exception {
+        
+        final int maxBlockSize = 1024;
+        
+        // initialize a map w/ small values, and a large value every 97th entry
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+            byte[] value = new byte[i % 97 == 0 ? 20000 : 1 + rnd.nextInt(40)];
+            rnd.nextBytes(value);
+            map.put(String.format("key%08d", i).getBytes(), value);
+        }
+        
+        for (int maxEntries : new int[] { 0, MAX_BLOCK_ENTRIES })
+            for (int restartInterval : new int[] { 0, 4 })
+                for (boolean compressed : new boolean[] { false, true })
+                    for (boolean mmaped : new boolean[] { false, true }) {
+                        
+                        FSUtils.delTree(new File(PATH1));
+                        DiskIndexWriter index = new DiskIndexWriter(PATH1, maxEntries, compressed,
+                            1024 * 1024 * 64);
+                        index.setKeyRestartInterval(restartInterval);
+                        index.setMaxBlockSize(maxBlockSize);
+                        index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+                        
+                        // determine the sizes of all blocks from the block
+                        // index; only blocks w/ a single large entry may
+                        // exceed the maximum size
+                        byte[] blockIndex = readFile(PATH1 + "/blockindex.idx");
+                        BlockReader reader = new DefaultBlockReader(ByteBuffer.wrap(blockIndex), 0,
+                            blockIndex.length, COMP);
+                        int numBlocks = reader.getNumEntries();
+                        long fileSize = new File(PATH1 + "/blockfile_0.idx").length();
+                        for (int i = 0; i < numBlocks; i++) {
+                            
+                            long offset = ByteBuffer.wrap(reader.getValues().getEntry(i).toBuffer())
+                                    .getLong();
+                            long end = i + 1 == numBlocks ? fileSize : ByteBuffer.wrap(
+                                reader.getValues().getEntry(i + 1).toBuffer()).getLong();
+                            
+                            if (end - offset > maxBlockSize + DefaultBlockReader.KEYS_OFFSET) {
+                                byte[] blockKey = reader.getKeys().getEntry(i).toBuffer();
+                                assertTrue(map.get(blockKey).length > maxBlockSize);
+                                if (i + 1 < numBlocks)
+                                    assertEquals(0, COMP.compare(map.higherKey(blockKey), reader.getKeys()
+                                            .getEntry(i + 1).toBuffer()));
+                            }
+                        }
+                        
+                        // with an entry limit, blocks contain at most 16
+                        // entries; otherwise, they may contain more entries
+                        if (maxEntries > 0)
+                            assertTrue(numBlocks >= map.size() / maxEntries);
+                        else
+                            assertTrue(numBlocks < map.size() / MAX_BLOCK_ENTRIES);
+                        
+                        DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(),
+                            compressed, mmaped);
+                        
+                        for (Entry<byte[], byte[]> entry : map.entrySet())
+                            assertEquals(0, COMP.compare(entry.getValue(), diskIndex.lookup(entry.getKey())));
+                        assertNull(diskIndex.lookup("key".getBytes()));
+                        
+                        Iterator<Entry<byte[], byte[]>> expected = map.entrySet().iterator();
+                        Iterator<Entry<byte[], byte[]>> it = diskIndex.rangeLookup(null, null, true);
+                        while (it.hasNext()) {
+                            Entry<byte[], byte[]> next = expected.next();
+                            Entry<byte[], byte[]> entry = it.next();
+                            assertEquals(0, COMP.compare(next.getKey(), entry.getKey()));
+                            assertEquals(0, COMP.compare(next.getValue(), entry.getValue()));
+                        }
+                        assertFalse(expected.hasNext());
+                        
+                        diskIndex.destroy();
+                    }
+    }
+    
+    public void testLargeValues() throws Exception {
+        
+        final int largeSize = 3 * 1024 * 1024;
+        
+        // initialize a map w/ small values, and a large value every 100th
+        // entry
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < 500; i++) {
+            byte[] value = new byte[i % 100 == 50 ? largeSize + i : 1 + rnd.nextInt(40)];
+            rnd.nextBytes(value);
+            map.put(String.format("key%08d", i).getBytes(), value);
+        }
+        
+        BlockCache cache = BlockCache.getInstance();
+        for (boolean mmaped : new boolean[] { false, true }) {
+            
+            cache.configure(BlockCache.NUM_STRIPES * 1024 * 1024, false);
+            try {
+                
+                FSUtils.delTree(new File(PATH1));
+                DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, false,
+                    1024 * 1024 * 64);
+                index.setMaxBlockSize(1024);
+                index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+                
+                DiskIndex diskIndex = new DiskIndex(PATH1, DefaultByteRangeComparator.getInstance(), false,
+                    mmaped);
+                long bypasses = cache.getBypasses();
+                
+                // large values are stored inline, in blocks of their own
+                assertTrue(diskIndex.getSize() > 5L * largeSize);
+                
+                // read all entries twice, so as to hit all cached blocks
+                for (int i = 0; i < 2; i++)
+                    for (Entry<byte[], byte[]> entry : map.entrySet())
+                        assertEquals(0, COMP.compare(entry.getValue(), diskIndex.lookup(entry.getKey())));
+                
+                IndexCursor cursor = diskIndex.cursor();
+                int count = 0;
+                for (boolean valid = cursor.seek(null); valid; valid = cursor.next()) {
+                    byte[] key = IndexCursor.copy(cursor.key(), null);
+                    assertEquals(0, COMP.compare(map.get(key), IndexCursor.copy(cursor.value(), null)));
+                    count++;
+                }
+                assertEquals(map.size(), count);
+                cursor.free();
+                
+                // blocks w/ large values exceed the share of the cache that
+                // a single block may occupy, and are never cached, whereas
+                // the blocks of small values are
+                if (!mmaped) {
+                    assertTrue(cache.getSize() > 0);
+                    assertTrue(cache.getSize() < largeSize);
+                    assertTrue(cache.getHits() > 0);
+                    assertTrue(cache.getBypasses() - bypasses >= 5);
+                }
+                
+                diskIndex.destroy();
+            
+            } finally {
+                cache.configure(0, false);
+            }
+        }
+    }
+    
+    public void testFormatVersions() throws Exception {
+        
+        // initialize a map w/ random values
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+            byte[] value = new byte[1 + rnd.nextInt(40)];
+            rnd.nextBytes(value);
+            map.put(String.format("key%08d", i).getBytes(), value);
+        }
+        
+        // format-v1 indices written w/ any combination of block codecs and
+        // prefix-coded blocks have to remain readable
+        for (int version : new int[] { DiskIndex.FORMAT_V1, DiskIndex.FORMAT_V2 })
+            for (BlockCodec codec : new BlockCodec[] { null, BlockCodec.getCodec("deflate") })
+                for (int restartInterval : new int[] { 0, 4 })
+                    for (boolean compressed : new boolean[] { false, true })
+                        for (boolean mmaped : new boolean[] { false, true }) {
+                            
+                            FSUtils.delTree(new File(PATH1));
+                            DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, compressed,
+                                MAX_BLOCK_FILE_SIZE);
+                            index.setFormatVersion(version);
+                            index.setBlockCodec(codec);
+                            index.setKeyRestartInterval(restartInterval);
+                            index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+                            
+                            DiskIndex diskIndex = new DiskIndex(PATH1, COMP, compressed, mmaped);
+                            assertEquals(version, diskIndex.getFormatVersion());
+                            assertIndex(map, diskIndex);
+                            diskIndex.destroy();
+                        }
+        
+        try {
+            FSUtils.delTree(new File(PATH2));
+            DiskIndexWriter index = new DiskIndexWriter(PATH2, MAX_BLOCK_ENTRIES, COMPRESSED,
+                MAX_BLOCK_FILE_SIZE);
+            index.setFormatVersion(3);
+            fail();
+        } catch (IllegalArgumentException exc) {
+            // ignore
+        }
+    }
+    
+    public void testSegmentedMaps() throws Exception {
+        
+        // initialize a map w/ small values, and a large value every 97th entry
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(COMP);
+        for (int i = 0; i < NUM_ENTRIES / 10; i++) {
+            byte[] value = new byte[i % 97 == 0 ? 20000 : 1 + rnd.nextInt(40)];
+            rnd.nextBytes(value);
+            map.put(String.format("key%08d", i).getBytes(), value);
+        }
+        
+        // map block files in segments that are smaller than some blocks
+        long maxSegmentSize = MappedBlockFile.getMaxSegmentSize();
+        MappedBlockFile.setMaxSegmentSize(8 * 1024);
+        try {
+            
+            for (BlockCodec codec : new BlockCodec[] { null, BlockCodec.getCodec("deflate") })
+                for (int version : new int[] { DiskIndex.FORMAT_V1, DiskIndex.FORMAT_V2 }) {
+                    
+                    // write all blocks to a single block file
+                    FSUtils.delTree(new File(PATH1));
+                    DiskIndexWriter index = new DiskIndexWriter(PATH1, MAX_BLOCK_ENTRIES, COMPRESSED,
+                        1024 * 1024 * 64);
+                    index.setFormatVersion(version);
+                    index.setBlockCodec(codec);
+                    index.writeIndex(getBufferIterator(map.entrySet().iterator()));
+                    assertFalse(new File(PATH1 + "/blockfile_1.idx").exists());
+                    
+                    DiskIndex diskIndex = new DiskIndex(PATH1, COMP, COMPRESSED, true);
+                    assertIndex(map, diskIndex);
+                    diskIndex.destroy();
+                }
+        
+        } finally {
+            MappedBlockFile.setMaxSegmentSize(maxSegmentSize);
+        }
+        
+        // segments start at block boundaries and do not exceed the maximum
+        // size, unless they consist of a single block
+        File file = new File(PATH1 + "/testfile");
+        file.delete();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(100);
+        
+        MappedBlockFile.setMaxSegmentSize(30);
+        try {
+            
+            long[] blockOffsets = new long[] { 0, 10, 20, 30, 70, 80 };
+            MappedBlockFile mapped = new MappedBlockFile(raf.getChannel(), blockOffsets);
+            assertEquals(100, mapped.size());
+            assertEquals(3, mapped.getNumSegments());
+            assertEquals(0, mapped.getSegmentOffset(0));
+            assertEquals(30, mapped.getSegmentOffset(1));
+            assertEquals(70, mapped.getSegmentOffset(2));
+            assertEquals(30, mapped.getSegmentBuffer(0).limit());
+            assertEquals(40, mapped.getSegmentBuffer(1).limit());
+            assertEquals(30, mapped.getSegmentBuffer(2).limit());
+            assertEquals(0, mapped.getSegment(29));
+            assertEquals(1, mapped.getSegment(30));
+            assertEquals(2, mapped.getSegment(99));
+        
+        } finally {
+            MappedBlockFile.setMaxSegmentSize(maxSegmentSize);
+            raf.close();
+        }
+    }
+    
     public void testPrefixLookup() throws Exception {
         
         final String[] keys = { "bla", "brabbel", "foo", "kfdkdkdf", "ouuou", "yagga", "yyy", "z" };
@@ -398,7 +1162,7 @@ public class DiskIndexTest extends TestCase {
         }
         
         diskIndex.destroy();
-        
+    
     }
     
     public void testLargeScaleDescendingPrefixLookup() throws Exception {
@@ -498,7 +1262,7 @@ public class DiskIndexTest extends TestCase {
         }
         
         diskIndex.destroy();
-        
+    
     }
     
     private static String createRandomString(int minLength, int maxLength) {
@@ -540,6 +1304,40 @@ public class DiskIndexTest extends TestCase {
         return result;
     }
     
+    private static void assertIndex(SortedMap<byte[], byte[]> map, DiskIndex diskIndex) {
+        
+        for (Entry<byte[], byte[]> entry : map.entrySet())
+            assertEquals(0, COMP.compare(entry.getValue(), diskIndex.lookup(entry.getKey())));
+        assertNull(diskIndex.lookup("key".getBytes()));
+        
+        for (boolean ascending : new boolean[] { true, false }) {
+            
+            Iterator<Entry<byte[], byte[]>> expected = ascending ? map.entrySet().iterator()
+                : new TreeMap<byte[], byte[]>(map).descendingMap().entrySet().iterator();
+            ResultSet<byte[], byte[]> it = diskIndex.rangeLookup(null, null, ascending);
+            while (it.hasNext()) {
+                Entry<byte[], byte[]> next = expected.next();
+                Entry<byte[], byte[]> entry = it.next();
+                assertEquals(0, COMP.compare(next.getKey(), entry.getKey()));
+                assertEquals(0, COMP.compare(next.getValue(), entry.getValue()));
+            }
+            assertFalse(expected.hasNext());
+            it.free();
+        }
+    }
+    
+    private static byte[] readFile(String path) throws IOException {
+        
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            return bytes;
+        } finally {
+            file.close();
+        }
+    }
+    
     private static ResultSet<Object, Object> getBufferIterator(
         final Iterator<Entry<byte[], byte[]>> byteArrayIterator) {
         
@@ -569,7 +1367,7 @@ public class DiskIndexTest extends TestCase {
                     public Object setValue(Object value) {
                         throw new UnsupportedOperationException();
                     }
-                    
+                
                 };
             }
             
@@ -580,10 +1378,10 @@ public class DiskIndexTest extends TestCase {
             
             @Override
             public void free() {
-                
+            
             }
         };
-        
+    
     }
     
     private static void assertIterator(Iterator<Entry<byte[], byte[]>> it, String[] keys, String[] vals,
@@ -596,7 +1394,7 @@ public class DiskIndexTest extends TestCase {
                 assertEquals(vals[i], new String(entry.getValue()));
             }
         }
-
+        
         else {
             for (int i = start; i >= end; i--) {
                 Entry<byte[], byte[]> entry = it.next();
@@ -9,15 +9,25 @@
 package org.xtreemfs.babudb.index;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Random;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.NavigableMap;
 import java.util.Map.Entry;
 
 import junit.framework.TestCase;
 import junit.textui.TestRunner;
 
+import org.xtreemfs.babudb.api.database.Cursor;
+import org.xtreemfs.babudb.api.database.ResultSet;
+import org.xtreemfs.babudb.index.Clock;
 import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
 import org.xtreemfs.babudb.index.LSMTree;
+import org.xtreemfs.babudb.index.reader.DiskIndex;
 import org.xtreemfs.babudb.snapshots.DefaultSnapshotConfig;
 import org.xtreemfs.foundation.logging.Logging;
 import org.xtreemfs.foundation.util.FSUtils;
@@ -36,6 +46,8 @@ public class LSMTreeTest extends TestCase {
     
     private static final String SNAP_FILE4 = "/tmp/snap4.bin";
     
+    private static final String RUN_DIR    = "/tmp/runs.bin";
+    
     static {
         //ReusableBuffer.enableAutoFree(true);
         //BufferPool.enableStacktraceRecording(false);
@@ -50,13 +62,16 @@ public class LSMTreeTest extends TestCase {
         FSUtils.delTree(new File(SNAP_FILE2));
         FSUtils.delTree(new File(SNAP_FILE3));
         FSUtils.delTree(new File(SNAP_FILE4));
+        FSUtils.delTree(new File(RUN_DIR));
     }
     
     public void tearDown() throws Exception {
+        LSMTree.setClock(Clock.SYSTEM);
         FSUtils.delTree(new File(SNAP_FILE));
         FSUtils.delTree(new File(SNAP_FILE2));
         FSUtils.delTree(new File(SNAP_FILE3));
         FSUtils.delTree(new File(SNAP_FILE4));
+        FSUtils.delTree(new File(RUN_DIR));
     }
     
     public void testSnapshots() throws Exception {
@@ -482,11 +497,690 @@ public class LSMTreeTest extends TestCase {
         assertEquals(4, i);
     }
     
+    public void testIncrementalSnapshots() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        final int maxRuns = 3;
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, maxRuns, 10);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        Random rnd = new Random(1);
+        
+        String[] dirs = { SNAP_FILE, SNAP_FILE2, SNAP_FILE3, SNAP_FILE4 };
+        for (int cp = 0; cp < 12; cp++) {
+            
+            // insert and delete some random key-value pairs
+            for (int i = 0; i < 200; i++) {
+                byte[] key = ("key" + rnd.nextInt(500)).getBytes();
+                if (rnd.nextInt(4) == 0) {
+                    tree.delete(key);
+                    map.remove(key);
+                } else {
+                    byte[] val = ("val" + cp + "_" + i).getBytes();
+                    tree.insert(key, val);
+                    map.put(key, val);
+                }
+            }
+            
+            // write an incremental checkpoint and remove the previous one
+            String dir = dirs[cp % dirs.length];
+            FSUtils.delTree(new File(dir));
+            int snapId = tree.createSnapshot();
+            tree.materializeIncrementalSnapshot(dir, RUN_DIR, snapId);
+            tree.linkToSnapshot(dir);
+            FSUtils.delTree(new File(dirs[(cp + dirs.length - 1) % dirs.length]));
+            
+            assertTrue(tree.getNumRuns() <= maxRuns);
+            assertContents(map, tree);
+            
+            // reopen the tree from disk
+            LSMTree reopened = new LSMTree(dir, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, maxRuns,
+                10);
+            assertEquals(tree.getNumRuns(), reopened.getNumRuns());
+            assertContents(map, reopened);
+            reopened.destroy();
+        }
+    }
+    
+    public void testUnchangedSnapshots() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 3, 10);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        for (int i = 0; i < 100; i++) {
+            byte[] key = ("key" + i).getBytes();
+            tree.insert(key, key);
+            map.put(key, key);
+        }
+        
+        int snapId = tree.createSnapshot();
+        tree.materializeIncrementalSnapshot(SNAP_FILE, RUN_DIR, snapId);
+        tree.linkToSnapshot(SNAP_FILE);
+        
+        // a snapshot without any intermediate writes must consist of the
+        // same files as the previous one, and it must not write any run data
+        File[] runFiles = new File(RUN_DIR).listFiles();
+        for (File file : runFiles)
+            assertTrue(file.setLastModified(1000));
+        snapId = tree.createSnapshot();
+        tree.materializeIncrementalSnapshot(SNAP_FILE2, RUN_DIR, snapId);
+        tree.linkToSnapshot(SNAP_FILE2);
+        
+        String[] files = new File(SNAP_FILE).list();
+        String[] linkedFiles = new File(SNAP_FILE2).list();
+        Arrays.sort(files);
+        Arrays.sort(linkedFiles);
+        assertTrue(Arrays.equals(files, linkedFiles));
+        assertTrue(Arrays.equals(new String[] { LSMTree.MANIFEST_FILE }, linkedFiles));
+        assertEquals(runFiles.length, new File(RUN_DIR).list().length);
+        for (File file : runFiles)
+            assertEquals(1000, file.lastModified());
+        
+        FSUtils.delTree(new File(SNAP_FILE));
+        assertEquals(1, tree.getNumRuns());
+        assertContents(map, tree);
+        
+        // a write in between has to lead to a new run
+        tree.delete("key1".getBytes());
+        map.remove("key1".getBytes());
+        snapId = tree.createSnapshot();
+        tree.materializeIncrementalSnapshot(SNAP_FILE3, RUN_DIR, snapId);
+        tree.linkToSnapshot(SNAP_FILE3);
+        
+        assertEquals(2, tree.getNumRuns());
+        assertContents(map, tree);
+        
+        LSMTree reopened = new LSMTree(SNAP_FILE3, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 3, 10);
+        assertContents(map, reopened);
+        reopened.destroy();
+    }
+    
+    public void testRunsReferencedInPlace() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 2, 10);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        for (int i = 0; i < 100; i++) {
+            byte[] key = ("key" + i).getBytes();
+            tree.insert(key, key);
+            map.put(key, key);
+        }
+        
+        int snapId = tree.createSnapshot();
+        tree.materializeIncrementalSnapshot(SNAP_FILE, RUN_DIR, snapId);
+        tree.linkToSnapshot(SNAP_FILE);
+        String[] baseRunFiles = new File(RUN_DIR).list();
+        
+        // the base run has to be referenced by later snapshots rather than
+        // being copied to them
+        String[] dirs = { SNAP_FILE2, SNAP_FILE3 };
+        for (int i = 0; i < dirs.length; i++) {
+            
+            byte[] key = ("new" + i).getBytes();
+            tree.insert(key, key);
+            map.put(key, key);
+            snapId = tree.createSnapshot();
+            tree.materializeIncrementalSnapshot(dirs[i], RUN_DIR, snapId);
+            tree.linkToSnapshot(dirs[i]);
+            
+            assertEquals(2, tree.getNumRuns());
+            assertTrue(Arrays.equals(new String[] { LSMTree.MANIFEST_FILE }, new File(dirs[i]).list()));
+            assertTrue(Arrays.asList(new File(RUN_DIR).list()).containsAll(Arrays.asList(baseRunFiles)));
+        }
+        
+        // the delta run of the second snapshot has been merged into the delta
+        // run of the third one, so that its files can be deleted
+        int numFiles = new File(RUN_DIR).list().length;
+        tree.deleteUnreferencedRuns(RUN_DIR, Arrays.asList(SNAP_FILE3));
+        String[] files = new File(RUN_DIR).list();
+        assertTrue(files.length < numFiles);
+        assertTrue(Arrays.asList(files).containsAll(Arrays.asList(baseRunFiles)));
+        assertEquals(files.length, LSMTree.getRunFiles(SNAP_FILE3).size());
+        
+        LSMTree reopened = new LSMTree(SNAP_FILE3, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 2, 10);
+        assertEquals(2, reopened.getNumRuns());
+        assertContents(map, reopened);
+        reopened.destroy();
+        tree.destroy();
+    }
+    
+    public void testIteratorAcrossLink() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        // with a single run, each checkpoint replaces the previous run
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 1, 10);
+        for (int i = 0; i < 100; i++) {
+            byte[] key = ("key" + (1000 + i)).getBytes();
+            tree.insert(key, key);
+        }
+        
+        int snapId = tree.createSnapshot();
+        tree.materializeIncrementalSnapshot(SNAP_FILE, RUN_DIR, snapId);
+        tree.linkToSnapshot(SNAP_FILE);
+        
+        ResultSet<byte[], byte[]> it = tree.prefixLookup(new byte[0]);
+        for (int i = 0; i < 10; i++)
+            assertEquals(("key" + (1000 + i)).getBytes(), it.next().getKey());
+        
+        // replace the run that is being read
+        tree.insert("key2000".getBytes(), "key2000".getBytes());
+        snapId = tree.createSnapshot();
+        tree.materializeIncrementalSnapshot(SNAP_FILE2, RUN_DIR, snapId);
+        tree.linkToSnapshot(SNAP_FILE2);
+        assertEquals(1, tree.getNumRuns());
+        
+        // the iterator must still be able to read the replaced run
+        for (int i = 10; i < 100; i++)
+            assertEquals(("key" + (1000 + i)).getBytes(), it.next().getKey());
+        assertFalse(it.hasNext());
+        it.free();
+        
+        assertEquals("key2000".getBytes(), tree.lookup("key2000".getBytes()));
+        tree.destroy();
+    }
+    
+    public void testRangeDeletes() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 3, 10);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        Random rnd = new Random(1);
+        
+        String[] dirs = { SNAP_FILE, SNAP_FILE2, SNAP_FILE3, SNAP_FILE4 };
+        for (int cp = 0; cp < 8; cp++) {
+            
+            // insert some random key-value pairs and delete some ranges in
+            // between
+            for (int i = 0; i < 200; i++) {
+                
+                if (rnd.nextInt(50) == 0) {
+                    byte[] from = ("key" + rnd.nextInt(500)).getBytes();
+                    byte[] to = rnd.nextInt(10) == 0 ? null : ("key" + rnd.nextInt(500)).getBytes();
+                    if (to != null && comp.compare(from, to) > 0) {
+                        byte[] tmp = from;
+                        from = to;
+                        to = tmp;
+                    }
+                    
+                    tree.deleteRange(from, to);
+                    if (to == null)
+                        map.tailMap(from).clear();
+                    else
+                        map.subMap(from, to).clear();
+                
+                } else {
+                    byte[] key = ("key" + rnd.nextInt(500)).getBytes();
+                    byte[] val = ("val" + cp + "_" + i).getBytes();
+                    tree.insert(key, val);
+                    map.put(key, val);
+                }
+            }
+            
+            // the ranges have to be deleted from the overlay ...
+            assertContents(map, tree);
+            
+            // ... from a snapshot ...
+            int snapId = tree.createSnapshot();
+            TreeMap<byte[], byte[]> snapMap = new TreeMap<byte[], byte[]>(map);
+            tree.deleteRange("key2".getBytes(), "key3".getBytes());
+            map.subMap("key2".getBytes(), "key3".getBytes()).clear();
+            for (int i = 0; i < 500; i++) {
+                byte[] key = ("key" + i).getBytes();
+                assertEquals(snapMap.get(key), tree.lookup(key, snapId));
+            }
+            
+            // ... and from the checkpoint
+            String dir = dirs[cp % dirs.length];
+            FSUtils.delTree(new File(dir));
+            tree.materializeIncrementalSnapshot(dir, RUN_DIR, snapId);
+            tree.linkToSnapshot(dir);
+            FSUtils.delTree(new File(dirs[(cp + dirs.length - 1) % dirs.length]));
+            assertContents(map, tree);
+            
+            LSMTree reopened = new LSMTree(dir, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 3, 10);
+            assertContents(snapMap, reopened);
+            reopened.destroy();
+        }
+        
+        tree.destroy();
+    }
+    
+    public void testRangeDeletesInDeltaRuns() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 4, 10);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        Random rnd = new Random(1);
+        
+        String[] dirs = { SNAP_FILE, SNAP_FILE2, SNAP_FILE3, SNAP_FILE4 };
+        for (int cp = 0; cp < 8; cp++) {
+            
+            for (int i = 0; i < 100; i++) {
+                byte[] key = ("key" + rnd.nextInt(500)).getBytes();
+                byte[] val = ("val" + cp + "_" + i).getBytes();
+                tree.insert(key, val);
+                map.put(key, val);
+            }
+            
+            // delete a range that spans the keys of older runs, and insert a
+            // key in the range afterwards
+            if (cp == 2) {
+                tree.deleteRange("key2".getBytes(), "key4".getBytes());
+                map.subMap("key2".getBytes(), "key4".getBytes()).clear();
+                tree.deleteRange("key45".getBytes(), null);
+                map.tailMap("key45".getBytes()).clear();
+                tree.insert("key25".getBytes(), "val".getBytes());
+                map.put("key25".getBytes(), "val".getBytes());
+            }
+            
+            String dir = dirs[cp % dirs.length];
+            FSUtils.delTree(new File(dir));
+            tree.materializeIncrementalSnapshot(dir, RUN_DIR, tree.createSnapshot());
+            tree.linkToSnapshot(dir);
+            FSUtils.delTree(new File(dirs[(cp + dirs.length - 1) % dirs.length]));
+            
+            // the deleted ranges have to be recorded in a delta run, rather
+            // than being applied to all older runs
+            if (cp == 2) {
+                assertEquals(3, tree.getNumRuns());
+                assertTrue(new File(RUN_DIR, "run3_" + DiskIndex.DELETED_RANGES_FILE).exists());
+            }
+            
+            // the keys in the ranges have to remain hidden in the older runs
+            // until all runs have been merged
+            assertContents(map, tree);
+            assertCursor(map, tree.openCursor(), rnd);
+            
+            byte[][] keys = new byte[500][];
+            for (int i = 0; i < keys.length; i++)
+                keys[i] = ("key" + i).getBytes();
+            byte[][] values = tree.lookup(keys);
+            for (int i = 0; i < keys.length; i++)
+                assertEquals(map.get(keys[i]), values[i]);
+            
+            LSMTree reopened = new LSMTree(dir, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 4, 10);
+            assertContents(map, reopened);
+            reopened.destroy();
+        }
+        
+        tree.destroy();
+    }
+    
+    public void testExpiry() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        long now = 1000000;
+        ManualClock clock = new ManualClock(now);
+        LSMTree.setClock(clock);
+        
+        LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 3, 10);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        TreeSet<byte[]> expiring = new TreeSet<byte[]>(comp);
+        Random rnd = new Random(1);
+        
+        long past = now - 1000;
+        long future = now + 3600 * 1000;
+        
+        int numExpired = 0;
+        String[] dirs = { SNAP_FILE, SNAP_FILE2, SNAP_FILE3, SNAP_FILE4 };
+        for (int cp = 0; cp < 8; cp++) {
+            
+            // insert some random key-value pairs, some of which have expired
+            // already, and some of which will expire in the future
+            for (int i = 0; i < 200; i++) {
+                
+                byte[] key = ("key" + rnd.nextInt(500)).getBytes();
+                byte[] val = ("val" + cp + "_" + i).getBytes();
+                
+                int type = rnd.nextInt(4);
+                if (type == 0) {
+                    tree.insert(key, val, past);
+                    map.remove(key);
+                } else {
+                    tree.insert(key, val, type == 1 ? future : 0);
+                    map.put(key, val);
+                }
+                
+                if (type == 1)
+                    expiring.add(key);
+                else
+                    expiring.remove(key);
+            }
+            
+            // expired entries have to be hidden in the overlay ...
+            assertContents(map, tree);
+            
+            // ... in a snapshot ...
+            int snapId = tree.createSnapshot();
+            TreeMap<byte[], byte[]> snapMap = new TreeMap<byte[], byte[]>(map);
+            for (int i = 0; i < 500; i++) {
+                byte[] key = ("key" + i).getBytes();
+                assertEquals(snapMap.get(key), tree.lookup(key, snapId));
+            }
+            
+            // ... and in the checkpoint
+            String dir = dirs[cp % dirs.length];
+            FSUtils.delTree(new File(dir));
+            tree.materializeIncrementalSnapshot(dir, RUN_DIR, snapId);
+            tree.linkToSnapshot(dir);
+            FSUtils.delTree(new File(dirs[(cp + dirs.length - 1) % dirs.length]));
+            assertContents(map, tree);
+            numExpired += tree.getNumExpiredEntries();
+            
+            LSMTree reopened = new LSMTree(dir, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 3, 10);
+            assertContents(snapMap, reopened);
+            reopened.destroy();
+        }
+        
+        // expired entries have to be dropped from the checkpoints
+        assertTrue(numExpired > 0);
+        
+        // entries that expire later on have to be hidden, whereas entries
+        // whose older values expire must remain visible, also after the
+        // expiry times have been spread across several runs
+        clock.time = future;
+        map.keySet().removeAll(expiring);
+        assertContents(map, tree);
+        
+        LSMTree reopened = new LSMTree(dirs[7 % dirs.length], comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP,
+            -1, 3, 10);
+        assertContents(map, reopened);
+        reopened.destroy();
+        tree.destroy();
+        
+        clock.time = now;
+        
+        // entries that expire after a checkpoint has been written have to be
+        // dropped with the next checkpoint
+        tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1);
+        long expiryTime = now + 500;
+        for (int i = 0; i < 100; i++)
+            tree.insert(("key" + i).getBytes(), "val".getBytes(), i % 2 == 0 ? expiryTime : 0);
+        tree.materializeSnapshot(SNAP_FILE, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE);
+        assertEquals(0, tree.getNumExpiredEntries());
+        
+        reopened = new LSMTree(SNAP_FILE, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1);
+        for (int i = 0; i < 100; i++)
+            assertNotNull(reopened.lookup(("key" + i).getBytes()));
+        
+        clock.time = expiryTime;
+        
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 2 == 0, tree.lookup(("key" + i).getBytes()) == null);
+            assertEquals(i % 2 == 0, reopened.lookup(("key" + i).getBytes()) == null);
+        }
+        reopened.destroy();
+        
+        tree.materializeSnapshot(SNAP_FILE2, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE2);
+        assertEquals(50, tree.getNumExpiredEntries());
+        
+        ResultSet<byte[], byte[]> it = tree.prefixLookup(new byte[0]);
+        for (int i = 0; i < 50; i++)
+            assertNotNull(it.next());
+        assertFalse(it.hasNext());
+        it.free();
+        
+        tree.destroy();
+    }
+    
+    public void testLimitedLookups() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        // test on-heap and off-heap overlays
+        for (boolean offHeap : new boolean[] { false, true }) {
+            
+            LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 3, 10,
+                offHeap);
+            TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+            Random rnd = new Random(1);
+            long past = System.currentTimeMillis() - 1000;
+            
+            // write a checkpoint and an overlay that shadows some entries of
+            // the checkpoint, deletes some and expires some others
+            for (int i = 0; i < 300; i++) {
+                byte[] key = ("key" + i).getBytes();
+                tree.insert(key, ("val" + i).getBytes());
+                map.put(key, ("val" + i).getBytes());
+            }
+            FSUtils.delTree(new File(SNAP_FILE));
+            tree.materializeSnapshot(SNAP_FILE, tree.createSnapshot());
+            tree.linkToSnapshot(SNAP_FILE);
+            
+            for (int i = 0; i < 100; i++) {
+                byte[] key = ("key" + rnd.nextInt(300)).getBytes();
+                int type = rnd.nextInt(3);
+                if (type == 0) {
+                    tree.delete(key);
+                    map.remove(key);
+                } else if (type == 1) {
+                    tree.insert(key, "expired".getBytes(), past);
+                    map.remove(key);
+                } else {
+                    tree.insert(key, ("new" + i).getBytes());
+                    map.put(key, ("new" + i).getBytes());
+                }
+            }
+            
+            byte[] from = "key1".getBytes();
+            byte[] to = "key2".getBytes();
+            NavigableMap<byte[], byte[]> range = map.subMap(from, true, to, false);
+            int snapId = tree.createSnapshot();
+            for (int maxEntries : new int[] { 0, 1, 7, 50, 1000 }) {
+                for (boolean keysOnly : new boolean[] { false, true }) {
+                    
+                    assertLimited(range, maxEntries, keysOnly, tree.rangeLookup(from, to, true, maxEntries,
+                        keysOnly));
+                    assertLimited(map.descendingMap(), maxEntries, keysOnly, tree.prefixLookup(null, false,
+                        maxEntries, keysOnly));
+                    assertLimited(range, maxEntries, keysOnly, tree.prefixLookup(from, true, maxEntries,
+                        keysOnly));
+                    assertLimited(map, maxEntries, keysOnly, tree.prefixLookup(null, snapId, true,
+                        maxEntries, keysOnly));
+                    assertLimited(map.descendingMap(), maxEntries, keysOnly, tree.rangeLookup(new byte[0],
+                        new byte[0], snapId, false, maxEntries, keysOnly));
+                }
+            }
+            
+            tree.destroy();
+        }
+    }
+    
+    public void testCursors() throws Exception {
+        
+        final DefaultByteRangeComparator comp = DefaultByteRangeComparator.getInstance();
+        
+        // test on-heap and off-heap overlays
+        for (boolean offHeap : new boolean[] { false, true }) {
+            
+            LSMTree tree = new LSMTree(null, comp, COMPRESSION, 16, 1024 * 1024 * 512, MMAP, -1, 3, 10,
+                offHeap);
+            TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+            Random rnd = new Random(1);
+            long past = System.currentTimeMillis() - 1000;
+            
+            String[] dirs = { SNAP_FILE, SNAP_FILE2, SNAP_FILE3, SNAP_FILE4 };
+            for (int cp = 0; cp < 8; cp++) {
+                
+                // insert, delete and expire some random keys, and delete
+                // some ranges in between
+                for (int i = 0; i < 200; i++) {
+                    
+                    byte[] key = ("key" + rnd.nextInt(500)).getBytes();
+                    byte[] val = ("val" + cp + "_" + i).getBytes();
+                    
+                    int type = rnd.nextInt(50);
+                    if (type == 0) {
+                        byte[] to = ("key" + rnd.nextInt(500)).getBytes();
+                        if (comp.compare(key, to) > 0) {
+                            tree.deleteRange(to, key);
+                            map.subMap(to, key).clear();
+                        } else {
+                            tree.deleteRange(key, to);
+                            map.subMap(key, to).clear();
+                        }
+                    } else if (type < 5) {
+                        tree.delete(key);
+                        map.remove(key);
+                    } else if (type < 8) {
+                        tree.insert(key, val, past);
+                        map.remove(key);
+                    } else {
+                        tree.insert(key, val);
+                        map.put(key, val);
+                    }
+                }
+                
+                // cursors have to reflect the overlay ...
+                assertCursor(map, tree.openCursor(), rnd);
+                
+                // ... a snapshot ...
+                int snapId = tree.createSnapshot();
+                TreeMap<byte[], byte[]> snapMap = new TreeMap<byte[], byte[]>(map);
+                tree.deleteRange("key2".getBytes(), "key3".getBytes());
+                map.subMap("key2".getBytes(), "key3".getBytes()).clear();
+                tree.insert("key25".getBytes(), "val".getBytes());
+                map.put("key25".getBytes(), "val".getBytes());
+                assertCursor(snapMap, tree.openCursor(snapId), rnd);
+                assertCursor(map, tree.openCursor(), rnd);
+                
+                // ... and the checkpoint
+                String dir = dirs[cp % dirs.length];
+                FSUtils.delTree(new File(dir));
+                tree.materializeIncrementalSnapshot(dir, RUN_DIR, snapId);
+                tree.linkToSnapshot(dir);
+                FSUtils.delTree(new File(dirs[(cp + dirs.length - 1) % dirs.length]));
+                assertCursor(map, tree.openCursor(), rnd);
+            }
+            
+            tree.destroy();
+        }
+        
+        // keys of compressed runs have to be assembled from the prefixes of
+        // their blocks
+        LSMTree tree = new LSMTree(null, comp, true, 16, 1024 * 1024 * 512, MMAP, -1);
+        TreeMap<byte[], byte[]> map = new TreeMap<byte[], byte[]>(comp);
+        Random rnd = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            byte[] key = ("key" + rnd.nextInt(500)).getBytes();
+            tree.insert(key, ("val" + i).getBytes());
+            map.put(key, ("val" + i).getBytes());
+        }
+        tree.materializeSnapshot(SNAP_FILE, tree.createSnapshot());
+        tree.linkToSnapshot(SNAP_FILE);
+        assertCursor(map, tree.openCursor(), rnd);
+        tree.destroy();
+    }
+    
+    private void assertLimited(SortedMap<byte[], byte[]> map, int maxEntries, boolean keysOnly,
+        ResultSet<byte[], byte[]> it) {
+        
+        int count = 0;
+        for (Entry<byte[], byte[]> expected : map.entrySet()) {
+            
+            if (maxEntries > 0 && count++ == maxEntries)
+                break;
+            
+            assertTrue(it.hasNext());
+            Entry<byte[], byte[]> entry = it.next();
+            assertEquals(expected.getKey(), entry.getKey());
+            if (keysOnly)
+                assertNull(entry.getValue());
+            else
+                assertEquals(expected.getValue(), entry.getValue());
+        }
+        
+        assertFalse(it.hasNext());
+        it.free();
+    }
+    
+    private void assertCursor(TreeMap<byte[], byte[]> map, Cursor cursor, Random rnd) {
+        
+        // scans in both directions have to return all entries
+        assertEquals(!map.isEmpty(), cursor.seek(null));
+        for (Entry<byte[], byte[]> entry : map.entrySet()) {
+            assertEntry(entry.getKey(), entry.getValue(), cursor);
+            cursor.next();
+        }
+        assertFalse(cursor.isValid());
+        
+        assertEquals(!map.isEmpty(), cursor.seekForPrev(null));
+        for (Entry<byte[], byte[]> entry : map.descendingMap().entrySet()) {
+            assertEntry(entry.getKey(), entry.getValue(), cursor);
+            cursor.prev();
+        }
+        assertFalse(cursor.isValid());
+        
+        // seeks followed by steps in random directions have to return the
+        // neighboring entries
+        for (int i = 0; i < 100; i++) {
+            
+            byte[] key = ("key" + rnd.nextInt(550)).getBytes();
+            boolean forward = rnd.nextBoolean();
+            byte[] expected = forward ? map.ceilingKey(key) : map.floorKey(key);
+            assertEquals(expected != null, forward ? cursor.seek(key) : cursor.seekForPrev(key));
+            
+            for (int j = 0; j < 10 && expected != null; j++) {
+                assertEntry(expected, map.get(expected), cursor);
+                forward = rnd.nextBoolean();
+                expected = forward ? map.higherKey(expected) : map.lowerKey(expected);
+                assertEquals(expected != null, forward ? cursor.next() : cursor.prev());
+            }
+        }
+        
+        cursor.free();
+    }
+    
+    private void assertEntry(byte[] key, byte[] value, Cursor cursor) {
+        assertEquals(key, toArray(cursor.key()));
+        assertEquals(value, toArray(cursor.value()));
+    }
+    
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.duplicate().get(bytes);
+        return bytes;
+    }
+    
+    private void assertContents(TreeMap<byte[], byte[]> map, LSMTree tree) {
+        
+        for (int i = 0; i < 500; i++) {
+            byte[] key = ("key" + i).getBytes();
+            assertEquals(map.get(key), tree.lookup(key));
+        }
+        
+        Iterator<Entry<byte[], byte[]>> it = tree.prefixLookup(new byte[0]);
+        for (Entry<byte[], byte[]> entry : map.entrySet()) {
+            Entry<byte[], byte[]> next = it.next();
+            assertEquals(entry.getKey(), next.getKey());
+            assertEquals(entry.getValue(), next.getValue());
+        }
+        assertFalse(it.hasNext());
+        
+        it = tree.rangeLookup("key2".getBytes(), "key3".getBytes());
+        for (Entry<byte[], byte[]> entry : map.subMap("key2".getBytes(), "key3".getBytes()).entrySet()) {
+            Entry<byte[], byte[]> next = it.next();
+            assertEquals(entry.getKey(), next.getKey());
+            assertEquals(entry.getValue(), next.getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+    
     private void assertEquals(byte[] expected, byte[] result) {
         
         if (expected == null && result == null)
             return;
         
+        assertNotNull(expected);
+        assertNotNull(result);
         assertEquals(expected.length, result.length);
         
         for (int i = 0; i < expected.length; i++)
@@ -497,4 +1191,20 @@ public class LSMTreeTest extends TestCase {
         TestRunner.run(LSMTreeTest.class);
     }
     
+    /**
+     * A clock that only advances when its time is set.
+     */
+    private static class ManualClock implements Clock {
+        
+        private volatile long time;
+        
+        public ManualClock(long time) {
+            this.time = time;
+        }
+        
+        public long currentTimeMillis() {
+            return time;
+        }
+    }
+    
 }
@@ -8,7 +8,11 @@
 
 package org.xtreemfs.babudb.index;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Map.Entry;
@@ -16,6 +20,7 @@ import java.util.Map.Entry;
 import junit.framework.TestCase;
 import junit.textui.TestRunner;
 
+import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
 import org.xtreemfs.babudb.index.overlay.MultiOverlayBufferTree;
 import org.xtreemfs.babudb.index.overlay.MultiOverlayStringTree;
@@ -377,6 +382,151 @@ public class MultiOverlayTreeTest extends TestCase {
         assertFalse(itExpected.hasNext());
     }
     
+    public void testOffHeapOverlayBufferTree() {
+        
+        final byte[] nullValue = new byte[0];
+        MultiOverlayBufferTree heapTree = new MultiOverlayBufferTree(nullValue, DefaultByteRangeComparator
+                .getInstance(), false);
+        MultiOverlayBufferTree arenaTree = new MultiOverlayBufferTree(nullValue, DefaultByteRangeComparator
+                .getInstance(), true);
+        
+        // empty trees do not allocate any memory
+        assertEquals(0, arenaTree.getMemoryUsage());
+        assertNull(arenaTree.lookup("xyz".getBytes()));
+        assertFalse(arenaTree.rangeLookup(null, null, true, true).hasNext());
+        assertFalse(arenaTree.openCursors().get(0).seek(null));
+        
+        // apply the same random inserts, overwrites and deletions to both
+        // trees, with a new overlay after each round
+        Random rnd = new Random(1);
+        List<Integer> snapIds = new ArrayList<Integer>();
+        for (int round = 0; round < 3; round++) {
+            
+            for (int i = 0; i < 2000; i++) {
+                byte[] key = Integer.toHexString(rnd.nextInt(1000)).getBytes();
+                byte[] val = rnd.nextInt(5) == 0 ? null : Integer.toString(rnd.nextInt()).getBytes();
+                heapTree.insert(key, val);
+                arenaTree.insert(key, val);
+            }
+            
+            // insert a value that exceeds the size of an arena chunk
+            byte[] largeVal = new byte[3 * 1024 * 1024];
+            rnd.nextBytes(largeVal);
+            heapTree.insert("large".getBytes(), largeVal);
+            arenaTree.insert("large".getBytes(), largeVal);
+            
+            snapIds.add(heapTree.newOverlay());
+            assertEquals(snapIds.get(round).intValue(), arenaTree.newOverlay());
+        }
+        
+        // both trees account for the same sizes of keys and values
+        assertTrue(heapTree.getDataSize() > 3 * 3 * 1024 * 1024);
+        assertEquals(heapTree.getDataSize(), arenaTree.getDataSize());
+        
+        // compare lookups in the current and all previous overlays
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = Integer.toHexString(i).getBytes();
+            assertSameValue(heapTree.lookup(key), arenaTree.lookup(key), nullValue);
+            for (int snapId : snapIds)
+                assertSameValue(heapTree.lookup(key, snapId), arenaTree.lookup(key, snapId), nullValue);
+        }
+        assertNull(arenaTree.lookup("xyz".getBytes()));
+        
+        // compare range and prefix lookups in both orders
+        byte[][] bounds = { null, "1".getBytes(), "3a".getBytes(), "7".getBytes(), "zz".getBytes() };
+        for (byte[] from : bounds)
+            for (byte[] to : bounds)
+                for (boolean ascending : new boolean[] { true, false }) {
+                    
+                    // skip empty ranges, which are rejected by the heap tree
+                    if (from != null && to != null
+                        && DefaultByteRangeComparator.getInstance().compare(from, to) * (ascending ? 1 : -1) > 0)
+                        continue;
+                    
+                    assertSameEntries(heapTree.rangeLookup(from, to, true, ascending), arenaTree.rangeLookup(
+                        from, to, true, ascending), nullValue);
+                    assertSameEntries(heapTree.rangeLookup(from, to, snapIds.get(0), false, ascending),
+                        arenaTree.rangeLookup(from, to, snapIds.get(0), false, ascending), nullValue);
+                }
+        assertSameEntries(heapTree.prefixLookup("2".getBytes(), false, false), arenaTree.prefixLookup("2"
+                .getBytes(), false, false), nullValue);
+        
+        // discarding the read-only overlays should release their memory, but
+        // not before pending iterations have finished
+        ResultSet<byte[], byte[]> pending = arenaTree.rangeLookup(null, null, snapIds.get(0), false, true);
+        long size = arenaTree.getMemoryUsage();
+        assertTrue(size > 3 * 3 * 1024 * 1024);
+        arenaTree.cleanup();
+        assertTrue(arenaTree.getMemoryUsage() < size / 3);
+        assertSameEntries(heapTree.rangeLookup(null, null, snapIds.get(0), false, true), pending, nullValue);
+        assertFalse(pending.hasNext());
+        
+        // overwritten values do not count towards the data size
+        for (boolean offHeap : new boolean[] { false, true }) {
+            MultiOverlayBufferTree tree = new MultiOverlayBufferTree(nullValue, DefaultByteRangeComparator
+                    .getInstance(), offHeap);
+            tree.insert("a".getBytes(), "xyz".getBytes());
+            tree.insert("b".getBytes(), "v".getBytes());
+            assertEquals(6, tree.getDataSize());
+            tree.insert("a".getBytes(), "v".getBytes());
+            assertEquals(4, tree.getDataSize());
+            tree.insert("a".getBytes(), null);
+            assertEquals(3, tree.getDataSize());
+        }
+    }
+    
+    public void testOverlayMergeIterator() {
+        
+        final String nullValue = "\0";
+        Comparator<Integer> comp = new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return o1.compareTo(o2);
+            }
+        };
+        
+        Random rnd = new Random();
+        for (int numTrees = 1; numTrees <= 20; numTrees++) {
+            
+            // create a set of trees w/ overlapping keys and deleted entries
+            List<SortedMap<Integer, String>> trees = new ArrayList<SortedMap<Integer, String>>();
+            for (int i = 0; i < numTrees; i++) {
+                SortedMap<Integer, String> tree = new TreeMap<Integer, String>();
+                for (int j = 0; j < 50; j++)
+                    tree.put(rnd.nextInt(200), rnd.nextInt(5) == 0 ? nullValue : i + "-" + j);
+                trees.add(tree);
+            }
+            
+            // the first tree containing a key determines its value
+            TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+            for (int i = numTrees - 1; i >= 0; i--)
+                expected.putAll(trees.get(i));
+            Iterator<Entry<Integer, String>> expIt = expected.entrySet().iterator();
+            while (expIt.hasNext())
+                if (expIt.next().getValue() == nullValue)
+                    expIt.remove();
+            
+            for (boolean ascending : new boolean[] { true, false }) {
+                
+                List<Iterator<Entry<Integer, String>>> itList =
+                    new ArrayList<Iterator<Entry<Integer, String>>>();
+                for (SortedMap<Integer, String> tree : trees)
+                    itList.add(ascending ? tree.entrySet().iterator() : new TreeMap<Integer, String>(tree)
+                            .descendingMap().entrySet().iterator());
+                
+                Iterator<Entry<Integer, String>> it = new OverlayMergeIterator<Integer, String>(itList, comp,
+                    nullValue, ascending);
+                for (Entry<Integer, String> entry : ascending ? expected.entrySet() : expected
+                        .descendingMap().entrySet()) {
+                    assertTrue(it.hasNext());
+                    Entry<Integer, String> next = it.next();
+                    assertEquals(entry.getKey(), next.getKey());
+                    assertEquals(entry.getValue(), next.getValue());
+                }
+                assertFalse(it.hasNext());
+            }
+        }
+    }
+    
     public static void main(String[] args) {
         TestRunner.run(MultiOverlayTreeTest.class);
     }
@@ -392,6 +542,27 @@ public class MultiOverlayTreeTest extends TestCase {
         assertEquals(e, v);
     }
     
+    private void assertSameValue(byte[] expected, byte[] val, byte[] nullValue) {
+        
+        if (expected == null || expected == nullValue)
+            assertSame(expected, val);
+        else
+            assertEquals(expected, val);
+    }
+    
+    private void assertSameEntries(Iterator<Entry<byte[], byte[]>> expected,
+        Iterator<Entry<byte[], byte[]>> it, byte[] nullValue) {
+        
+        while (expected.hasNext()) {
+            assertTrue(it.hasNext());
+            Entry<byte[], byte[]> expEntry = expected.next();
+            Entry<byte[], byte[]> entry = it.next();
+            assertEquals(expEntry.getKey(), entry.getKey());
+            assertSameValue(expEntry.getValue(), entry.getValue(), nullValue);
+        }
+        assertFalse(it.hasNext());
+    }
+    
     protected void assertEquals(byte[] expected, byte[] val) {
         
         if (expected == null && val == null)
@@ -7,14 +7,19 @@
  */
 package org.xtreemfs.babudb.replication.proxy;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.xtreemfs.babudb.api.BabuDB;
 import org.xtreemfs.babudb.api.StaticInitialization;
+import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
 import org.xtreemfs.babudb.api.dev.BabuDBInternal;
 import org.xtreemfs.babudb.api.dev.CheckpointerInternal;
 import org.xtreemfs.babudb.api.dev.DatabaseManagerInternal;
@@ -210,6 +215,40 @@ public class BabuDBProxy implements BabuDBInternal {
         return localBabuDB.getWorker(dbId);
     }
 
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#getWorker(int, int, byte[])
+     */
+    @Override
+    public LSMDBWorker getWorker(int dbId, int indexId, byte[] key) {
+        return localBabuDB.getWorker(dbId, indexId, key);
+    }
+
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#getWorkers(int)
+     */
+    @Override
+    public Collection<LSMDBWorker> getWorkers(int dbId) {
+        return localBabuDB.getWorkers(dbId);
+    }
+
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#lockWorkers(java.util.Collection, 
+     *          java.lang.Object)
+     */
+    @Override
+    public List<DatabaseRequestResult<AtomicBoolean>> lockWorkers(Collection<LSMDBWorker> workers,
+            Object context) throws InterruptedException {
+        return localBabuDB.lockWorkers(workers, context);
+    }
+
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#getReadExecutor()
+     */
+    @Override
+    public Executor getReadExecutor() {
+        return localBabuDB.getReadExecutor();
+    }
+
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.BabuDBInternal#getWorkerCount()
      */
@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -26,6 +27,7 @@ import org.xtreemfs.babudb.api.dev.transaction.TransactionManagerInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
 import org.xtreemfs.babudb.api.transaction.Transaction;
 import org.xtreemfs.babudb.api.transaction.TransactionListener;
 import org.xtreemfs.babudb.config.ReplicationConfig;
@@ -217,8 +219,22 @@ public class DatabaseManagerProxy implements DatabaseManagerInternal {
     @Override
     public DatabaseInternal createDatabase(String databaseName, int numIndices, 
             ByteRangeComparator[] comparators) throws BabuDBException {
+        return createDatabase(databaseName, numIndices, comparators, null);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.DatabaseManager#createDatabase(
+     *          java.lang.String, int, 
+     *          org.xtreemfs.babudb.api.index.ByteRangeComparator[], 
+     *          org.xtreemfs.babudb.api.index.MergeOperator[])
+     */
+    @Override
+    public DatabaseInternal createDatabase(String databaseName, int numIndices, 
+            ByteRangeComparator[] comparators, MergeOperator[] mergeOperators) 
+            throws BabuDBException {
         
-        DatabaseInternal result = localDBMan.createDatabase(databaseName, numIndices, comparators);
+        DatabaseInternal result = localDBMan.createDatabase(databaseName, numIndices, comparators, 
+                mergeOperators);
         if (result instanceof DatabaseProxy) {
             return result;
         } else {
@@ -255,6 +271,19 @@ public class DatabaseManagerProxy implements DatabaseManagerInternal {
         localDBMan.dumpAllDatabases(destPath);
     }
     
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.DatabaseManager#ingestSorted(
+     *          java.lang.String, int, java.util.Iterator)
+     */
+    @Override
+    public void ingestSorted(String dbName, int indexId, Iterator<Entry<byte[], byte[]>> entries)
+            throws BabuDBException {
+        
+        // ingested entries bypass the log, which is what replicates changes
+        throw new BabuDBException(ErrorCode.REPLICATION_FAILURE,
+                "ingestion of sorted entries is not supported in replicated setups");
+    }
+    
     
     /**
      * @param timeout - 0 means infinitly and < 0 non blocking.
@@ -10,6 +10,7 @@ package org.xtreemfs.babudb.replication.proxy;
 import java.net.InetSocketAddress;
 
 import org.xtreemfs.babudb.BabuDBRequestResultImpl;
+import org.xtreemfs.babudb.api.database.Cursor;
 import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
 import org.xtreemfs.babudb.api.database.DatabaseRequestListener;
 import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
@@ -122,6 +123,67 @@ public class DatabaseProxy implements DatabaseInternal {
         return result;
     }
 
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.DatabaseRO#multiLookup(int, byte[][], 
+     *          java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<byte[][]> multiLookup(final int indexId, final byte[][] keys, 
+            final Object context) {
+        
+        assert (keys != null);
+        
+        BabuDBRequestResultImpl<byte[][]> result = 
+            new BabuDBRequestResultImpl<byte[][]>(context, dbMan.getResponseManager());
+        
+        new ListenerWrapper<byte[][]>(result, new RequestOperation<byte[][]>() {
+
+            @Override
+            public void execute(ListenerWrapper<byte[][]> listener) {
+                InetSocketAddress master = null;
+                try {
+                    master = getServerToPerformAt(0);
+                    
+                    if (master == null) {
+                        localDB.multiLookup(indexId, keys, context).registerListener(listener);
+                    } else {
+                        dbMan.getClient().multiLookup(name, indexId, keys, master).registerListener(listener);
+                    }
+                } catch (BabuDBException e) {
+                    listener.failed(e);
+                }
+            }
+        }, dbMan.getRequestRerunner());
+        
+        return result;
+    }
+    
+    public DatabaseRequestResult<byte[][]> multiLookupNonblocking(int indexId, byte[][] keys, 
+            Object context) {
+        
+        assert (keys != null);
+        
+        InetSocketAddress master = null;
+        BabuDBRequestResultImpl<byte[][]> result = 
+            new BabuDBRequestResultImpl<byte[][]>(context, dbMan.getResponseManager());
+        
+        try {
+            master = getServerToPerformAt(-1);
+            
+            if (master == null) {
+                return localDB.multiLookup(indexId, keys, context);
+            }
+        } catch (BabuDBException e) {
+            result.failed(e);
+            return result;
+        } 
+        
+        dbMan.getClient().multiLookup(name, indexId, keys, master).registerListener(
+                new ListenerWrapper<byte[][]>(result));
+        
+        return result;
+    }
+
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.database.DatabaseRO#prefixLookup(int, 
      *          byte[], java.lang.Object)
@@ -277,6 +339,11 @@ public class DatabaseProxy implements DatabaseInternal {
     // TODO ugly code! redesign!!
     public DatabaseRequestResult<ResultSet<byte[], byte[]>> rangeLookupNonblocking(
             int indexId, byte[] from, byte[] to, Object context) {
+        return rangeLookupNonblocking(indexId, from, to, 0, false, context);
+    }
+    
+    public DatabaseRequestResult<ResultSet<byte[], byte[]>> rangeLookupNonblocking(
+            int indexId, byte[] from, byte[] to, int maxEntries, boolean keysOnly, Object context) {
         
         InetSocketAddress master = null;
         BabuDBRequestResultImpl<ResultSet<byte[], byte[]>> result = 
@@ -284,19 +351,115 @@ public class DatabaseProxy implements DatabaseInternal {
         try {
             master = getServerToPerformAt(-1);
             if (master == null) {
-                return localDB.rangeLookup(indexId, from, to, context);
+                return localDB.rangeLookup(indexId, from, to, maxEntries, keysOnly, context);
             }
         } catch (BabuDBException e) {
             result.failed(e);
             return result;
         }
         
-        dbMan.getClient().rangeLookup(name, indexId, ReusableBuffer.wrap(from), ReusableBuffer.wrap(to), master)
-                            .registerListener(new ListenerWrapper<ResultSet<byte[], byte[]>>(result));
+        dbMan.getClient().rangeLookup(name, indexId, ReusableBuffer.wrap(from), ReusableBuffer.wrap(to), 
+                maxEntries, keysOnly, master).registerListener(
+                        new ListenerWrapper<ResultSet<byte[], byte[]>>(result));
         
         return result;
     }
-
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.Database#prefixLookup(int, byte[], int, 
+     *          boolean, java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<ResultSet<byte[], byte[]>> prefixLookup(final int indexId, 
+            final byte[] key, final int maxEntries, final boolean keysOnly, final Object context) {
+        
+        BabuDBRequestResultImpl<ResultSet<byte[], byte[]>> result = 
+            new BabuDBRequestResultImpl<ResultSet<byte[], byte[]>>(context, dbMan.getResponseManager());
+        
+        new ListenerWrapper<ResultSet<byte[], byte[]>>(result, new RequestOperation<ResultSet<byte[], byte[]>>() {
+            
+            @Override
+            public void execute(ListenerWrapper<ResultSet<byte[], byte[]>> listener) {
+                InetSocketAddress master = null;
+                try {
+                    master = getServerToPerformAt(0);
+                    if (master == null) {
+                        localDB.prefixLookup(indexId, key, maxEntries, keysOnly, context)
+                                .registerListener(listener);
+                    } else {
+                        // the master is asked for the range of keys covered by the prefix
+                        byte[][] range = prefixToRange(indexId, key);
+                        dbMan.getClient().rangeLookup(name, indexId, ReusableBuffer.wrap(range[0]), 
+                                ReusableBuffer.wrap(range[1]), maxEntries, keysOnly, master)
+                                .registerListener(listener);
+                    }
+                } catch (BabuDBException e) {
+                    listener.failed(e);
+                }
+            }
+        }, dbMan.getRequestRerunner());
+        
+        return result;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.Database#rangeLookup(int, byte[], byte[], 
+     *          int, boolean, java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<ResultSet<byte[], byte[]>> rangeLookup(final int indexId, 
+            final byte[] from, final byte[] to, final int maxEntries, final boolean keysOnly, 
+            final Object context) {
+        
+        BabuDBRequestResultImpl<ResultSet<byte[], byte[]>> result = 
+            new BabuDBRequestResultImpl<ResultSet<byte[], byte[]>>(context, dbMan.getResponseManager());
+        
+        new ListenerWrapper<ResultSet<byte[], byte[]>>(result, new RequestOperation<ResultSet<byte[], byte[]>>() {
+            
+            @Override
+            public void execute(ListenerWrapper<ResultSet<byte[], byte[]>> listener) {
+                InetSocketAddress master = null;
+                try {
+                    master = getServerToPerformAt(0);
+                    if (master == null) {
+                        localDB.rangeLookup(indexId, from, to, maxEntries, keysOnly, context)
+                                .registerListener(listener);
+                    } else {
+                        dbMan.getClient().rangeLookup(name, indexId, ReusableBuffer.wrap(from), 
+                                ReusableBuffer.wrap(to), maxEntries, keysOnly, master)
+                                .registerListener(listener);
+                    }
+                } catch (BabuDBException e) {
+                    listener.failed(e);
+                }
+            }
+        }, dbMan.getRequestRerunner());
+        
+        return result;
+    }
+    
+    /**
+     * Converts a prefix to the range of keys it covers, by means of the 
+     * comparator of the local index. Open boundaries are represented by empty 
+     * keys.
+     * 
+     * @param indexId
+     * @param prefix
+     * @return the first (inclusively) and last (exclusively) key of the range.
+     * @throws BabuDBException if the index does not exist.
+     */
+    private byte[][] prefixToRange(int indexId, byte[] prefix) throws BabuDBException {
+        
+        ByteRangeComparator[] comps = localDB.getComparators();
+        if (indexId < 0 || indexId >= comps.length) {
+            throw new BabuDBException(ErrorCode.NO_SUCH_INDEX, "index does not exist");
+        }
+        
+        byte[][] range = comps[indexId].prefixToRange(prefix, true);
+        return new byte[][] { range[0] == null ? new byte[0] : range[0], 
+                range[1] == null ? new byte[0] : range[1] };
+    }
+    
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.database.DatabaseRO#reverseRangeLookup(int, 
      *          byte[], byte[], java.lang.Object)
@@ -442,6 +605,51 @@ public class DatabaseProxy implements DatabaseInternal {
                 "not supported by the replication-plugin yet.");
     }
 
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.Database#estimateCount(int, byte[], byte[])
+     */
+    @Override
+    public long estimateCount(int indexId, byte[] from, byte[] to) throws BabuDBException {
+        
+        if (getServerToPerformAt(0) == null) {
+            return localDB.estimateCount(indexId, from, to);
+        }
+        
+        // TODO RPC: estimates are not forwarded to the master yet
+        throw new UnsupportedOperationException("This operation is " +
+                "not supported by the replication-plugin yet.");
+    }
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.Database#estimateSize(int, byte[], byte[])
+     */
+    @Override
+    public long estimateSize(int indexId, byte[] from, byte[] to) throws BabuDBException {
+        
+        if (getServerToPerformAt(0) == null) {
+            return localDB.estimateSize(indexId, from, to);
+        }
+        
+        // TODO RPC: estimates are not forwarded to the master yet
+        throw new UnsupportedOperationException("This operation is " +
+                "not supported by the replication-plugin yet.");
+    }
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.Database#openCursor(int)
+     */
+    @Override
+    public Cursor openCursor(int indexId) throws BabuDBException {
+        
+        if (getServerToPerformAt(0) == null) {
+            return localDB.openCursor(indexId);
+        }
+        
+        // cursors cannot be served by a remote master
+        throw new UnsupportedOperationException("This operation is " +
+                "not supported by the replication-plugin yet.");
+    }
+    
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.database.Database#singleInsert(int, byte[], 
      *          byte[], java.lang.Object)
@@ -455,6 +663,19 @@ public class DatabaseProxy implements DatabaseInternal {
         return insert(irg, context);
     }
     
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.database.Database#singleMerge(int, byte[], 
+     *          byte[], java.lang.Object)
+     */
+    @Override
+    public DatabaseRequestResult<Object> singleMerge(int indexId, byte[] key, 
+            byte[] operand, Object context) {
+        
+        DatabaseInsertGroup irg = createInsertGroup();
+        irg.addMerge(indexId, key, operand);
+        return insert(irg, context);
+    }
+    
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.database.Database#insert(
      *          org.xtreemfs.babudb.api.database.DatabaseInsertGroup, java.lang.Object)
@@ -18,6 +18,7 @@ import org.xtreemfs.babudb.api.database.ResultSet;
 import org.xtreemfs.babudb.pbrpc.GlobalTypes.Databases;
 import org.xtreemfs.babudb.pbrpc.GlobalTypes.EntryMap;
 import org.xtreemfs.babudb.pbrpc.GlobalTypes.ErrorCodeResponse;
+import org.xtreemfs.babudb.pbrpc.GlobalTypes.ValueList;
 import org.xtreemfs.babudb.replication.service.clients.ClientResponseFuture;
 import org.xtreemfs.foundation.buffer.ReusableBuffer;
 
@@ -83,6 +84,18 @@ public interface ProxyAccessClient {
     public ClientResponseFuture<byte[], ErrorCodeResponse> lookup(String dbName, int indexId, 
             ReusableBuffer key, InetSocketAddress master);
     
+    /**
+     * RPC for looking up the values of multiple keys at the master.
+     * 
+     * @param dbName
+     * @param indexId
+     * @param keys
+     * @param master
+     * @return the request's response future.
+     */
+    public ClientResponseFuture<byte[][], ValueList> multiLookup(String dbName, int indexId, 
+            byte[][] keys, InetSocketAddress master);
+    
     /**
      * RPC for a prefix-lookup at the master.
      * 
@@ -123,6 +136,23 @@ public interface ProxyAccessClient {
             String dbName, int indexId, ReusableBuffer from, ReusableBuffer to, 
             InetSocketAddress master);
     
+    /**
+     * RPC for a range-lookup at the master that returns at most the given 
+     * number of entries and, optionally, only their keys.
+     * 
+     * @param dbName
+     * @param indexId
+     * @param from
+     * @param to
+     * @param maxEntries - the maximum number of entries, or 0 if unlimited.
+     * @param keysOnly - if true, entries are returned with null values.
+     * @param master
+     * @return the request's response future.
+     */
+    public ClientResponseFuture<ResultSet<byte[], byte[]>, EntryMap> rangeLookup(
+            String dbName, int indexId, ReusableBuffer from, ReusableBuffer to, 
+            int maxEntries, boolean keysOnly, InetSocketAddress master);
+    
     /**
      * RPC for a reverse range-lookup at the master.
      * 
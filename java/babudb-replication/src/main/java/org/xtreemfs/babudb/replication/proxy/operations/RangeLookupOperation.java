@@ -68,6 +68,7 @@ public class RangeLookupOperation extends Operation {
     public void processRequest(final Request rq) {
         RangeLookup req = (RangeLookup) rq.getRequestMessage();
         
+        final boolean keysOnly = req.getKeysOnly();
         int limit = req.getFromLength();  
         ReusableBuffer data = rq.getData();
         byte[] from = null;
@@ -89,7 +90,7 @@ public class RangeLookupOperation extends Operation {
        
         try {
             dbs.getDatabase(req.getDatabaseName()).rangeLookupNonblocking(req.getIndexId(), 
-                            from, to, null).registerListener(new DatabaseRequestListener<ResultSet<byte[], byte[]>>() {
+                            from, to, req.getMaxEntries(), keysOnly, null).registerListener(new DatabaseRequestListener<ResultSet<byte[], byte[]>>() {
                 
                 @Override
                 public void finished(ResultSet<byte[], byte[]> result, Object context) {
@@ -100,19 +101,22 @@ public class RangeLookupOperation extends Operation {
                     List<Entry<byte[], byte[]>> tmp = new ArrayList<Entry<byte[], byte[]>>();
                     while (result.hasNext()) {
                         Entry<byte[], byte[]> entry = result.next();
-                        size += entry.getKey().length + entry.getValue().length;
+                        size += entry.getKey().length + (keysOnly ? 0 : entry.getValue().length);
                         tmp.add(entry);
                     }
                     result.free();
                     
-                    // prepare the response
+                    // prepare the response; keys-only responses do not contain 
+                    // any values
                     ReusableBuffer data = BufferPool.allocate(size);
                     for (Entry<byte[], byte[]> entry : tmp) {
                         r.addLength(entry.getKey().length);
-                        r.addLength(entry.getValue().length);
-                        
                         data.put(entry.getKey());
-                        data.put(entry.getValue());
+                        
+                        if (!keysOnly) {
+                            r.addLength(entry.getValue().length);
+                            data.put(entry.getValue());
+                        }
                     }
                     data.flip();
                     
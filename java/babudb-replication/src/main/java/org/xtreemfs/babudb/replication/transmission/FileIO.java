@@ -86,7 +86,7 @@ public class FileIO implements FileIOInterface {
         File result;
         String baseDir = configuration.getBabuDBConfig().getBaseDir();
         
-        if (LSMDatabase.isSnapshotFilename(pName)) {
+        if (LSMDatabase.isSnapshotFilename(pName) || LSMDatabase.isRunDirname(pName)) {
             // create the db-name directory, if necessary
             new File(baseDir + pName + separatorChar).mkdirs();
             // create the file if necessary
@@ -22,6 +22,7 @@ import org.xtreemfs.babudb.pbrpc.GlobalTypes.Databases;
 import org.xtreemfs.babudb.pbrpc.GlobalTypes.EntryMap;
 import org.xtreemfs.babudb.pbrpc.RemoteAccessServiceClient;
 import org.xtreemfs.babudb.pbrpc.GlobalTypes.ErrorCodeResponse;
+import org.xtreemfs.babudb.pbrpc.GlobalTypes.ValueList;
 import org.xtreemfs.babudb.replication.proxy.DatabaseManagerProxy;
 import org.xtreemfs.babudb.replication.proxy.DatabaseProxy;
 import org.xtreemfs.babudb.replication.proxy.ProxyAccessClient;
@@ -212,6 +213,71 @@ public class ProxyAccessClientAdapter extends RemoteAccessServiceClient
         }
     }
 
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.replication.proxy.ProxyAccessClient#multiLookup(
+     *     java.lang.String, int, byte[][], java.net.InetSocketAddress)
+     */
+    @Override
+    public ClientResponseFuture<byte[][], ValueList> multiLookup(String dbName, int indexId, 
+            byte[][] keys, InetSocketAddress master) {
+
+        assert (master != null);
+        
+        // send the lengths of all keys along with the concatenated keys
+        List<Integer> keyLengths = new ArrayList<Integer>(keys.length);
+        int size = 0;
+        for (byte[] key : keys) {
+            keyLengths.add(key.length);
+            size += key.length;
+        }
+        ReusableBuffer keyData = BufferPool.allocate(size);
+        for (byte[] key : keys) {
+            keyData.put(key);
+        }
+        keyData.flip();
+        
+        try {
+            RPCResponse<ValueList> result = mlookup(master, AUTHENTICATION, USER_CREDENTIALS, 
+                    dbName, indexId, keyLengths, keyData);
+            
+            return new ClientResponseFuture<byte[][], ValueList>(result) {
+                
+                @Override
+                public byte[][] resolve(ValueList response, ReusableBuffer data)
+                        throws ErrorCodeException, IOException {
+                    
+                    if (response.getErrorCode() != 0) {
+                        throw new ErrorCodeException(response.getErrorCode());
+                    }
+                    try {
+                        byte[][] values = new byte[response.getLengthCount()][];
+                        for (int i = 0; i < values.length; i++) {
+                            int length = response.getLength(i);
+                            if (length >= 0) {
+                                values[i] = new byte[length];
+                                data.get(values[i], 0, length);
+                            }
+                        }
+                        return values;
+                    } finally {
+                        if (data != null) BufferPool.free(data);
+                    }
+                }
+            };
+        } catch (final IOException e) {
+            return new ClientResponseFuture<byte[][], ValueList>(null) {
+                
+                @Override
+                public byte[][] resolve(ValueList response, ReusableBuffer data)
+                        throws ErrorCodeException, IOException {
+                    throw e;
+                }
+            };
+        } finally {
+            BufferPool.free(keyData);
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.replication.RemoteAccessClient#prefixLookup(
      *          java.lang.String, int, 
@@ -389,6 +455,19 @@ public class ProxyAccessClientAdapter extends RemoteAccessServiceClient
     public ClientResponseFuture<ResultSet<byte[], byte[]>, EntryMap> rangeLookup(
             String dbName, int indexId, ReusableBuffer from, ReusableBuffer to, 
             InetSocketAddress master) {
+        return rangeLookup(dbName, indexId, from, to, 0, false, master);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.replication.proxy.ProxyAccessClient#rangeLookup(
+     *          java.lang.String, int, org.xtreemfs.foundation.buffer.ReusableBuffer, 
+     *          org.xtreemfs.foundation.buffer.ReusableBuffer, int, boolean, 
+     *          java.net.InetSocketAddress)
+     */
+    @Override
+    public ClientResponseFuture<ResultSet<byte[], byte[]>, EntryMap> rangeLookup(
+            String dbName, int indexId, ReusableBuffer from, ReusableBuffer to, 
+            int maxEntries, final boolean keysOnly, InetSocketAddress master) {
         
         assert (master != null);
         
@@ -398,7 +477,7 @@ public class ProxyAccessClientAdapter extends RemoteAccessServiceClient
         
         try {
             RPCResponse<EntryMap> result = rlookup(master, AUTHENTICATION, USER_CREDENTIALS, dbName, 
-                    indexId, from.remaining(), payload);
+                    indexId, from.remaining(), maxEntries, keysOnly, payload);
             
             return new ClientResponseFuture<ResultSet<byte[], byte[]>, EntryMap>(result) {
                 
@@ -410,8 +489,9 @@ public class ProxyAccessClientAdapter extends RemoteAccessServiceClient
                         throw new ErrorCodeException(response.getErrorCode());
                     }
                     try {
+                        // keys-only responses contain no value lengths
                         int count = response.getLengthCount();
-                        assert (count % 2 == 0);
+                        assert (keysOnly || count % 2 == 0);
                         
                         List<Entry<byte[], byte[]>> m = new ArrayList<Entry<byte[],byte[]>>();
                         byte[] k = null, v = null;
@@ -420,7 +500,9 @@ public class ProxyAccessClientAdapter extends RemoteAccessServiceClient
                             v = new byte[length];
                             data.get(v, 0, length);
                             
-                            if (i % 2 == 0) {
+                            if (keysOnly) {
+                                m.add(new SimpleEntry<byte[], byte[]>(v, null));
+                            } else if (i % 2 == 0) {
                                 k = v;
                             } else {
                                 m.add(new SimpleEntry<byte[], byte[]>(k, v));
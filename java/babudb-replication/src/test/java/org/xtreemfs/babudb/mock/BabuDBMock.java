@@ -7,9 +7,14 @@
  */
 package org.xtreemfs.babudb.mock;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.xtreemfs.babudb.api.StaticInitialization;
+import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
 import org.xtreemfs.babudb.api.dev.BabuDBInternal;
 import org.xtreemfs.babudb.api.dev.CheckpointerInternal;
 import org.xtreemfs.babudb.api.dev.DatabaseManagerInternal;
@@ -162,6 +167,60 @@ public class BabuDBMock implements BabuDBInternal {
         return null;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#getWorker(int, int, byte[])
+     */
+    @Override
+    public LSMDBWorker getWorker(int dbId, int indexId, byte[] key) {
+
+        Logging.logMessage(Logging.LEVEL_ERROR, this,
+                "Mock '%s' tried to access Worker for DB %d.", name, dbId);
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#getWorkers(int)
+     */
+    @Override
+    public Collection<LSMDBWorker> getWorkers(int dbId) {
+
+        Logging.logMessage(Logging.LEVEL_ERROR, this,
+                "Mock '%s' tried to access Workers for DB %d.", name, dbId);
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#lockWorkers(java.util.Collection,
+     *          java.lang.Object)
+     */
+    @Override
+    public List<DatabaseRequestResult<AtomicBoolean>> lockWorkers(Collection<LSMDBWorker> workers,
+            Object context) throws InterruptedException {
+
+        Logging.logMessage(Logging.LEVEL_ERROR, this,
+                "Mock '%s' tried to lock workers.", name);
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.xtreemfs.babudb.api.dev.BabuDBInternal#getReadExecutor()
+     */
+    @Override
+    public Executor getReadExecutor() {
+
+        Logging.logMessage(Logging.LEVEL_ERROR, this,
+                "Mock '%s' tried to access the read executor.", name);
+        return null;
+    }
+
     /*
      * (non-Javadoc)
      * 
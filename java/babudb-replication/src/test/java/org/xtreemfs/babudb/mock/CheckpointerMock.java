@@ -53,6 +53,16 @@ public class CheckpointerMock extends CheckpointerInternal {
             "Mock tried to wait for CP.");
     }
 
+    /* (non-Javadoc)
+     * @see org.xtreemfs.babudb.api.dev.CheckpointerInternal#flush(java.lang.String)
+     */
+    @Override
+    public LSN flush(String dbName) throws BabuDBException {
+        Logging.logMessage(Logging.LEVEL_ERROR, this,
+            "Mock tried to flush database %s.", dbName);
+        return txnMan.getLatestOnDiskLSN();
+    }
+
     /* (non-Javadoc)
      * @see org.xtreemfs.babudb.api.dev.CheckpointerInternal#init(org.xtreemfs.babudb.log.DiskLogger, int, long)
      */
@@ -10,7 +10,9 @@ package org.xtreemfs.babudb.mock;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import org.xtreemfs.babudb.api.database.Database;
@@ -20,6 +22,7 @@ import org.xtreemfs.babudb.api.dev.transaction.TransactionInternal;
 import org.xtreemfs.babudb.api.exception.BabuDBException;
 import org.xtreemfs.babudb.api.exception.BabuDBException.ErrorCode;
 import org.xtreemfs.babudb.api.index.ByteRangeComparator;
+import org.xtreemfs.babudb.api.index.MergeOperator;
 import org.xtreemfs.babudb.api.transaction.Transaction;
 import org.xtreemfs.babudb.api.transaction.TransactionListener;
 import org.xtreemfs.babudb.index.DefaultByteRangeComparator;
@@ -68,6 +71,13 @@ public class DatabaseManagerMock extends DatabaseManagerProxy implements Databas
                 
             }
             
+            @Override
+            public void ingestSorted(String dbName, int indexId,
+                    Iterator<Entry<byte[], byte[]>> entries) throws BabuDBException {
+                // TODO Auto-generated method stub
+                
+            }
+            
             @Override
             public void deleteDatabase(String databaseName) throws BabuDBException {
                 // TODO Auto-generated method stub
@@ -196,6 +206,14 @@ public class DatabaseManagerMock extends DatabaseManagerProxy implements Databas
                 return null;
             }
             
+            @Override
+            public DatabaseInternal createDatabase(String databaseName, int numIndices,
+                    ByteRangeComparator[] comparators, MergeOperator[] mergeOperators)
+                    throws BabuDBException {
+                // TODO Auto-generated method stub
+                return null;
+            }
+            
             @Override
             public DatabaseInternal createDatabase(String databaseName, int numIndices)
                     throws BabuDBException {
@@ -229,6 +247,14 @@ public class DatabaseManagerMock extends DatabaseManagerProxy implements Databas
     public DatabaseInternal createDatabase(String databaseName, int numIndices,
             ByteRangeComparator[] comparators) throws BabuDBException {
         
+        return createDatabase(databaseName, numIndices, comparators, null);
+    }
+    
+    @Override
+    public DatabaseInternal createDatabase(String databaseName, int numIndices,
+            ByteRangeComparator[] comparators, MergeOperator[] mergeOperators) 
+            throws BabuDBException {
+        
         if (comparators == null) {
             comparators = new ByteRangeComparator[numIndices];
             final ByteRangeComparator defaultComparator = new DefaultByteRangeComparator();
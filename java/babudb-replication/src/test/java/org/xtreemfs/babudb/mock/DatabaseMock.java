@@ -10,6 +10,7 @@ package org.xtreemfs.babudb.mock;
 import java.io.File;
 import java.util.ArrayList;
 
+import org.xtreemfs.babudb.api.database.Cursor;
 import org.xtreemfs.babudb.api.database.DatabaseInsertGroup;
 import org.xtreemfs.babudb.api.database.DatabaseRequestResult;
 import org.xtreemfs.babudb.api.database.ResultSet;
@@ -28,13 +29,13 @@ import org.xtreemfs.foundation.logging.Logging;
  */
 
 public class DatabaseMock implements DatabaseInternal {
-        
+    
     public class LSMDBMock extends LSMDatabase {
-
+        
         public LSMDBMock(String databaseName, int databaseId, int numIndices, 
                 ByteRangeComparator[] comparators) throws BabuDBException {
-            super(databaseName, databaseId, "", numIndices, false, comparators, false, 0, 0, false, 
-                    0);
+            super(databaseName, databaseId, "", numIndices, false, comparators, null, false, 0, 0, 
+                    false, 0, 1, 0, null, 0, 0, false);
         }  
         
         /* (non-Javadoc)
@@ -68,6 +69,38 @@ public class DatabaseMock implements DatabaseInternal {
         return null;
     }
 
+    @Override
+    public long estimateCount(int indexId, byte[] from, byte[] to) {
+        // TODO Auto-generated method stub
+        return 0;
+    }
+
+    @Override
+    public long estimateSize(int indexId, byte[] from, byte[] to) {
+        // TODO Auto-generated method stub
+        return 0;
+    }
+    
+    @Override
+    public Cursor openCursor(int indexId) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+    
+    @Override
+    public DatabaseRequestResult<ResultSet<byte[], byte[]>> prefixLookup(int indexId, byte[] key, 
+            int maxEntries, boolean keysOnly, Object context) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+    
+    @Override
+    public DatabaseRequestResult<ResultSet<byte[], byte[]>> rangeLookup(int indexId, byte[] from, 
+            byte[] to, int maxEntries, boolean keysOnly, Object context) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+    
     @Override
     public DatabaseRequestResult<Object> insert(DatabaseInsertGroup irg,
             Object context) {
@@ -81,7 +114,14 @@ public class DatabaseMock implements DatabaseInternal {
         // TODO Auto-generated method stub
         return null;
     }
-
+    
+    @Override
+    public DatabaseRequestResult<Object> singleMerge(int indexId, byte[] key,
+            byte[] operand, Object context) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+    
     @Override
     public DatabaseRequestResult<byte[]> lookup(int indexId, byte[] key,
             Object context) {
@@ -89,6 +129,13 @@ public class DatabaseMock implements DatabaseInternal {
         return null;
     }
 
+    @Override
+    public DatabaseRequestResult<byte[][]> multiLookup(int indexId, byte[][] keys,
+            Object context) {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
     @Override
     public DatabaseRequestResult<ResultSet<byte[], byte[]>> prefixLookup(
             int indexId, byte[] key, Object context) {